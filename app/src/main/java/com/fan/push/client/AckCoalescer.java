@@ -0,0 +1,195 @@
+package com.fan.push.client;
+
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * @Description: 客户端回执合并
+ *
+ * 原来每收到一条 1004 就 new 一个回执 writeAndFlush 一次(重复消息的回执还带着一个随机的 messageId, 服务端根本对不上),
+ * 离线消息回放的时候客户端要发出几千个小帧.
+ *
+ * 现在收到消息只是记下来, 攒成一个回执帧再发:
+ * 1, 带 seq 的消息记在 SequenceAckTracker 里, 回执里是 ackSeq + sack, 多少条消息都只占几个字节
+ * 2, 不带 seq 的消息(群发)记下 messageId, 放在回执的 ackIds 里
+ * 3, 什么时候发: maxDelayMillis <= 0 时每次读完(channelReadComplete)发一次;
+ *    否则第一条没发的回执最多等 maxDelayMillis 毫秒, 期间的多次读合并成一个回执. ackIds 攒够 MAX_PENDING_IDS 个也立即发
+ *
+ * 协商的版本低于 BINARY_SEQ 说明是老服务端, 不认识 ackIds, 还是一条消息一个回执(带正确的 messageId), 只是合并成一次 flush
+ *
+ * 不是线程安全的, 只在 channel 的 EventLoop 中访问
+ * @Author: fan
+ * @Date: 2020-12-29 10:10
+ * @Modify:
+ */
+public class AckCoalescer {
+
+    // 默认最多延时多久发回执
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5;
+
+    // 一个回执里最多带多少个 messageId
+    public static final int MAX_PENDING_IDS = 256;
+
+    private final long maxDelayMillis;
+
+    // 这个连接上收到了哪些序号
+    private final SequenceAckTracker tracker = new SequenceAckTracker();
+
+    // 有新收到的序号还没有回执
+    private boolean seqPending;
+
+    // 还没有回执的, 不带 seq 的消息
+    private List<String> pendingIds = new ArrayList<>();
+
+    // 延时发送的任务
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * constructor
+     *
+     * @param maxDelayMillis 回执最多延时多久, <= 0 表示每次读完就发
+     */
+    public AckCoalescer(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * 收到一条带序号的消息
+     * 重复的也要记, 服务端可能是没收到上一个回执才重发的
+     *
+     * @param ctx
+     * @param seq
+     */
+    public void ackSeq(ChannelHandlerContext ctx, long seq) {
+        tracker.add(seq);
+        seqPending = true;
+        scheduleFlush(ctx);
+    }
+
+    /**
+     * 收到一条不带序号的消息
+     *
+     * @param ctx
+     * @param messageId
+     */
+    public void ackMessageId(ChannelHandlerContext ctx, String messageId) {
+        if (messageId == null) {
+            return;
+        }
+        pendingIds.add(messageId);
+        if (pendingIds.size() >= MAX_PENDING_IDS) {
+            flush(ctx);
+        } else {
+            scheduleFlush(ctx);
+        }
+    }
+
+    /**
+     * 一次读循环结束
+     *
+     * @param ctx
+     */
+    public void onReadComplete(ChannelHandlerContext ctx) {
+        if (maxDelayMillis <= 0) {
+            flush(ctx);
+        }
+    }
+
+    /**
+     * 把攒下的回执发出去
+     *
+     * @param ctx
+     */
+    public void flush(ChannelHandlerContext ctx) {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (!seqPending && pendingIds.isEmpty()) {
+            return;
+        }
+
+        if (ProtocolVersion.of(ctx.channel()) >= ProtocolVersion.BINARY_SEQ) {
+            Message ackMessage = newAckMessage();
+            if (seqPending) {
+                ackMessage.setAckSeq(tracker.getAckSeq());
+                ackMessage.setSack(tracker.getSack());
+            }
+            if (!pendingIds.isEmpty()) {
+                ackMessage.setAckIds(pendingIds);
+                pendingIds = new ArrayList<>();
+            }
+            ctx.write(ackMessage);
+        } else {
+            // 老服务端只认识 messageId
+            if (seqPending) {
+                Message ackMessage = newAckMessage();
+                ackMessage.setAckSeq(tracker.getAckSeq());
+                ackMessage.setSack(tracker.getSack());
+                ctx.write(ackMessage);
+            }
+            for (String messageId : pendingIds) {
+                Message ackMessage = newAckMessage();
+                ackMessage.setMessageId(messageId);
+                ctx.write(ackMessage);
+            }
+            pendingIds.clear();
+        }
+        seqPending = false;
+        ctx.flush();
+    }
+
+    /**
+     * 新连接, 序号重新开始, 旧连接上没发的回执也不要了
+     */
+    public void reset() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        tracker.reset();
+        seqPending = false;
+        pendingIds.clear();
+    }
+
+    public SequenceAckTracker getTracker() {
+        return tracker;
+    }
+
+    private void scheduleFlush(final ChannelHandlerContext ctx) {
+        if (maxDelayMillis <= 0 || scheduledFlush != null) {
+            return;
+        }
+        scheduledFlush = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduledFlush = null;
+                if (ctx.channel().isActive()) {
+                    flush(ctx);
+                }
+            }
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 回执: messageType=1004, status=1, 不带 messageId
+     *
+     * @return
+     */
+    private static Message newAckMessage() {
+        Message ackMessage = new Message();
+        ackMessage.setMessageType(1004);
+        ackMessage.setFrom(PushClient.MY_CLIENT_USER_ID);
+        ackMessage.setTo("server");
+        ackMessage.setStatus(1);
+        ackMessage.setTimestamp(System.currentTimeMillis());
+        return ackMessage;
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.fan.push.client;
 
+import com.fan.push.codec.MessageDecoder;
+import com.fan.push.codec.MessageEncoder;
+
 import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.ChannelHandler;
@@ -40,6 +43,8 @@ public class ChannelHandlerHolder {
                 new ConnectionWatchdog(),// 链路检测
                 new LengthFieldPrepender(2),
                 new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2),
+                new MessageDecoder(),// 帧 -> Message
+                new MessageEncoder(),// Message -> 帧, 按协商好的协议版本编码
                 new HeartBeatClientHandler(),// 心跳处理器
                 new PushClientHandler()// 客户端处理器
         };
@@ -19,8 +19,6 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
-import static com.fan.push.client.ServerConfig.SERVER_IP;
-import static com.fan.push.client.ServerConfig.SERVER_PORT;
 import static com.fan.push.util.LoggerUtil.logger;
 
 /**
@@ -56,7 +54,7 @@ public class ConnectionWatchdog extends ChannelInboundHandlerAdapter {
             PushClient.getInstance().startTimerToReconnect();
         }
 
-        logger.warn("Disconnects with {}, address: {}, reconnect: {}.", ctx.channel(), SERVER_IP + ":" + SERVER_PORT, doReconnect);
+        logger.warn("Disconnects with {}, address: {}, reconnect: {}.", ctx.channel(), PushClient.getInstance().getServerAddress(), doReconnect);
 
         ctx.fireChannelInactive();
     }
@@ -1,15 +1,12 @@
 package com.fan.push.client;
 
 import com.fan.push.message.Message;
-import com.fan.push.util.GsonUtil;
 import com.fan.push.util.LoggerUtil;
 
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.CharsetUtil;
 
 /**
  * @Description: 心跳处理器
@@ -56,7 +53,7 @@ public class HeartBeatClientHandler extends ChannelInboundHandlerAdapter {
                     // 规定时间内没有过写操作,向服务器发送一个心跳包
                     // TODO: send heart beat
                     LoggerUtil.logger.info("发送一个心跳包");
-                    ctx.writeAndFlush(Unpooled.wrappedBuffer(GsonUtil.getInstance().toJson(Message.obtainPingMessage()).getBytes(CharsetUtil.UTF_8)));
+                    ctx.writeAndFlush(Message.obtainPingMessage());
                     break;
                 }
             }
@@ -0,0 +1,154 @@
+package com.fan.push.client;
+
+/**
+ * @Description: 客户端消息去重窗口, 记住最近收到的 capacity 个 messageId
+ *
+ * 原来用的是 ArrayBlockingQueue<String>(4096):
+ * 1, contains() 从头到尾 equals 一遍, 每收到一条消息最多比较4096个字串
+ * 2, 从来不出队, 收满4096条之后 add() 直接抛 IllegalStateException, 之后的消息都处理不了了
+ *
+ * 这里是一个定长的哈希集合 + 环形缓冲:
+ * 1, ring 按收到的顺序存 messageId, 满了就覆盖最老的那个, 同时从哈希表里删掉它(先进先出淘汰)
+ * 2, table 是开放寻址(线性探测)的哈希表, 存的是 ring 的下标 + 1(0 表示空), 大小是 capacity 向上取2的幂再乘2, 装载因子不超过 0.5
+ *    删除用 backward shift, 不留墓碑, 查找一直是 O(1)
+ * 3, 内存固定: 创建时分配好 ring/hashes/table 三个数组, 之后不再分配(messageId 字串本身是收到的消息里的)
+ *
+ * 不是线程安全的, 只在 channel 的 EventLoop 中访问
+ * @Author: fan
+ * @Date: 2020-12-29 15:00
+ * @Modify:
+ */
+public class MessageIdWindow {
+
+    // 默认记住多少个 messageId, 和原来的队列一样大
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+
+    // 按收到的顺序存 messageId
+    private final String[] ring;
+
+    // ring 中每个 messageId 的哈希值, 删除和挪动时不用再算
+    private final int[] hashes;
+
+    // 开放寻址的哈希表, 存 ring 的下标 + 1, 0 表示空
+    private final int[] table;
+
+    private final int mask;
+
+    // ring 中下一个要写的位置, 满了之后也是最老的那个
+    private int head;
+
+    private int size;
+
+    /**
+     * constructor
+     *
+     * @param capacity 记住多少个 messageId
+     */
+    public MessageIdWindow(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 29)) {
+            throw new IllegalArgumentException("MessageIdWindow constructor , capacity out of range: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ring = new String[capacity];
+        this.hashes = new int[capacity];
+        int tableSize = Integer.highestOneBit(capacity - 1 | 1) << 2;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * 记录一个 messageId
+     *
+     * @param messageId
+     * @return 第一次见到返回 true, 在窗口里已经有了(重复消息)返回 false. null 总是返回 true
+     */
+    public boolean add(String messageId) {
+        if (messageId == null) {
+            return true;
+        }
+        int hash = hash(messageId);
+        int i = hash & mask;
+        for (int slot = table[i]; slot != 0; slot = table[i]) {
+            if (hashes[slot - 1] == hash && messageId.equals(ring[slot - 1])) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (size == capacity) {
+            // 满了, 淘汰最老的, 它就在 head 这个位置
+            evict(head);
+            // 淘汰挪动了哈希表, 重新找一个空位
+            i = hash & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+        } else {
+            size++;
+        }
+
+        ring[head] = messageId;
+        hashes[head] = hash;
+        table[i] = head + 1;
+        head = head + 1 == capacity ? 0 : head + 1;
+        return true;
+    }
+
+    /**
+     * 是否在窗口里
+     *
+     * @param messageId
+     * @return
+     */
+    public boolean contains(String messageId) {
+        if (messageId == null) {
+            return false;
+        }
+        int hash = hash(messageId);
+        for (int i = hash & mask, slot = table[i]; slot != 0; i = (i + 1) & mask, slot = table[i]) {
+            if (hashes[slot - 1] == hash && messageId.equals(ring[slot - 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 从哈希表中删掉 ring[index]
+     */
+    private void evict(int index) {
+        int i = hashes[index] & mask;
+        while (table[i] != index + 1) {
+            i = (i + 1) & mask;
+        }
+        ring[index] = null;
+
+        // backward shift: 把后面探测链上的元素往前挪, 不留空洞
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[table[j] - 1] & mask;
+            // home 不在 (i, j] 这个循环区间里, 说明它可以挪到 i
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    private static int hash(String messageId) {
+        // String.hashCode 的低位分布不好, 再打散一次
+        int h = messageId.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
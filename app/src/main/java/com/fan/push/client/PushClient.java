@@ -1,13 +1,16 @@
 package com.fan.push.client;
 
+import com.fan.push.codec.ProtocolVersion;
 import com.fan.push.message.Message;
-import com.fan.push.util.GsonUtil;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
@@ -16,7 +19,6 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.util.CharsetUtil;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timeout;
 import io.netty.util.Timer;
@@ -32,7 +34,7 @@ import static com.fan.push.util.LoggerUtil.logger;
  * @Description: 客户端启动类
  * @Author: fan
  * @Date: 2020-9-19 21:19
- * @Modify:
+ * @Modify: 2021-01-05 服务端重定向
  */
 public class PushClient {
 
@@ -90,6 +92,97 @@ public class PushClient {
     // 连接状态变化回调
     private IConnectStatusListener connectStatusListener;
 
+    // 回执最多延时多久发(毫秒), <= 0 表示每次读完就发, 参考 AckCoalescer
+    // 可以用 -Dfanpush.ackMaxDelayMillis 配置
+    private volatile long ackMaxDelayMillis = Long.getLong("fanpush.ackMaxDelayMillis", AckCoalescer.DEFAULT_MAX_DELAY_MILLIS);
+
+    // 去重窗口记住多少个最近收到的 messageId, 参考 MessageIdWindow
+    // 可以用 -Dfanpush.dedupWindowCapacity 配置
+    private volatile int dedupWindowCapacity = Integer.getInteger("fanpush.dedupWindowCapacity", MessageIdWindow.DEFAULT_CAPACITY);
+
+    // 设备标识, 握手时带给服务端, 同一个 userId 的多个设备可以同时在线. null 表示不区分设备(新连接会替换掉旧连接)
+    // 可以用 -Dfanpush.deviceId 配置
+    private volatile String deviceId = System.getProperty("fanpush.deviceId");
+
+    // 服务端重定向过来的地址(集群模式, 参考握手响应 status=2), null 表示用 ServerConfig 中的地址. 连不上就回到 ServerConfig
+    private volatile InetSocketAddress redirectAddress;
+
+    // 刚被重定向, 还没在新地址上握手: 重连不退避, 握手时带上 status=2
+    private volatile boolean redirectPending;
+
+    // 重定向之后的那次重连是否已经安排了. 断开时 ConnectionWatchdog 和 connect() 都会调用 startTimerToReconnect, 只连一次
+    private final AtomicBoolean redirectScheduled = new AtomicBoolean();
+
+    // 已订阅的主题. 服务端的订阅关系跟着连接走, 每次握手成功后要重新订阅一遍
+    private final Set<String> subscribedTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public long getAckMaxDelayMillis() {
+        return ackMaxDelayMillis;
+    }
+
+    /**
+     * 设置回执最多延时多久发, 对之后建立的连接生效
+     *
+     * @param ackMaxDelayMillis <= 0 表示每次读完就发
+     */
+    public void setAckMaxDelayMillis(long ackMaxDelayMillis) {
+        this.ackMaxDelayMillis = ackMaxDelayMillis;
+    }
+
+    public int getDedupWindowCapacity() {
+        return dedupWindowCapacity;
+    }
+
+    /**
+     * 设置去重窗口的大小, 对之后建立的连接生效
+     *
+     * @param dedupWindowCapacity
+     */
+    public void setDedupWindowCapacity(int dedupWindowCapacity) {
+        this.dedupWindowCapacity = dedupWindowCapacity;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * 设置设备标识, 下次握手时生效
+     *
+     * @param deviceId 可以为 null
+     */
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * 当前要连接的服务端地址
+     *
+     * @return
+     */
+    public InetSocketAddress getServerAddress() {
+        InetSocketAddress address = redirectAddress;
+        return address != null ? address : new InetSocketAddress(SERVER_IP, SERVER_PORT);
+    }
+
+    /**
+     * 服务端让我们去连另一个节点(握手响应 status=2), 调用之后关闭当前连接即可, 重连时不退避, 直接连新地址
+     *
+     * @param hostAndPort host:port
+     */
+    public void redirectTo(String hostAndPort) {
+        int colon = hostAndPort == null ? -1 : hostAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            logger.warn("无效的重定向地址: {}", hostAndPort);
+            return;
+        }
+        redirectAddress = InetSocketAddress.createUnresolved(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+        redirectScheduled.set(false);
+        redirectPending = true;
+        attempts = 0;
+        logger.info("重定向到 {}", hostAndPort);
+    }
+
     /**
      * 当前尝试次数清零
      */
@@ -135,7 +228,12 @@ public class PushClient {
                 }
             });
 
-            ChannelFuture future = bootstrap.connect(new InetSocketAddress(SERVER_IP, SERVER_PORT)).sync();
+            InetSocketAddress address = getServerAddress();
+            if (address.isUnresolved()) {
+                address = new InetSocketAddress(address.getHostString(), address.getPort());
+            }
+            final InetSocketAddress serverAddress = address;
+            ChannelFuture future = bootstrap.connect(serverAddress).sync();
 
             channel = future.channel();
 
@@ -146,7 +244,7 @@ public class PushClient {
 
                     boolean succeed = futureTask.isSuccess();
 
-                    logger.warn("Reconnects with {}, {}.", SERVER_IP + ":" + SERVER_PORT, succeed ? "succeed" : "failed");
+                    logger.warn("Reconnects with {}, {}.", serverAddress, succeed ? "succeed" : "failed");
 
                     if (succeed && channel != null) {
                         logger.info("连接成功");
@@ -155,8 +253,16 @@ public class PushClient {
                             PushClient.getInstance().getConnectStatusListener().connectSuccess();
                         }
                         // 构造一条握手消息, 并发送
+                        // 带上自己支持的最高协议版本, 由服务端协商
                         Message handshakeMessage = new Message(1001, MY_CLIENT_USER_ID, "server");
-                        channel.writeAndFlush(Unpooled.wrappedBuffer(GsonUtil.getInstance().toJson(handshakeMessage).getBytes(CharsetUtil.UTF_8)));
+                        handshakeMessage.setProtocolVersion(ProtocolVersion.CURRENT);
+                        handshakeMessage.setDeviceId(deviceId);
+                        if (redirectPending) {
+                            // 告诉服务端我们是被重定向过来的, 不要再重定向
+                            handshakeMessage.setStatus(2);
+                            redirectPending = false;
+                        }
+                        channel.writeAndFlush(handshakeMessage);
 
                     } else {
                         logger.info("连接失败");
@@ -187,6 +293,9 @@ public class PushClient {
 
         } catch (Exception e) {
             e.printStackTrace();
+            // 重定向的地址连不上, 回到 ServerConfig 中的地址
+            redirectAddress = null;
+            redirectPending = false;
             connectStatus = CONNECT_STATE_FAILURE;
             if (PushClient.getInstance().getConnectStatusListener() != null) {
                 PushClient.getInstance().getConnectStatusListener().connectFail();
@@ -205,7 +314,20 @@ public class PushClient {
     public void startTimerToReconnect() {
 
         if (!PushClient.getInstance().isReconnectNeeded()) {
-            logger.warn("Cancel reconnecting with {}.", SERVER_IP + ":" + SERVER_PORT);
+            logger.warn("Cancel reconnecting with {}.", getServerAddress());
+            return;
+        }
+
+        // 被服务端重定向了: 不退避, 马上连新地址
+        if (redirectPending) {
+            if (redirectScheduled.compareAndSet(false, true)) {
+                timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        connect();
+                    }
+                }, 0, TimeUnit.MILLISECONDS);
+            }
             return;
         }
 
@@ -304,6 +426,47 @@ public class PushClient {
 
     }
 
+    /**
+     * 订阅主题
+     * 如果当前没有连接, 等握手成功后会自动订阅
+     *
+     * @param topic
+     */
+    public void subscribe(String topic) {
+        subscribedTopics.add(topic);
+        sendTopicMessage(channel, 1005, topic);
+    }
+
+    /**
+     * 退订主题
+     *
+     * @param topic
+     */
+    public void unsubscribe(String topic) {
+        subscribedTopics.remove(topic);
+        sendTopicMessage(channel, 1006, topic);
+    }
+
+    /**
+     * 握手成功后, 重新订阅全部主题
+     *
+     * @param channel
+     */
+    void resubscribeAll(Channel channel) {
+        for (String topic : subscribedTopics) {
+            sendTopicMessage(channel, 1005, topic);
+        }
+    }
+
+    private void sendTopicMessage(Channel channel, int messageType, String topic) {
+        if (channel == null || !channel.isActive()) {
+            return;
+        }
+        Message topicMessage = new Message(messageType, MY_CLIENT_USER_ID, "server");
+        topicMessage.setTopic(topic);
+        channel.writeAndFlush(topicMessage);
+    }
+
     /**
      * 是否需要重连
      *
@@ -0,0 +1,101 @@
+package com.fan.push.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @Description: 客户端记录已经收到了哪些序号, 用来生成累积回执
+ *
+ * 服务端给每条单发消息分配了连续递增的 seq(参考 MessageSequenceHandler), 客户端不再每条消息回一个回执, 而是回:
+ * ackSeq = N   表示 seq <= N 的都收到了
+ * sack         N 之后已经收到的区间, 两个一组 [start, end], 最多 MAX_SACK_RANGES 组
+ *
+ * 正常情况下 TCP 保证顺序, 收到的 seq 总是 N + 1, 只需要一个 long; 只有旧连接上的消息被重新分配序号之类的情况才会出现乱序, 才用到区间.
+ * 序号是跟着连接走的, 重新握手之后要 reset()
+ *
+ * 不是线程安全的, 只在 channel 的 EventLoop 中访问
+ * @Author: fan
+ * @Date: 2020-12-28 10:30
+ * @Modify:
+ */
+public class SequenceAckTracker {
+
+    // 回执里最多带多少个区间, 更多的区间等前面的空洞补上之后再确认, 服务端会重发
+    public static final int MAX_SACK_RANGES = 16;
+
+    // seq <= ackSeq 的都收到了
+    private long ackSeq;
+
+    // ackSeq 之后收到的区间, start -> end, 互不相邻
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    /**
+     * 记录收到了一个序号
+     *
+     * @param seq
+     * @return 是否是第一次收到
+     */
+    public boolean add(long seq) {
+        if (seq <= ackSeq) {
+            return false;
+        }
+        Map.Entry<Long, Long> floor = ranges.floorEntry(seq);
+        if (floor != null && floor.getValue() >= seq) {
+            return false;
+        }
+
+        long start = seq;
+        long end = seq;
+        // 和前一个区间相邻就合并
+        if (floor != null && floor.getValue() == seq - 1) {
+            start = floor.getKey();
+            ranges.remove(start);
+        }
+        // 和后一个区间相邻就合并
+        Long next = ranges.get(seq + 1);
+        if (next != null) {
+            end = next;
+            ranges.remove(seq + 1);
+        }
+
+        if (start == ackSeq + 1) {
+            ackSeq = end;
+        } else {
+            ranges.put(start, end);
+        }
+        return true;
+    }
+
+    public long getAckSeq() {
+        return ackSeq;
+    }
+
+    /**
+     * ackSeq 之后收到的区间
+     *
+     * @return 没有则返回 null
+     */
+    public long[] getSack() {
+        if (ranges.isEmpty()) {
+            return null;
+        }
+        int count = Math.min(ranges.size(), MAX_SACK_RANGES);
+        long[] sack = new long[count * 2];
+        Iterator<Map.Entry<Long, Long>> iterator = ranges.entrySet().iterator();
+        for (int i = 0; i < count; i++) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            sack[i * 2] = entry.getKey();
+            sack[i * 2 + 1] = entry.getValue();
+        }
+        return sack;
+    }
+
+    /**
+     * 新连接, 序号重新开始
+     */
+    public void reset() {
+        ackSeq = 0;
+        ranges.clear();
+    }
+}
@@ -0,0 +1,114 @@
+package com.fan.push.client;
+
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 回执合并: 一次读完只发一个回执帧, 或者延时到了再发; 老服务端还是按 messageId 一条一个
+ */
+public class AckCoalescerTest {
+
+    private EmbeddedChannel channel;
+
+    @After
+    public void tearDown() {
+        PushClient.getInstance().setAckMaxDelayMillis(AckCoalescer.DEFAULT_MAX_DELAY_MILLIS);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void oneReceiptPerReadComplete() {
+        setUp(0, ProtocolVersion.BINARY_SEQ);
+
+        List<Object> inbound = new ArrayList<>();
+        for (int seq = 1; seq <= 100; seq++) {
+            inbound.add(push("m" + seq, seq));
+        }
+        inbound.add(push("m50", 50));
+        inbound.add(broadcast("b1"));
+        inbound.add(broadcast("b2"));
+        channel.writeInbound(inbound.toArray());
+
+        List<Message> receipts = readReceipts();
+        assertEquals(1, receipts.size());
+        Message receipt = receipts.get(0);
+        assertEquals(1, receipt.getStatus());
+        assertEquals(100, receipt.getAckSeq());
+        assertNull(receipt.getSack());
+        assertNull(receipt.getMessageId());
+        assertEquals(Arrays.asList("b1", "b2"), receipt.getAckIds());
+    }
+
+    @Test
+    public void coalescesReadsWithinMaxDelay() throws Exception {
+        setUp(20, ProtocolVersion.BINARY_SEQ);
+
+        channel.writeInbound(push("m1", 1));
+        channel.writeInbound(push("m3", 3));
+        channel.writeInbound(push("m2", 2), push("m5", 5));
+        assertEquals(0, readReceipts().size());
+
+        Thread.sleep(30);
+        channel.runPendingTasks();
+
+        List<Message> receipts = readReceipts();
+        assertEquals(1, receipts.size());
+        assertEquals(3, receipts.get(0).getAckSeq());
+        assertEquals(5, receipts.get(0).getSack()[0]);
+    }
+
+    @Test
+    public void oldServerGetsOneReceiptPerMessageId() {
+        setUp(0, ProtocolVersion.BINARY);
+
+        channel.writeInbound(broadcast("b1"), broadcast("b2"), broadcast("b1"));
+
+        List<Message> receipts = readReceipts();
+        assertEquals(3, receipts.size());
+        assertEquals("b1", receipts.get(0).getMessageId());
+        assertEquals("b2", receipts.get(1).getMessageId());
+        assertEquals("b1", receipts.get(2).getMessageId());
+    }
+
+    private void setUp(long maxDelayMillis, int protocolVersion) {
+        PushClient.getInstance().setAckMaxDelayMillis(maxDelayMillis);
+        channel = new EmbeddedChannel(new PushClientHandler());
+        ProtocolVersion.set(channel, protocolVersion);
+    }
+
+    private List<Message> readReceipts() {
+        List<Message> receipts = new ArrayList<>();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            receipts.add((Message) msg);
+        }
+        return receipts;
+    }
+
+    private static Message push(String messageId, long seq) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setFrom("server");
+        message.setTo(PushClient.MY_CLIENT_USER_ID);
+        message.setSeq(seq);
+        return message;
+    }
+
+    private static Message broadcast(String messageId) {
+        Message message = push(messageId, 0);
+        message.setTo(Message.TO_ALL);
+        return message;
+    }
+}
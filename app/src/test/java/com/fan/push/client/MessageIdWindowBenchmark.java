@@ -0,0 +1,83 @@
+package com.fan.push.client;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 简单的微基准: 比较收到一条消息时的去重开销, 原来的 ArrayBlockingQueue.contains 和 MessageIdWindow
+ * 直接运行 main 方法即可, 分别测试窗口里有 1k, 100k, 1M 个 messageId
+ *
+ * ArrayBlockingQueue 满了之后 add 会抛异常, 这里只测它的 contains(新消息一定要扫完整个队列)
+ * MessageIdWindow 测的是 add: 一次查重 + 淘汰最老的 + 插入
+ */
+public class MessageIdWindowBenchmark {
+
+    private static final int[] SIZES = {1000, 100000, 1000000};
+
+    public static void main(String[] args) {
+        // 预热
+        for (int i = 0; i < 3; i++) {
+            for (int size : SIZES) {
+                runQueue(size, 10);
+                runWindow(size, 100000);
+            }
+        }
+
+        for (int size : SIZES) {
+            // 线性扫描太慢了, 大窗口少测几次
+            int queueLookups = Math.max(10, 10000000 / size);
+            System.out.printf("ids=%-8d ArrayBlockingQueue.contains: %12.1f ns/msg   MessageIdWindow.add: %6.1f ns/msg%n",
+                    size, runQueue(size, queueLookups), runWindow(size, 1000000));
+        }
+    }
+
+    private static String[] ids(int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = UUID.randomUUID().toString();
+        }
+        return ids;
+    }
+
+    private static double runQueue(int size, int lookups) {
+        ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(size);
+        for (String id : ids(size)) {
+            queue.add(id);
+        }
+        String[] incoming = ids(lookups);
+
+        int duplicates = 0;
+        long start = System.nanoTime();
+        for (String id : incoming) {
+            if (queue.contains(id)) {
+                duplicates++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (duplicates != 0) {
+            throw new IllegalStateException();
+        }
+        return elapsed / (double) lookups;
+    }
+
+    private static double runWindow(int size, int messages) {
+        MessageIdWindow window = new MessageIdWindow(size);
+        for (String id : ids(size)) {
+            window.add(id);
+        }
+        String[] incoming = ids(messages);
+
+        int duplicates = 0;
+        long start = System.nanoTime();
+        for (String id : incoming) {
+            if (!window.add(id)) {
+                duplicates++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (duplicates != 0) {
+            throw new IllegalStateException();
+        }
+        return elapsed / (double) messages;
+    }
+}
@@ -0,0 +1,72 @@
+package com.fan.push.client;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MessageIdWindow 的测试: 重复检测, 先进先出淘汰, 和 HashSet + 队列的结果一致
+ */
+public class MessageIdWindowTest {
+
+    @Test
+    public void detectsDuplicatesAndEvictsOldest() {
+        MessageIdWindow window = new MessageIdWindow(3);
+        assertTrue(window.add("a"));
+        assertTrue(window.add("b"));
+        assertFalse(window.add("a"));
+        assertTrue(window.add("c"));
+        assertEquals(3, window.size());
+
+        // 满了, 淘汰最老的 a
+        assertTrue(window.add("d"));
+        assertEquals(3, window.size());
+        assertFalse(window.contains("a"));
+        assertTrue(window.contains("b"));
+        assertTrue(window.add("a"));
+        assertFalse(window.contains("b"));
+    }
+
+    @Test
+    public void neverFillsUp() {
+        // 原来的 ArrayBlockingQueue 收满之后 add 会抛异常
+        MessageIdWindow window = new MessageIdWindow(MessageIdWindow.DEFAULT_CAPACITY);
+        for (int i = 0; i < MessageIdWindow.DEFAULT_CAPACITY * 10; i++) {
+            assertTrue(window.add("m" + i));
+        }
+        assertEquals(MessageIdWindow.DEFAULT_CAPACITY, window.size());
+    }
+
+    @Test
+    public void matchesReferenceImplementation() {
+        // 少量的 id 反复出现, 哈希冲突和 backward shift 都会走到
+        int capacity = 37;
+        MessageIdWindow window = new MessageIdWindow(capacity);
+        Set<String> set = new HashSet<>();
+        ArrayDeque<String> order = new ArrayDeque<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200000; i++) {
+            String id = "id-" + random.nextInt(100);
+            boolean expected = !set.contains(id);
+            if (expected) {
+                if (order.size() == capacity) {
+                    set.remove(order.pollFirst());
+                }
+                set.add(id);
+                order.addLast(id);
+            }
+            assertEquals(expected, window.add(id));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(set.contains("id-" + i), window.contains("id-" + i));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.fan.push.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SequenceAckTracker 的测试: 顺序收到只推进 ackSeq, 乱序时生成 sack 区间, 补上空洞后合并
+ */
+public class SequenceAckTrackerTest {
+
+    @Test
+    public void inOrderAdvancesAckSeq() {
+        SequenceAckTracker tracker = new SequenceAckTracker();
+        for (long seq = 1; seq <= 100; seq++) {
+            assertTrue(tracker.add(seq));
+        }
+        assertEquals(100, tracker.getAckSeq());
+        assertNull(tracker.getSack());
+        assertFalse(tracker.add(50));
+    }
+
+    @Test
+    public void gapsBecomeSackRangesAndMergeWhenFilled() {
+        SequenceAckTracker tracker = new SequenceAckTracker();
+        tracker.add(1);
+        tracker.add(2);
+        tracker.add(5);
+        tracker.add(4);
+        tracker.add(8);
+        assertFalse(tracker.add(5));
+
+        assertEquals(2, tracker.getAckSeq());
+        assertArrayEquals(new long[]{4, 5, 8, 8}, tracker.getSack());
+
+        tracker.add(3);
+        assertEquals(5, tracker.getAckSeq());
+        assertArrayEquals(new long[]{8, 8}, tracker.getSack());
+
+        tracker.add(7);
+        tracker.add(6);
+        assertEquals(8, tracker.getAckSeq());
+        assertNull(tracker.getSack());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        SequenceAckTracker tracker = new SequenceAckTracker();
+        tracker.add(1);
+        tracker.add(3);
+        tracker.reset();
+        assertEquals(0, tracker.getAckSeq());
+        assertNull(tracker.getSack());
+        assertTrue(tracker.add(1));
+    }
+}
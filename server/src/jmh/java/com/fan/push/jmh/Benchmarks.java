@@ -0,0 +1,51 @@
+package com.fan.push.jmh;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.OfflineMessageStore;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.ServerOptions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基准共用的部分
+ */
+final class Benchmarks {
+
+    // 握手和推送用的用户, ServerOptions 默认的 handshakeUserId
+    static final String USER_ID = "fanshanhong";
+
+    // 离线消息直接丢弃, 不写磁盘. 基准的一次 trial 不到 10 秒, 正常情况下轮询器还没开始重发, 不会用到
+    private static final OfflineMessageStore DISCARD = new OfflineMessageStore() {
+        @Override
+        public void save(String userId, List<Message> messageList) {
+        }
+
+        @Override
+        public List<Message> poll(String userId, int maxCount) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int count(String userId) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private Benchmarks() {
+    }
+
+    /**
+     * 不 bind 的 PushServer, 离线消息不落盘. 用完调用 messageRetryManager.shutdown()
+     */
+    static PushServer newServer() {
+        PushServer server = new PushServer(new ServerOptions());
+        server.messageRetryManager.setOfflineMessageStore(DISCARD);
+        return server;
+    }
+}
@@ -0,0 +1,110 @@
+package com.fan.push.jmh;
+
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.message.Message;
+import com.fan.push.server.PushServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 给 10万 个在线用户推送同一条消息: 逐个 sendMsg 和 broadcast 对比, 按每个接收者计时
+ * 1, sendMsgLoop: 每个用户拷贝一条消息, sendMsg, 每条都要编码一次
+ * 2, broadcast: 只编码一次, 写给每个用户的是同一块内存的 retainedDuplicate
+ *
+ * 每次调用之后(不计时)读掉写出的消息, 清掉重发管理器里的记录
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BroadcastBenchmark {
+
+    private static final int RECIPIENTS = 100000;
+
+    private PushServer pushServer;
+
+    private List<String> userIds;
+
+    private List<EmbeddedChannel> channels;
+
+    @Setup
+    public void setUp() {
+        pushServer = Benchmarks.newServer();
+        userIds = new ArrayList<>(RECIPIENTS);
+        channels = new ArrayList<>(RECIPIENTS);
+        for (int i = 0; i < RECIPIENTS; i++) {
+            String userId = "user-" + i;
+            EmbeddedChannel channel = new EmbeddedChannel(new LengthFieldPrepender(2), new MessageEncoder());
+            pushServer.getSessionRegistry().online(channel, userId);
+            userIds.add(userId);
+            channels.add(channel);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        pushServer.messageRetryManager.shutdown();
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() {
+        for (EmbeddedChannel channel : channels) {
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+        for (String userId : userIds) {
+            pushServer.messageRetryManager.removeUser(userId);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECIPIENTS)
+    public void sendMsgLoop() {
+        Message template = newPush();
+        for (String userId : userIds) {
+            Message message = new Message(template);
+            message.setFrom("server");
+            message.setTo(userId);
+            pushServer.sendMsg(userId, message, true);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECIPIENTS)
+    public int broadcast() {
+        return pushServer.broadcast(newPush(), userIds);
+    }
+
+    private static Message newPush() {
+        Message message = new Message(1004, "server", null);
+        message.setContent("活动推送: 今晚8点, 全场五折");
+        return message;
+    }
+}
@@ -0,0 +1,143 @@
+package com.fan.push.jmh;
+
+import com.fan.push.codec.BinaryMessageCodec;
+import com.fan.push.codec.JsonMessageCodec;
+import com.fan.push.codec.MessageDecoder;
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+import com.fan.push.server.MessageSequenceHandler;
+import com.fan.push.server.OutboundQueue;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.PushServerHandler;
+import com.fan.push.util.LoggerUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 端到端的单发推送: 和 PushServer.bind() 中一样的 pipeline(去掉了和推送无关的心跳/刷新合并), 连接换成 EmbeddedChannel.
+ * 先按客户端的方式握手, 协商到二进制协议, 然后:
+ * 1, push: sendMsg -> 会话查找 -> 重发管理器 -> 出站队列 -> 分配 seq -> 编码 -> 加长度字段, 写出的字节直接释放
+ * 2, pushAndAck: 再把客户端的回执帧写进去 -> 拆帧 -> 解码 -> PushServerHandler -> 重发管理器移除 -> 回执指标
+ *
+ * 每次推送的 messageId 相同, 回执帧只编码一次; 不回执的时候同一个 messageId 覆盖, 在途消息一直只有一条
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndPushBenchmark {
+
+    private static final String MESSAGE_ID = "e2e";
+
+    // 日志输出到控制台的开销远大于推送本身, 基准里只留警告. 要持有引用, 否则 JUL 的 Logger 可能被回收, 级别就丢了
+    private Logger julLogger;
+
+    private PushServer pushServer;
+
+    private EmbeddedChannel channel;
+
+    private ByteBuf ackFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        julLogger = Logger.getLogger(LoggerUtil.logger.name());
+        julLogger.setLevel(Level.WARNING);
+
+        pushServer = Benchmarks.newServer();
+        channel = new EmbeddedChannel();
+        OutboundQueue.install(channel, pushServer);
+        channel.pipeline().addLast("lengthFieldEncoder", new LengthFieldPrepender(2));
+        channel.pipeline().addLast("lengthFieldDecoder", new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2));
+        channel.pipeline().addLast("messageDecoder", new MessageDecoder());
+        channel.pipeline().addLast("messageEncoder", new MessageEncoder());
+        channel.pipeline().addLast("messageSequenceHandler", new MessageSequenceHandler(pushServer.messageRetryManager));
+        channel.pipeline().addLast("serverHandler", new PushServerHandler(pushServer));
+
+        // 握手帧是 JSON 的, 握手成功之后换成协商好的二进制协议
+        Message handshake = new Message(1001, Benchmarks.USER_ID, "server");
+        handshake.setProtocolVersion(ProtocolVersion.CURRENT);
+        ByteBuf handshakeFrame = PooledByteBufAllocator.DEFAULT.buffer();
+        handshakeFrame.writeShort(0);
+        new JsonMessageCodec().encode(handshake, handshakeFrame);
+        handshakeFrame.setShort(0, handshakeFrame.readableBytes() - 2);
+        channel.writeInbound(handshakeFrame);
+        drainOutbound();
+        if (!pushServer.getSessionRegistry().isOnline(Benchmarks.USER_ID)
+                || ProtocolVersion.of(channel) != ProtocolVersion.CURRENT) {
+            throw new IllegalStateException("handshake failed");
+        }
+
+        // 老客户端一条消息一个回执, 按 messageId
+        Message ack = new Message(1004, Benchmarks.USER_ID, "server");
+        ack.setMessageId(MESSAGE_ID);
+        ack.setStatus(1);
+        ackFrame = PooledByteBufAllocator.DEFAULT.directBuffer();
+        ackFrame.writeShort(0);
+        BinaryMessageCodec.encode(ack, ackFrame);
+        ackFrame.setShort(0, ackFrame.readableBytes() - 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ackFrame.release();
+        channel.finishAndReleaseAll();
+        pushServer.messageRetryManager.shutdown();
+        julLogger.setLevel(null);
+    }
+
+    @Benchmark
+    public void push() {
+        pushServer.sendMsg(Benchmarks.USER_ID, newPush(), true);
+        drainOutbound();
+    }
+
+    @Benchmark
+    public void pushAndAck() {
+        pushServer.sendMsg(Benchmarks.USER_ID, newPush(), true);
+        drainOutbound();
+        channel.writeInbound(ackFrame.retainedDuplicate());
+    }
+
+    private static Message newPush() {
+        // 不用 Message(int, String, String): 它生成 UUID, 那是调用者的开销
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(MESSAGE_ID);
+        message.setFrom("server");
+        message.setTo(Benchmarks.USER_ID);
+        message.setContent("A 刚刚点了一个菜");
+        return message;
+    }
+
+    private void drainOutbound() {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
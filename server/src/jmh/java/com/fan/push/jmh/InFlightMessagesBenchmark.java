@@ -0,0 +1,86 @@
+package com.fan.push.jmh;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.InFlightMessages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 收到一条回执时按 messageId 移除消息: 原来的 ArrayList 和 InFlightMessages 对比
+ *
+ * 先放 pending 条在途消息, 每次按预先生成的随机顺序移除一条, 再把它加回去, 在途消息的条数不变.
+ * ArrayList.remove 要从头比较, 平均比较一半; InFlightMessages 按 messageId 索引, O(1)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InFlightMessagesBenchmark {
+
+    // 访问顺序的长度, 2 的幂
+    private static final int ORDER_SIZE = 1 << 16;
+
+    @Param({"10", "1000", "100000"})
+    public int pending;
+
+    private Message[] messages;
+
+    private List<Message> arrayList;
+
+    private InFlightMessages inFlightMessages;
+
+    private int[] order;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        messages = new Message[pending];
+        arrayList = new ArrayList<>(pending);
+        inFlightMessages = new InFlightMessages();
+        for (int i = 0; i < pending; i++) {
+            messages[i] = new Message(1004, "server", Benchmarks.USER_ID);
+            arrayList.add(messages[i]);
+            inFlightMessages.add(messages[i]);
+        }
+        order = new int[ORDER_SIZE];
+        Random random = new Random(1);
+        for (int i = 0; i < ORDER_SIZE; i++) {
+            order[i] = random.nextInt(pending);
+        }
+    }
+
+    @Benchmark
+    public boolean arrayListRemove() {
+        Message message = messages[order[next++ & (ORDER_SIZE - 1)]];
+        // 和原来一样按 equals(messageType + messageId) 找
+        boolean removed = arrayList.remove(message);
+        arrayList.add(message);
+        return removed;
+    }
+
+    @Benchmark
+    public Message inFlightRemove() {
+        Message message = messages[order[next++ & (ORDER_SIZE - 1)]];
+        Message removed = inFlightMessages.remove(message.getMessageId());
+        inFlightMessages.add(message);
+        return removed;
+    }
+}
@@ -0,0 +1,191 @@
+package com.fan.push.jmh;
+
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.message.Message;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 本机回环: 服务端向一个客户端连续推送消息, 比较三种写法, 按每条消息计时(直到客户端收到)
+ * 1, writeAndFlush: 每条 writeAndFlush(原来的写法)
+ * 2, consolidated: 每条 writeAndFlush, 但是 pipeline 中有 FlushConsolidationHandler
+ * 3, batched: 每 BATCH 条 write 一次 flush(重发/离线消息的写法)
+ *
+ * 到达 pipeline 头部的 flush 次数就是真正的 socket 写(系统调用)次数的下限, 用它来近似系统调用次数:
+ * 结果里的 socketFlushes 和 messages 是每次测量的总数, 两个相除就是每条消息的 flush 次数
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackFlushBenchmark {
+
+    // 每次调用写多少条
+    private static final int MESSAGES = 10000;
+
+    private static final int BATCH = 64;
+
+    @Param({"writeAndFlush", "consolidated", "batched"})
+    public String mode;
+
+    private NioEventLoopGroup group;
+
+    private Channel server;
+
+    private Channel client;
+
+    // 服务端这一边的连接, 往它上面写
+    private volatile Channel channel;
+
+    private final AtomicInteger headFlushes = new AtomicInteger();
+
+    private volatile CountDownLatch received;
+
+    private Message message;
+
+    /**
+     * 每次测量的 flush 次数和消息数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Flushes {
+
+        public long socketFlushes;
+
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            socketFlushes = 0;
+            messages = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        final boolean consolidate = "consolidated".equals(mode);
+        group = new NioEventLoopGroup(2);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+                            @Override
+                            public void flush(ChannelHandlerContext ctx) {
+                                headFlushes.incrementAndGet();
+                                ctx.flush();
+                            }
+                        });
+                        if (consolidate) {
+                            ch.pipeline().addLast(new FlushConsolidationHandler(256, true));
+                        }
+                        ch.pipeline().addLast(new LengthFieldPrepender(2), new MessageEncoder());
+                        channel = ch;
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+
+        client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2));
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ReferenceCountUtil.release(msg);
+                                received.countDown();
+                            }
+                        });
+                    }
+                })
+                .connect(server.localAddress()).sync().channel();
+        while (channel == null || !channel.isActive()) {
+            Thread.sleep(1);
+        }
+
+        message = new Message(1004, "server", Benchmarks.USER_ID);
+        message.setContent("回环压测");
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.close().sync();
+        channel.close().sync();
+        server.close().sync();
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void write(Flushes flushes) throws InterruptedException {
+        boolean batched = "batched".equals(mode);
+        Channel channel = this.channel;
+        received = new CountDownLatch(MESSAGES);
+        headFlushes.set(0);
+        for (int i = 1; i <= MESSAGES; i++) {
+            if (batched) {
+                channel.write(message);
+                if (i % BATCH == 0) {
+                    channel.flush();
+                }
+            } else {
+                channel.writeAndFlush(message);
+            }
+            // 不要把出站缓冲写爆
+            while (!channel.isWritable()) {
+                channel.flush();
+                Thread.yield();
+            }
+        }
+        channel.flush();
+        if (!received.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("timed out, " + received.getCount() + " messages not received");
+        }
+        flushes.socketFlushes += headFlushes.get();
+        flushes.messages += MESSAGES;
+    }
+}
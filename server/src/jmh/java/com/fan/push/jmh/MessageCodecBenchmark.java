@@ -0,0 +1,142 @@
+package com.fan.push.jmh;
+
+import com.fan.push.codec.BinaryMessageCodec;
+import com.fan.push.codec.JsonMessageCodec;
+import com.fan.push.message.Message;
+import com.fan.push.util.GsonUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Message 的编码/解码, 每一帧的耗时
+ * 1, gson: 原来的写法, Gson 转成 String(解码时从 String 解析)
+ * 2, jsonCodec: JsonMessageCodec, 直接在 ByteBuf 上流式读写 JSON
+ * 3, binary: BinaryMessageCodec, 握手协商之后实际使用的协议
+ *
+ * 编码写到一个复用的池化直接内存里, 解码每次从同一帧的开头读, 测的只是编解码本身.
+ * gsonFrameEncode 是原来完整的写法(String -> byte[] -> Unpooled.copiedBuffer), 和 jsonCodecEncode 比每一帧在堆上分配的字节数:
+ * ./gradlew :server:jmh -PjmhInclude=MessageCodec -PjmhProfilers=gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    // ping: 心跳, 最短的帧; push: 一条普通推送; ack: 带累积回执的回执
+    @Param({"ping", "push", "ack"})
+    public String kind;
+
+    private final JsonMessageCodec jsonCodec = new JsonMessageCodec();
+
+    private Message message;
+
+    private String json;
+
+    private ByteBuf out;
+
+    private ByteBuf jsonFrame;
+
+    private ByteBuf binaryFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = message(kind);
+        json = GsonUtil.getInstance().toJson(message);
+
+        out = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        jsonFrame = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        jsonCodec.encode(message, jsonFrame);
+        binaryFrame = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        BinaryMessageCodec.encode(message, binaryFrame);
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.release();
+        jsonFrame.release();
+        binaryFrame.release();
+    }
+
+    @Benchmark
+    public String gsonEncode() {
+        return GsonUtil.getInstance().toJson(message);
+    }
+
+    @Benchmark
+    public int gsonFrameEncode() {
+        ByteBuf frame = Unpooled.copiedBuffer(GsonUtil.getInstance().toJson(message).getBytes(CharsetUtil.UTF_8));
+        int length = frame.readableBytes();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public Message gsonDecode() {
+        return GsonUtil.getInstance().fromJson(json, Message.class);
+    }
+
+    @Benchmark
+    public int jsonCodecEncode() throws IOException {
+        out.clear();
+        jsonCodec.encode(message, out);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public Message jsonCodecDecode() throws IOException {
+        jsonFrame.readerIndex(0);
+        return jsonCodec.decode(jsonFrame);
+    }
+
+    @Benchmark
+    public int binaryEncode() {
+        out.clear();
+        BinaryMessageCodec.encode(message, out);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public Message binaryDecode() {
+        binaryFrame.readerIndex(0);
+        return BinaryMessageCodec.decode(binaryFrame);
+    }
+
+    static Message message(String kind) {
+        if ("ping".equals(kind)) {
+            return new Message(1002, "fanshanhong", "server");
+        }
+        Message push = new Message(1004, "server", "fanshanhong");
+        push.setContent("A 刚刚点了一个菜");
+        push.setSeq(1024);
+        if ("push".equals(kind)) {
+            return push;
+        }
+        Message ack = new Message(1004, "fanshanhong", "server");
+        ack.setStatus(1);
+        ack.setAckSeq(1024);
+        ack.setSack(new long[]{1026, 1030});
+        return ack;
+    }
+}
@@ -0,0 +1,125 @@
+package com.fan.push.jmh;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.MessageRetryManager;
+import com.fan.push.server.PushServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 重发管理器的加入/移除/回执, 在一个设备已经有 backlog 条消息在等回执的情况下
+ * 1, addRemove: 加入一条, 再按 messageId 移除(老客户端一条消息一个回执)
+ * 2, addAck: 加入一条已经分配了 seq 的消息, 再用只包含它的 sack 区间回执
+ * 3, addAckBatch: 加入 BATCH 条, 一个 sack 区间全部回执(合并的回执), 按每条消息计时
+ *
+ * 用户在线(EmbeddedChannel), 和 IO 线程上处理回执一样, 操作直接在轮询器的线程上执行, 不用提交.
+ * 多个线程同时操作的情况参考 RetryContentionBenchmark
+ *
+ * backlog 里的消息一直不回执, 每次操作之后在途消息的条数不变.
+ * 第一次等回执的超时是 10 秒, 一次 trial(预热加测量)要在这之前结束, 否则轮询器开始重发, backlog 会变
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageRetryManagerBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"0", "1000", "100000"})
+    public int backlog;
+
+    private PushServer pushServer;
+
+    private MessageRetryManager manager;
+
+    private EmbeddedChannel channel;
+
+    private Message message;
+
+    private Message[] batch;
+
+    private final long[] sack = new long[2];
+
+    // 下一个分配的 seq, 在 backlog 之后
+    private long seq;
+
+    @Setup
+    public void setUp() {
+        pushServer = Benchmarks.newServer();
+        manager = pushServer.messageRetryManager;
+        channel = new EmbeddedChannel();
+        pushServer.getSessionRegistry().online(channel, Benchmarks.USER_ID);
+        for (int i = 1; i <= backlog; i++) {
+            manager.add(Benchmarks.USER_ID, push("backlog-" + i, i));
+        }
+        seq = backlog + 1;
+        message = push("m", 0);
+        batch = new Message[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = push("batch-" + i, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pushServer.messageRetryManager.shutdown();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void addRemove() {
+        message.setSeq(0);
+        manager.add(Benchmarks.USER_ID, message);
+        manager.remove(Benchmarks.USER_ID, message);
+    }
+
+    @Benchmark
+    public int addAck() {
+        long s = seq++;
+        message.setSeq(s);
+        manager.add(Benchmarks.USER_ID, message);
+        sack[0] = s;
+        sack[1] = s;
+        return manager.acknowledge(Benchmarks.USER_ID, 0, sack, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAckBatch() {
+        long first = seq;
+        for (Message m : batch) {
+            m.setSeq(seq++);
+            manager.add(Benchmarks.USER_ID, m);
+        }
+        sack[0] = first;
+        sack[1] = seq - 1;
+        return manager.acknowledge(Benchmarks.USER_ID, 0, sack, null);
+    }
+
+    private static Message push(String messageId, long seq) {
+        Message message = new Message(1004, "server", Benchmarks.USER_ID);
+        message.setMessageId(messageId);
+        message.setContent("A 刚刚点了一个菜");
+        message.setSeq(seq);
+        return message;
+    }
+}
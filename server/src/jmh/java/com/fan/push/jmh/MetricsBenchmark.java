@@ -0,0 +1,77 @@
+package com.fan.push.jmh;
+
+import com.fan.push.metrics.Histogram;
+import com.fan.push.metrics.StripedCounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 指标的开销
+ * 1, 单线程下每种操作的耗时: AtomicLong, StripedCounter, Histogram.record, System.nanoTime
+ * 2, 4 个线程同时计数(contended): 一个 AtomicLong 和 StripedCounter 的对比, 核数少的机器上看不出差别
+ *
+ * 一条消息在服务端的指标操作: 推送计数一次, 回执时两次计数(每条消息一个回执, 最坏情况);
+ * 抽样到的消息(十六分之一)再加上: 加入重发管理器时一次 nanoTime, 回执时一次 nanoTime, 一次直方图记录.
+ * 一条消息推送加回执的总耗时参考 EndToEndPushBenchmark.pushAndAck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final AtomicLong atomicLong = new AtomicLong();
+
+    private final StripedCounter stripedCounter = new StripedCounter();
+
+    private final Histogram histogram = new Histogram();
+
+    private long next;
+
+    @Benchmark
+    public long atomicLong() {
+        return atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    public void stripedCounter() {
+        stripedCounter.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        // 回执延迟一般是几百微秒到几秒
+        histogram.record(100 + (next++ & 0xFFFF));
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long contendedAtomicLong() {
+        return atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedStripedCounter() {
+        stripedCounter.increment();
+    }
+}
@@ -0,0 +1,213 @@
+package com.fan.push.jmh;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.SegmentLogOfflineStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SegmentLogOfflineStore 的保存, 重启恢复, 按用户取出
+ * 1, save: 4 个线程同时保存, 每次 save 一个用户的 PER_USER 条消息, 和用户掉线时 MessageRetryManager 的用法一样(并发的 save 会合并成一次磁盘写),
+ *    按每条消息计时
+ * 2, recover: 磁盘上已经有 USERS * PER_USER 条消息, 重新打开, 顺序扫描全部段重建索引, 整个恢复的耗时
+ * 3, load: 每个用户上线, 取出他的全部离线消息, 全部取完的耗时. 取出会改动存储, 每次测量前重新写一遍
+ *
+ * 写在临时目录里, 默认不 fsync(-p fsync=true 看 fsync 的情况)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OfflineStoreBenchmark {
+
+    private static final int USERS = 100000;
+
+    private static final int PER_USER = 10;
+
+    /**
+     * save 用的空存储, 每次 trial 一个
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyStore {
+
+        @Param({"false"})
+        public boolean fsync;
+
+        private File directory;
+
+        private SegmentLogOfflineStore store;
+
+        private final AtomicLong nextUser = new AtomicLong();
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("offline-store-benchmark").toFile();
+            store = new SegmentLogOfflineStore(directory, SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, fsync);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            store.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * 每个线程保存的一批消息, 事先建好, 不算生成 UUID 的时间
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+
+        private List<Message> messages;
+
+        @Setup
+        public void setUp() {
+            messages = new ArrayList<>(PER_USER);
+            for (int i = 0; i < PER_USER; i++) {
+                messages.add(message("user", i));
+            }
+        }
+    }
+
+    /**
+     * 已经写好 USERS * PER_USER 条消息并且关闭了的存储, 每次测量前重新写一遍
+     */
+    @State(Scope.Benchmark)
+    public static class FilledDirectory {
+
+        @Param({"false"})
+        public boolean fsync;
+
+        private File directory;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            directory = fill();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * 同上, 已经重新打开了, 每次测量前重新写一遍
+     */
+    @State(Scope.Benchmark)
+    public static class FilledStore {
+
+        @Param({"false"})
+        public boolean fsync;
+
+        private File directory;
+
+        private SegmentLogOfflineStore store;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            directory = fill();
+            store = new SegmentLogOfflineStore(directory, SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, fsync);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            store.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(PER_USER)
+    public void save(EmptyStore empty, Batch batch) throws IOException {
+        empty.store.save("user" + empty.nextUser.getAndIncrement(), batch.messages);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int recover(FilledDirectory filled) throws IOException {
+        SegmentLogOfflineStore reopened = new SegmentLogOfflineStore(filled.directory, SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, filled.fsync);
+        int segments = reopened.getSegmentCount();
+        reopened.close();
+        return segments;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long load(FilledStore filled) throws IOException {
+        long loaded = 0;
+        for (int u = 0; u < USERS; u++) {
+            loaded += filled.store.poll("user" + u, Integer.MAX_VALUE).size();
+        }
+        if (loaded != USERS * PER_USER) {
+            throw new IllegalStateException("loaded " + loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * 在一个新的临时目录里写 USERS * PER_USER 条消息, 关闭
+     */
+    private static File fill() throws IOException {
+        File directory = Files.createTempDirectory("offline-store-benchmark").toFile();
+        SegmentLogOfflineStore writer = new SegmentLogOfflineStore(directory, SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        for (int u = 0; u < USERS; u++) {
+            String userId = "user" + u;
+            List<Message> messageList = new ArrayList<>(PER_USER);
+            for (int i = 0; i < PER_USER; i++) {
+                messageList.add(message(userId, i));
+            }
+            writer.save(userId, messageList);
+        }
+        writer.close();
+        return directory;
+    }
+
+    private static Message message(String userId, int i) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(UUID.randomUUID().toString());
+        message.setFrom("server");
+        message.setTo(userId);
+        message.setContent("offline message " + i);
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,204 @@
+package com.fan.push.jmh;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.InFlightMessages;
+import com.fan.push.server.MessageRetryManager;
+import com.fan.push.server.PushServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * 很多线程同时改在途消息: 原来加锁的做法和现在绑定到 EventLoop 的做法对比
+ *
+ * 16 个线程(模拟调用 sendMsg 的业务线程, 以及不在 IO 线程上的回执)同时对 users 个用户做 "加入 BATCH 条, 再按 messageId 逐条移除":
+ * 1, locked: 原来的做法, 每个用户一个带锁的在途消息(InFlightMessages 外面套 synchronized, 和原来每个方法都加锁一样), 在调用的线程上直接改
+ * 2, eventLoop: MessageRetryManager, 用户在线, 连接(没有连上的 NioSocketChannel)分在 LOOPS 个 NioEventLoop 上, 调用的线程都不是 EventLoop, 操作交给轮询器按批处理.
+ *    每次调用最后等每个 EventLoop 把之前交过去的操作处理完, 计时包括 EventLoop 上处理的时间
+ * users = 1 是最坏情况, 全部线程抢一个用户
+ *
+ * 本来就在用户的 EventLoop 上的操作(回执, 写出分配 seq)参考 MessageRetryManagerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class RetryContentionBenchmark {
+
+    // 每次调用加入多少条再移除多少条
+    private static final int BATCH = 256;
+
+    private static final int LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    @Param({"1", "1024"})
+    public int users;
+
+    private String[] userIds;
+
+    private final ConcurrentHashMap<String, LockedInFlight> lockedMap = new ConcurrentHashMap<>();
+
+    private PushServer pushServer;
+
+    private MessageRetryManager manager;
+
+    private EventLoopGroup group;
+
+    private Channel[] channels;
+
+    // 给每个线程分一个编号, 消息的 messageId 不重复
+    private final AtomicInteger producers = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        userIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = "user-" + i;
+            lockedMap.put(userIds[i], new LockedInFlight());
+        }
+
+        pushServer = Benchmarks.newServer();
+        manager = pushServer.messageRetryManager;
+        group = new NioEventLoopGroup(LOOPS);
+        channels = new Channel[users];
+        for (int i = 0; i < users; i++) {
+            channels[i] = new NioSocketChannel();
+            group.register(channels[i]).syncUninterruptibly();
+            pushServer.getSessionRegistry().online(channels[i], userIds[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (String userId : userIds) {
+            check(lockedMap.get(userId).size());
+            List<Message> inFlight = manager.snapshotInFlight(userId);
+            check(inFlight == null ? 0 : inFlight.size());
+        }
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+        manager.shutdown();
+        manager.getRetryScheduler().stop();
+    }
+
+    /**
+     * 每个线程自己的一批消息, 事先建好, 不算分配消息的时间
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private Message[] messages;
+
+        // 这一批从哪个用户开始, 每次调用往后挪一个
+        private int next;
+
+        @Setup
+        public void setUp(RetryContentionBenchmark benchmark) {
+            int producer = benchmark.producers.getAndIncrement();
+            messages = new Message[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                messages[i] = new Message(1004, "server", null);
+                messages[i].setMessageId("p" + producer + "-" + i);
+            }
+            next = producer;
+        }
+
+        String userId(RetryContentionBenchmark benchmark, int i) {
+            return benchmark.userIds[(next + i) % benchmark.users];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * 2)
+    public void locked(Producer producer) {
+        Message[] messages = producer.messages;
+        for (int i = 0; i < BATCH; i++) {
+            lockedMap.get(producer.userId(this, i)).add(messages[i]);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            lockedMap.get(producer.userId(this, i)).remove(messages[i].getMessageId());
+        }
+        producer.next++;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * 2)
+    public void eventLoop(Producer producer) {
+        Message[] messages = producer.messages;
+        for (int i = 0; i < BATCH; i++) {
+            manager.add(producer.userId(this, i), messages[i]);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            manager.remove(producer.userId(this, i), messages[i]);
+        }
+        producer.next++;
+        // 排在之前交给轮询器的操作后面, 等它们处理完
+        for (EventExecutor loop : group) {
+            loop.submit(NOOP).syncUninterruptibly();
+        }
+    }
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static void check(int remaining) {
+        if (remaining != 0) {
+            throw new IllegalStateException(remaining + " messages left in flight");
+        }
+    }
+
+    /**
+     * 原来的做法: 每个方法都用 this 做锁, 加入时顺便看一下轮询器是不是空闲(原来 MessageLooper.onMessageAdded 也要加锁)
+     */
+    private static class LockedInFlight {
+
+        private final InFlightMessages inFlightMessages = new InFlightMessages();
+
+        private boolean waitingAck;
+
+        synchronized void add(Message message) {
+            inFlightMessages.add(message);
+            if (!waitingAck) {
+                waitingAck = true;
+            }
+        }
+
+        synchronized Message remove(String messageId) {
+            return inFlightMessages.remove(messageId);
+        }
+
+        synchronized int size() {
+            return inFlightMessages.size();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.fan.push.jmh;
+
+import com.fan.push.server.ChannelHolder;
+import com.fan.push.server.Session;
+import com.fan.push.server.SessionRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 在线会话表的上线/查找/下线, SessionRegistry 和原来的 ChannelHolder 对比
+ *
+ * 表里先放 sessions 个在线用户, 按预先生成的随机顺序访问(不是顺序访问, 避免全部命中缓存):
+ * 1, lookup: sendMsg 里实际的用法, ChannelHolder 要 isOnline + getChannelByUserId, SessionRegistry 只要 getChannelIfOnline
+ * 2, userIdByChannel: 收到消息时按 channel 找用户
+ * 3, offlineOnline: 一个用户下线再上线, 表的大小不变
+ *
+ * ChannelHolder 是单例, 每次 trial 结束时清空
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@SuppressWarnings("deprecation")
+public class SessionRegistryBenchmark {
+
+    // 访问顺序的长度, 2 的幂
+    private static final int ORDER_SIZE = 1 << 16;
+
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    private String[] userIds;
+
+    private Channel[] channels;
+
+    private int[] order;
+
+    private int next;
+
+    private SessionRegistry registry;
+
+    private ChannelHolder holder;
+
+    @Setup
+    public void setUp() {
+        userIds = new String[sessions];
+        channels = new Channel[sessions];
+        registry = new SessionRegistry();
+        holder = ChannelHolder.getInstance();
+        for (int i = 0; i < sessions; i++) {
+            userIds[i] = "user-" + i;
+            channels[i] = new EmbeddedChannel();
+            registry.online(channels[i], userIds[i]);
+            holder.online(channels[i], userIds[i]);
+        }
+        order = new int[ORDER_SIZE];
+        Random random = new Random(1);
+        for (int i = 0; i < ORDER_SIZE; i++) {
+            order[i] = random.nextInt(sessions);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Channel channel : channels) {
+            registry.offline(channel);
+            holder.offline(channel);
+        }
+    }
+
+    private int nextIndex() {
+        return order[next++ & (ORDER_SIZE - 1)];
+    }
+
+    @Benchmark
+    public Channel registryLookup() {
+        return registry.getChannelIfOnline(userIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public Channel holderLookup() {
+        String userId = userIds[nextIndex()];
+        return holder.isOnline(userId) ? holder.getChannelByUserId(userId) : null;
+    }
+
+    @Benchmark
+    public String registryUserIdByChannel() {
+        return registry.getUserIdByChannel(channels[nextIndex()]);
+    }
+
+    @Benchmark
+    public String holderUserIdByChannel() {
+        return holder.getUserIdByChannel(channels[nextIndex()]);
+    }
+
+    @Benchmark
+    public Session registryOfflineOnline() {
+        int i = nextIndex();
+        registry.offline(channels[i]);
+        return registry.online(channels[i], userIds[i]);
+    }
+
+    @Benchmark
+    public void holderOfflineOnline() {
+        int i = nextIndex();
+        holder.offline(channels[i]);
+        holder.online(channels[i], userIds[i]);
+    }
+}
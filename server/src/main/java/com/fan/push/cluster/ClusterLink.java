@@ -0,0 +1,257 @@
+package com.fan.push.cluster;
+
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldPrepender;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 到另一个节点的长连接, 只往外写转发的消息
+ *
+ * 1, 一直保持连接, 断了每隔 RECONNECT_DELAY_MILLIS 重连, 不是每条消息建一次连接
+ * 2, 批量: 业务线程只把消息放进 pending(多生产者单消费者的无锁队列), 不是每条消息一个 writeAndFlush.
+ *    pending 从空变成非空时才往 EventLoop 提交一个 drainTask, 它一次把排队的消息都写进 channel(写到不可写为止), 最后只刷新一次.
+ *    高峰时一个任务, 一次系统调用写出一批消息; 每条消息单独 writeAndFlush 的话, 每条都是一个 WriteTask 加一次 flush, 吞吐量只有一半左右
+ * 3, 帧格式和客户端一样(2字节长度 + Message), 连接建立时直接切换到 ProtocolVersion.CURRENT 的二进制编码, 不需要握手
+ * 4, 还没连上, 或者对方处理不过来(channel 不可写)的时候, 消息留在 pending 里, 连上/变回可写时再写;
+ *    pending 有上限, 满了 send 返回 false, 由调用者在本节点转存离线
+ *
+ * 已经写到 socket 里但是对方还没处理的消息, 在连接断开时会丢失; 对方收到之后由对方的重发管理器负责送达
+ * @Author: fan
+ * @Date: 2021-01-04 10:00
+ * @Modify:
+ */
+public class ClusterLink {
+
+    // 重连间隔
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    // 默认最多排队多少条
+    public static final int DEFAULT_MAX_PENDING = 64 * 1024;
+
+    private final String nodeId;
+
+    private final InetSocketAddress address;
+
+    private final Bootstrap bootstrap;
+
+    private final int maxPending;
+
+    // 还没写到 channel 的消息
+    private final Queue<Message> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private volatile Channel channel;
+
+    private volatile boolean closed;
+
+    // drainTask 已经提交了还没开始执行, 这期间的 send 不用再提交
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    // 把 pending 写到 channel, 在 EventLoop 中执行
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            // 先清标记再取: 取完之后才放进来的消息, 会由那次 send 再提交一次
+            drainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * constructor
+     *
+     * @param nodeId     对方节点
+     * @param address    对方节点的转发地址
+     * @param group      连接使用的 EventLoopGroup, 由 ClusterNode 管理
+     * @param maxPending 最多排队多少条
+     */
+    public ClusterLink(String nodeId, InetSocketAddress address, EventLoopGroup group, int maxPending) {
+        if (nodeId == null || address == null) {
+            throw new IllegalArgumentException("ClusterLink constructor , nodeId and address can not be null");
+        }
+        this.nodeId = nodeId;
+        this.address = address;
+        this.maxPending = maxPending;
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ProtocolVersion.set(ch, ProtocolVersion.CURRENT);
+                        ch.pipeline().addLast("lengthFieldEncoder", new LengthFieldPrepender(2));
+                        ch.pipeline().addLast("messageEncoder", new MessageEncoder());
+                        ch.pipeline().addLast("linkHandler", new LinkHandler());
+                    }
+                });
+    }
+
+    /**
+     * 发起连接, 失败了会一直重连, 直到 close()
+     */
+    public void connect() {
+        if (closed) {
+            return;
+        }
+        bootstrap.connect(address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    logger.warn("ClusterLink 连接 {} {} 失败: {}", nodeId, address, future.cause().toString());
+                    scheduleReconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * 转发一条消息, 任何线程都可以调用
+     *
+     * @param message 不能再被调用者修改
+     * @return 写出或者排队了返回 true; 已经关闭, 或者排队的消息太多返回 false
+     */
+    public boolean send(Message message) {
+        if (closed) {
+            return false;
+        }
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            return false;
+        }
+        pending.offer(message);
+        // 还没连上的话不用提交, channelActive 里会写
+        Channel ch = channel;
+        if (ch != null && drainScheduled.compareAndSet(false, true)) {
+            ch.eventLoop().execute(drainTask);
+        }
+        return true;
+    }
+
+    /**
+     * 关闭连接, 不再重连. 排队的消息丢弃
+     */
+    public void close() {
+        closed = true;
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+        pending.clear();
+        pendingCount.set(0);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private void scheduleReconnect() {
+        if (closed) {
+            return;
+        }
+        bootstrap.config().group().schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把排队的消息写出去, 只刷新一次. 写到 channel 不可写(超过高水位线)为止, 剩下的等 channelWritabilityChanged. 在 EventLoop 中调用
+     */
+    private void drain() {
+        Channel ch = channel;
+        if (ch == null) {
+            return;
+        }
+        int written = 0;
+        Message message;
+        while (ch.isWritable() && (message = pending.poll()) != null) {
+            ch.write(message, ch.voidPromise());
+            pendingCount.decrementAndGet();
+            written++;
+        }
+        if (written > 0) {
+            ch.flush();
+        }
+    }
+
+    private final class LinkHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            logger.info("ClusterLink 连接上 {} {}", nodeId, address);
+            channel = ctx.channel();
+            if (closed) {
+                ctx.close();
+                return;
+            }
+            drain();
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (channel == ctx.channel()) {
+                channel = null;
+            }
+            logger.warn("ClusterLink 和 {} {} 断开, 重连: {}", nodeId, address, !closed);
+            scheduleReconnect();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                drain();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.warn("ClusterLink {} 异常: {}", nodeId, cause.toString());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.fan.push.cluster;
+
+import com.fan.push.codec.MessageDecoder;
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.SessionRegistry;
+
+import com.fan.push.server.MessageRetryManager;
+import com.fan.push.server.OfflineMessageStore;
+import com.fan.push.server.Session;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 集群中的一个节点, 一个 PushServer 一个
+ *
+ * 原来 PushServer 是单机的, sendMsg 的 userId 不在本机的 SessionRegistry 里就只能存离线消息. 集群模式下:
+ * 1, 本机的 userId 第一个设备上线/最后一个设备下线时, 登记到路由表(RouteTable), 由 SessionRegistry.Listener 回调
+ * 2, sendMsg 按路由表找到 userId 所在的其他节点, 通过 ClusterLink(到每个节点一条长连接, 批量刷新)转发过去
+ * 3, 每个节点在 clusterPort 上接收别的节点转发过来的消息, 当成本机的 sendMsg 投递(只投本机, 不再转发), 参考 ForwardedMessageHandler
+ *
+ * 送达的可靠性由用户所在的节点负责: 转发过去的消息在那个节点进重发管理器, 用户已经下线了就存在那个节点的离线消息里.
+ * 转发不出去(连接排队满了)返回 false, 由 PushServer 在本机存离线消息.
+ * 只转发 sendMsg 的单发消息; broadcast/publish 还是只发本机的用户
+ *
+ * 用户放在哪个节点上: 没在腾空的节点组成一致性哈希环(ConsistentHashRing), 每隔 RING_REFRESH_MILLIS 从路由表刷新一次.
+ * 握手时用户应该在别的节点上的话, 回一个重定向(1001 status=2), 客户端马上去连那个节点, 参考 redirectFor.
+ * 要把一个节点清空(下线维护, 缩容)时, 调用 drain(每秒迁走的连接百分比): 先离开哈希环, 再按速率把连接迁走, 参考 ConnectionDrainer.
+ * 运维通过 JMX 调用, 参考 ClusterNodeControl
+ * @Author: fan
+ * @Date: 2021-01-04 10:00
+ * @Modify: 2021-01-05 一致性哈希, 重定向, 腾空
+ *          2021-01-09 迁移在途消息时完成 sendMsgAsync 的结果
+ *          2021-01-09 在轮询器的线程上取在途消息
+ *          2021-01-09 newRouteTable 不再用过时的 Class.newInstance
+ */
+public class ClusterNode implements SessionRegistry.Listener {
+
+    // 多久从路由表刷新一次哈希环
+    private static final long RING_REFRESH_MILLIS = 1000;
+
+    // 迁移连接时, 每次从离线消息存储中取多少条转给新节点
+    private static final int HAND_OFF_PAGE_SIZE = 256;
+
+    private final PushServer pushServer;
+
+    private final RouteTable routeTable;
+
+    private final String nodeId;
+
+    // 到其他节点的连接, 第一次转发时建立
+    private final ConcurrentHashMap<String, ClusterLink> links = new ConcurrentHashMap<>();
+
+    private final EventLoopGroup group;
+
+    private Channel serverChannel;
+
+    // 当前的一致性哈希环, 整体替换
+    private volatile ConsistentHashRing ring = ConsistentHashRing.of(null, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+
+    // 正在进行的腾空, 没有则为 null
+    private volatile ConnectionDrainer drainer;
+
+    /**
+     * constructor
+     *
+     * @param pushServer
+     * @param routeTable 集群中的节点共用的路由表
+     */
+    public ClusterNode(PushServer pushServer, RouteTable routeTable) {
+        if (pushServer == null || routeTable == null) {
+            throw new IllegalArgumentException("ClusterNode constructor , pushServer and routeTable can not be null");
+        }
+        if (pushServer.getOptions().getNodeId() == null) {
+            throw new IllegalArgumentException("ClusterNode constructor , nodeId can not be null");
+        }
+        this.pushServer = pushServer;
+        this.routeTable = routeTable;
+        this.nodeId = pushServer.getOptions().getNodeId();
+        this.group = new NioEventLoopGroup(pushServer.getOptions().getClusterThreads());
+    }
+
+    /**
+     * 按类名创建路由表, 参考 ServerOptions.getRouteTableClass(). 要有无参的构造方法
+     *
+     * @param className
+     * @return
+     * @throws IllegalArgumentException 类不存在, 不是 RouteTable, 或者构造失败(原因在 cause 里)
+     */
+    public static RouteTable newRouteTable(String className) {
+        Class<? extends RouteTable> routeTableClass;
+        try {
+            routeTableClass = Class.forName(className).asSubclass(RouteTable.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IllegalArgumentException("can not create RouteTable: " + className, e);
+        }
+        try {
+            return routeTableClass.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            // 构造方法里抛出的异常, 直接把它作为原因
+            throw new IllegalArgumentException("can not create RouteTable: " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("can not create RouteTable: " + className, e);
+        }
+    }
+
+    /**
+     * 绑定转发端口, 登记节点, 开始接收用户上下线. 要在 PushServer 开始接受客户端连接之前调用
+     *
+     * @throws InterruptedException
+     */
+    public void start() throws InterruptedException {
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ProtocolVersion.set(ch, ProtocolVersion.CURRENT);
+                        ch.pipeline().addLast("lengthFieldDecoder", new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2));
+                        ch.pipeline().addLast("messageDecoder", new MessageDecoder());
+                        ch.pipeline().addLast("forwardedMessageHandler", new ForwardedMessageHandler());
+                    }
+                });
+        String host = pushServer.getOptions().getClusterHost();
+        serverChannel = serverBootstrap.bind(host, pushServer.getOptions().getClusterPort()).sync().channel();
+        // clusterPort 为0时用实际分配到的端口
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        String clientHost = pushServer.getOptions().getClientHost() != null ? pushServer.getOptions().getClientHost() : host;
+        routeTable.registerNode(nodeId, new InetSocketAddress(host, port),
+                InetSocketAddress.createUnresolved(clientHost, pushServer.getOptions().getPort()));
+        pushServer.getSessionRegistry().setListener(this);
+
+        refreshRing();
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                refreshRing();
+            }
+        }, RING_REFRESH_MILLIS, RING_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("ClusterNode 启动, nodeId:" + nodeId + " address:" + host + ":" + port);
+    }
+
+    /**
+     * 从路由表重建哈希环, 成员没变就不建. 定时调用, 成员变化时也可以直接调用
+     *
+     * @return 当前的环
+     */
+    public ConsistentHashRing refreshRing() {
+        String[] nodes = routeTable.placementNodes();
+        ConsistentHashRing current = ring;
+        if (!Arrays.equals(current.nodes(), nodes)) {
+            current = ConsistentHashRing.of(nodes, pushServer.getOptions().getVirtualNodes());
+            ring = current;
+            logger.info("ClusterNode {} 哈希环更新: {}", nodeId, current);
+        }
+        return current;
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * 握手时调用: 这个用户应该连在别的节点上的话, 返回那个节点给客户端的地址
+     *
+     * @param userId
+     * @return 应该留在本节点(或者不知道去哪)返回 null
+     */
+    public InetSocketAddress redirectFor(String userId) {
+        String target = ring.nodeFor(userId);
+        if (target == null || target.equals(nodeId)) {
+            return null;
+        }
+        return routeTable.clientAddressOf(target);
+    }
+
+    /**
+     * 重定向消息: 1001, status=2, content 是新节点的 host:port
+     *
+     * @param userId
+     * @param address
+     * @return
+     */
+    public static Message redirectMessage(String userId, InetSocketAddress address) {
+        Message message = new Message(1001, "server", userId);
+        message.setStatus(2);
+        message.setContent(address.getHostString() + ":" + address.getPort());
+        return message;
+    }
+
+    /**
+     * 开始腾空本节点: 离开哈希环(新的握手都会被重定向走), 再每秒迁走 percentPerSecond% 的现有连接.
+     * 每个连接收到一条重定向消息后断开, 在途消息和离线消息转给用户的新节点
+     *
+     * 按速率迁移是为了不让全部客户端同时重连(重连风暴): 比如 10%/s, 10秒迁完, 新节点每秒只要处理十分之一的握手和离线消息
+     *
+     * @param percentPerSecond 每秒迁走的连接数, 占开始腾空时连接总数的百分比, (0, 100]
+     * @return 这次腾空的进度
+     */
+    public synchronized ConnectionDrainer drain(double percentPerSecond) {
+        if (percentPerSecond <= 0 || percentPerSecond > 100) {
+            throw new IllegalArgumentException("drain percentPerSecond out of range: " + percentPerSecond);
+        }
+        if (drainer != null && !drainer.isDone()) {
+            throw new IllegalStateException("ClusterNode " + nodeId + " is already draining");
+        }
+        routeTable.setDraining(nodeId, true);
+        if (refreshRing().isEmpty()) {
+            // 没有别的节点可以接收这些连接
+            routeTable.setDraining(nodeId, false);
+            refreshRing();
+            throw new IllegalStateException("ClusterNode " + nodeId + " can not drain: no other node in the ring");
+        }
+
+        List<Session> sessions = new ArrayList<>(pushServer.getSessionRegistry().size());
+        for (Session session : pushServer.getSessionRegistry().sessions()) {
+            sessions.add(session);
+        }
+        drainer = new ConnectionDrainer(this, sessions, percentPerSecond);
+        drainer.start(group);
+        logger.info("ClusterNode {} 开始腾空, 连接数: {}, 每秒: {}%", nodeId, sessions.size(), percentPerSecond);
+        return drainer;
+    }
+
+    /**
+     * 停止腾空, 重新回到哈希环上. 已经迁走的连接不会回来
+     */
+    public synchronized void cancelDrain() {
+        if (drainer != null) {
+            drainer.cancel();
+            drainer = null;
+        }
+        routeTable.setDraining(nodeId, false);
+        refreshRing();
+    }
+
+    public ConnectionDrainer getDrainer() {
+        return drainer;
+    }
+
+    /**
+     * 把一个连接迁到它在哈希环上的节点: 先从本机下线, 在途消息和离线消息转给新节点, 发重定向消息, 断开
+     * 由 ConnectionDrainer 调用
+     *
+     * @param session
+     * @return 这个连接已经不在了(已经断开, 或者被同一个设备的新连接替换了)返回 false
+     */
+    boolean migrate(Session session) {
+        Channel channel = session.getChannel();
+        // 先下线: 之后的 channelInactive 里找不到会话, 不会把在途消息存成本机的离线消息
+        if (pushServer.getSessionRegistry().offline(channel) == null) {
+            return false;
+        }
+        String userId = session.getUserId();
+        if (!pushServer.getSessionRegistry().isOnline(userId)) {
+            pushServer.topicRegistry.unsubscribeAll(userId);
+        }
+
+        String target = ring.nodeFor(userId);
+        InetSocketAddress clientAddress = null;
+        if (target != null && !target.equals(nodeId)) {
+            handOff(session, target);
+            clientAddress = routeTable.clientAddressOf(target);
+        }
+        if (clientAddress != null) {
+            channel.writeAndFlush(redirectMessage(userId, clientAddress)).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * 把一个设备在本机的在途消息和离线消息转给 target, 用户在那边上线后收到.
+     * 在途消息在轮询器的线程上取出来, 转发和读离线消息在线程池中做
+     */
+    private void handOff(Session session, final String target) {
+        final String userId = session.getUserId();
+        final String deliveryKey = session.getDeliveryKey();
+        pushServer.messageRetryManager.removeUser(deliveryKey, new MessageRetryManager.RemovedMessagesHandler() {
+            @Override
+            public void onRemoved(List<Message> messages) {
+                handOff(userId, deliveryKey, messages, target);
+            }
+        });
+    }
+
+    private void handOff(final String userId, final String deliveryKey, final List<Message> messages, final String target) {
+        pushServer.messageRetryManager.getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Message message : messages) {
+                    forwardTo(target, userId, message);
+                }
+                try {
+                    OfflineMessageStore store = pushServer.messageRetryManager.getOfflineMessageStore();
+                    for (List<Message> page = store.poll(deliveryKey, HAND_OFF_PAGE_SIZE); !page.isEmpty();
+                         page = store.poll(deliveryKey, HAND_OFF_PAGE_SIZE)) {
+                        for (Message message : page) {
+                            forwardTo(target, userId, message);
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.warn("ClusterNode {} 迁移 {} 的离线消息失败: {}", nodeId, deliveryKey, e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * 转发给指定的节点, 转发不出去就留在本机的重发管理器里(之后会存成本机的离线消息)
+     */
+    private void forwardTo(String target, String userId, Message message) {
+        ClusterLink link = linkTo(target);
+        Message forwarded = message.copy();
+        forwarded.setTo(userId);
+        if (link == null || !link.send(forwarded)) {
+            forwarded.setDeliveryPromise(message.getDeliveryPromise());
+            pushServer.messageRetryManager.add(userId, forwarded);
+        } else {
+            message.completeDelivery(DeliveryStatus.FORWARDED);
+        }
+    }
+
+    /**
+     * 从路由表中移除本节点, 关闭全部连接
+     */
+    public void stop() {
+        ConnectionDrainer current = drainer;
+        if (current != null) {
+            current.cancel();
+        }
+        pushServer.getSessionRegistry().setListener(null);
+        routeTable.unregisterNode(nodeId);
+        for (ClusterLink link : links.values()) {
+            link.close();
+        }
+        links.clear();
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        group.shutdownGracefully();
+    }
+
+    @Override
+    public void userOnline(String userId) {
+        routeTable.register(userId, nodeId);
+    }
+
+    @Override
+    public void userOffline(String userId) {
+        routeTable.unregister(userId, nodeId);
+    }
+
+    /**
+     * 把消息转发给 userId 所在的其他节点
+     *
+     * @param userId
+     * @param message 转发的是一份拷贝(不带 seq), message 本身还可以在本机投递
+     * @return 至少转发给了一个节点返回 true
+     */
+    public boolean forward(String userId, Message message) {
+        String[] nodes = routeTable.nodesOf(userId);
+        if (nodes.length == 0 || nodes.length == 1 && nodeId.equals(nodes[0])) {
+            return false;
+        }
+        Message forwarded = null;
+        boolean sent = false;
+        for (String target : nodes) {
+            if (nodeId.equals(target)) {
+                continue;
+            }
+            ClusterLink link = linkTo(target);
+            if (link == null) {
+                continue;
+            }
+            if (forwarded == null) {
+                forwarded = message.copy();
+                forwarded.setTo(userId);
+            }
+            sent |= link.send(forwarded);
+        }
+        return sent;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public RouteTable getRouteTable() {
+        return routeTable;
+    }
+
+    /**
+     * 到一个节点的连接, 没有就建一个
+     *
+     * @param target
+     * @return 路由表里没有这个节点的地址返回 null
+     */
+    private ClusterLink linkTo(String target) {
+        ClusterLink link = links.get(target);
+        if (link != null) {
+            return link;
+        }
+        InetSocketAddress address = routeTable.addressOf(target);
+        if (address == null) {
+            return null;
+        }
+        link = new ClusterLink(target, address, group, ClusterLink.DEFAULT_MAX_PENDING);
+        ClusterLink existing = links.putIfAbsent(target, link);
+        if (existing != null) {
+            return existing;
+        }
+        link.connect();
+        return link;
+    }
+
+    /**
+     * 接收别的节点转发过来的消息, 只在本机投递
+     */
+    private final class ForwardedMessageHandler extends SimpleChannelInboundHandler<Message> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message message) throws Exception {
+            String userId = message.getTo();
+            if (message.getMessageType() != 1004 || userId == null) {
+                return;
+            }
+            // 转发途中用户已经下线了, 存在本机的离线消息里, 下次在本机上线时收到
+            if (!pushServer.deliverLocally(userId, message, true, true)) {
+                pushServer.messageRetryManager.add(userId, message);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.warn("ClusterNode {} 转发连接异常: {}", nodeId, cause.toString());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.fan.push.cluster;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * @Description: 把 ClusterNode 的腾空操作注册成 JMX 的 MBean, 运维用 jconsole / jmxterm 就能让一个节点开始或停止腾空, 不用写代码调 drain
+ *
+ * 和 MetricsMBean 注册在同一个 MBeanServer 上, 名字是 com.fan.push:type=Cluster,port=<端口>.
+ * 不放在 /metrics 的 HTTP 接口上: 那个端口给 Prometheus 抓取用, 经常绑在 0.0.0.0 上, 而且没有鉴权, 只能是只读的;
+ * JMX 远程访问可以用 com.sun.management.jmxremote.authenticate / ssl 控制
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify:
+ */
+public class ClusterNodeControl implements ClusterNodeControlMBean {
+
+    private final ClusterNode clusterNode;
+
+    public ClusterNodeControl(ClusterNode clusterNode) {
+        if (clusterNode == null) {
+            throw new IllegalArgumentException("ClusterNodeControl constructor , clusterNode can not be null");
+        }
+        this.clusterNode = clusterNode;
+    }
+
+    /**
+     * 注册到平台的 MBeanServer 上
+     *
+     * @param clusterNode
+     * @param name        ObjectName, 比如 com.fan.push:type=Cluster,port=10010
+     * @return 注册用的 ObjectName, 停止时传给 unregister
+     * @throws JMException
+     */
+    public static ObjectName register(ClusterNode clusterNode, String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new ClusterNodeControl(clusterNode), objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // 已经注销了
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return clusterNode.getNodeId();
+    }
+
+    @Override
+    public boolean isDraining() {
+        ConnectionDrainer drainer = clusterNode.getDrainer();
+        return drainer != null && !drainer.isDone();
+    }
+
+    @Override
+    public int getDrainTotal() {
+        ConnectionDrainer drainer = clusterNode.getDrainer();
+        return drainer == null ? 0 : drainer.getTotal();
+    }
+
+    @Override
+    public int getDrainMigrated() {
+        ConnectionDrainer drainer = clusterNode.getDrainer();
+        return drainer == null ? 0 : drainer.getMigrated();
+    }
+
+    @Override
+    public int getDrainRemaining() {
+        ConnectionDrainer drainer = clusterNode.getDrainer();
+        return drainer == null ? 0 : drainer.getRemaining();
+    }
+
+    @Override
+    public void drain(double percentPerSecond) {
+        // 参数不对或者没有别的节点时抛出的异常, 客户端收到的是 RuntimeMBeanException, jconsole 会显示异常信息
+        clusterNode.drain(percentPerSecond);
+    }
+
+    @Override
+    public void cancelDrain() {
+        clusterNode.cancelDrain();
+    }
+}
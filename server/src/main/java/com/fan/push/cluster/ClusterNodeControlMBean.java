@@ -0,0 +1,40 @@
+package com.fan.push.cluster;
+
+/**
+ * @Description: ClusterNodeControl 的 JMX 接口(标准 MBean, 接口名 = 实现类名 + MBean)
+ *
+ * 属性和参数都只用基本类型和 String, jconsole / jmxterm 远程连上来不需要我们的类
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify:
+ */
+public interface ClusterNodeControlMBean {
+
+    String getNodeId();
+
+    /**
+     * @return 是否正在按速率迁走连接
+     */
+    boolean isDraining();
+
+    /**
+     * @return 这次(或者上次)腾空开始时的连接数, 没有腾空过返回 0
+     */
+    int getDrainTotal();
+
+    int getDrainMigrated();
+
+    int getDrainRemaining();
+
+    /**
+     * 开始腾空本节点, 参考 ClusterNode.drain
+     *
+     * @param percentPerSecond 每秒迁走的连接百分比, (0, 100]
+     */
+    void drain(double percentPerSecond);
+
+    /**
+     * 停止腾空, 重新回到哈希环上, 参考 ClusterNode.cancelDrain
+     */
+    void cancelDrain();
+}
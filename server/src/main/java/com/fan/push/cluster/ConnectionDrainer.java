@@ -0,0 +1,126 @@
+package com.fan.push.cluster;
+
+import com.fan.push.server.Session;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.EventLoopGroup;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 一次腾空: 按速率把开始腾空时的连接迁走
+ *
+ * 每 TICK_MILLIS 执行一次, 每次最多迁走 perTick 个连接(开始时连接总数 * 每秒百分比 / 每秒的次数, 至少1个).
+ * 分成小批是为了平滑: 每秒迁走 10% 的话, 是每 100 毫秒迁走 1%, 而不是每秒一次性迁走 10%.
+ * 已经自己断开了的连接跳过, 不占这一批的名额. 腾空期间新来的握手不会留在本节点(本节点已经不在哈希环上, 握手时就被重定向了)
+ *
+ * run 在 ClusterNode 的 EventLoopGroup 上定时执行, 同一时间只有一个线程在执行
+ * @Author: fan
+ * @Date: 2021-01-05 10:00
+ * @Modify:
+ */
+public class ConnectionDrainer implements Runnable {
+
+    // 多久迁一批
+    static final long TICK_MILLIS = 100;
+
+    private final ClusterNode clusterNode;
+
+    // 开始腾空时的连接
+    private final List<Session> sessions;
+
+    // 每批最多迁走多少个
+    private final int perTick;
+
+    // 下一个要处理的下标
+    private volatile int index;
+
+    // 实际迁走的连接数
+    private volatile int migrated;
+
+    private volatile boolean done;
+
+    private ScheduledFuture<?> future;
+
+    /**
+     * constructor
+     *
+     * @param clusterNode
+     * @param sessions         要迁走的连接
+     * @param percentPerSecond 每秒迁走 sessions 的百分之多少
+     */
+    ConnectionDrainer(ClusterNode clusterNode, List<Session> sessions, double percentPerSecond) {
+        this.clusterNode = clusterNode;
+        this.sessions = sessions;
+        this.perTick = Math.max(1, (int) Math.ceil(sessions.size() * percentPerSecond / 100 * TICK_MILLIS / 1000));
+        this.done = sessions.isEmpty();
+    }
+
+    synchronized void start(EventLoopGroup group) {
+        if (!done) {
+            future = group.scheduleAtFixedRate(this, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 迁走一批
+     */
+    @Override
+    public void run() {
+        if (done) {
+            return;
+        }
+        int count = 0;
+        int i = index;
+        while (count < perTick && i < sessions.size()) {
+            if (clusterNode.migrate(sessions.get(i++))) {
+                count++;
+            }
+        }
+        index = i;
+        migrated += count;
+        if (i == sessions.size()) {
+            logger.info("ClusterNode {} 腾空完成, 迁走连接数: {}", clusterNode.getNodeId(), migrated);
+            cancel();
+        }
+    }
+
+    /**
+     * 停止, 还没迁走的连接留在本节点
+     */
+    synchronized void cancel() {
+        done = true;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * 开始腾空时的连接数
+     */
+    public int getTotal() {
+        return sessions.size();
+    }
+
+    public int getMigrated() {
+        return migrated;
+    }
+
+    /**
+     * 还没处理的连接数(其中可能有已经自己断开的)
+     */
+    public int getRemaining() {
+        return sessions.size() - index;
+    }
+
+    public int getPerTick() {
+        return perTick;
+    }
+}
@@ -0,0 +1,145 @@
+package com.fan.push.cluster;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * @Description: 一致性哈希环, userId -> 应该连接的节点
+ *
+ * 每个节点在环上放 virtualNodes 个虚拟节点(nodeId#i 的哈希), userId 哈希之后顺时针找到的第一个虚拟节点就是它的节点.
+ * 1, 虚拟节点越多越均匀: 160 个的时候, 4 个节点各自分到的用户数和平均值的偏差一般在 10% 以内
+ * 2, 加入/移除一个节点, 只有落在它的虚拟节点上的用户(约 1/N)换节点, 其他用户不动, 不会引起全体重连
+ *
+ * 创建之后不变, 成员变化时整体换一个新的环(参考 ClusterNode.refreshRing), 读不加锁.
+ * 环就是两个平行数组: 排好序的 long 哈希值和对应的 nodeId, 查找是一次二分
+ * @Author: fan
+ * @Date: 2021-01-05 10:00
+ * @Modify:
+ */
+public final class ConsistentHashRing {
+
+    // 默认每个节点的虚拟节点数
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final ConsistentHashRing EMPTY = new ConsistentHashRing(new String[0], new long[0], new String[0]);
+
+    // 环上的节点, 排好序
+    private final String[] nodes;
+
+    // 虚拟节点的哈希值, 升序
+    private final long[] points;
+
+    // points[i] 属于哪个节点
+    private final String[] owners;
+
+    private ConsistentHashRing(String[] nodes, long[] points, String[] owners) {
+        this.nodes = nodes;
+        this.points = points;
+        this.owners = owners;
+    }
+
+    /**
+     * 创建一个环
+     *
+     * @param nodeIds      节点, 顺序无关
+     * @param virtualNodes 每个节点的虚拟节点数
+     * @return
+     */
+    public static ConsistentHashRing of(String[] nodeIds, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("ConsistentHashRing virtualNodes must be positive: " + virtualNodes);
+        }
+        if (nodeIds == null || nodeIds.length == 0) {
+            return EMPTY;
+        }
+        String[] nodes = nodeIds.clone();
+        Arrays.sort(nodes);
+
+        int count = nodes.length * virtualNodes;
+        long[] keys = new long[count];
+        int k = 0;
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                keys[k++] = hash(node + "#" + i);
+            }
+        }
+        // 按哈希值排序, owners 跟着一起排: 先排下标
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] unsorted = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsorted[a], unsorted[b]);
+            }
+        });
+        long[] points = new long[count];
+        String[] owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = unsorted[order[i]];
+            owners[i] = nodes[order[i] / virtualNodes];
+        }
+        return new ConsistentHashRing(nodes, points, owners);
+    }
+
+    /**
+     * userId 应该连接的节点
+     *
+     * @param userId
+     * @return 环是空的返回 null
+     */
+    public String nodeFor(String userId) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(userId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // 比最大的还大, 绕回第一个
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * 环上的节点, 排好序的, 不能修改
+     */
+    public String[] nodes() {
+        return nodes;
+    }
+
+    public boolean contains(String nodeId) {
+        return Arrays.binarySearch(nodes, nodeId) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return nodes.length == 0;
+    }
+
+    /**
+     * 64 位的 FNV-1a, 再用 MurmurHash3 的 fmix64 打散.
+     * 不用 String.hashCode: 只有 32 位, 而且 "user-1", "user-2" 这样的 key 哈希值挨在一起, 在环上分布很差
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHashRing{" +
+                "nodes=" + Arrays.toString(nodes) +
+                ", points=" + points.length +
+                '}';
+    }
+}
@@ -0,0 +1,173 @@
+package com.fan.push.cluster;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Description: 进程内的路由表, 同一个进程里的多个节点共用一个实例(测试用), 或者单机部署时用
+ *
+ * userId -> 节点数组. 绝大多数用户只连在一个节点上, 数组就一个元素, 比 Set 省内存.
+ * 数组创建之后不再修改, 改的时候整体替换: nodesOf 不加锁, 直接读 ConcurrentHashMap;
+ * register/unregister 按 userId 的哈希加分段锁, 保证同一个 userId 的读-改-写不会互相覆盖
+ * @Author: fan
+ * @Date: 2021-01-04 10:00
+ * @Modify: 2021-01-05 客户端地址, 腾空状态
+ */
+public class LocalRouteTable implements RouteTable {
+
+    // 分段锁的个数, 2的幂
+    private static final int LOCK_COUNT = 64;
+
+    private final ConcurrentHashMap<String, String[]> routes = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Member> nodes = new ConcurrentHashMap<>();
+
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    public LocalRouteTable() {
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void registerNode(String nodeId, InetSocketAddress address, InetSocketAddress clientAddress) {
+        if (nodeId == null || address == null) {
+            throw new IllegalArgumentException("registerNode nodeId and address can not be null");
+        }
+        nodes.put(nodeId, new Member(address, clientAddress, false));
+    }
+
+    @Override
+    public void unregisterNode(String nodeId) {
+        nodes.remove(nodeId);
+        // 扫一遍全部路由, 节点停止的时候才会调用
+        for (Iterator<Map.Entry<String, String[]>> it = routes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String[]> entry = it.next();
+            if (indexOf(entry.getValue(), nodeId) >= 0) {
+                unregister(entry.getKey(), nodeId);
+            }
+        }
+    }
+
+    @Override
+    public InetSocketAddress addressOf(String nodeId) {
+        Member member = nodeId == null ? null : nodes.get(nodeId);
+        return member == null ? null : member.address;
+    }
+
+    @Override
+    public InetSocketAddress clientAddressOf(String nodeId) {
+        Member member = nodeId == null ? null : nodes.get(nodeId);
+        return member == null ? null : member.clientAddress;
+    }
+
+    @Override
+    public void setDraining(String nodeId, boolean draining) {
+        // Member 不可变, 换一个新的; 节点已经移除了就什么都不做
+        for (; ; ) {
+            Member member = nodes.get(nodeId);
+            if (member == null || member.draining == draining
+                    || nodes.replace(nodeId, member, new Member(member.address, member.clientAddress, draining))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String[] placementNodes() {
+        List<String> result = new ArrayList<>(nodes.size());
+        for (Map.Entry<String, Member> entry : nodes.entrySet()) {
+            if (!entry.getValue().draining) {
+                result.add(entry.getKey());
+            }
+        }
+        Collections.sort(result);
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void register(String userId, String nodeId) {
+        synchronized (lockFor(userId)) {
+            String[] current = routes.get(userId);
+            if (current == null) {
+                routes.put(userId, new String[]{nodeId});
+                return;
+            }
+            if (indexOf(current, nodeId) >= 0) {
+                return;
+            }
+            String[] updated = new String[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = nodeId;
+            routes.put(userId, updated);
+        }
+    }
+
+    @Override
+    public void unregister(String userId, String nodeId) {
+        synchronized (lockFor(userId)) {
+            String[] current = routes.get(userId);
+            int index = current == null ? -1 : indexOf(current, nodeId);
+            if (index < 0) {
+                return;
+            }
+            if (current.length == 1) {
+                routes.remove(userId);
+                return;
+            }
+            String[] updated = new String[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            routes.put(userId, updated);
+        }
+    }
+
+    @Override
+    public String[] nodesOf(String userId) {
+        String[] current = userId == null ? null : routes.get(userId);
+        return current == null ? NO_NODES : current;
+    }
+
+    /**
+     * 有路由的 userId 数
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    private Object lockFor(String userId) {
+        int h = userId.hashCode() * 0x9E3779B9;
+        return locks[(h ^ (h >>> 16)) & (LOCK_COUNT - 1)];
+    }
+
+    /**
+     * 一个节点的登记信息, 不可变
+     */
+    private static final class Member {
+
+        final InetSocketAddress address;
+        final InetSocketAddress clientAddress;
+        final boolean draining;
+
+        Member(InetSocketAddress address, InetSocketAddress clientAddress, boolean draining) {
+            this.address = address;
+            this.clientAddress = clientAddress;
+            this.draining = draining;
+        }
+    }
+
+    private static int indexOf(String[] array, String value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
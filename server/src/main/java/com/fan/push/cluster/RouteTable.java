@@ -0,0 +1,84 @@
+package com.fan.push.cluster;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @Description: 集群的路由表: userId 在哪些节点上在线, 以及每个节点的转发地址
+ *
+ * 每个节点把自己的在线用户登记到这里(参考 ClusterNode.userOnline/userOffline), 推送的时候按 userId 查出节点再转发.
+ * 同一个 userId 的多个设备可能连在不同的节点上, 所以一个 userId 对应的是一组节点.
+ *
+ * 实现可以换: LocalRouteTable 是进程内的实现(测试, 或者一个进程里跑多个节点);
+ * 多台机器部署时要换成共享存储(Redis 之类)的实现, 通过 -Dfanpush.routeTableClass 指定.
+ * register/unregister 在 SessionRegistry 的写锁里调用, 不能阻塞: 远程存储的实现要自己异步写, 本地留一份缓存给 nodesOf 读
+ *
+ * 节点还带着给客户端连接的地址和是否正在腾空(draining): 没在腾空的节点组成一致性哈希环(参考 ConsistentHashRing), 决定用户应该连哪个节点
+ * @Author: fan
+ * @Date: 2021-01-04 10:00
+ * @Modify: 2021-01-05 客户端地址, 腾空状态
+ */
+public interface RouteTable {
+
+    String[] NO_NODES = new String[0];
+
+    /**
+     * 登记一个节点, 节点启动时调用. 新登记的节点不在腾空状态
+     *
+     * @param nodeId
+     * @param address       别的节点转发消息连接的地址
+     * @param clientAddress 客户端连接的地址, 重定向时告诉客户端
+     */
+    void registerNode(String nodeId, InetSocketAddress address, InetSocketAddress clientAddress);
+
+    /**
+     * 移除一个节点和它上面的全部路由, 节点停止(或者被判定宕机)时调用
+     *
+     * @param nodeId
+     */
+    void unregisterNode(String nodeId);
+
+    /**
+     * @param nodeId
+     * @return 没有登记过返回 null
+     */
+    InetSocketAddress addressOf(String nodeId);
+
+    /**
+     * @param nodeId
+     * @return 客户端连接的地址, 没有登记过返回 null
+     */
+    InetSocketAddress clientAddressOf(String nodeId);
+
+    /**
+     * 设置节点是否正在腾空. 腾空的节点不在哈希环上, 不再分配新用户, 但是还能转发消息给它
+     *
+     * @param nodeId
+     * @param draining
+     */
+    void setDraining(String nodeId, boolean draining);
+
+    /**
+     * 参与分配用户的节点: 已经登记, 并且没在腾空
+     *
+     * @return 排好序的, 不会返回 null
+     */
+    String[] placementNodes();
+
+    /**
+     * userId 在 nodeId 上线了(第一个设备)
+     */
+    void register(String userId, String nodeId);
+
+    /**
+     * userId 在 nodeId 下线了(最后一个设备)
+     */
+    void unregister(String userId, String nodeId);
+
+    /**
+     * userId 在线的节点
+     *
+     * @param userId
+     * @return 不在线返回 NO_NODES, 不会返回 null. 返回的数组不能修改
+     */
+    String[] nodesOf(String userId);
+}
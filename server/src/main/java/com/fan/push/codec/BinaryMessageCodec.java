@@ -0,0 +1,379 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+/**
+ * @Description: 二进制协议(v2, v3)的编解码
+ *
+ * JSON 协议里每一帧都带着字段名, 36个字符的 UUID 字串, 以及 "server"/"client" 这样的字面量, ping/pong/回执这种小消息大部分字节都浪费在这上面了.
+ *
+ * 二进制帧格式(外层还是 LengthFieldPrepender 加的2字节长度):
+ *
+ * +--------+--------+------------------------------------------+
+ * |  type  | flags  |  按 flags 依次出现的可选字段                  |
+ * | 1 byte | 1 byte |                                          |
+ * +--------+--------+------------------------------------------+
+ *
+ * type:  messageType - 1000 (1001~1100 只占1个字节). 其他的 messageType 这里写0, 后面紧跟一个 varint 的完整 messageType
+ * flags: 每一位表示一个可选字段是否出现, 字段按下面的顺序出现:
+ *        FLAG_UUID_ID    messageId 是标准的 UUID 字串, 按 128 位写成 16 字节
+ *        FLAG_STRING_ID  messageId 不是 UUID, 按字符串写
+ *        FLAG_CONTENT    content, 字符串
+ *        FLAG_STATUS     status, zigzag varint
+ *        FLAG_TO         to, 字符串
+ *        FLAG_FROM       from, 字符串
+ *        FLAG_TIMESTAMP  timestamp, varint
+ *        FLAG_TOPIC      topic, 字符串
+ *
+ * v3 和 v2 的区别只有一个: flags 从1个字节变成了 varint, 多出来的位是消息序号和累积确认用的字段:
+ *        FLAG_SEQ        seq, varint
+ *        FLAG_ACK_SEQ    ackSeq, varint
+ *        FLAG_SACK       sack, varint(个数) 后跟每个值的 varint
+ *        FLAG_ACK_IDS    ackIds, varint(个数) 后跟每个 messageId: 1字节标记, 1 是 UUID(后跟16字节), 0 是字符串
+ * 按 v2 编码的时候这三个字段直接丢掉, 老客户端照旧按 messageId 回执.
+ *
+ * 字符串: varint(字节数 + 1) 后跟 UTF-8 字节. 长度前缀是 0 的时候表示字面量 "server", 不再写后面的字节.
+ *
+ * 二进制协议只在握手之后使用, 所以不编码 protocolVersion 字段.
+ * 第一个字节不可能是 '{', 所以解码器可以靠第一个字节区分 JSON 帧和二进制帧.
+ * @Author: fan
+ * @Date: 2020-12-11 10:05
+ * @Modify:
+ */
+public final class BinaryMessageCodec {
+
+    private static final int TYPE_BASE = 1000;
+    private static final int MAX_SHORT_TYPE = 100;
+
+    private static final int FLAG_UUID_ID = 1;
+    private static final int FLAG_STRING_ID = 1 << 1;
+    private static final int FLAG_CONTENT = 1 << 2;
+    private static final int FLAG_STATUS = 1 << 3;
+    private static final int FLAG_TO = 1 << 4;
+    private static final int FLAG_FROM = 1 << 5;
+    private static final int FLAG_TIMESTAMP = 1 << 6;
+    private static final int FLAG_TOPIC = 1 << 7;
+    private static final int FLAG_SEQ = 1 << 8;
+    private static final int FLAG_ACK_SEQ = 1 << 9;
+    private static final int FLAG_SACK = 1 << 10;
+    private static final int FLAG_ACK_IDS = 1 << 11;
+
+    private static final String SERVER = "server";
+
+    /**
+     * 按本端支持的最高版本把 message 编码后写入 out
+     *
+     * @param message
+     * @param out
+     */
+    public static void encode(Message message, ByteBuf out) {
+        encode(message, out, ProtocolVersion.CURRENT);
+    }
+
+    /**
+     * 把 message 按指定的二进制协议版本编码后写入 out
+     *
+     * @param message
+     * @param out
+     * @param version ProtocolVersion.BINARY 或者 ProtocolVersion.BINARY_SEQ
+     */
+    public static void encode(Message message, ByteBuf out, int version) {
+        int messageType = message.getMessageType();
+        String messageId = message.getMessageId();
+        boolean uuidId = isCanonicalUuid(messageId);
+
+        int flags = 0;
+        if (messageId != null) {
+            flags |= uuidId ? FLAG_UUID_ID : FLAG_STRING_ID;
+        }
+        if (message.getContent() != null) {
+            flags |= FLAG_CONTENT;
+        }
+        if (message.getStatus() != 0) {
+            flags |= FLAG_STATUS;
+        }
+        if (message.getTo() != null) {
+            flags |= FLAG_TO;
+        }
+        if (message.getFrom() != null) {
+            flags |= FLAG_FROM;
+        }
+        if (message.getTimestamp() != 0) {
+            flags |= FLAG_TIMESTAMP;
+        }
+        if (message.getTopic() != null) {
+            flags |= FLAG_TOPIC;
+        }
+        boolean varintFlags = version >= ProtocolVersion.BINARY_SEQ;
+        if (varintFlags) {
+            if (message.getSeq() != 0) {
+                flags |= FLAG_SEQ;
+            }
+            if (message.getAckSeq() != 0) {
+                flags |= FLAG_ACK_SEQ;
+            }
+            if (message.getSack() != null) {
+                flags |= FLAG_SACK;
+            }
+            if (message.getAckIds() != null) {
+                flags |= FLAG_ACK_IDS;
+            }
+        }
+
+        int shortType = messageType - TYPE_BASE;
+        boolean longType = shortType <= 0 || shortType > MAX_SHORT_TYPE;
+        out.writeByte(longType ? 0 : shortType);
+        if (varintFlags) {
+            writeVarint(out, flags);
+        } else {
+            out.writeByte(flags);
+        }
+        if (longType) {
+            writeVarint(out, zigzag(messageType));
+        }
+
+        if (uuidId) {
+            writeUuid(out, messageId);
+        } else if (messageId != null) {
+            writeString(out, messageId);
+        }
+        if ((flags & FLAG_CONTENT) != 0) {
+            writeString(out, message.getContent());
+        }
+        if ((flags & FLAG_STATUS) != 0) {
+            writeVarint(out, zigzag(message.getStatus()));
+        }
+        if ((flags & FLAG_TO) != 0) {
+            writeString(out, message.getTo());
+        }
+        if ((flags & FLAG_FROM) != 0) {
+            writeString(out, message.getFrom());
+        }
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            writeVarint(out, message.getTimestamp());
+        }
+        if ((flags & FLAG_TOPIC) != 0) {
+            writeString(out, message.getTopic());
+        }
+        if ((flags & FLAG_SEQ) != 0) {
+            writeVarint(out, message.getSeq());
+        }
+        if ((flags & FLAG_ACK_SEQ) != 0) {
+            writeVarint(out, message.getAckSeq());
+        }
+        if ((flags & FLAG_SACK) != 0) {
+            long[] sack = message.getSack();
+            writeVarint(out, sack.length);
+            for (long value : sack) {
+                writeVarint(out, value);
+            }
+        }
+        if ((flags & FLAG_ACK_IDS) != 0) {
+            List<String> ackIds = message.getAckIds();
+            writeVarint(out, ackIds.size());
+            for (String ackId : ackIds) {
+                if (isCanonicalUuid(ackId)) {
+                    out.writeByte(1);
+                    writeUuid(out, ackId);
+                } else {
+                    out.writeByte(0);
+                    writeString(out, ackId);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按本端支持的最高版本从 in 中解码出一条消息
+     *
+     * @param in
+     * @return
+     */
+    public static Message decode(ByteBuf in) {
+        return decode(in, ProtocolVersion.CURRENT);
+    }
+
+    /**
+     * 按指定的二进制协议版本从 in 中解码出一条消息
+     *
+     * @param in
+     * @param version ProtocolVersion.BINARY 或者 ProtocolVersion.BINARY_SEQ
+     * @return
+     */
+    public static Message decode(ByteBuf in, int version) {
+        int shortType = in.readUnsignedByte();
+        int flags = version >= ProtocolVersion.BINARY_SEQ ? (int) readVarint(in) : in.readUnsignedByte();
+        int messageType = shortType == 0 ? (int) unzigzag(readVarint(in)) : TYPE_BASE + shortType;
+
+        Message message = new Message();
+        message.setMessageType(messageType);
+
+        if ((flags & FLAG_UUID_ID) != 0) {
+            message.setMessageId(new UUID(in.readLong(), in.readLong()).toString());
+        } else if ((flags & FLAG_STRING_ID) != 0) {
+            message.setMessageId(readString(in));
+        }
+        if ((flags & FLAG_CONTENT) != 0) {
+            message.setContent(readString(in));
+        }
+        if ((flags & FLAG_STATUS) != 0) {
+            message.setStatus((int) unzigzag(readVarint(in)));
+        }
+        if ((flags & FLAG_TO) != 0) {
+            message.setTo(readString(in));
+        }
+        if ((flags & FLAG_FROM) != 0) {
+            message.setFrom(readString(in));
+        }
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            message.setTimestamp(readVarint(in));
+        }
+        if ((flags & FLAG_TOPIC) != 0) {
+            message.setTopic(readString(in));
+        }
+        if ((flags & FLAG_SEQ) != 0) {
+            message.setSeq(readVarint(in));
+        }
+        if ((flags & FLAG_ACK_SEQ) != 0) {
+            message.setAckSeq(readVarint(in));
+        }
+        if ((flags & FLAG_SACK) != 0) {
+            long count = readVarint(in);
+            if (count < 0 || count > in.readableBytes()) {
+                throw new CorruptedFrameException("invalid sack length: " + count);
+            }
+            long[] sack = new long[(int) count];
+            for (int i = 0; i < sack.length; i++) {
+                sack[i] = readVarint(in);
+            }
+            message.setSack(sack);
+        }
+        if ((flags & FLAG_ACK_IDS) != 0) {
+            long count = readVarint(in);
+            if (count < 0 || count > in.readableBytes()) {
+                throw new CorruptedFrameException("invalid ackIds length: " + count);
+            }
+            List<String> ackIds = new ArrayList<>((int) count);
+            for (int i = 0; i < count; i++) {
+                if (in.readByte() == 1) {
+                    ackIds.add(new UUID(in.readLong(), in.readLong()).toString());
+                } else {
+                    ackIds.add(readString(in));
+                }
+            }
+            message.setAckIds(ackIds);
+        }
+        return message;
+    }
+
+    //=========== 字符串 =======
+
+    private static void writeString(ByteBuf out, String value) {
+        if (SERVER.equals(value)) {
+            out.writeByte(0);
+            return;
+        }
+        int length = ByteBufUtil.utf8Bytes(value);
+        writeVarint(out, length + 1);
+        ByteBufUtil.reserveAndWriteUtf8(out, value, length);
+    }
+
+    private static String readString(ByteBuf in) {
+        long prefix = readVarint(in);
+        if (prefix == 0) {
+            return SERVER;
+        }
+        int length = (int) (prefix - 1);
+        if (length < 0 || length > in.readableBytes()) {
+            throw new CorruptedFrameException("invalid string length: " + length);
+        }
+        String value = in.toString(in.readerIndex(), length, CharsetUtil.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    //=========== UUID =======
+
+    /**
+     * 是否是 UUID.toString() 产生的标准格式(小写), 只有这种才能按 128 位编码而且解码回来完全一样
+     */
+    static boolean isCanonicalUuid(String value) {
+        if (value == null || value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeUuid(ByteBuf out, String uuid) {
+        long msb = 0;
+        long lsb = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = uuid.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            int nibble = c <= '9' ? c - '0' : c - 'a' + 10;
+            if (digits < 16) {
+                msb = (msb << 4) | nibble;
+            } else {
+                lsb = (lsb << 4) | nibble;
+            }
+            digits++;
+        }
+        out.writeLong(msb);
+        out.writeLong(lsb);
+    }
+
+    //=========== varint =======
+
+    private static void writeVarint(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(ByteBuf in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private BinaryMessageCodec() {
+    }
+}
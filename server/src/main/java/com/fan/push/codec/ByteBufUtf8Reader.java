@@ -0,0 +1,85 @@
+package com.fan.push.codec;
+
+import java.io.Reader;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * @Description: 直接从 ByteBuf 中按 UTF-8 解码读取字符的 Reader
+ *
+ * 给 Gson 的 JsonReader 用, 省掉 ByteBuf.toString() 产生的 char[] 和 String.
+ * (InputStreamReader 每个实例都会再分配一个 8K 的字节缓冲, 所以这里不用它)
+ * 不是线程安全的, 每个解码器一个, 通过 setBuffer 切换来源 ByteBuf 重复使用.
+ * @Author: fan
+ * @Date: 2020-12-14 16:40
+ * @Modify:
+ */
+final class ByteBufUtf8Reader extends Reader {
+
+    private ByteBuf buffer;
+
+    // 4字节的 UTF-8 字符会解码成两个 char, 如果上一次只放得下高位代理, 低位代理暂存在这里
+    private char pendingLowSurrogate;
+
+    void setBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+        this.pendingLowSurrogate = 0;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (pendingLowSurrogate != 0) {
+            cbuf[off + n++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (n < len && buffer.isReadable()) {
+            int b = buffer.readByte();
+            if (b >= 0) {
+                cbuf[off + n++] = (char) b;
+                continue;
+            }
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                codePoint = ((b & 0x1F) << 6) | continuation();
+            } else if ((b & 0xF0) == 0xE0) {
+                codePoint = ((b & 0x0F) << 12) | (continuation() << 6) | continuation();
+            } else if ((b & 0xF8) == 0xF0) {
+                codePoint = ((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation();
+            } else {
+                throw new CorruptedFrameException("malformed utf-8 byte: " + b);
+            }
+            if (codePoint < 0x10000) {
+                cbuf[off + n++] = (char) codePoint;
+            } else {
+                cbuf[off + n++] = Character.highSurrogate(codePoint);
+                if (n < len) {
+                    cbuf[off + n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private int continuation() {
+        if (!buffer.isReadable()) {
+            throw new CorruptedFrameException("truncated utf-8 sequence");
+        }
+        int b = buffer.readByte();
+        if ((b & 0xC0) != 0x80) {
+            throw new CorruptedFrameException("malformed utf-8 continuation byte: " + b);
+        }
+        return b & 0x3F;
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+}
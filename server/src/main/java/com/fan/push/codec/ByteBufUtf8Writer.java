@@ -0,0 +1,59 @@
+package com.fan.push.codec;
+
+import java.io.Writer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * @Description: 把字符直接按 UTF-8 写进 ByteBuf 的 Writer
+ *
+ * 给 Gson 的 JsonWriter 用, 省掉中间的 String 和 byte[].
+ * 不是线程安全的, 每个编码器一个, 通过 setBuffer 切换目标 ByteBuf 重复使用.
+ * @Author: fan
+ * @Date: 2020-12-14 16:40
+ * @Modify:
+ */
+final class ByteBufUtf8Writer extends Writer {
+
+    private ByteBuf buffer;
+
+    void setBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int c) {
+        if (c < 0x80) {
+            buffer.writeByte(c);
+        } else {
+            ByteBufUtil.writeUtf8(buffer, String.valueOf((char) c));
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        // JsonWriter 只会在转义字符处把字符串分段, 不会把代理对(surrogate pair)拆开
+        ByteBufUtil.writeUtf8(buffer, str, off, off + len);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        ByteBufUtil.writeUtf8(buffer, new String(cbuf, off, len));
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+        ByteBufUtil.writeUtf8(buffer, csq);
+        return this;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.EncoderException;
+import io.netty.util.AbstractReferenceCounted;
+
+/**
+ * @Description: 已经编码好的消息, 用于群发时只序列化一次
+ *
+ * 每种协议版本(JSON / 二进制 v2 / v3)最多编码一次, 写给每个 Channel 的都是同一块内存的 retainedDuplicate(),
+ * MessageEncoder 对 ByteBuf 直接放行, LengthFieldPrepender 只是在前面加上长度, 都不会再拷贝.
+ *
+ * 引用计数: 创建者持有一个引用, 用完调用 release(). 已经写出去的 duplicate 各自持有引用, 写完由 Netty 释放.
+ * 不是线程安全的, 只在一个线程(发起群发的线程)里调用 payloadFor.
+ * @Author: fan
+ * @Date: 2020-12-16 11:30
+ * @Modify:
+ */
+public final class EncodedMessage extends AbstractReferenceCounted {
+
+    private final Message message;
+
+    private final ByteBufAllocator alloc;
+
+    // 按协议版本编码好的内容, 下标是版本号
+    private final ByteBuf[] payloads = new ByteBuf[ProtocolVersion.CURRENT + 1];
+
+    /**
+     * constructor
+     *
+     * @param message
+     * @param alloc   用于分配编码后的内存, 一般是 PooledByteBufAllocator.DEFAULT
+     */
+    public EncodedMessage(Message message, ByteBufAllocator alloc) {
+        if (message == null) {
+            throw new IllegalArgumentException("EncodedMessage constructor , message can not be null");
+        }
+        this.message = message;
+        this.alloc = alloc;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * 按 channel 协商好的协议版本, 取一份可以直接写出的 ByteBuf
+     *
+     * @param channel
+     * @return retainedDuplicate, 写出之后由 Netty 释放
+     */
+    public ByteBuf payloadFor(Channel channel) {
+        return payload(ProtocolVersion.of(channel)).retainedDuplicate();
+    }
+
+    private ByteBuf payload(int protocolVersion) {
+        ByteBuf payload = payloads[protocolVersion];
+        if (payload != null) {
+            return payload;
+        }
+        payload = alloc.directBuffer();
+        if (protocolVersion >= ProtocolVersion.BINARY) {
+            BinaryMessageCodec.encode(message, payload, protocolVersion);
+        } else {
+            try {
+                new JsonMessageCodec().encode(message, payload);
+            } catch (IOException e) {
+                payload.release();
+                throw new EncoderException(e);
+            }
+        }
+        payloads[protocolVersion] = payload;
+        return payload;
+    }
+
+    @Override
+    protected void deallocate() {
+        for (int i = 0; i < payloads.length; i++) {
+            if (payloads[i] != null) {
+                payloads[i].release();
+                payloads[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public EncodedMessage touch(Object hint) {
+        return this;
+    }
+}
@@ -0,0 +1,69 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+import com.fan.push.util.GsonUtil;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * @Description: JSON 协议(v1)的编解码
+ *
+ * 原来的写法是 Unpooled.copiedBuffer(GsonUtil.toJson(message).getBytes()), 每一帧要分配 String, byte[], 堆内 ByteBuf 三次.
+ * 这里让 Gson 直接把 JSON 流式写进目标 ByteBuf(一般是 ctx.alloc() 分配的池化直接内存), 解码时也直接从 ByteBuf 读, 不再生成中间的 String.
+ *
+ * 不是线程安全的: 内部复用了 Writer/Reader, 每个编解码器(也就是每个 Channel)一个实例.
+ * @Author: fan
+ * @Date: 2020-12-14 16:40
+ * @Modify:
+ */
+public final class JsonMessageCodec {
+
+    private static final Gson GSON = GsonUtil.getInstance();
+
+    private static final TypeAdapter<Message> ADAPTER = GSON.getAdapter(Message.class);
+
+    private final ByteBufUtf8Writer writer = new ByteBufUtf8Writer();
+
+    private final ByteBufUtf8Reader reader = new ByteBufUtf8Reader();
+
+    /**
+     * 把 message 编码成 JSON 写入 out
+     *
+     * @param message
+     * @param out
+     * @throws IOException
+     */
+    public void encode(Message message, ByteBuf out) throws IOException {
+        writer.setBuffer(out);
+        try {
+            ADAPTER.write(GSON.newJsonWriter(writer), message);
+        } finally {
+            writer.setBuffer(null);
+        }
+    }
+
+    /**
+     * 从 in 中解码出一条消息, 会读完 in 中全部可读的字节
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public Message decode(ByteBuf in) throws IOException {
+        reader.setBuffer(in);
+        try {
+            // 和 Gson.fromJson 一样, 使用宽松模式解析
+            JsonReader jsonReader = GSON.newJsonReader(reader);
+            jsonReader.setLenient(true);
+            return ADAPTER.read(jsonReader);
+        } finally {
+            reader.setBuffer(null);
+            in.skipBytes(in.readableBytes());
+        }
+    }
+}
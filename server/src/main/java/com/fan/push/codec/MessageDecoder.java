@@ -0,0 +1,48 @@
+package com.fan.push.codec;
+
+import java.util.List;
+
+import com.fan.push.message.Message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * @Description: Message 解码器, 入站处理器
+ *
+ * 放在 LengthFieldBasedFrameDecoder 后面, 每次收到的都是一个完整的帧, 输出类型是 Message
+ * 第一个字节是 '{' 的就是 JSON 帧, 否则是二进制帧(参考 BinaryMessageCodec), 二进制帧按协商好的版本解码
+ * 两种格式都直接从入站的 ByteBuf 解析, 不再先转成 String
+ * @Author: fan
+ * @Date: 2020-12-11 10:05
+ * @Modify: 2020-12-14 JSON 直接从 ByteBuf 流式解析
+ *          2020-12-28 二进制 v3
+ */
+public class MessageDecoder extends ByteToMessageDecoder {
+
+    private static final byte JSON_START = '{';
+
+    private final JsonMessageCodec jsonCodec = new JsonMessageCodec();
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) throws Exception {
+        if (!frame.isReadable()) {
+            return;
+        }
+
+        Message message;
+        if (frame.getByte(frame.readerIndex()) == JSON_START) {
+            message = jsonCodec.decode(frame);
+        } else {
+            message = BinaryMessageCodec.decode(frame, ProtocolVersion.binaryOf(ctx.channel()));
+        }
+
+        // 一个帧就是一条消息, 多余的字节丢掉
+        frame.skipBytes(frame.readableBytes());
+
+        if (message != null) {
+            out.add(message);
+        }
+    }
+}
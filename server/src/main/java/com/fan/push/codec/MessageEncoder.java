@@ -0,0 +1,33 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+/**
+ * @Description: Message 编码器, 出站处理器
+ *
+ * 输入类型是 Message, 输出类型是 ByteBuf, 后面再交给 LengthFieldPrepender 加上长度
+ * 按照 Channel 上协商好的协议版本(参考 ProtocolVersion)选择 JSON 或者二进制编码
+ * 输出的 ByteBuf 由 MessageToByteEncoder 从 ctx.alloc() 分配(默认优先直接内存), 消息直接编码进去, 不再有中间的 String 和 byte[]
+ * @Author: fan
+ * @Date: 2020-12-11 10:05
+ * @Modify: 2020-12-14 JSON 直接流式写入 ByteBuf
+ *          2020-12-28 二进制 v3
+ */
+public class MessageEncoder extends MessageToByteEncoder<Message> {
+
+    private final JsonMessageCodec jsonCodec = new JsonMessageCodec();
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Message message, ByteBuf out) throws Exception {
+        int version = ProtocolVersion.of(ctx.channel());
+        if (version >= ProtocolVersion.BINARY) {
+            BinaryMessageCodec.encode(message, out, version);
+        } else {
+            jsonCodec.encode(message, out);
+        }
+    }
+}
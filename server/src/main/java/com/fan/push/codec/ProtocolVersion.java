@@ -0,0 +1,86 @@
+package com.fan.push.codec;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * @Description: 协议版本
+ *
+ * 1, JSON: 老协议, 每一帧都是 Message 的 Gson JSON
+ * 2, BINARY: 紧凑的二进制协议, 参考 BinaryMessageCodec
+ * 3, BINARY_SEQ: 二进制协议, flags 改成 varint, 带上消息序号 seq 和累积确认 ackSeq/sack
+ *
+ * 协商过程(在 1001 握手中完成):
+ * a, 客户端的握手消息里带上自己支持的最高版本 protocolVersion. 老客户端不带这个字段, 视为 JSON
+ * b, 服务端取双方都支持的版本, 放在握手成功的响应里, 响应本身还是 JSON. 响应写出之后, 服务端把这个 Channel 切换到协商好的版本
+ * c, 客户端收到握手成功的响应后, 也切换到协商好的版本
+ *
+ * 解码的时候靠第一个字节区分: JSON 帧的第一个字节一定是 '{', 二进制帧的第一个字节一定不是, 所以两种帧可以混着收.
+ * 二进制帧再按协商好的版本区分是 v2 还是 v3(没协商过就按 v2).
+ * @Author: fan
+ * @Date: 2020-12-11 10:05
+ * @Modify:
+ */
+public final class ProtocolVersion {
+
+    public static final int JSON = 1;
+
+    public static final int BINARY = 2;
+
+    public static final int BINARY_SEQ = 3;
+
+    // 本端支持的最高版本
+    public static final int CURRENT = BINARY_SEQ;
+
+    // 保存在 Channel 上的, 写出时使用的协议版本
+    private static final AttributeKey<Integer> KEY = AttributeKey.valueOf("protocolVersion");
+
+    /**
+     * 取双方都支持的版本
+     *
+     * @param remoteVersion 对方在握手消息中带来的版本, 没带就是0
+     * @return
+     */
+    public static int negotiate(int remoteVersion) {
+        if (remoteVersion <= JSON) {
+            return JSON;
+        }
+        return Math.min(remoteVersion, CURRENT);
+    }
+
+    /**
+     * 写出时使用的协议版本, 没有协商过就是 JSON
+     *
+     * @param channel
+     * @return
+     */
+    public static int of(Channel channel) {
+        Integer version = channel.attr(KEY).get();
+        return version == null ? JSON : version;
+    }
+
+    /**
+     * 收到的二进制帧按哪个版本解码: 协商好的二进制版本, 没协商过就是 v2
+     *
+     * @param channel
+     * @return
+     */
+    public static int binaryOf(Channel channel) {
+        return Math.max(of(channel), BINARY);
+    }
+
+    /**
+     * 把 Channel 切换到指定的协议版本, 之后写出的消息都使用这个版本编码
+     *
+     * @param channel
+     * @param version
+     */
+    public static void set(Channel channel, int version) {
+        Attribute<Integer> attribute = channel.attr(KEY);
+        attribute.set(version);
+    }
+
+    private ProtocolVersion() {
+    }
+}
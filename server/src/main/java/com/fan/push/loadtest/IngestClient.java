@@ -0,0 +1,112 @@
+package com.fan.push.loadtest;
+
+import com.fan.push.metrics.StripedCounter;
+import com.fan.push.server.PushIngestHandler;
+
+import java.net.InetSocketAddress;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 压测用的推送接入客户端, 一个 keep-alive 的 HTTP 连接
+ *
+ * 请求是流水线(pipelining)发的: 只写不等响应, 响应回来的时候只计数. 参考 PushIngestHandler
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify:
+ */
+public class IngestClient {
+
+    private final StripedCounter requests = new StripedCounter();
+    private final StripedCounter responses = new StripedCounter();
+    private final StripedCounter failedResponses = new StripedCounter();
+
+    private String host;
+
+    private Channel channel;
+
+    /**
+     * 连接到推送接入端口
+     *
+     * @param group
+     * @param address
+     * @throws InterruptedException
+     */
+    public void connect(EventLoopGroup group, InetSocketAddress address) throws InterruptedException {
+        host = address.getHostString() + ":" + address.getPort();
+        channel = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast("httpClientCodec", new HttpClientCodec());
+                        ch.pipeline().addLast("httpObjectAggregator", new HttpObjectAggregator(64 * 1024));
+                        ch.pipeline().addLast("ingestResponseHandler", new SimpleChannelInboundHandler<FullHttpResponse>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+                                responses.increment();
+                                if (response.status().code() >= 300) {
+                                    failedResponses.increment();
+                                    logger.warn("推送接入返回 {}: {}", response.status(), response.content().toString(CharsetUtil.UTF_8));
+                                }
+                            }
+                        });
+                    }
+                })
+                .connect(address).sync().channel();
+    }
+
+    /**
+     * 发一个请求, 不等响应. 可以在任何线程调用
+     *
+     * @param body JSON 数组, 格式参考 PushIngestHandler
+     */
+    public void send(CharSequence body) {
+        ByteBuf content = ByteBufUtil.writeUtf8(channel.alloc(), body);
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, PushIngestHandler.PATH, content);
+        request.headers().set(HttpHeaderNames.HOST, host);
+        request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+        request.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        requests.increment();
+        channel.writeAndFlush(request);
+    }
+
+    public void close() {
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    public long getFailedResponses() {
+        return failedResponses.sum();
+    }
+}
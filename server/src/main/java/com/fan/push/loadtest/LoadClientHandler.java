@@ -0,0 +1,172 @@
+package com.fan.push.loadtest;
+
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+import com.fan.push.metrics.Histogram;
+import com.fan.push.metrics.StripedCounter;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 压测客户端的处理器, 全部连接共用一个实例
+ *
+ * 和 PushClientHandler 的协议一样, 但是没有单例, 没有重连:
+ * 1, 连上之后用 JSON 发握手(带自己的 userId 和支持的最高协议版本), 握手成功之后切换到协商好的版本
+ * 2, writerIdle 时发心跳
+ * 3, 收到推送马上回执(累积回执 ackSeq = seq, 没有 seq 的按 messageId), 一次读完才 flush, 相当于客户端的回执合并
+ *
+ * 推送的 content 是服务端发出时的 System.nanoTime(), 服务端和压测客户端在同一个进程里, 可以直接算出推送到达的延迟
+ * @Author: fan
+ * @Date: 2021-01-08 10:00
+ * @Modify:
+ */
+@ChannelHandler.Sharable
+public class LoadClientHandler extends ChannelInboundHandlerAdapter {
+
+    // 这个连接的 userId, 在发起连接之前设置
+    public static final AttributeKey<String> USER_ID = AttributeKey.valueOf("loadUserId");
+
+    private final StripedCounter handshakes = new StripedCounter();
+    private final StripedCounter failedHandshakes = new StripedCounter();
+    private final StripedCounter disconnects = new StripedCounter();
+    private final StripedCounter pings = new StripedCounter();
+    private final StripedCounter pongs = new StripedCounter();
+    private final StripedCounter pushes = new StripedCounter();
+    private final StripedCounter acks = new StripedCounter();
+
+    // 推送从服务端发出到压测客户端收到, 微秒
+    private final Histogram deliveryLatency = new Histogram();
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Message handshake = new Message(1001, ctx.channel().attr(USER_ID).get(), "server");
+        handshake.setProtocolVersion(ProtocolVersion.CURRENT);
+        ctx.writeAndFlush(handshake);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        disconnects.increment();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof Message)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        Message message = (Message) msg;
+        if (1001 == message.getMessageType()) {
+            if (message.getStatus() == 1) {
+                ProtocolVersion.set(ctx.channel(), message.getProtocolVersion());
+                handshakes.increment();
+            } else {
+                // 握手失败, 或者被重定向(压测只连一个节点, 不跟随)
+                logger.warn("压测连接 {} 握手失败, status: {}", ctx.channel().attr(USER_ID).get(), message.getStatus());
+                failedHandshakes.increment();
+                ctx.close();
+            }
+        } else if (1003 == message.getMessageType()) {
+            pongs.increment();
+        } else if (1004 == message.getMessageType() && message.getStatus() == 0) {
+            pushes.increment();
+            recordLatency(message.getContent());
+
+            Message ack = new Message();
+            ack.setMessageType(1004);
+            ack.setFrom(ctx.channel().attr(USER_ID).get());
+            ack.setTo("server");
+            ack.setStatus(1);
+            if (message.getSeq() != 0) {
+                ack.setAckSeq(message.getSeq());
+            } else {
+                ack.setMessageId(message.getMessageId());
+            }
+            ctx.write(ack, ctx.voidPromise());
+            acks.increment();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 这一次读到的推送的回执一起写出去
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.WRITER_IDLE) {
+            // 不用 Message.obtainPingMessage(): 那是一个共享的对象, 这里有很多连接同时在发
+            Message ping = new Message();
+            ping.setMessageType(1002);
+            ping.setFrom(ctx.channel().attr(USER_ID).get());
+            ping.setTo("server");
+            ctx.writeAndFlush(ping, ctx.voidPromise());
+            pings.increment();
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.warn("压测连接 {} 异常: {}", ctx.channel().attr(USER_ID).get(), cause.toString());
+        ctx.close();
+    }
+
+    private void recordLatency(String content) {
+        if (content == null) {
+            return;
+        }
+        try {
+            deliveryLatency.record((System.nanoTime() - Long.parseLong(content)) / 1000);
+        } catch (NumberFormatException e) {
+            // 不是压测工具发的推送
+        }
+    }
+
+    //=========== getters =======
+
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getPings() {
+        return pings.sum();
+    }
+
+    public long getPongs() {
+        return pongs.sum();
+    }
+
+    public long getPushes() {
+        return pushes.sum();
+    }
+
+    public long getAcks() {
+        return acks.sum();
+    }
+
+    public Histogram getDeliveryLatency() {
+        return deliveryLatency;
+    }
+}
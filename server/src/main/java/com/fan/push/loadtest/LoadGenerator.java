@@ -0,0 +1,333 @@
+package com.fan.push.loadtest;
+
+import com.fan.push.codec.MessageDecoder;
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.message.Message;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.ServerMetrics;
+import com.fan.push.server.ServerOptions;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 大量连接的压测工具, 回答"一台机器能撑多少客户端"
+ *
+ * 在同一个进程里启动 PushServer(ServerOptions, -Dfanpush.xxx), 再从 clientThreads 个 EventLoop 上经过 127.0.0.1 发起 connections 个连接:
+ * 1, 连接阶段: 按 connectRate 限速发起连接, 每个连接用自己的 userId 握手, 之后按 heartbeatSeconds 发心跳, 参考 LoadClientHandler
+ * 2, 全部握手完成后 GC 一次, 算出每个连接占用的内存
+ * 3, 推送阶段: 一个业务线程按 pushRate 给随机的在线用户 sendMsg, 持续 durationSeconds 秒, 客户端收到就回执.
+ *    配置了 ingestBatchSize 的话, 改成攒成批, 通过一个 HTTP 连接流水线地提交到服务端的推送接入(参考 IngestClient, PushIngestHandler)
+ * 4, 再等 drainSeconds 秒让回执回来, 从 ServerMetrics 读出推送, 回执, 回执延迟和重发次数, 输出 LoadReport
+ *
+ * 运行: ./gradlew :server:loadTest -Dfanpush.load.connections=50000 -Dfanpush.load.pushRate=20000
+ * 连接数很多时注意 ulimit -n(服务端和客户端的 socket 都在这个进程里, 一个连接两个文件描述符)
+ * @Author: fan
+ * @Date: 2021-01-08 10:00
+ * @Modify: 2021-01-09 通过推送接入推送, 不再需要关掉读标准输入的线程
+ *          2021-01-09 量内存时等 finalize
+ */
+public class LoadGenerator {
+
+    // 发起连接和推送的节拍
+    private static final long TICK_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(ServerOptions.fromSystemProperties(), LoadTestOptions.fromSystemProperties());
+        System.out.println(generator.run());
+    }
+
+    private final ServerOptions serverOptions;
+
+    private final LoadTestOptions options;
+
+    private final LoadClientHandler handler = new LoadClientHandler();
+
+    private final AtomicLong connectFailures = new AtomicLong();
+
+    // 推送线程要推送的条数, 以及其中因为用户不在线跳过的
+    private final AtomicLong pushesRequested = new AtomicLong();
+    private final AtomicLong pushesSkipped = new AtomicLong();
+
+    private final String[] userIds;
+
+    /**
+     * constructor
+     *
+     * @param serverOptions 被压测的服务端的配置. 会被修改: 接受任何 userId 握手; 配置了 ingestBatchSize 的话开启推送接入
+     * @param options
+     */
+    public LoadGenerator(ServerOptions serverOptions, LoadTestOptions options) {
+        if (serverOptions == null || options == null) {
+            throw new IllegalArgumentException("LoadGenerator constructor , serverOptions and options can not be null");
+        }
+        this.serverOptions = serverOptions;
+        this.options = options;
+        serverOptions.setHandshakeUserId("");
+        if (options.getIngestBatchSize() > 0 && serverOptions.getIngestPort() < 0) {
+            serverOptions.setIngestPort(0);
+        }
+
+        userIds = new String[options.getConnections()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = options.getUserPrefix() + i;
+        }
+    }
+
+    /**
+     * 运行一次压测, 结束时关闭全部连接和服务端
+     *
+     * @return
+     * @throws Exception
+     */
+    public LoadReport run() throws Exception {
+        // 服务端默认每收到一条消息打一行 INFO 日志, 输出到控制台比推送本身慢得多, 压测的时候只留警告. 要持有引用, 否则 JUL 的 Logger 可能被回收, 级别就丢了
+        Logger julLogger = Logger.getLogger(logger.name());
+        Level logLevel = julLogger.getLevel();
+        julLogger.setLevel(Level.WARNING);
+
+        // 离线消息写到临时目录, 结束时删掉
+        File offlineStoreDir = Files.createTempDirectory("fanpush-load").toFile();
+        serverOptions.setOfflineStoreDir(offlineStoreDir.getPath());
+
+        PushServer pushServer = new PushServer(serverOptions);
+        EventLoopGroup group = new NioEventLoopGroup(options.getClientThreads());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        LoadReport report = new LoadReport();
+        report.connections = options.getConnections();
+        IngestClient ingestClient = null;
+        try {
+            pushServer.start();
+            InetSocketAddress server = new InetSocketAddress("127.0.0.1", pushServer.localAddress().getPort());
+            if (options.getIngestBatchSize() > 0) {
+                ingestClient = new IngestClient();
+                ingestClient.connect(group, new InetSocketAddress("127.0.0.1", pushServer.ingestAddress().getPort()));
+            }
+
+            // 连接之前的内存, 服务端和客户端的线程, 内存池都已经创建了
+            long heapBefore = usedHeapMemory();
+            long directBefore = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory();
+
+            connect(group, scheduler, server, report);
+
+            report.heapBytes = usedHeapMemory() - heapBefore;
+            report.directBytes = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory() - directBefore;
+
+            push(pushServer, ingestClient, scheduler, report);
+
+            ServerMetrics metrics = pushServer.getMetrics();
+            report.pushesSent = metrics.getPushesSent();
+            report.pushesReceived = handler.getPushes();
+            report.acksSent = handler.getAcks();
+            report.ackedMessages = metrics.getAckedMessages();
+            report.retries = metrics.getRetries();
+            report.giveUps = metrics.getGiveUps();
+            report.disconnects = handler.getDisconnects();
+            report.pings = handler.getPings();
+            report.pongs = handler.getPongs();
+            report.ackLatency = metrics.getAckLatency().snapshot();
+            report.deliveryLatency = handler.getDeliveryLatency().snapshot();
+            if (ingestClient != null) {
+                report.ingestBatchSize = options.getIngestBatchSize();
+                report.ingestRequests = ingestClient.getRequests();
+                report.ingestResponses = ingestClient.getResponses();
+                report.ingestFailures = ingestClient.getFailedResponses();
+                report.ingestedMessages = metrics.getIngestedMessages();
+            }
+            return report;
+        } finally {
+            scheduler.shutdownNow();
+            if (ingestClient != null) {
+                ingestClient.close();
+            }
+            group.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+            pushServer.stop();
+            delete(offlineStoreDir);
+            julLogger.setLevel(logLevel);
+        }
+    }
+
+    /**
+     * 按 connectRate 发起全部连接, 等到都握手完成(或者失败, 超时)
+     */
+    private void connect(EventLoopGroup group, ScheduledExecutorService scheduler, final InetSocketAddress server,
+                         LoadReport report) throws InterruptedException {
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast("lengthFieldEncoder", new LengthFieldPrepender(2));
+                        ch.pipeline().addLast("lengthFieldDecoder", new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2));
+                        ch.pipeline().addLast("messageDecoder", new MessageDecoder());
+                        ch.pipeline().addLast("messageEncoder", new MessageEncoder());
+                        ch.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, options.getHeartbeatSeconds(), 0, TimeUnit.SECONDS));
+                        ch.pipeline().addLast("loadClientHandler", handler);
+                    }
+                });
+
+        final int total = userIds.length;
+        final long start = System.nanoTime();
+        ScheduledFuture<?> connector = scheduler.scheduleAtFixedRate(new Runnable() {
+            private int issued;
+
+            @Override
+            public void run() {
+                long target = options.getConnectRate() <= 0 ? total
+                        : Math.min(total, (System.nanoTime() - start) / 1000000 * options.getConnectRate() / 1000 + 1);
+                for (; issued < target; issued++) {
+                    connectOne(bootstrap, server, issued);
+                }
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(options.getConnectTimeoutSeconds());
+        while (handler.getHandshakes() + handler.getFailedHandshakes() + connectFailures.get() < total && System.nanoTime() < deadline) {
+            Thread.sleep(TICK_MILLIS);
+        }
+        connector.cancel(false);
+        report.connectSeconds = (System.nanoTime() - start) / 1e9;
+        report.handshakes = handler.getHandshakes();
+        report.failedConnections = total - report.handshakes;
+        logger.warn("压测: {} 个连接握手成功, {} 个失败, 用时 {} 秒", report.handshakes, report.failedConnections, report.connectSeconds);
+    }
+
+    private void connectOne(Bootstrap bootstrap, InetSocketAddress server, int index) {
+        Bootstrap b = bootstrap.clone().attr(LoadClientHandler.USER_ID, userIds[index]);
+        ChannelFuture future;
+        if (userIds.length > options.getConnectionsPerSourceAddress()) {
+            // 一个源地址的临时端口不够用, 依次换 127.0.0.2, 127.0.0.3 ...
+            int source = index / options.getConnectionsPerSourceAddress();
+            future = b.connect(server, new InetSocketAddress("127.0.0." + (1 + source), 0));
+        } else {
+            future = b.connect(server);
+        }
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess() && connectFailures.incrementAndGet() <= 10) {
+                    logger.warn("压测连接失败: {}", future.cause().toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * 按 pushRate 给随机的在线用户推送, 每秒打印一次进度, 最后等 drainSeconds 让回执回来
+     *
+     * @param ingestClient 不为 null 的话通过推送接入提交, 每个节拍里每 ingestBatchSize 条一个请求, 节拍结束时不满的也发出去
+     */
+    private void push(final PushServer pushServer, final IngestClient ingestClient, ScheduledExecutorService scheduler,
+                      LoadReport report) throws InterruptedException {
+        report.pushRate = options.getPushRate();
+        if (options.getPushRate() <= 0 || options.getDurationSeconds() <= 0) {
+            return;
+        }
+        final Random random = new Random();
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(options.getDurationSeconds());
+        // 落后了(GC, 线程没抢到 CPU)的话, 下一个节拍补上, 平均速率还是 pushRate
+        ScheduledFuture<?> pusher = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = Math.min(System.nanoTime(), end);
+                long target = (now - start) / 1000 * options.getPushRate() / 1000000;
+                StringBuilder batch = null;
+                int batched = 0;
+                while (pushesRequested.get() < target) {
+                    pushesRequested.incrementAndGet();
+                    String userId = userIds[random.nextInt(userIds.length)];
+                    if (!pushServer.getSessionRegistry().isOnline(userId)) {
+                        pushesSkipped.incrementAndGet();
+                        continue;
+                    }
+                    if (ingestClient == null) {
+                        Message message = new Message(1004, "server", userId);
+                        message.setContent(Long.toString(System.nanoTime()));
+                        pushServer.sendMsg(userId, message, true);
+                        continue;
+                    }
+                    // userId 和 content 都不需要转义
+                    batch = batch == null ? new StringBuilder("[") : batch.append(',');
+                    batch.append("{\"to\":\"").append(userId).append("\",\"content\":\"").append(System.nanoTime()).append("\"}");
+                    if (++batched == options.getIngestBatchSize()) {
+                        ingestClient.send(batch.append(']'));
+                        batch = null;
+                        batched = 0;
+                    }
+                }
+                if (batch != null) {
+                    ingestClient.send(batch.append(']'));
+                }
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> progress = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ServerMetrics metrics = pushServer.getMetrics();
+                logger.warn("压测: {} 秒, 在线 {}, 已推送 {}, 客户端收到 {}, 已回执 {}, 重发 {}",
+                        (System.nanoTime() - start) / 1000000000L, pushServer.getSessionRegistry().size(),
+                        metrics.getPushesSent(), handler.getPushes(), metrics.getAckedMessages(), metrics.getRetries());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(end - start) + TICK_MILLIS);
+        pusher.cancel(false);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.getDrainSeconds()));
+        progress.cancel(false);
+        report.pushSeconds = options.getDurationSeconds();
+        report.pushesRequested = pushesRequested.get();
+        report.pushesSkipped = pushesSkipped.get();
+    }
+
+    private static long usedHeapMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            // 上一次压测(同一个进程里连续跑的时候)退出的线程的缓存(PoolThreadCache 等)要等 finalize 之后才放掉
+            System.runFinalization();
+        }
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            logger.warn("删除 {} 失败", file);
+        }
+    }
+}
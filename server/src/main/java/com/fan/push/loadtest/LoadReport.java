@@ -0,0 +1,171 @@
+package com.fan.push.loadtest;
+
+import com.fan.push.metrics.Histogram;
+
+/**
+ * @Description: 一次压测的结果, 参考 LoadGenerator
+ *
+ * 内存是服务端和压测客户端加在一起的(同一个进程), 两边每个连接的对象差不多, 服务端自己的大约是一半
+ * @Author: fan
+ * @Date: 2021-01-08 10:00
+ * @Modify: 2021-01-09 推送接入
+ */
+public class LoadReport {
+
+    int connections;
+    long handshakes;
+    long failedConnections;
+    double connectSeconds;
+
+    long heapBytes;
+    long directBytes;
+
+    int pushRate;
+    double pushSeconds;
+    long pushesRequested;
+    long pushesSkipped;
+    long pushesSent;
+    long pushesReceived;
+    long acksSent;
+    long ackedMessages;
+    long retries;
+    long giveUps;
+    long disconnects;
+    long pings;
+    long pongs;
+
+    // 通过推送接入推送时才有, 参考 LoadTestOptions.ingestBatchSize
+    int ingestBatchSize;
+    long ingestRequests;
+    long ingestResponses;
+    long ingestFailures;
+    long ingestedMessages;
+
+    Histogram.Snapshot ackLatency;
+    Histogram.Snapshot deliveryLatency;
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public long getHandshakes() {
+        return handshakes;
+    }
+
+    public long getFailedConnections() {
+        return failedConnections;
+    }
+
+    /**
+     * 每秒握手成功的连接数, 从发起第一个连接到全部完成
+     */
+    public double getConnectRate() {
+        return connectSeconds > 0 ? handshakes / connectSeconds : 0;
+    }
+
+    /**
+     * 每个连接占用的堆内存(字节), 服务端加客户端
+     */
+    public long getHeapBytesPerConnection() {
+        return handshakes > 0 ? heapBytes / handshakes : 0;
+    }
+
+    /**
+     * 每个连接占用的池化直接内存(字节), 服务端加客户端
+     */
+    public long getDirectBytesPerConnection() {
+        return handshakes > 0 ? directBytes / handshakes : 0;
+    }
+
+    public long getPushesRequested() {
+        return pushesRequested;
+    }
+
+    public long getPushesSent() {
+        return pushesSent;
+    }
+
+    public long getPushesReceived() {
+        return pushesReceived;
+    }
+
+    public long getAcksSent() {
+        return acksSent;
+    }
+
+    public long getAckedMessages() {
+        return ackedMessages;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public long getGiveUps() {
+        return giveUps;
+    }
+
+    public long getDisconnects() {
+        return disconnects;
+    }
+
+    public long getIngestRequests() {
+        return ingestRequests;
+    }
+
+    public long getIngestResponses() {
+        return ingestResponses;
+    }
+
+    public long getIngestFailures() {
+        return ingestFailures;
+    }
+
+    public long getIngestedMessages() {
+        return ingestedMessages;
+    }
+
+    /**
+     * 服务端从推送到收到回执的延迟(微秒), 抽样的, 参考 ServerMetrics
+     */
+    public Histogram.Snapshot getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * 从服务端推送到压测客户端收到的延迟(微秒), 每条都记
+     */
+    public Histogram.Snapshot getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("connections   %d requested, %d handshaken, %d failed in %.1f s: %.0f connections/s%n",
+                connections, handshakes, failedConnections, connectSeconds, getConnectRate()));
+        out.append(String.format("memory        %d bytes heap + %d bytes pooled direct per connection (server + client)%n",
+                getHeapBytesPerConnection(), getDirectBytesPerConnection()));
+        out.append(String.format("pushes        %d/s for %.1f s: %d requested (%d to offline users skipped), %d sent, %d received%n",
+                pushRate, pushSeconds, pushesRequested, pushesSkipped, pushesSent, pushesReceived));
+        if (ingestBatchSize > 0) {
+            out.append(String.format("ingest        %d requests of up to %d pushes, %d responses (%d failed), %d messages submitted%n",
+                    ingestRequests, ingestBatchSize, ingestResponses, ingestFailures, ingestedMessages));
+        }
+        out.append(String.format("acks          %d sent by clients, %d messages acknowledged on server%n", acksSent, ackedMessages));
+        out.append(String.format("retries       %d messages resent, %d devices given up, %d disconnects%n", retries, giveUps, disconnects));
+        out.append(String.format("heartbeats    %d pings, %d pongs%n", pings, pongs));
+        out.append("push -> ack   ").append(format(ackLatency)).append(" (server, sampled)").append(String.format("%n"));
+        out.append("push -> recv  ").append(format(deliveryLatency)).append(" (client)");
+        return out.toString();
+    }
+
+    private static String format(Histogram.Snapshot snapshot) {
+        if (snapshot == null || snapshot.getCount() == 0) {
+            return "no samples";
+        }
+        return String.format("p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us, %d samples",
+                snapshot.percentile(0.5), snapshot.percentile(0.9), snapshot.percentile(0.99), snapshot.percentile(0.999),
+                snapshot.getMax(), snapshot.getCount());
+    }
+}
@@ -0,0 +1,164 @@
+package com.fan.push.loadtest;
+
+/**
+ * @Description: 压测工具的配置
+ *
+ * 可以通过系统属性配置, 属性名是 fanpush.load. 加上字段名, 比如 -Dfanpush.load.connections=50000 -Dfanpush.load.pushRate=20000
+ * 被压测的服务端还是用 ServerOptions(-Dfanpush.xxx), 参考 LoadGenerator
+ * @Author: fan
+ * @Date: 2021-01-08 10:00
+ * @Modify: 2021-01-09 通过推送接入(HTTP)推送
+ */
+public class LoadTestOptions {
+
+    private static final String PROPERTY_PREFIX = "fanpush.load.";
+
+    // 连接数, 每个连接一个不同的 userId
+    private int connections = 10000;
+
+    // userId 的前缀, 第 i 个连接的 userId 是 userPrefix + i
+    private String userPrefix = "load-";
+
+    // 客户端的 EventLoop 个数, 全部连接分摊在这几个线程上
+    private int clientThreads = 4;
+
+    // 每秒发起多少个连接, 0 表示不限速(一次全部发起, 服务端的 SO_BACKLOG 不够大的话会有连接失败)
+    private int connectRate = 5000;
+
+    // 每个源地址最多多少个连接. 一个源地址只有 2万多个临时端口, 超过了就依次用 127.0.0.2, 127.0.0.3 ...(Linux 上整个 127/8 都是本机, 其他系统要先加别名)
+    private int connectionsPerSourceAddress = 20000;
+
+    // 全部连接都握手成功之后, 服务端每秒推送多少条(随机选用户), 0 表示不推送
+    private int pushRate = 10000;
+
+    // 推送持续多少秒
+    private int durationSeconds = 30;
+
+    // 多少秒没有写过数据就发一次心跳, 要小于服务端的 readerIdleSeconds
+    private int heartbeatSeconds = 10;
+
+    // 等全部连接握手完成的最长时间(秒)
+    private int connectTimeoutSeconds = 120;
+
+    // 推送结束之后, 等回执的时间(秒)
+    private int drainSeconds = 5;
+
+    // 大于0的话, 推送不直接调用 PushServer.sendMsg, 而是每这么多条攒成一个请求, 流水线地 POST 到服务端的推送接入(PushIngestHandler)
+    private int ingestBatchSize = 0;
+
+    /**
+     * 从系统属性读取配置, 没有配置的项使用默认值
+     *
+     * @return
+     */
+    public static LoadTestOptions fromSystemProperties() {
+        LoadTestOptions options = new LoadTestOptions();
+        options.connections = intProperty("connections", options.connections);
+        options.userPrefix = System.getProperty(PROPERTY_PREFIX + "userPrefix", options.userPrefix);
+        options.clientThreads = intProperty("clientThreads", options.clientThreads);
+        options.connectRate = intProperty("connectRate", options.connectRate);
+        options.connectionsPerSourceAddress = intProperty("connectionsPerSourceAddress", options.connectionsPerSourceAddress);
+        options.pushRate = intProperty("pushRate", options.pushRate);
+        options.durationSeconds = intProperty("durationSeconds", options.durationSeconds);
+        options.heartbeatSeconds = intProperty("heartbeatSeconds", options.heartbeatSeconds);
+        options.connectTimeoutSeconds = intProperty("connectTimeoutSeconds", options.connectTimeoutSeconds);
+        options.drainSeconds = intProperty("drainSeconds", options.drainSeconds);
+        options.ingestBatchSize = intProperty("ingestBatchSize", options.ingestBatchSize);
+        return options;
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    //=========== getters and setters =======
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public String getUserPrefix() {
+        return userPrefix;
+    }
+
+    public void setUserPrefix(String userPrefix) {
+        this.userPrefix = userPrefix;
+    }
+
+    public int getClientThreads() {
+        return clientThreads;
+    }
+
+    public void setClientThreads(int clientThreads) {
+        this.clientThreads = clientThreads;
+    }
+
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public void setConnectRate(int connectRate) {
+        this.connectRate = connectRate;
+    }
+
+    public int getConnectionsPerSourceAddress() {
+        return connectionsPerSourceAddress;
+    }
+
+    public void setConnectionsPerSourceAddress(int connectionsPerSourceAddress) {
+        this.connectionsPerSourceAddress = connectionsPerSourceAddress;
+    }
+
+    public int getPushRate() {
+        return pushRate;
+    }
+
+    public void setPushRate(int pushRate) {
+        this.pushRate = pushRate;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    public void setHeartbeatSeconds(int heartbeatSeconds) {
+        this.heartbeatSeconds = heartbeatSeconds;
+    }
+
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public int getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    public void setDrainSeconds(int drainSeconds) {
+        this.drainSeconds = drainSeconds;
+    }
+
+    public int getIngestBatchSize() {
+        return ingestBatchSize;
+    }
+
+    public void setIngestBatchSize(int ingestBatchSize) {
+        this.ingestBatchSize = ingestBatchSize;
+    }
+}
@@ -0,0 +1,24 @@
+package com.fan.push.message;
+
+/**
+ * @Description: 一条推送消息的最终结果, 参考 PushServer.sendMsgAsync
+ *
+ * 同一条消息发给同一个用户的多个设备时, 以第一个结果为准
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify:
+ */
+public enum DeliveryStatus {
+
+    // 客户端回执了(1004 status=1)
+    DELIVERED,
+
+    // 没有收到回执(用户不在线, 设备下线, 重发次数用完, 出站队列转存), 已经存成离线消息, 设备下次上线时收到
+    STORED_OFFLINE,
+
+    // 用户连在集群的别的节点上, 已经转发过去, 之后的重发和离线消息由那个节点负责
+    FORWARDED,
+
+    // 既没有送达也没有存下来: 写离线消息失败, 或者服务器停止时还没有结果
+    EXPIRED
+}
@@ -0,0 +1,368 @@
+package com.fan.push.message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import io.netty.util.concurrent.Promise;
+
+/**
+ * 消息封装
+ *
+ *
+ * 按照流程顺序, 梳理一下, 我们一共需要这几种类型的消息:
+ *
+ *
+ * 0, 服务器运行
+ *
+ * 1, 最开始客户端连接后, 客户端需要给服务端发送一个握手消息(1001) 所需字段:  messageType=1001 from=客户端userId timestamp [protocolVersion=客户端支持的最高协议版本]
+ *
+ * 2, 服务端收到客户端的握手消息后, 验证
+ * a, 如果验证成功, 返回给客户端握手成功的消息:  messageType=1001 status=1  from=server to=客户端userId timestamp [protocolVersion=协商好的协议版本]
+ * b, 如果验证失败, 返回给客户端握手失败的消息  messageType=1001 status=-1 from=server to=客户端userId timestamp
+ * c, 集群模式下, 这个用户应该连在别的节点上(参考 ConsistentHashRing), 返回重定向: messageType=1001 status=2 content=那个节点的 host:port from=server to=客户端userId.
+ *    节点腾空(ClusterNode.drain)时, 也会给要迁走的连接发这个消息, 然后断开
+ *
+ * 3, 客户端端收到握手消息
+ * a, 握手消息(1001) status=-1, 就知道自己握手都没成功, 直接关闭连接
+ * b, 握手消息(1001) status=1,  就知道自己握手成功, 开始后续的逻辑:心跳
+ * c, 握手消息(1001) status=2,  断开当前连接, 不退避, 马上去连 content 里的地址. 在新连接的握手消息里带上 status=2, 服务端不会再重定向, 避免来回跳
+ *
+ *
+ * 4, 客户端发送的心跳消息(ping),   messageType=1002, from=客户端userId, to=server, timestamp
+ *
+ * 5, 服务端接收到心跳消息(ping)后, 返回心跳响应消息(pong),  messageType=1003, from=server, to=客户端userId, timestamp
+ *
+ * 下面进行正常业务推送
+ *
+ * 6, 服务端给客户端推送消息(1004), messageType=1004, messageId, content, from=server, to=客户端userId, timestamp
+ *
+ * 7, 如果客户端收到服务器的推送消息, 发送收到回执. messageType=1004, messageId, from=客户端userId, to=server, status=1, timestamp
+ *
+ * 单发的推送消息在写给连接的时候会分配一个序号 seq(每个连接从1开始递增, 参考 MessageSequenceHandler).
+ * 客户端对带 seq 的消息发累积回执: messageType=1004, status=1, ackSeq=N 表示 seq <= N 的都收到了,
+ * sack=[start1, end1, start2, end2 ...] 是 N 之后已经收到的区间. 服务端一次就能把重发列表里的一整段去掉.
+ * 不带 seq 的消息(群发, 老服务端)还是按 messageId 回执.
+ * 客户端的回执是合并发送的(参考 AckCoalescer): 一个回执里同时带 ackSeq/sack, 以及不带 seq 的消息的 messageId 列表 ackIds.
+ *
+ * 群发的推送消息(PushServer.broadcast), to=TO_ALL, 因为同一份编码好的字节要发给所有人
+ *
+ * 8, 客户端订阅主题(1005) messageType=1005, topic, from=客户端userId, to=server. 服务端回复 messageType=1005, topic, status=1, from=server, to=客户端userId
+ * 9, 客户端退订主题(1006) messageType=1006, topic, from=客户端userId, to=server. 服务端回复 messageType=1006, topic, status=1, from=server, to=客户端userId
+ * 10, 服务端向主题发布消息(PushServer.publish), 就是一条群发的 1004 消息, 带上 topic
+ *
+ *
+ * Next,
+ * 1, 按照这个消息规则调整
+ * 2, 完成离线消息功能
+ */
+public class Message {
+
+    // 群发消息的接收方, 客户端收到 to 是这个值的消息, 也当作是发给自己的
+    public static final String TO_ALL = "*";
+
+    // 消息类型   1001 握手  1002 ping  1003 pong   1004 消息  1005 订阅主题  1006 退订主题
+    private int messageType;
+    // 消息的唯一标识码
+    private String messageId;
+    // 消息内容
+    private String content;
+
+    // 消息状态.
+    // 主要用于  1001握手响应(1 成功, -1 失败, 2 重定向)  和  1004消息的客户端收到回执
+    private int status;
+
+    // 消息接收方的userId, 如果是服务器, 则是  "server"  字串
+    private String to;
+    // 消息发送方的userId, 如果是服务器, 则是  "server"  字串
+    private String from;
+    // 消息时间戳
+    private long timestamp;
+
+    // 主题, 用于 1005/1006 订阅退订, 以及向主题发布的 1004 消息. 没有主题时为 null, Gson 不会输出
+    private String topic;
+
+    // 协议版本, 只在 1001 握手消息中使用, 参考 ProtocolVersion
+    // 用包装类型, 为 null 的时候 Gson 不会输出这个字段, 老版本的客户端也不会带这个字段
+    private Integer protocolVersion;
+
+    // 设备标识, 只在 1001 握手消息中使用. 同一个 userId 可以有多个设备同时在线, 参考 SessionRegistry
+    // 不带的话(老版本的客户端), 同一个 userId 只能有一个连接, 新的连接替换旧的
+    private String deviceId;
+
+    // 消息序号, 只有写给某个连接的单发 1004 消息才有, 参考 MessageSequenceHandler
+    // 下面三个字段都用包装类型/数组, 没有的时候 Gson 不会输出, 老版本的客户端也看不到
+    private Long seq;
+
+    // 累积回执: seq <= ackSeq 的消息都收到了
+    private Long ackSeq;
+
+    // 选择回执: ackSeq 之后已经收到的区间, 两个一组 [start, end], 都是闭区间
+    private long[] sack;
+
+    // 合并的回执里, 按 messageId 确认的消息(群发的消息没有 seq)
+    private List<String> ackIds;
+
+    // 服务端加入重发管理器的时间(System.nanoTime), 收到回执时算回执延迟, 参考 ServerMetrics. transient: 不序列化, 不拷贝
+    private transient long sentNanos;
+
+    // PushServer.sendMsgAsync 返回给调用者的结果, 收到回执/存成离线消息时完成, 参考 DeliveryStatus. transient: 不序列化, 不拷贝
+    private transient Promise<DeliveryStatus> deliveryPromise;
+
+    /**
+     * constructor, 用于反序列化
+     */
+    public Message() {
+    }
+
+    /**
+     * constructor
+     *
+     * @param messageType
+     * @param from
+     * @param to
+     */
+    public Message(int messageType, String from, String to) {
+        this.messageType = messageType;
+        this.messageId = UUID.randomUUID().toString();
+        this.from = from;
+        this.to = to;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Message(Message message) {
+        this.messageType = message.getMessageType();
+        this.messageId = message.getMessageId();
+        this.timestamp = System.currentTimeMillis();
+        this.content = message.content;
+    }
+
+    /**
+     * 拷贝一份, 用于发给同一个用户的多个设备: 每个设备在重发管理器里有自己的一份, 序号各自分配, 所以 seq 不拷贝
+     *
+     * @return
+     */
+    public Message copy() {
+        Message copy = new Message();
+        copy.messageType = messageType;
+        copy.messageId = messageId;
+        copy.content = content;
+        copy.status = status;
+        copy.to = to;
+        copy.from = from;
+        copy.timestamp = timestamp;
+        copy.topic = topic;
+        return copy;
+    }
+
+    /**
+     * 默认的ping消息
+     * 使用者需要记得将 from 更换成客户端的 userId
+     */
+    private static Message pingMessage = new Message(1002, "client", "server");
+
+    /**
+     * 个默认的pong消息
+     * 使用者记得将 to 更换成客户端的 userId
+     */
+    private static Message pongMessage = new Message(1003, "server", "client");
+
+
+    /**
+     * 获取默认的ping消息
+     *
+     * @return
+     */
+    public static Message obtainPingMessage() {
+        return pingMessage;
+    }
+
+    /**
+     * 获取默认的pong消息
+     *
+     * @return
+     */
+    public static Message obtainPongMessage() {
+        return pongMessage;
+    }
+
+
+    public int getMessageType() {
+        return messageType;
+    }
+
+    public void setMessageType(int messageType) {
+        this.messageType = messageType;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public void setContent(String content) {
+        this.content = content;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public void setTo(String to) {
+        this.to = to;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion == null ? 0 : protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public long getSentNanos() {
+        return sentNanos;
+    }
+
+    public void setSentNanos(long sentNanos) {
+        this.sentNanos = sentNanos;
+    }
+
+    public Promise<DeliveryStatus> getDeliveryPromise() {
+        return deliveryPromise;
+    }
+
+    public void setDeliveryPromise(Promise<DeliveryStatus> deliveryPromise) {
+        this.deliveryPromise = deliveryPromise;
+    }
+
+    /**
+     * 这条消息有了结果, 通知 sendMsgAsync 的调用者. 没有人在等, 或者已经有结果了(多个设备), 什么都不做
+     *
+     * @param status
+     */
+    public void completeDelivery(DeliveryStatus status) {
+        Promise<DeliveryStatus> promise = deliveryPromise;
+        if (promise != null) {
+            promise.trySuccess(status);
+        }
+    }
+
+    public long getSeq() {
+        return seq == null ? 0 : seq;
+    }
+
+    /**
+     * @param seq 0 表示没有序号
+     */
+    public void setSeq(long seq) {
+        this.seq = seq == 0 ? null : seq;
+    }
+
+    public long getAckSeq() {
+        return ackSeq == null ? 0 : ackSeq;
+    }
+
+    public void setAckSeq(long ackSeq) {
+        this.ackSeq = ackSeq == 0 ? null : ackSeq;
+    }
+
+    public long[] getSack() {
+        return sack;
+    }
+
+    public void setSack(long[] sack) {
+        this.sack = sack;
+    }
+
+    public List<String> getAckIds() {
+        return ackIds;
+    }
+
+    public void setAckIds(List<String> ackIds) {
+        this.ackIds = ackIds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Message message = (Message) o;
+        return messageType == message.messageType &&
+                Objects.equals(messageId, message.messageId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(messageType, messageId);
+    }
+
+    @Override
+    public String toString() {
+        return "Message{" +
+                "messageType=" + messageType +
+                ", messageId='" + messageId + '\'' +
+                ", content='" + content + '\'' +
+                ", status=" + status +
+                ", to='" + to + '\'' +
+                ", from='" + from + '\'' +
+                ", timestamp=" + timestamp +
+                (topic != null ? ", topic='" + topic + '\'' : "") +
+                (deviceId != null ? ", deviceId='" + deviceId + '\'' : "") +
+                (seq != null ? ", seq=" + seq : "") +
+                (ackSeq != null ? ", ackSeq=" + ackSeq : "") +
+                (sack != null ? ", sack=" + Arrays.toString(sack) : "") +
+                (ackIds != null ? ", ackIds=" + ackIds : "") +
+                '}';
+    }
+}
+
+
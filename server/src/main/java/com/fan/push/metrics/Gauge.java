@@ -0,0 +1,12 @@
+package com.fan.push.metrics;
+
+/**
+ * @Description: 导出时才去读的值, 比如当前连接数, 出站队列长度. 由 MetricsRegistry 在导出时调用, 不能阻塞
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify:
+ */
+public interface Gauge {
+
+    long value();
+}
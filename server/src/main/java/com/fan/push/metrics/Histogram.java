@@ -0,0 +1,143 @@
+package com.fan.push.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Description: 无锁的直方图, 用于延迟的分位数(比如回执延迟的 p50/p99)
+ *
+ * 对数-线性分桶(和 HdrHistogram 一样的思路): 小于 16 的值每个值一个桶; 之后每个 2 的幂区间 [2^e, 2^(e+1)) 平分成 16 个桶.
+ * 桶的相对宽度不超过 1/16, 分位数的误差在 6.25% 以内, 覆盖全部 long, 一共 BUCKETS 个桶.
+ * 记录一个值: 算桶号(一次 numberOfLeadingZeros, 几次移位), 再对这个桶做一次 getAndIncrement, 没有锁, 不分配内存.
+ *
+ * 和 StripedCounter 一样按线程分段, 每段一整套桶, 不同 EventLoop 记录同一个桶(延迟差不多的时候很常见)不会争抢同一个缓存行.
+ * 读(snapshot)把各段合并, 只在导出时调用
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify:
+ */
+public final class Histogram {
+
+    // 每个 2 的幂区间分成 2^SUB_BITS 个桶
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // 最大的 long 的指数是 62, 桶号最大 (62 - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT - 1
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final StripedCounter sum = new StripedCounter();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值, 负数按 0 记
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucketOf(value));
+        sum.add(value);
+        // 大多数时候不比当前最大值大, 只有一次读
+        for (long current = max.get(); value > current; current = max.get()) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 合并各段, 用于计算分位数
+     */
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            int base = stripe * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = counts.get(base + i);
+                merged[i] += c;
+                count += c;
+            }
+        }
+        return new Snapshot(merged, count, sum.sum(), max.get());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶里的最大值, 分位数按它报, 宁可报大一点
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long lower = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * 某一时刻(近似)的分布
+     */
+    public static final class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 分位数
+         *
+         * @param quantile 0 到 1, 比如 0.99
+         * @return 没有记录过返回 0; 不超过记录过的最大值
+         */
+        public long percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.fan.push.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 一个很小的 HTTP 接口, GET /metrics 返回 MetricsRegistry 的文本格式, 给 Prometheus 之类的抓取
+ *
+ * 跑在 PushServer 已有的 bossGroup / workerGroup 上, 不额外起线程. 导出时合并各个分段, 代价和指标个数成正比, 和消息量无关
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify:
+ */
+public class MetricsHttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    public static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+
+    public MetricsHttpHandler(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 在 host:port 上开始提供 /metrics
+     *
+     * @param registry
+     * @param bossGroup
+     * @param workerGroup
+     * @param channelClass 和 PushServer 用的一样(epoll 或者 nio)
+     * @param host
+     * @param port         0 表示随便分配一个
+     * @return 监听的 channel, 关闭它就停止
+     * @throws InterruptedException
+     */
+    public static Channel bind(final MetricsRegistry registry, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                               Class<? extends ServerChannel> channelClass, String host, int port) throws InterruptedException {
+        ChannelFuture future = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(channelClass)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast("httpServerCodec", new HttpServerCodec());
+                        ch.pipeline().addLast("httpObjectAggregator", new HttpObjectAggregator(4096));
+                        ch.pipeline().addLast("metricsHttpHandler", new MetricsHttpHandler(registry));
+                    }
+                })
+                .bind(host, port).sync();
+        logger.info("metrics 启动, http://{}{}", future.channel().localAddress(), PATH);
+        return future.channel();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        FullHttpResponse response;
+        String uri = request.uri();
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        if (!HttpMethod.GET.equals(request.method())) {
+            response = response(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "only GET is supported\n");
+        } else if (!PATH.equals(path)) {
+            response = response(ctx, HttpResponseStatus.NOT_FOUND, "try " + PATH + "\n");
+        } else {
+            StringBuilder text = new StringBuilder(4096);
+            registry.writeText(text);
+            response = response(ctx, HttpResponseStatus.OK, text);
+        }
+
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static FullHttpResponse response(ChannelHandlerContext ctx, HttpResponseStatus status, CharSequence body) {
+        ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), body);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        return response;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.warn("metrics 请求异常: {}", cause.toString());
+        ctx.close();
+    }
+}
@@ -0,0 +1,183 @@
+package com.fan.push.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Description: 指标注册表, 按名字管理计数器, 直方图和 Gauge, 导出成文本(HTTP)或者按属性读(JMX)
+ *
+ * 1, 名字用 Prometheus 的写法, 可以带标签, 比如 fanpush_retries_total{attempt="1"}; 同一族(大括号前面的部分)的 HELP/TYPE 只输出一次
+ * 2, 注册在启动时做; 热路径上直接持有 StripedCounter / Histogram 的引用, 不按名字查
+ * 3, 直方图导出成 summary: p50, p90, p99, p999, 以及 _sum, _count. 分位数是从启动开始累计的
+ *
+ * 导出格式参考 https://prometheus.io/docs/instrumenting/exposition_formats/
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify:
+ */
+public class MetricsRegistry {
+
+    // 导出的分位数
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final String[] QUANTILE_NAMES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final String[] JMX_QUANTILE_SUFFIXES = {"_p50", "_p90", "_p99", "_p999"};
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // 每一族的说明, 同一族里只要有一个指标注册时给了就行
+    private final ConcurrentHashMap<String, String> helps = new ConcurrentHashMap<>();
+
+    /**
+     * 注册一个计数器, 已经有同名的计数器就返回它
+     *
+     * @param name 可以带标签
+     * @param help 说明
+     * @return
+     */
+    public StripedCounter counter(String name, String help) {
+        return (StripedCounter) register(name, help, "counter", new StripedCounter());
+    }
+
+    /**
+     * 注册一个计数器, 值从别处读(比如 OutboundQueueMetrics 里已经有的 AtomicLong), 只能单调增加
+     */
+    public void counter(String name, String help, Gauge source) {
+        register(name, help, "counter", source);
+    }
+
+    /**
+     * 注册一个直方图, 已经有同名的就返回它
+     */
+    public Histogram histogram(String name, String help) {
+        return (Histogram) register(name, help, "summary", new Histogram());
+    }
+
+    public void gauge(String name, String help, Gauge gauge) {
+        register(name, help, "gauge", gauge);
+    }
+
+    private Object register(String name, String help, String type, Object metric) {
+        if (name == null || name.isEmpty() || metric == null) {
+            throw new IllegalArgumentException("MetricsRegistry register , name and metric can not be null");
+        }
+        Entry entry = new Entry(name, type, metric);
+        Entry existing = entries.putIfAbsent(name, entry);
+        if (existing == null) {
+            if (help != null) {
+                helps.putIfAbsent(entry.family, help);
+            }
+            return metric;
+        }
+        if (existing.type.equals(type) && existing.metric.getClass() == metric.getClass() && !(metric instanceof Gauge)) {
+            return existing.metric;
+        }
+        throw new IllegalArgumentException("metric already registered: " + name);
+    }
+
+    /**
+     * 按 Prometheus 的文本格式输出全部指标, 按名字排序
+     *
+     * @param out
+     */
+    public void writeText(StringBuilder out) {
+        String lastFamily = null;
+        for (Entry entry : sorted()) {
+            if (!entry.family.equals(lastFamily)) {
+                lastFamily = entry.family;
+                String help = helps.get(entry.family);
+                if (help != null) {
+                    out.append("# HELP ").append(entry.family).append(' ').append(help).append('\n');
+                }
+                out.append("# TYPE ").append(entry.family).append(' ').append(entry.type).append('\n');
+            }
+            if (entry.metric instanceof Histogram) {
+                Histogram.Snapshot snapshot = ((Histogram) entry.metric).snapshot();
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    out.append(entry.family).append(withLabel(entry.labels, "quantile=\"" + QUANTILE_NAMES[i] + "\""))
+                            .append(' ').append(snapshot.percentile(QUANTILES[i])).append('\n');
+                }
+                out.append(entry.family).append("_sum").append(entry.labels).append(' ').append(snapshot.getSum()).append('\n');
+                out.append(entry.family).append("_count").append(entry.labels).append(' ').append(snapshot.getCount()).append('\n');
+            } else {
+                out.append(entry.name).append(' ').append(entry.value()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * 全部指标的当前值, 名字转成 JMX 属性名(标签拼到名字里, 比如 fanpush_retries_total_attempt_1);
+     * 直方图展开成 _count, _sum, _max 和各个分位数
+     *
+     * @return 按名字排序
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Entry entry : sorted()) {
+            if (entry.metric instanceof Histogram) {
+                Histogram.Snapshot snapshot = ((Histogram) entry.metric).snapshot();
+                values.put(entry.jmxName + "_count", snapshot.getCount());
+                values.put(entry.jmxName + "_sum", snapshot.getSum());
+                values.put(entry.jmxName + "_max", snapshot.getMax());
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    values.put(entry.jmxName + JMX_QUANTILE_SUFFIXES[i], snapshot.percentile(QUANTILES[i]));
+                }
+            } else {
+                values.put(entry.jmxName, entry.value());
+            }
+        }
+        return values;
+    }
+
+    private List<Entry> sorted() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        Collections.sort(list);
+        return list;
+    }
+
+    private static String withLabel(String labels, String label) {
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final String name;
+        private final String family;
+        // 包括大括号, 没有标签时是空串
+        private final String labels;
+        private final String jmxName;
+        private final String type;
+        private final Object metric;
+
+        Entry(String name, String type, Object metric) {
+            int brace = name.indexOf('{');
+            this.name = name;
+            this.family = brace < 0 ? name : name.substring(0, brace);
+            this.labels = brace < 0 ? "" : name.substring(brace);
+            String jmxName = name.replaceAll("[^A-Za-z0-9_]+", "_");
+            this.jmxName = jmxName.endsWith("_") ? jmxName.substring(0, jmxName.length() - 1) : jmxName;
+            this.type = type;
+            this.metric = metric;
+        }
+
+        long value() {
+            if (metric instanceof StripedCounter) {
+                return ((StripedCounter) metric).sum();
+            }
+            return ((Gauge) metric).value();
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+}
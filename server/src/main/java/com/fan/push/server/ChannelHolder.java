@@ -1,5 +1,6 @@
 package com.fan.push.server;
 
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import io.netty.channel.Channel;
@@ -7,10 +8,13 @@ import io.netty.util.AttributeKey;
 
 /**
  * @Description: 用于维护全部与客户端连接的 Channel 的容器
+ *
+ * 已经被 SessionRegistry 替代, 服务端不再使用. 保留下来和 SessionRegistry 做对比, 参考 SessionRegistryBenchmark
  * @Author: fan
  * @Date: 2020-9-19 11:19
  * @Modify:
  */
+@Deprecated
 public class ChannelHolder {
 
     private static ChannelHolder instance = new ChannelHolder();
@@ -106,6 +110,16 @@ public class ChannelHolder {
         channel.attr(key).set("");
     }
 
+    /**
+     * 全部在线用户的 userId
+     * 返回的是 channelMap 的 key 视图, 没有拷贝, 遍历期间的上下线可能看得到也可能看不到
+     *
+     * @return
+     */
+    public Set<String> getOnlineUserIds() {
+        return this.channelMap.keySet();
+    }
+
     /**
      * 判断一个客户端是否在线
      *
@@ -0,0 +1,30 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+/**
+ * @Description: sendMsgAsync 返回的结果
+ *
+ * 不属于任何 EventLoop: 在完成它的线程上(收回执的 IO 线程, 写离线消息的线程池)直接通知监听器, 不另开线程.
+ * 监听器里不要做阻塞的事情, 会拖慢这个连接的回执处理.
+ *
+ * ImmediateEventExecutor.inEventLoop() 永远是 true, DefaultPromise 会认为在任何线程上 await()/get() 都会死锁, 这里去掉这个检查.
+ * 不能在监听器里等另一条消息的结果, 完成它的可能就是当前线程
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify:
+ */
+final class DeliveryPromise extends DefaultPromise<DeliveryStatus> {
+
+    DeliveryPromise() {
+        super(ImmediateEventExecutor.INSTANCE);
+    }
+
+    @Override
+    protected void checkDeadLock() {
+        // 没有自己的 EventLoop, 不会在等待的线程上完成
+    }
+}
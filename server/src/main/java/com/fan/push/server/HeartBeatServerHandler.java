@@ -48,12 +48,11 @@ public class HeartBeatServerHandler extends ChannelInboundHandlerAdapter {
                     // 2,将连接移出管理
                     // 3,将与客户端的连接断开
 
-                    // step1:
-                    String userId = ChannelHolder.getInstance().getUserIdByChannel(ctx.channel());
-                    pushServer.messageRetryManager.onUserOffline(userId);
-
-                    // step2:
-                    ChannelHolder.getInstance().offline(ctx.channel());
+                    // step1, step2: 只处理这一个设备. 已经被同一个设备的新连接替换掉的, 在途消息归新连接, 不动
+                    Session session = pushServer.getSessionRegistry().offline(ctx.channel());
+                    if (session != null) {
+                        pushServer.messageRetryManager.onUserOffline(session.getDeliveryKey());
+                    }
 
                     // step3:
                     ctx.close();
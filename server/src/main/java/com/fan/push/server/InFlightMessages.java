@@ -0,0 +1,244 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+import com.fan.push.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
+
+/**
+ * @Description: 一个用户的在途消息(已发出, 尚未收到回执)
+ *
+ * 原来用的是 ArrayList, 收到回执时 remove(message) 要从头到尾用 equals 比一遍, 是 O(n) 的;
+ * 而且 ArrayList 没有任何同步, Netty 的 IO 线程在 remove 的同时, 重发线程可能正在遍历, 会抛 ConcurrentModificationException.
+ *
+ * 这里用 messageId -> Message 的 LinkedHashMap:
+ * 1, 保留插入顺序, 重发的时候还是按照发送的先后顺序
+ * 2, 按 messageId 查找和移除都是 O(1)
+ *
+ * 另外按 seq 建了一个索引(TreeMap), 写出时由 MessageSequenceHandler 登记. 收到累积回执 "seq <= N 都收到了" 时,
+ * 直接取 headMap(N) 整段删掉, 只和删掉的条数有关, 不用遍历还在等回执的消息; sack 区间同理用 subMap.
+ * 没有 seq 的消息(群发, 还在出站队列里排队的)不在索引里, 只能按 messageId 删.
+ *
+ * 线程: 不是线程安全的, 也不加锁. 只在所属 MessageLooper 的线程(设备的 channel 的 EventLoop)上读写, 其他线程的修改由 MessageLooper.execute 转过来.
+ * 重发时不要直接遍历, 用 snapshot() 拿一份拷贝再发: 写出时会回来登记 seq.
+ *
+ * 被回执确认的消息如果有人在等结果(PushServer.sendMsgAsync), 在 removeAcked 里处理完整个回执之后, 在收回执的线程上完成, 不另开线程.
+ * @Author: fan
+ * @Date: 2020-12-10 14:20
+ * @Modify: 2020-12-28 按 seq 索引, 支持累积回执
+ *          2021-01-06 回执延迟
+ *          2021-01-09 回执时完成 sendMsgAsync 的结果
+ *          2021-01-09 只在 EventLoop 上访问, 去掉锁
+ *          2021-01-09 重复的 messageId 两个结果都要完成
+ */
+public class InFlightMessages {
+
+    private final LinkedHashMap<String, Message> messageMap = new LinkedHashMap<>();
+
+    // seq -> messageId, 只包含已经分配了序号的消息
+    private final TreeMap<Long, String> seqIndex = new TreeMap<>();
+
+    // 正在处理的回执: 移除了几条, 收到回执的时间(0 表示还没取). 只在 removeAcked 里用
+    private int removedCount;
+    private long ackNanos;
+
+    // 正在处理的回执确认了的, 有人在等结果的消息. 大多数回执没有, 用到时才创建
+    private List<Message> delivered;
+
+    /**
+     * 加入一条消息. 如果 messageId 已经存在, 则更新消息内容, 位置不变; 旧消息上等待的结果转给新消息:
+     * 新消息没有结果的直接用旧的, 两个都有的(同一个 messageId 调了两次 sendMsgAsync), 新消息有了结果时旧的也跟着完成
+     *
+     * @param message
+     */
+    public void add(Message message) {
+        Message old = messageMap.put(message.getMessageId(), message);
+        if (old != null && old != message) {
+            unindex(old);
+            Promise<DeliveryStatus> oldPromise = old.getDeliveryPromise();
+            Promise<DeliveryStatus> promise = message.getDeliveryPromise();
+            if (promise == null) {
+                message.setDeliveryPromise(oldPromise);
+            } else if (oldPromise != null && oldPromise != promise) {
+                promise.addListener(new PromiseNotifier<DeliveryStatus, Future<DeliveryStatus>>(false, oldPromise));
+            }
+        }
+        if (message.getSeq() != 0) {
+            seqIndex.put(message.getSeq(), message.getMessageId());
+        }
+    }
+
+    /**
+     * 消息写出时分配了序号, 登记到索引中. 已经不在等回执的消息忽略
+     *
+     * @param message
+     */
+    public void indexSeq(Message message) {
+        if (message.getSeq() != 0 && messageMap.get(message.getMessageId()) == message) {
+            seqIndex.put(message.getSeq(), message.getMessageId());
+        }
+    }
+
+    /**
+     * 按 messageId 移除一条消息
+     *
+     * @param messageId
+     * @return 移除掉的消息, 没有则返回 null
+     */
+    public Message remove(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        Message message = messageMap.remove(messageId);
+        if (message != null) {
+            unindex(message);
+        }
+        return message;
+    }
+
+    /**
+     * 处理一个合并的回执: seq <= ackSeq 的消息, sack 区间里的消息, 以及 ackIds 里的消息都收到了
+     * 整个回执只取一次时间
+     *
+     * @param ackSeq 0 表示没有
+     * @param sack   两个一组的闭区间 [start, end], 可以为 null
+     * @param ackIds 按 messageId 确认的消息, 可以为 null
+     * @return 移除的条数
+     */
+    public int removeAcked(long ackSeq, long[] sack, List<String> ackIds) {
+        return removeAcked(ackSeq, sack, ackIds, null);
+    }
+
+    /**
+     * 同上, 同时把被确认的消息的回执延迟(微秒, 从 Message.getSentNanos() 算起, 没有记发出时间的不算)记到 ackLatency 里
+     *
+     * 被确认的消息上有 sendMsgAsync 的结果的, 整个回执处理完之后再完成成 DELIVERED: 结果的监听器可能会再发消息给这个设备
+     *
+     * @param ackLatency 可以为 null
+     */
+    public int removeAcked(long ackSeq, long[] sack, List<String> ackIds, Histogram ackLatency) {
+        int removed = removeAckedInternal(ackSeq, sack, ackIds, ackLatency);
+        List<Message> deliveredMessages = delivered;
+        delivered = null;
+        if (deliveredMessages != null) {
+            for (Message message : deliveredMessages) {
+                message.completeDelivery(DeliveryStatus.DELIVERED);
+            }
+        }
+        return removed;
+    }
+
+    private int removeAckedInternal(long ackSeq, long[] sack, List<String> ackIds, Histogram ackLatency) {
+        removedCount = 0;
+        // 整个回执只取一次时间, 第一次用到时才取
+        ackNanos = 0;
+        if (ackSeq > 0) {
+            removeIndexed(seqIndex.headMap(ackSeq, true), ackLatency);
+        }
+        if (sack != null) {
+            for (int i = 0; i + 1 < sack.length; i += 2) {
+                if (sack[i] <= sack[i + 1]) {
+                    removeIndexed(seqIndex.subMap(sack[i], true, sack[i + 1], true), ackLatency);
+                }
+            }
+        }
+        if (ackIds != null) {
+            for (String messageId : ackIds) {
+                Message message = messageId == null ? null : remove(messageId);
+                if (message != null) {
+                    acked(message, ackLatency);
+                }
+            }
+        }
+        return removedCount;
+    }
+
+    /**
+     * 连接换了, 新连接上的序号重新从1开始, 清掉旧连接上分配的序号, 重发时重新分配
+     */
+    public void resetSequences() {
+        for (Message message : messageMap.values()) {
+            message.setSeq(0);
+        }
+        seqIndex.clear();
+    }
+
+    private void removeIndexed(SortedMap<Long, String> range, Histogram ackLatency) {
+        for (String messageId : range.values()) {
+            Message message = messageMap.remove(messageId);
+            if (message != null) {
+                acked(message, ackLatency);
+            }
+        }
+        range.clear();
+    }
+
+    private void acked(Message message, Histogram ackLatency) {
+        removedCount++;
+        if (message.getDeliveryPromise() != null) {
+            if (delivered == null) {
+                delivered = new ArrayList<>();
+            }
+            delivered.add(message);
+        }
+        if (ackLatency != null && message.getSentNanos() != 0) {
+            if (ackNanos == 0) {
+                ackNanos = System.nanoTime();
+            }
+            ackLatency.record((ackNanos - message.getSentNanos()) / 1000);
+        }
+    }
+
+    private void unindex(Message message) {
+        long seq = message.getSeq();
+        if (seq != 0 && message.getMessageId().equals(seqIndex.get(seq))) {
+            seqIndex.remove(seq);
+        }
+    }
+
+    public boolean contains(String messageId) {
+        return messageMap.containsKey(messageId);
+    }
+
+    /**
+     * 最早发出的那条消息
+     *
+     * @return 没有则返回 null
+     */
+    public Message first() {
+        Iterator<Message> iterator = messageMap.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    public int size() {
+        return messageMap.size();
+    }
+
+    public boolean isEmpty() {
+        return messageMap.isEmpty();
+    }
+
+    /**
+     * 按发送顺序拷贝一份全部的消息, 用于重发或者持久化
+     *
+     * @return
+     */
+    public List<Message> snapshot() {
+        return new ArrayList<>(messageMap.values());
+    }
+
+    public void clear() {
+        messageMap.clear();
+        seqIndex.clear();
+    }
+}
@@ -0,0 +1,518 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.channel.Channel;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.AbstractEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.internal.StringUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+
+/**
+ * @Description: 消息轮询器
+ *
+ * 思路:
+ *
+ * 1, 为每一个用户的每一个设备(Session.getDeliveryKey())分配一个轮询器, 只往这个设备重发. 轮询器本身不再持有定时器, 所有轮询器共用 MessageRetryManager 中的 MessageRetryScheduler
+ * 2, 当服务端给客户端发送消息的时候, 要把消息添加到超时管理器中
+ * 3, 在 MessageRetryManager 的 add 方法中, 如果是个新的设备, 就给它分配一个轮询器
+ * 4, 轮询器是一个状态机, 每一次状态转换都是在 MessageRetryScheduler 上注册一个超时任务, 任何线程都不会被阻塞(不再 Thread.sleep):
+ *
+ *      IDLE --(有新消息)--> WAITING_ACK --(10秒超时, 有消息没收到回执)--> BACKOFF --(延时 retryCount*4 秒)--> 重发全部 --> WAITING_ACK(5秒)
+ *                                |                                                                                  |
+ *                                +--(超时时消息都收到回执了)--> IDLE                                                   +--(发了5次还没回执)--> GIVE_UP
+ *
+ * 5, 如果客户端收到了, 就返回给服务器接收回执, 服务器收到接收回执, 就把消息从 超时管理器中 移除
+ * 6, 如果发了5次, 客户端依然没有收到, 就认为客户端已经断线了(GIVE_UP). 此时, 将与这个设备的连接断开, 并且, 将没发成功的消息写入数据库, 作为这个设备的离线消息.
+ * 7, 等下次客户端上线了, 统一把所有的离线消息发给客户端
+ *
+ * 线程: 轮询器绑定在一个 EventExecutor 上(设备在线时就是它的 channel 的 EventLoop, 参考 MessageRetryManager),
+ * 状态和在途消息只在这个线程上读写, 不加锁. 本来就在这个线程上的(收回执, 写出分配 seq)直接执行.
+ * 其他线程(调用 sendMsg 的业务线程, 时间轮的线程, 线程池)的操作放进 pending, 一次任务处理一批:
+ * 加入和移除消息(add, remove)直接放 Message 和 messageId, 不用每个操作创建一个任务对象, 放进去只是加锁往 ArrayList 里加一个元素,
+ * 和原来加锁直接改在途消息差不多; 只有 pending 从空变成非空时才向 executor 提交一次任务, 而且不叫醒它. 数字参考 RetryContentionBenchmark
+ * 被换掉或者移除之后(retired)不再处理, 还没执行的操作由 MessageRetryManager 转给当前的轮询器
+ * @Author: fan
+ * @Date: 2020-9-19 11:19
+ * @Modify: 2020-12-09 改为不阻塞的状态机
+ *          2020-12-31 每个设备一个轮询器
+ *          2021-01-06 重发计数
+ *          2021-01-09 绑定到 EventLoop, 不再加锁
+ *          2021-01-09 其他线程的加入和移除不再每次创建任务
+ */
+public class MessageLooper implements TimerTask {
+
+    /**
+     * 轮询器的状态
+     */
+    public enum State {
+        // 没有需要重发的消息, 也没有注册任何超时任务
+        IDLE,
+        // 消息已经发出, 等待客户端的回执
+        WAITING_ACK,
+        // 上一轮重发没有进展, 延时一段时间再重发
+        BACKOFF,
+        // 重发次数用完, 认为客户端掉线了, 终态
+        GIVE_UP
+    }
+
+    // 第一次等待回执的时长(秒)
+    private static final long ACK_TIMEOUT_SECONDS = 10;
+
+    // 重发之后, 给客户端回执留出的时长(秒)
+    private static final long RETRY_ACK_TIMEOUT_SECONDS = 5;
+
+    // 每多重试一次, 多延时的时长(秒)
+    private static final long BACKOFF_STEP_SECONDS = 4;
+
+    // 最大重试次数
+    static final int MAX_RETRY_COUNT = 5;
+
+    // 标识这个MessageLooper 是属于哪个用户
+    private String userId;
+
+    // 哪个设备, 没有设备标识时为 null
+    private String deviceId;
+
+    // userId + deviceId, 参考 Session.deliveryKey()
+    private String deliveryKey;
+
+    // 持有一个 MessageRetryManager 的引用,  因为这个轮询器就是要从 MessageRetryManager 里取数据
+    private MessageRetryManager messageRetryManager;
+
+    // 状态和在途消息都只在这个线程上读写
+    private final EventExecutor executor;
+
+    // 其他线程交过来的操作, 按提交的顺序: Runnable, 要加入的 Message, 要移除的 messageId(String).
+    // 用 this 做锁, 在 executor 上整个换下来一批一批地执行; 没有排着的操作时为 null, 大多数轮询器不用多占一个 ArrayList
+    private List<Object> pending;
+
+    // 已经向 executor 提交了处理 pending 的任务, 还没开始清空队列
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // 只有加入和移除消息时用: 不叫醒正在 select 的 EventLoop, 等它下一次醒来(读写, 定时任务)顺便处理
+    private final Runnable lazyDrainTask = new AbstractEventExecutor.LazyRunnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // 当前状态
+    private State state = State.IDLE;
+
+    // 被换掉或者移除了, 不在 MessageRetryManager 的 looperMap 里了
+    private boolean retired;
+
+    // 当前注册在 MessageRetryScheduler 上的超时任务, 状态转换或者停止轮询时要取消掉
+    private Timeout timeout;
+
+    private String lastFirstMsgId = "";
+    // 重试次数
+    private int retryCount = -1;
+
+    // 正在发送的, 也就是尚未接收被客户端接收到的, 也就是需要重发的消息, 按 messageId 索引
+    private final InFlightMessages inFlightMessages = new InFlightMessages();
+
+    /**
+     * constructor
+     *
+     * @param userId
+     * @param deviceId 可以为 null
+     * @param executor 状态和在途消息只在这个线程上读写
+     */
+    public MessageLooper(String userId, String deviceId, MessageRetryManager messageRetryManager, EventExecutor executor) {
+        if (StringUtil.isNullOrEmpty(userId)) {
+            throw new IllegalArgumentException("MessageLooper constructor , userId can not be null");
+        }
+        if (messageRetryManager == null) {
+            throw new IllegalArgumentException("MessageLooper constructor , messageRetryManager can not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("MessageLooper constructor , executor can not be null");
+        }
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.deliveryKey = Session.deliveryKey(userId, deviceId);
+        this.messageRetryManager = messageRetryManager;
+        this.executor = executor;
+    }
+
+    /**
+     * 在 executor 上执行一个操作. 当前就在 executor 上的话, 先把排着的操作做完, 再直接执行, 保持提交的顺序;
+     * 否则放进 pending, 和其他线程提交的一起, 一次任务处理一批. 可以在任何线程调用
+     *
+     * @param op
+     */
+    public void execute(Runnable op) {
+        if (tryEnter()) {
+            run(op);
+            return;
+        }
+        offer(op, true);
+    }
+
+    /**
+     * 加入一条等回执的消息, 同 execute, 不在 executor 上的话不用创建任务对象, 也不叫醒 executor: 加入的消息一般马上就要写到
+     * 这个设备的 channel 上, 写的时候就会叫醒它; 超时任务, snapshotInFlight 这些要看在途消息的操作都会先把排着的做完.
+     * 可以在任何线程调用
+     *
+     * @param message
+     */
+    public void add(Message message) {
+        if (tryEnter()) {
+            addLocal(message);
+            return;
+        }
+        offer(message, false);
+    }
+
+    /**
+     * 按 messageId 移除一条消息, 同 add. 可以在任何线程调用
+     *
+     * @param messageId
+     */
+    public void remove(String messageId) {
+        if (tryEnter()) {
+            removeLocal(messageId);
+            return;
+        }
+        offer(messageId, false);
+    }
+
+    /**
+     * 当前就在 executor 上的话, 先把排着的操作做完, 返回 true, 调用者接着直接操作, 不用分配任务对象;
+     * 否则返回 false, 调用者要用 execute 提交
+     */
+    boolean tryEnter() {
+        if (!executor.inEventLoop()) {
+            return false;
+        }
+        // pending 不为空时 drainScheduled 一定已经设置了(或者放进去的线程马上就要设置), 不用加锁看 pending
+        if (drainScheduled.get()) {
+            runPending();
+        }
+        return true;
+    }
+
+    /**
+     * @param op
+     * @param wakeUp 要不要叫醒 executor 马上处理
+     */
+    private void offer(Object op, boolean wakeUp) {
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayList<>();
+            }
+            pending.add(op);
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            submitDrain(wakeUp ? drainTask : lazyDrainTask);
+        } else if (wakeUp) {
+            // 已经提交的可能是不叫醒的那个, 再提交一次. 多出来的任务取到的是空的, 直接返回
+            submitDrain(drainTask);
+        }
+    }
+
+    private void submitDrain(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // EventLoop 已经停了, 剩下的操作由 MessageRetryManager.shutdown() 处理
+            drainScheduled.set(false);
+            logger.debug("MessageLooper {} 的线程已经停止", deliveryKey);
+        }
+    }
+
+    private void drain() {
+        // 先清标志再取: 之后提交的操作要么被这一批取到, 要么会再提交一个任务
+        drainScheduled.set(false);
+        runPending();
+    }
+
+    /**
+     * 把排着的操作整个换下来, 按提交的顺序执行. 执行的时候其他线程放进来的是新的一批, 不用等这一批执行完
+     */
+    void runPending() {
+        List<Object> ops;
+        synchronized (this) {
+            ops = pending;
+            pending = null;
+        }
+        if (ops == null) {
+            return;
+        }
+        for (int i = 0; i < ops.size(); i++) {
+            run(ops.get(i));
+        }
+    }
+
+    private void run(Object op) {
+        try {
+            if (op instanceof Message) {
+                addLocal((Message) op);
+            } else if (op instanceof String) {
+                removeLocal((String) op);
+            } else {
+                ((Runnable) op).run();
+            }
+        } catch (Throwable t) {
+            logger.warn("MessageLooper " + deliveryKey + " 执行失败", t);
+        }
+    }
+
+    private void addLocal(Message message) {
+        if (retired) {
+            // 排队的时候轮询器被换掉或者移除了, 重新找
+            messageRetryManager.add(userId, deviceId, message);
+            return;
+        }
+        inFlightMessages.add(message);
+
+        // 有新消息了, 如果空闲, 就开始等待回执
+        onMessageAdded();
+    }
+
+    private void removeLocal(String messageId) {
+        if (retired) {
+            messageRetryManager.remove(deliveryKey, messageId);
+            return;
+        }
+        // 按 messageId 移除, O(1)
+        inFlightMessages.remove(messageId);
+    }
+
+    /**
+     * 当前线程是不是这个轮询器的线程
+     */
+    public boolean inEventLoop() {
+        return executor.inEventLoop();
+    }
+
+    /**
+     * 不再处理新的操作, 停止轮询. 只在 executor 上调用, 调用者负责把它从 looperMap 里移除
+     */
+    void retire() {
+        retired = true;
+        stopLoop();
+    }
+
+
+    //=========== getters =======
+
+    public EventExecutor executor() {
+        return executor;
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * 只能在 executor 上读写
+     */
+    public InFlightMessages getInFlightMessages() {
+        return inFlightMessages;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getDeliveryKey() {
+        return deliveryKey;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 有新消息加入了重发队列
+     * 如果当前是空闲状态, 就开始等待回执. 只在 executor 上调用
+     */
+    public void onMessageAdded() {
+        if (state == State.IDLE) {
+            transition(State.WAITING_ACK, ACK_TIMEOUT_SECONDS);
+        }
+    }
+
+    /**
+     * 超时任务的回调, 在 MessageRetryScheduler 的工作线程中执行, 不能阻塞. 转到 executor 上处理
+     *
+     * @param timeout
+     * @throws Exception
+     */
+    @Override
+    public void run(final Timeout timeout) throws Exception {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(timeout);
+            }
+        });
+    }
+
+    private void onTimeout(Timeout timeout) {
+        if (timeout != this.timeout) {
+            // 已经被新的状态转换替换掉的过期任务
+            return;
+        }
+        this.timeout = null;
+
+        switch (state) {
+            case WAITING_ACK:
+                onAckTimeout();
+                break;
+            case BACKOFF:
+                retrySendMsg();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 等待回执超时, 检查是否有需要重发的消息
+     */
+    private void onAckTimeout() {
+        final Message currentFirstMessage = inFlightMessages.first();
+
+        if (currentFirstMessage == null) {
+            // 代表这个设备, 没有消息需要重发, 回到空闲状态, 等有新消息再说
+            transition(State.IDLE, 0);
+            return;
+        }
+
+        // 目前的第一条消息id
+        final String currentFirstMsgId = currentFirstMessage.getMessageId();
+
+        // 这里通过 lastFirstMsgId 来判断之前的第一条消息是否被成功接收了
+        // 如果 lastFirstMsgId 被接收成功的话, 就从超时管理器里移除了
+        // lastFirstMsgId.equals(currentFirstMsgId) 代表之前的没发成功, 这个last消息还存在与超时管理器中
+        if (lastFirstMsgId.equals(currentFirstMsgId)) {
+            // 之前的重发没成功, 加长延时, 再次重发
+            if (retryCount < MAX_RETRY_COUNT) {
+                retryCount++;
+            } else {
+                // 5次都没成功, 认为客户端掉线了
+                giveUp();
+                return;
+            }
+        } else { // lastFirstMsgId 已经被客户端成功接收了, 那就更新 last, 并把计数清零
+            lastFirstMsgId = currentFirstMsgId;
+            retryCount = 0;
+        }
+
+        long delay = retryCount * BACKOFF_STEP_SECONDS;// 第一次是0, 也就是说第一次不用延时
+        if (delay == 0) {
+            retrySendMsg();
+        } else {
+            transition(State.BACKOFF, delay);
+        }
+    }
+
+    /**
+     * 重发全部未收到回执的消息, 然后进入 WAITING_ACK 等待回执
+     */
+    private void retrySendMsg() {
+        // 在延时期间, 超时管理器中的数据可能有变化(有可能有新发的消息, 也有可能有客户端收到消息后,从超时管理器中移除消息了)
+        // 拷贝一份再发: 写出时 MessageSequenceHandler 会登记 seq, 不能边遍历边改
+        List<Message> messageList = inFlightMessages.snapshot();
+        if (messageList.isEmpty()) {
+            // 重发队列已经为空, 不需要重发了
+            transition(State.IDLE, 0);
+            return;
+        }
+
+        // 因此, 这里再次更新一下 lastFirstMsgId
+        lastFirstMsgId = messageList.get(0).getMessageId();
+        // 只重发给这个设备; 只写不刷, 全部写完再刷新一次, N 条消息只有一次系统调用
+        Channel channel = messageRetryManager.getPushServer().getSessionRegistry().getChannelIfOnline(userId, deviceId);
+        if (channel != null) {
+            for (Message message : messageList) {
+                OutboundQueue.write(channel, message, message, false);
+            }
+            OutboundQueue.flush(channel);
+            messageRetryManager.getPushServer().getMetrics().onRetry(retryCount + 1, messageList.size());
+        }
+
+        // 发完, 不再 sleep, 而是注册一个超时任务, 给客户端回执留出时间
+        transition(State.WAITING_ACK, RETRY_ACK_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * 重发次数用完, 认为客户端掉线了
+     */
+    private void giveUp() {
+        transition(State.GIVE_UP, 0);
+        messageRetryManager.getPushServer().getMetrics().onGiveUp();
+
+        // 只断开这个设备, 用户的其他设备不受影响
+        Channel channel = messageRetryManager.getPushServer().getSessionRegistry().getChannelIfOnline(userId, deviceId);
+        if (channel != null) {
+            messageRetryManager.getPushServer().getSessionRegistry().offline(channel);
+        }
+
+        // 下线了, 就不要再轮询了; onUserOffline方法中做了这些处理
+        messageRetryManager.onUserOffline(deliveryKey);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * 状态转换. 取消旧的超时任务, 如果 delaySeconds > 0 则为新状态注册一个超时任务
+     *
+     * @param newState
+     * @param delaySeconds
+     */
+    private void transition(State newState, long delaySeconds) {
+        if (state == State.GIVE_UP) {
+            // 终态, 不再转换
+            return;
+        }
+        messageRetryManager.getRetryScheduler().cancel(timeout);
+        timeout = null;
+        state = newState;
+        if (delaySeconds > 0) {
+            timeout = messageRetryManager.getRetryScheduler().schedule(userId, this, delaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 清除掉所有的消息. 只在 executor 上调用
+     */
+    public void removeAllMessage() {
+        inFlightMessages.clear();
+    }
+
+    /**
+     * 停止轮询, 一般用于客户端掉线了. 只在 executor 上调用
+     */
+    public void stopLoop() {
+        // 共用的调度器不能 stop, 只取消自己注册的任务
+        transition(State.GIVE_UP, 0);
+    }
+}
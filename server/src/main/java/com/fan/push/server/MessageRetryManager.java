@@ -0,0 +1,621 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.internal.StringUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 消息重发管理器
+ *
+ * 思路:
+ *
+ * 客户端和服务器建立长连接之后，需要发送业务信息。由于网络等各种原因，连接不能保证畅通，发送的消息不一定能到对方。
+ *
+ * 服务器把消息发送出去，服务器记录这条消息的状态:
+ * 客户端如果收到这条消息，向服务器发送一个已收到的回执，服务器收到这个回执后将状态修改成已经收到; 如果一定时间没有收到回执，则再次发送这条消息。
+ *
+ * 服务端维护一个正在发消息的队列，每次发送消息的同时, 把消息往正在发送的消息队列中存一份. 当收到客户端的回执，再把相应的消息从队列中移除。
+ * 服务器每10s会轮询这个消息队列，把消息队列中已经发送的消息但是没有收到回执的消息再次发送一遍。
+ *
+ * 如果同一条消息被发送了5次，一直没有收到回执，则认为服务器与客户端保持的这个长连接已经断开了，这种情况服务器则把这个长连接对象channel关闭、释放掉资源。
+ *
+ *
+ * 如果客户端与服务器保持的长连接对象channel关闭掉，则需要处理“正在发消息的队列”中的消息，将属于这个channel的消息持久化到数据库中。
+ * 当下次这个客户端用户再次上线, 也就是再次建立客户端的长连接的时候, 我们首先在数据库中查询时候有属于它的未发送消息，全部进行发送。
+ *
+ *
+ * 另一个问题:
+ * 服务器向客户端发送消息1次，客户端向服务器发送这条消息的回执。
+ * 服务器由于网络原因没有收到回执，这条消息的回执丢了，服务器会再把这条消息发送第二次，客户端这次会收到重复的消息，这时候客户端怎么处理呢？？继续显示这条消息显然不正确，客户端需要验证这条消息是否收到!
+ * 进行合法性进行验证。这里需要用到消息唯一标示(messageId)。
+ *
+ * 具体客户端如何进行消息重复性验证, 参考 PushClientHandler
+ *
+ * 多设备: 同一个用户的每个在线设备有自己的 MessageLooper, 在途消息, 回执和离线消息都按设备分开, key 是 Session.getDeliveryKey()
+ * (没有设备标识的就是 userId 本身). 一个设备收不到回执只重发给这个设备, 不会影响其他设备.
+ * 用户一个设备都不在线的时候发给他的消息记在 userId 下面, 下一个上线的设备会把它们作为离线消息收走
+ *
+ * sendMsgAsync 的结果: 回执确认时完成成 DELIVERED(参考 InFlightMessages.removeAcked), 离线消息写入成功时完成成 STORED_OFFLINE,
+ * 写入失败, 或者服务器停止时还在等回执的, 完成成 EXPIRED. 都在原来就有的线程上完成, 参考 DeliveryStatus
+ *
+ * 线程: 原来一个设备的在途消息会同时被 IO 线程(回执, 写出分配 seq), 时间轮的线程(重发), 线程池(下线存离线消息)
+ * 和调用 sendMsg 的线程改动, 靠 InFlightMessages 和 MessageLooper 上的锁. 现在每个轮询器绑定一个 EventExecutor:
+ * 设备在线时是它的 channel 的 EventLoop, 不在线时是 offlineExecutors 中的一个. 所有的改动都提交到那个线程上按批执行(参考 MessageLooper.execute),
+ * 回执和写出本来就在 channel 的 EventLoop 上, 直接执行, 不加锁. 设备换了连接, 新连接在别的 EventLoop 上的话, 换一个轮询器, 在途消息搬过去
+ * @Author: fan
+ * @Date: 2020-9-19 11:19
+ * @Modify: 2020-12-31 按设备管理在途消息和离线消息
+ *          2021-01-06 回执延迟, 离线消息计数
+ *          2021-01-09 完成 sendMsgAsync 的结果
+ *          2021-01-09 轮询器绑定到 EventLoop
+ *          2021-01-09 不在线的设备的轮询器分到固定的几个线程上
+ */
+public class MessageRetryManager {
+
+    // 用于数据库读写的线程池
+    private ExecutorService executorService = Executors.newCachedThreadPool();
+
+    // 持有一个 PushServer的引用, 用于后续发送消息方便.
+    // 因为在PushServer 中有 sendMsg() 等相关便捷方法
+    private PushServer pushServer;
+
+    // 全部用户共用的重发调度器, 所有 MessageLooper 的超时任务都注册在这上面
+    private final MessageRetryScheduler retryScheduler = new MessageRetryScheduler();
+
+    //  Map 用于维护  deliveryKey  <---->  MessageLooper  的映射关系, 也就是说, 给每个用户的每个设备分配一个单独的 MessageLooper(消息轮询器)
+    //  同时, 正在发送的消息 List 存放在 MessageLooper 中, 让 MessageLooper 去轮询这个消息List.
+    private ConcurrentHashMap<String, MessageLooper> looperMap = new ConcurrentHashMap<>();
+
+    // 离线消息存储, 第一次用到的时候才打开, 参考 getOfflineMessageStore()
+    private volatile OfflineMessageStore offlineMessageStore;
+
+    // 不在线的设备的轮询器用的线程数
+    static final int OFFLINE_RETRY_THREADS = Math.min(4, NettyRuntime.availableProcessors());
+
+    // 不在线的设备的轮询器用的线程, 第一次用到的时候才创建, 参考 executorFor()
+    private volatile EventExecutorGroup offlineExecutors;
+
+    /**
+     * 删除一个设备的轮询器时, 拿到它还在等回执的消息, 参考 removeUser(String, RemovedMessagesHandler)
+     */
+    public interface RemovedMessagesHandler {
+
+        /**
+         * 在轮询器的线程上调用, 不能阻塞
+         *
+         * @param messages 按发送顺序, 没有则为空
+         */
+        void onRemoved(List<Message> messages);
+    }
+
+    /**
+     * constructor
+     *
+     * @param pushServer
+     */
+    public MessageRetryManager(PushServer pushServer) {
+        this.pushServer = pushServer;
+    }
+
+    public PushServer getPushServer() {
+        return pushServer;
+    }
+
+    public MessageRetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    /**
+     * 读写离线消息用的线程池
+     */
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * 离线消息存储. 没有设置过的话, 按 ServerOptions 在本地磁盘上打开一个 SegmentLogOfflineStore
+     *
+     * @return
+     * @throws IOException
+     */
+    public OfflineMessageStore getOfflineMessageStore() throws IOException {
+        OfflineMessageStore store = offlineMessageStore;
+        if (store != null) {
+            // 打开之后就不用再加锁了, 并发上线的用户回放离线消息时不会在这里排队
+            return store;
+        }
+        synchronized (this) {
+            if (offlineMessageStore == null) {
+                ServerOptions options = pushServer.getOptions();
+                offlineMessageStore = new SegmentLogOfflineStore(new File(options.getOfflineStoreDir()),
+                        SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, options.isOfflineStoreFsync());
+            }
+            return offlineMessageStore;
+        }
+    }
+
+    /**
+     * 换成别的离线消息存储(比如数据库)
+     *
+     * @param offlineMessageStore
+     */
+    public synchronized void setOfflineMessageStore(OfflineMessageStore offlineMessageStore) {
+        this.offlineMessageStore = offlineMessageStore;
+    }
+
+    /**
+     * 服务器停止时调用, 关闭离线消息存储
+     */
+    public void shutdown() {
+        // 不在线的设备的轮询器先停, 排着的操作做完, 要存的离线消息交给线程池
+        EventExecutorGroup executors;
+        synchronized (this) {
+            executors = offlineExecutors;
+        }
+        if (executors != null) {
+            executors.shutdownGracefully(0, 0, TimeUnit.SECONDS).awaitUninterruptibly(10, TimeUnit.SECONDS);
+        }
+
+        // 再等正在写的离线消息写完. 这里不能持有 this 锁, 写离线消息的任务要用到 getOfflineMessageStore()
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        OfflineMessageStore store;
+        synchronized (this) {
+            store = offlineMessageStore;
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 还在等回执的消息不会再有结果了. 轮询器的线程都已经停了(PushServer.stop() 先等 workerGroup 退出), 这里直接读
+        for (MessageLooper messageLooper : looperMap.values()) {
+            messageLooper.runPending();
+            for (Message message : messageLooper.getInFlightMessages().snapshot()) {
+                message.completeDelivery(DeliveryStatus.EXPIRED);
+            }
+            // 取消时间轮上的超时任务, 不然要等它们到期, 时间轮才放掉这些轮询器
+            messageLooper.removeAllMessage();
+            messageLooper.retire();
+        }
+        looperMap.clear();
+    }
+
+    /**
+     * 将一条消息加入到消息重发管理器中, 记在 userId 下面(没有设备标识的连接, 或者用户一个设备都不在线)
+     *
+     * @param userId
+     * @param message
+     */
+    public void add(String userId, Message message) {
+        add(userId, null, message);
+    }
+
+    /**
+     * 将一条消息加入到消息重发管理器中
+     * 如果是新的设备, 会为它创建一个 MessageLooper; 轮询器空闲时会在 retryScheduler 上注册等待回执的超时任务
+     * 不在轮询器的线程上调用的话, 提交过去执行, 返回时还不一定加进去了
+     *
+     * 同一个 Message 对象不要加给同一个用户的多个设备: 写出时分配的 seq 是记在 Message 上的, 要用 Message.copy()
+     *
+     * @param userId
+     * @param deviceId 可以为 null
+     * @param message
+     */
+    public void add(String userId, String deviceId, Message message) {
+
+        if (StringUtil.isNullOrEmpty(userId)) {
+            return;
+        }
+
+        // 消息重发管理器只管理业务消息(也就是 messageType=1004的, 其他的 pong 消息, 握手消息等不考虑)
+        if (!(message.getMessageType() == 1004)) {
+            return;
+        }
+
+        // 回执延迟从第一次加入算起, 重发不重新计时. 抽样, 参考 ServerMetrics
+        if (message.getSentNanos() == 0 && ServerMetrics.sampleAckLatency(message)) {
+            message.setSentNanos(System.nanoTime());
+        }
+
+        // 判断如果是一个新设备, 则为它单独分配一个消息轮询器
+        String deliveryKey = Session.deliveryKey(userId, deviceId);
+        MessageLooper messageLooper = looperMap.get(deliveryKey);
+        if (messageLooper == null) {
+            MessageLooper newLooper = new MessageLooper(userId, deviceId, this, executorFor(userId, deviceId));
+            messageLooper = looperMap.putIfAbsent(deliveryKey, newLooper);
+            if (messageLooper == null) {
+                messageLooper = newLooper;
+            }
+        }
+
+        // 通知轮询器有新消息了, 如果轮询器空闲, 就开始等待回执
+        messageLooper.add(message);
+    }
+
+    /**
+     * 新轮询器绑定的线程: 设备在线就是它的 channel 的 EventLoop, 回执和写出都在这个线程上, 不用切换;
+     * 不在线的轮流分到 offlineExecutors 的 OFFLINE_RETRY_THREADS 个线程上.
+     * 这些线程上的活很少: 不在线的设备没有连接, 重发不写网络, 只是等超时(GIVE_UP 之后存成离线消息, 交给线程池写);
+     * 设备一上线轮询器就换到它的 EventLoop 上(参考 rebind). 线程数固定, 不会跟着不在线的设备数增长
+     */
+    private EventExecutor executorFor(String userId, String deviceId) {
+        Channel channel = pushServer.getSessionRegistry().getChannelIfOnline(userId, deviceId);
+        if (channel != null) {
+            return channel.eventLoop();
+        }
+        EventExecutorGroup executors = offlineExecutors;
+        if (executors != null) {
+            return executors.next();
+        }
+        synchronized (this) {
+            if (offlineExecutors == null) {
+                offlineExecutors = new DefaultEventExecutorGroup(OFFLINE_RETRY_THREADS, new DefaultThreadFactory("offline-retry", true));
+            }
+            return offlineExecutors.next();
+        }
+    }
+
+
+    /**
+     * 不经过重发管理器, 直接把消息存成 deliveryKey 的离线消息, 在线程池中写
+     * 用于 sendMsgAsync 发给一个设备都不在线的用户: 下一个上线的设备回放离线消息时会取 userId 下的, 参考 OfflineMessageReplayer
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey(), 没有设备标识时就是 userId
+     * @param messageList 同一个用户的一批消息一次写入
+     */
+    public void storeOffline(final String deliveryKey, final List<Message> messageList) {
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    saveMessageToDB(deliveryKey, messageList);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 服务器已经停止
+            completeDelivery(messageList, DeliveryStatus.EXPIRED);
+        }
+    }
+
+    /**
+     * 将一条消息从重发管理器中移除
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey(), 没有设备标识时就是 userId
+     * @param message
+     */
+    public void remove(String deliveryKey, Message message) {
+        remove(deliveryKey, message.getMessageId());
+    }
+
+    /**
+     * 同上, 按 messageId 移除
+     *
+     * @param deliveryKey
+     * @param messageId
+     */
+    void remove(String deliveryKey, String messageId) {
+
+        if (StringUtil.isNullOrEmpty(deliveryKey)) {
+            return;
+        }
+
+        MessageLooper messageLooper = looperMap.get(deliveryKey);
+
+        if (messageLooper == null) {
+            return;
+        }
+
+        messageLooper.remove(messageId);
+    }
+
+    /**
+     * 一个设备还在等回执的消息. 只能在这个设备的轮询器的线程上用(设备在线时就是它的 channel 的 EventLoop), 其他线程用 snapshotInFlight
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey()
+     * @return 没有则返回 null
+     */
+    public InFlightMessages getInFlightMessages(String deliveryKey) {
+        MessageLooper messageLooper = looperMap.get(deliveryKey);
+        return messageLooper == null ? null : messageLooper.getInFlightMessages();
+    }
+
+    /**
+     * 一个设备还在等回执的消息的拷贝, 可以在任何线程调用: 在轮询器的线程上拷贝, 等拷贝完再返回, 之前提交的改动都已经做完了.
+     * 会阻塞, 用于测试和诊断, 不要在 EventLoop 上调用
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey()
+     * @return 按发送顺序, 没有则返回 null
+     */
+    public List<Message> snapshotInFlight(String deliveryKey) {
+        for (; ; ) {
+            final MessageLooper messageLooper = looperMap.get(deliveryKey);
+            if (messageLooper == null) {
+                return null;
+            }
+            final Promise<List<Message>> promise = messageLooper.executor().newPromise();
+            messageLooper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // 被换掉了的返回 null, 重新找
+                    promise.setSuccess(messageLooper.isRetired() ? null : messageLooper.getInFlightMessages().snapshot());
+                }
+            });
+            List<Message> messages = promise.syncUninterruptibly().getNow();
+            if (messages != null) {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * 消息写给连接时分配了序号, 由 MessageSequenceHandler 调用
+     *
+     * @param deliveryKey 这个连接的 Session.getDeliveryKey()
+     * @param message
+     */
+    public void onSequenced(String deliveryKey, final Message message) {
+        final MessageLooper messageLooper = looperMap.get(deliveryKey);
+        if (messageLooper == null) {
+            return;
+        }
+        if (messageLooper.tryEnter()) {
+            indexSeq(messageLooper, message);
+            return;
+        }
+        messageLooper.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexSeq(messageLooper, message);
+            }
+        });
+    }
+
+    private static void indexSeq(MessageLooper messageLooper, Message message) {
+        // 被换掉了的不用管: seq 是旧连接上的, 搬到新轮询器时清掉了
+        if (!messageLooper.isRetired()) {
+            messageLooper.getInFlightMessages().indexSeq(message);
+        }
+    }
+
+    /**
+     * 处理客户端合并的回执, 一次移除 seq <= ackSeq 的全部消息, sack 区间里的消息, 以及 ackIds 里的消息
+     *
+     * @param deliveryKey 发回执的连接的 Session.getDeliveryKey()
+     * @param ackSeq
+     * @param sack
+     * @param ackIds
+     * @return 移除的条数. 一般是在这个设备的 channel 的 EventLoop 上调用, 直接处理; 不在轮询器的线程上的话, 提交过去处理, 返回 0,
+     * 移除的条数在处理时记到 ServerMetrics 里
+     */
+    public int acknowledge(final String deliveryKey, final long ackSeq, final long[] sack, final List<String> ackIds) {
+        if (StringUtil.isNullOrEmpty(deliveryKey)) {
+            return 0;
+        }
+        final MessageLooper messageLooper = looperMap.get(deliveryKey);
+        if (messageLooper == null) {
+            return 0;
+        }
+        if (messageLooper.tryEnter()) {
+            return acknowledgeLocal(messageLooper, deliveryKey, ackSeq, sack, ackIds);
+        }
+        messageLooper.execute(new Runnable() {
+            @Override
+            public void run() {
+                pushServer.getMetrics().onDeferredAck(acknowledgeLocal(messageLooper, deliveryKey, ackSeq, sack, ackIds));
+            }
+        });
+        return 0;
+    }
+
+    private int acknowledgeLocal(MessageLooper messageLooper, String deliveryKey, long ackSeq, long[] sack, List<String> ackIds) {
+        if (messageLooper.isRetired()) {
+            return acknowledge(deliveryKey, ackSeq, sack, ackIds);
+        }
+        return messageLooper.getInFlightMessages().removeAcked(ackSeq, sack, ackIds, pushServer.getMetrics().getAckLatency());
+    }
+
+    /**
+     * 将一个设备的消息全部从重发管理器中移除, 同时取消它在 retryScheduler 上的任务
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey(), 没有设备标识时就是 userId
+     */
+    public void removeUser(String deliveryKey) {
+        removeUser(deliveryKey, null);
+    }
+
+    /**
+     * 同上, 在轮询器的线程上移除, 然后把移除的消息交给 handler
+     *
+     * @param deliveryKey
+     * @param handler     可以为 null; 没有这个设备的话, 马上在当前线程上收到空的列表
+     */
+    public void removeUser(final String deliveryKey, final RemovedMessagesHandler handler) {
+
+        final MessageLooper messageLooper = StringUtil.isNullOrEmpty(deliveryKey) ? null : looperMap.get(deliveryKey);
+
+        if (messageLooper == null) {
+            if (handler != null) {
+                handler.onRemoved(Collections.<Message>emptyList());
+            }
+            return;
+        }
+
+        messageLooper.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Message> messages = Collections.emptyList();
+                // 已经被换掉的不用管: 在途消息已经搬到新的轮询器上了, 属于新的连接
+                if (!messageLooper.isRetired()) {
+                    looperMap.remove(deliveryKey, messageLooper);
+                    messages = messageLooper.getInFlightMessages().snapshot();
+                    messageLooper.removeAllMessage();
+                    messageLooper.retire();
+                }
+                if (handler != null) {
+                    handler.onRemoved(messages);
+                }
+            }
+        });
+    }
+
+    /**
+     * 重连成功回调，重连并握手成功时，重发离线消息
+     *
+     * 不再加锁, 也不再一次全部读出来发送: 交给 OfflineMessageReplayer 分页读取, 按连接的可写性分批发送
+     *
+     * @param session 刚刚握手成功的会话
+     */
+    public void onUserOnline(final Session session) {
+        MessageLooper messageLooper = looperMap.get(session.getDeliveryKey());
+        if (messageLooper != null) {
+            rebind(session, messageLooper);
+        }
+
+        final String userId = session.getUserId();
+        if (session.getDeviceId() != null && looperMap.containsKey(userId)
+                && pushServer.getSessionRegistry().getIfOnline(userId, null) == null) {
+            // 用户一个设备都不在线的时候发给他的消息记在 userId 下面, 先存成离线消息, 再和这个设备自己的离线消息一起回放
+            removeUser(userId, new RemovedMessagesHandler() {
+                @Override
+                public void onRemoved(final List<Message> messages) {
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!messages.isEmpty()) {
+                                saveMessageToDB(userId, messages);
+                            }
+                            replayOfflineMessages(session);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        replayOfflineMessages(session);
+    }
+
+    /**
+     * 旧连接还没处理完的消息交给新连接: 序号是旧连接上的, 到新连接上重发时重新分配.
+     * 新连接在别的 EventLoop 上(或者之前不在线, 在 offlineExecutors 上)的话, 换一个绑定在新 EventLoop 上的轮询器, 在途消息搬过去
+     *
+     * @param session 刚刚握手成功的会话
+     * @param messageLooper
+     */
+    private void rebind(final Session session, final MessageLooper messageLooper) {
+        final EventExecutor eventLoop = session.getChannel().eventLoop();
+        messageLooper.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (messageLooper.isRetired()) {
+                    return;
+                }
+                if (messageLooper.executor() == eventLoop) {
+                    messageLooper.getInFlightMessages().resetSequences();
+                    return;
+                }
+                final MessageLooper newLooper = new MessageLooper(session.getUserId(), session.getDeviceId(), MessageRetryManager.this, eventLoop);
+                if (!looperMap.replace(session.getDeliveryKey(), messageLooper, newLooper)) {
+                    return;
+                }
+                final List<Message> messages = messageLooper.getInFlightMessages().snapshot();
+                messageLooper.removeAllMessage();
+                messageLooper.retire();
+                // 换下来之后再提交给旧轮询器的操作会转到新轮询器上, 排在这些消息后面
+                newLooper.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Message message : messages) {
+                            message.setSeq(0);
+                            newLooper.getInFlightMessages().add(message);
+                        }
+                        if (!messages.isEmpty()) {
+                            newLooper.onMessageAdded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 把这个设备的离线消息分页发到它的 channel 上
+     *
+     * @param session
+     */
+    public void replayOfflineMessages(Session session) {
+        new OfflineMessageReplayer(this, session.getUserId(), session.getDeviceId(), session.getChannel(),
+                executorService, pushServer.getOptions().getOfflineReplayPageSize()).start();
+    }
+
+
+    /**
+     * 当用户的一个设备离线
+     *
+     * @param deliveryKey 参考 Session.getDeliveryKey(), 没有设备标识时就是 userId
+     */
+    public void onUserOffline(final String deliveryKey) {
+        // 在轮询器的线程上把这个设备从map中移除, 然后把它的全部消息在线程池中写入数据库, 等上线了再一起发
+        removeUser(deliveryKey, new RemovedMessagesHandler() {
+            @Override
+            public void onRemoved(List<Message> messages) {
+                if (!messages.isEmpty()) {
+                    // 每个设备单独存; 已经有这个 messageId 的, 就更新, 没有就插入
+                    storeOffline(deliveryKey, messages);
+                }
+            }
+        });
+    }
+
+    private void saveMessageToDB(String deliveryKey, List<Message> messageList) {
+        // 批量写入; 并发下线的多个用户会合并成一次磁盘写, 参考 SegmentLogOfflineStore
+        try {
+            getOfflineMessageStore().save(deliveryKey, messageList);
+            pushServer.getMetrics().onOfflineSaved(messageList.size());
+            completeDelivery(messageList, DeliveryStatus.STORED_OFFLINE);
+        } catch (IOException e) {
+            logger.warn("保存离线消息失败, key:" + deliveryKey + " " + e);
+            completeDelivery(messageList, DeliveryStatus.EXPIRED);
+        }
+    }
+
+    /**
+     * 一批消息都有了结果, 参考 Message.completeDelivery
+     *
+     * @param messageList
+     * @param status
+     */
+    static void completeDelivery(List<Message> messageList, DeliveryStatus status) {
+        for (Message message : messageList) {
+            message.completeDelivery(status);
+        }
+    }
+
+}
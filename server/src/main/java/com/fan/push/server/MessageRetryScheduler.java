@@ -0,0 +1,130 @@
+package com.fan.push.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.internal.StringUtil;
+
+/**
+ * @Description: 消息重发调度器
+ *
+ * 原来每个 MessageLooper 都 new 一个 HashedWheelTimer, 每个 HashedWheelTimer 背后都是一个单独的工作线程.
+ * 在线用户一多(比如5万), 就是5万个线程, 服务器直接就扛不住了.
+ *
+ * 这里改成: 整个 MessageRetryManager 共用少量几个时间轮(分片), 所有用户的回执超时都注册到这几个时间轮上.
+ * 同一个 userId 总是落在同一个分片上, 线程数只和分片数有关, 和用户数无关.
+ *
+ * 时间轮上的任务都是在时间轮的工作线程上执行的, 所以任务里不能有阻塞操作(比如 Thread.sleep), 否则会拖慢同一个分片上所有的超时任务.
+ * @Author: fan
+ * @Date: 2020-12-08 10:12
+ * @Modify:
+ */
+public class MessageRetryScheduler {
+
+    // 默认的分片数
+    private static final int DEFAULT_SHARD_COUNT = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // 时间轮一格的时长, 重发的精度要求不高, 100ms 足够了
+    private static final long TICK_DURATION_MILLIS = 100;
+
+    // 时间轮的格数
+    private static final int TICKS_PER_WHEEL = 512;
+
+    // 用于给工作线程命名
+    private static final AtomicInteger schedulerCounter = new AtomicInteger(0);
+
+    private final HashedWheelTimer[] wheels;
+
+    /**
+     * constructor
+     */
+    public MessageRetryScheduler() {
+        this(DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * constructor
+     *
+     * @param shardCount 时间轮的个数, 也就是工作线程的个数
+     */
+    public MessageRetryScheduler(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("MessageRetryScheduler constructor , shardCount must be positive");
+        }
+        int id = schedulerCounter.getAndIncrement();
+        wheels = new HashedWheelTimer[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            wheels[i] = new HashedWheelTimer(new RetryThreadFactory("message-retry-" + id + "-" + i), TICK_DURATION_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+        }
+    }
+
+    /**
+     * 为 userId 注册一个超时任务
+     *
+     * @param userId
+     * @param task
+     * @param delay
+     * @param unit
+     * @return 可以用来取消任务的 Timeout
+     */
+    public Timeout schedule(String userId, TimerTask task, long delay, TimeUnit unit) {
+        if (StringUtil.isNullOrEmpty(userId)) {
+            throw new IllegalArgumentException("MessageRetryScheduler schedule , userId can not be null");
+        }
+        return wheelFor(userId).newTimeout(task, delay, unit);
+    }
+
+    /**
+     * 取消一个超时任务
+     *
+     * @param timeout
+     */
+    public void cancel(Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 分片数, 也就是工作线程数
+     *
+     * @return
+     */
+    public int getShardCount() {
+        return wheels.length;
+    }
+
+    /**
+     * 停止全部时间轮, 一般用于服务器关闭
+     */
+    public void stop() {
+        for (HashedWheelTimer wheel : wheels) {
+            wheel.stop();
+        }
+    }
+
+    private HashedWheelTimer wheelFor(String userId) {
+        // 同一个用户总是落在同一个分片上, 保证他的超时任务按顺序执行
+        return wheels[(userId.hashCode() & Integer.MAX_VALUE) % wheels.length];
+    }
+
+    private static class RetryThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        RetryThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
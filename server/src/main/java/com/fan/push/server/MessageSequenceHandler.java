@@ -0,0 +1,56 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * @Description: 给写出去的单发业务消息分配序号, 出站处理器
+ *
+ * 原来每条推送都要客户端单独回一个带 messageId 的回执, 服务端一条一条地从重发列表里删.
+ * 现在单发的 1004 消息在真正写给连接的时候分配一个 seq, 这个连接上从1开始连续递增,
+ * 客户端只需要回 "seq <= N 的都收到了"(ackSeq), 必要时带上 N 之后收到的区间(sack), 服务端一次去掉一整段, 参考 InFlightMessages.removeAcked
+ *
+ * 为什么在写出的时候分配, 而不是 sendMsg 的时候:
+ * 1, 在出站队列(OutboundQueue)里被丢弃或者转存离线的消息没有写出去, 不占用序号, 序号不会有空洞
+ * 2, write 一定在 EventLoop 中执行, 序号的顺序就是客户端收到的顺序
+ *
+ * 已经有序号的消息(重发)不再分配. 群发的消息(to=TO_ALL, 已经编码好的 ByteBuf)没有序号, 还是按 messageId 回执.
+ * 放在 MessageEncoder 之后(靠近 tail). 计数器在这个连接的 Session 上, 只在 EventLoop 中访问; 还没握手成功的连接不分配
+ * @Author: fan
+ * @Date: 2020-12-28 10:30
+ * @Modify: 2020-12-30 计数器移到 Session 上
+ *          2020-12-31 按设备登记在途消息
+ */
+public class MessageSequenceHandler extends ChannelOutboundHandlerAdapter {
+
+    private final MessageRetryManager messageRetryManager;
+
+    /**
+     * constructor
+     *
+     * @param messageRetryManager
+     */
+    public MessageSequenceHandler(MessageRetryManager messageRetryManager) {
+        this.messageRetryManager = messageRetryManager;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof Message) {
+            Message message = (Message) msg;
+            if (message.getMessageType() == 1004 && message.getSeq() == 0 && message.getStatus() == 0
+                    && message.getTo() != null && !Message.TO_ALL.equals(message.getTo())) {
+                Session session = SessionRegistry.sessionOf(ctx.channel());
+                if (session != null) {
+                    message.setSeq(session.nextSeq());
+                    // 在途消息按设备记, 和这个连接的会话对应
+                    messageRetryManager.onSequenced(session.getDeliveryKey(), message);
+                }
+            }
+        }
+        ctx.write(msg, promise);
+    }
+}
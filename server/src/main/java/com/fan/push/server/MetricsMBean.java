@@ -0,0 +1,110 @@
+package com.fan.push.server;
+
+import com.fan.push.metrics.MetricsRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * @Description: 把 MetricsRegistry 注册成 JMX 的 MBean, 每个指标一个只读的 long 属性, 用 jconsole / jmxterm 就能看
+ *
+ * 指标是运行时注册的, 所以是 DynamicMBean, 属性列表每次 getMBeanInfo 时从注册表生成
+ *
+ * 放在 server 包里而不是 metrics 包: javax.management 只有 JVM 上才有, android.jar 里没有, 客户端用到的代码不能引用它
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify: 2021-01-09 从 metrics 包移到 server 包
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("MetricsMBean constructor , registry can not be null");
+        }
+        this.registry = registry;
+    }
+
+    /**
+     * 注册到平台的 MBeanServer 上
+     *
+     * @param registry
+     * @param name     ObjectName, 比如 com.fan.push:type=Metrics,port=10010
+     * @return 注册用的 ObjectName, 停止时传给 unregister
+     * @throws JMException
+     */
+    public static ObjectName register(MetricsRegistry registry, String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // 已经注销了
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = registry.values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        // 一次读全部, 直方图只合并一次
+        Map<String, Long> values = registry.values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> values = registry.values();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "fanpush metrics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,219 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 用户的一个设备上线时, 把这个设备的离线消息分页发给它
+ *
+ * 原来 onUserOnline 是 synchronized 的, 一次把全部离线消息读出来, 在握手的那个 EventLoop 线程里一口气 sendMsg 完:
+ * 一个积压了5万条消息的用户会卡住所有人的登录, 也可能把这个连接的出站缓冲撑爆.
+ *
+ * 现在:
+ * 1, 每次从 OfflineMessageStore 取一页(pageSize 条), 读盘在 MessageRetryManager 的线程池里做, 不占用 EventLoop
+ * 2, 一页读出来之后, 回到这个连接的 EventLoop 里写出去(加入重发管理器), 整页只 flush 一次
+ * 3, 写完如果 channel 不可写(出站缓冲超过了高水位线, 或者 OutboundQueue 里还有排队的消息), 就先停下,
+ *    等 PushServerHandler.channelWritabilityChanged 里变回可写了再调用 resume() 接着取下一页
+ * 4, 取到空页就结束. 带设备标识的连接先取这个设备自己的(key 是 userId#deviceId), 再取用户一个设备都不在线时存下的(key 是 userId)
+ *
+ * 没有全局锁, 多个用户同时上线时各自独立地回放.
+ * 如果回放过程中连接断了, 已经写出去的消息在重发管理器里, 会跟着 onUserOffline 重新存为离线消息;
+ * 刚读出来还没写的那一页直接存回 OfflineMessageStore(会排到这个用户的队尾)
+ *
+ * 状态只在 channel 的 EventLoop 中访问
+ * @Author: fan
+ * @Date: 2020-12-23 10:20
+ * @Modify: 2020-12-31 按设备回放
+ *          2021-01-06 离线消息计数
+ */
+public class OfflineMessageReplayer {
+
+    // 正在进行的回放挂在 channel 上, 可写性变化时找到它
+    private static final AttributeKey<OfflineMessageReplayer> REPLAYER_KEY = AttributeKey.valueOf("offlineMessageReplayer");
+
+    private final MessageRetryManager messageRetryManager;
+
+    private final String userId;
+
+    private final String deviceId;
+
+    // 依次从离线消息存储的哪些 key 下取
+    private final String[] storeKeys;
+
+    // 当前在取 storeKeys 中的哪一个
+    private int keyIndex;
+
+    private final Channel channel;
+
+    // 读离线消息用的线程池
+    private final Executor executor;
+
+    private final int pageSize;
+
+    // 正在读下一页
+    private boolean loading;
+
+    private boolean finished;
+
+    // 一共发了多少条
+    private int replayedCount;
+
+    /**
+     * constructor
+     *
+     * @param messageRetryManager
+     * @param userId
+     * @param deviceId            可以为 null
+     * @param channel             这个设备的连接
+     * @param executor            读离线消息用的线程池
+     * @param pageSize
+     */
+    public OfflineMessageReplayer(MessageRetryManager messageRetryManager, String userId, String deviceId, Channel channel, Executor executor, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("OfflineMessageReplayer constructor , pageSize must be positive");
+        }
+        this.messageRetryManager = messageRetryManager;
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.storeKeys = deviceId == null ? new String[]{userId} : new String[]{Session.deliveryKey(userId, deviceId), userId};
+        this.channel = channel;
+        this.executor = executor;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 开始回放
+     */
+    public void start() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    start();
+                }
+            });
+            return;
+        }
+
+        OfflineMessageReplayer running = channel.attr(REPLAYER_KEY).get();
+        if (running != null && !running.finished) {
+            // 这个连接上已经有一个在回放了, 它会一直取到空页为止
+            running.onWritable();
+            return;
+        }
+        channel.attr(REPLAYER_KEY).set(this);
+        loadNextPage();
+    }
+
+    /**
+     * channel 变回可写了, 在 EventLoop 中调用
+     *
+     * @param channel
+     */
+    public static void resume(Channel channel) {
+        OfflineMessageReplayer replayer = channel.attr(REPLAYER_KEY).get();
+        if (replayer != null) {
+            replayer.onWritable();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getReplayedCount() {
+        return replayedCount;
+    }
+
+    private void onWritable() {
+        if (!finished && !loading && OutboundQueue.isWritable(channel)) {
+            loadNextPage();
+        }
+    }
+
+    private void loadNextPage() {
+        loading = true;
+        final String storeKey = storeKeys[keyIndex];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Message> page;
+                try {
+                    page = messageRetryManager.getOfflineMessageStore().poll(storeKey, pageSize);
+                    messageRetryManager.getPushServer().getMetrics().onOfflineLoaded(page.size());
+                } catch (IOException e) {
+                    logger.warn("读取离线消息失败, key: {}, {}", storeKey, e.toString());
+                    page = Collections.emptyList();
+                }
+
+                final List<Message> loadedPage = page;
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(loadedPage);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(List<Message> page) {
+        loading = false;
+
+        if (page.isEmpty()) {
+            if (++keyIndex < storeKeys.length) {
+                // 接着取下一个 key 下的
+                loadNextPage();
+            } else {
+                finish();
+            }
+            return;
+        }
+
+        if (!channel.isActive()) {
+            // 连接已经断了, 这一页还没发出去, 存回去等这个设备下次上线
+            String deliveryKey = Session.deliveryKey(userId, deviceId);
+            try {
+                messageRetryManager.getOfflineMessageStore().save(deliveryKey, page);
+                messageRetryManager.getPushServer().getMetrics().onOfflineSaved(page.size());
+            } catch (IOException e) {
+                logger.warn("保存离线消息失败, key: {}, {}", deliveryKey, e.toString());
+            }
+            finish();
+            return;
+        }
+
+        // 写给这个连接, 而不是按 userId 再查一次: 用户这期间可能重连了, 新连接有自己的回放
+        // 经过出站队列, 回放期间有实时消息在排队的话, 排在它们后面
+        for (Message message : page) {
+            messageRetryManager.add(userId, deviceId, message);
+            OutboundQueue.write(channel, message, message, false);
+        }
+        channel.flush();
+        replayedCount += page.size();
+
+        if (OutboundQueue.isWritable(channel)) {
+            loadNextPage();
+        }
+        // 否则等 resume()
+    }
+
+    private void finish() {
+        finished = true;
+        if (channel.attr(REPLAYER_KEY).get() == this) {
+            channel.attr(REPLAYER_KEY).set(null);
+        }
+        if (replayedCount > 0) {
+            logger.info("离线消息回放完成, key: {}, count: {}", Session.deliveryKey(userId, deviceId), replayedCount);
+        }
+    }
+}
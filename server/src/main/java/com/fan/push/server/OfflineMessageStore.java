@@ -0,0 +1,47 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @Description: 离线消息存储
+ *
+ * 用户掉线时, 没有收到回执的消息写进来; 用户再次上线时, 按写入的顺序取出来重新发送.
+ * 默认实现是本地磁盘上的 SegmentLogOfflineStore, 要换成数据库的话实现这个接口, 再调用 MessageRetryManager.setOfflineMessageStore()
+ * @Author: fan
+ * @Date: 2020-12-22 14:10
+ * @Modify:
+ */
+public interface OfflineMessageStore {
+
+    /**
+     * 保存一个用户的离线消息. 同一个 messageId 重复保存, 取出时只出现一次(位置是第一次保存的位置, 内容是最后一次保存的内容)
+     *
+     * @param userId
+     * @param messageList
+     * @throws IOException
+     */
+    void save(String userId, List<Message> messageList) throws IOException;
+
+    /**
+     * 按保存的顺序取出这个用户最早的 maxCount 条离线消息, 取出后就从存储中删除
+     *
+     * @param userId
+     * @param maxCount
+     * @return 没有则返回空列表
+     * @throws IOException
+     */
+    List<Message> poll(String userId, int maxCount) throws IOException;
+
+    /**
+     * 这个用户还剩多少条离线消息
+     *
+     * @param userId
+     * @return
+     */
+    int count(String userId);
+
+    void close() throws IOException;
+}
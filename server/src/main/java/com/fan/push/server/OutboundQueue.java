@@ -0,0 +1,434 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 每个连接一个的出站排队
+ *
+ * 原来 channel 不可写(出站缓冲超过高水位线)的时候只是 setAutoRead(false), 不再读这个客户端的数据(连回执都不读了),
+ * 而 sendMsg 还在不停地 writeAndFlush, 出站缓冲没有上限.
+ *
+ * 现在服务端发出的消息都经过这里:
+ * 1, channel 可写并且没有排队的消息, 直接写
+ * 2, 否则放进这个连接的队列, 等 channelWritabilityChanged 变回可写时按顺序写出去(drain)
+ * 3, 队列有上限: 单个连接的条数 / 估算字节数, 以及全部连接加起来的估算字节数(OutboundQueueMetrics)
+ * 4, 超过上限时按 OverflowPolicy 处理:
+ *      SPILL_TO_OFFLINE 业务消息(1004)转存到离线消息存储, 从重发管理器中移除; 之后的业务消息也都转存, 直到队列排空,
+ *                       再用 OfflineMessageReplayer 把转存的消息发出去. 其他消息直接丢弃
+ *      DROP_OLDEST      丢掉最早排队的消息, 业务消息还在重发管理器里, 之后会重发
+ *      DISCONNECT       断开这个连接, 业务消息还在重发管理器里, 会跟着下线流程存为离线消息
+ *
+ * 队列只在 channel 的 EventLoop 中访问, 其他线程调用 send 会转到 EventLoop 中执行
+ * @Author: fan
+ * @Date: 2020-12-24 09:40
+ * @Modify: 2021-01-09 转存离线消息时完成 sendMsgAsync 的结果
+ */
+public class OutboundQueue {
+
+    /**
+     * 队列满了之后的处理方式
+     */
+    public enum OverflowPolicy {
+        SPILL_TO_OFFLINE,
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    private static final AttributeKey<OutboundQueue> QUEUE_KEY = AttributeKey.valueOf("outboundQueue");
+
+    // 估算一条 Message 的固定开销(对象头, 定长字段, 帧头)
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private final Channel channel;
+
+    private final PushServer pushServer;
+
+    private final OutboundQueueMetrics metrics;
+
+    private final int maxMessages;
+
+    private final long maxBytes;
+
+    private final long globalMaxBytes;
+
+    private final OverflowPolicy overflowPolicy;
+
+    //=========== 以下只在 EventLoop 中访问 =======
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    private long queuedBytes;
+
+    // 转存离线模式: 之后的业务消息都转存, 直到队列排空并且转存的消息都写完了
+    private boolean spilling;
+
+    // 还没交给线程池保存的转存消息
+    private final List<Message> pendingSpill = new ArrayList<>();
+
+    // 线程池里正在保存一批转存消息, 同一个连接同时只保存一批, 保证顺序
+    private boolean spillInFlight;
+
+    private boolean closed;
+
+    private OutboundQueue(Channel channel, PushServer pushServer) {
+        ServerOptions options = pushServer.getOptions();
+        this.channel = channel;
+        this.pushServer = pushServer;
+        this.metrics = pushServer.getOutboundQueueMetrics();
+        this.maxMessages = options.getOutboundQueueMaxMessages();
+        this.maxBytes = options.getOutboundQueueMaxBytes();
+        this.globalMaxBytes = options.getOutboundQueueGlobalMaxBytes();
+        this.overflowPolicy = options.getOutboundOverflowPolicy();
+    }
+
+    /**
+     * 给新连接装上出站队列, 在 ChannelInitializer 中调用
+     *
+     * @param channel
+     * @param pushServer
+     * @return
+     */
+    public static OutboundQueue install(Channel channel, PushServer pushServer) {
+        final OutboundQueue outboundQueue = new OutboundQueue(channel, pushServer);
+        channel.attr(QUEUE_KEY).set(outboundQueue);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                outboundQueue.onClose();
+            }
+        });
+        return outboundQueue;
+    }
+
+    public static OutboundQueue of(Channel channel) {
+        return channel.attr(QUEUE_KEY).get();
+    }
+
+    /**
+     * 写一条消息, 没有装出站队列的连接直接写
+     *
+     * @param channel
+     * @param payload 真正写出去的对象: Message, 或者群发时已经编码好的 ByteBuf
+     * @param message payload 对应的消息, 转存离线时要用
+     * @param flush   是否刷新
+     */
+    public static void write(Channel channel, Object payload, Message message, boolean flush) {
+        OutboundQueue outboundQueue = of(channel);
+        if (outboundQueue == null) {
+            if (flush) {
+                channel.writeAndFlush(payload);
+            } else {
+                channel.write(payload);
+            }
+            return;
+        }
+        outboundQueue.send(payload, message, flush);
+    }
+
+    public static void flush(final Channel channel) {
+        OutboundQueue outboundQueue = of(channel);
+        if (outboundQueue == null || channel.eventLoop().inEventLoop()) {
+            channel.flush();
+            return;
+        }
+        // 和 send 走同一个任务队列, 保证刷新在前面的写之后
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                channel.flush();
+            }
+        });
+    }
+
+    /**
+     * channel 变回可写了, 把排队的消息写出去. 在 EventLoop 中调用
+     *
+     * @param channel
+     */
+    public static void drain(Channel channel) {
+        OutboundQueue outboundQueue = of(channel);
+        if (outboundQueue != null) {
+            outboundQueue.drain();
+        }
+    }
+
+    /**
+     * 现在能不能直接写: channel 可写, 没有排队的消息, 也不在转存离线模式. 在 EventLoop 中调用
+     *
+     * @param channel
+     * @return
+     */
+    public static boolean isWritable(Channel channel) {
+        OutboundQueue outboundQueue = of(channel);
+        if (outboundQueue == null) {
+            return channel.isWritable();
+        }
+        return channel.isWritable() && outboundQueue.queue.isEmpty() && !outboundQueue.spilling;
+    }
+
+    public void send(final Object payload, final Message message, final boolean flush) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(payload, message, flush);
+                }
+            });
+            return;
+        }
+
+        if (closed) {
+            // 业务消息还在重发管理器里, 会跟着下线流程存为离线消息
+            ReferenceCountUtil.release(payload);
+            return;
+        }
+
+        if (queue.isEmpty() && !spilling && channel.isWritable()) {
+            channel.write(payload);
+        } else if (spilling && isBusinessMessage(message)) {
+            ReferenceCountUtil.release(payload);
+            spill(message);
+        } else {
+            enqueue(payload, message);
+        }
+
+        if (flush) {
+            channel.flush();
+        }
+    }
+
+    /**
+     * 排队的条数
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * 排队的估算字节数
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    private void enqueue(Object payload, Message message) {
+        int size = estimateSize(payload);
+
+        if (!canQueue(size) && !handleOverflow(payload, message, size)) {
+            return;
+        }
+        if (!metrics.tryReserve(size, globalMaxBytes)) {
+            // handleOverflow 之后, 别的连接又占掉了全局额度
+            ReferenceCountUtil.release(payload);
+            metrics.onDropped();
+            return;
+        }
+
+        queue.addLast(new Entry(payload, size));
+        queuedBytes += size;
+        metrics.recordDepth(queue.size());
+    }
+
+    private boolean canQueue(int size) {
+        return queue.size() < maxMessages
+                && queuedBytes + size <= maxBytes
+                && metrics.getQueuedBytes() + size <= globalMaxBytes;
+    }
+
+    /**
+     * 队列满了
+     *
+     * @return 新消息是否还要排队
+     */
+    private boolean handleOverflow(Object payload, Message message, int size) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.isEmpty() && !canQueue(size)) {
+                    Entry oldest = queue.pollFirst();
+                    release(oldest);
+                    metrics.onDropped();
+                }
+                if (canQueue(size)) {
+                    return true;
+                }
+                // 一条消息就超过上限了, 或者是别的连接占满了全局额度
+                ReferenceCountUtil.release(payload);
+                metrics.onDropped();
+                return false;
+
+            case DISCONNECT:
+                ReferenceCountUtil.release(payload);
+                metrics.onDisconnect();
+                logger.warn("{} 出站队列已满(条数: {}, 字节: {}), 断开连接", channel, queue.size(), queuedBytes);
+                channel.close();
+                return false;
+
+            case SPILL_TO_OFFLINE:
+            default:
+                ReferenceCountUtil.release(payload);
+                if (isBusinessMessage(message)) {
+                    spilling = true;
+                    spill(message);
+                } else {
+                    metrics.onDropped();
+                }
+                return false;
+        }
+    }
+
+    /**
+     * 把 channel 可写期间能写的都写出去
+     */
+    private void drain() {
+        boolean written = false;
+        while (!queue.isEmpty() && channel.isWritable()) {
+            Entry entry = queue.pollFirst();
+            queuedBytes -= entry.size;
+            metrics.release(entry.size);
+            channel.write(entry.payload);
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+        finishSpillIfDrained();
+    }
+
+    //=========== 转存离线 =======
+
+    private void spill(Message message) {
+        Session session = SessionRegistry.sessionOf(channel);
+        if (session == null) {
+            metrics.onDropped();
+            return;
+        }
+        // 从这个设备的重发管理器中移除, 不然重发时又会进队列, 下线时还会再存一次
+        // 转存到这个设备自己的离线消息里, 用户的其他设备不受影响
+        String deliveryKey = session.getDeliveryKey();
+        pushServer.messageRetryManager.remove(deliveryKey, message);
+        pendingSpill.add(message);
+        metrics.onSpilled();
+        saveSpilled(deliveryKey);
+    }
+
+    private void saveSpilled(final String deliveryKey) {
+        if (spillInFlight || pendingSpill.isEmpty()) {
+            return;
+        }
+        final List<Message> batch = new ArrayList<>(pendingSpill);
+        pendingSpill.clear();
+        spillInFlight = true;
+
+        pushServer.messageRetryManager.getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pushServer.messageRetryManager.getOfflineMessageStore().save(deliveryKey, batch);
+                    pushServer.getMetrics().onOfflineSaved(batch.size());
+                    MessageRetryManager.completeDelivery(batch, DeliveryStatus.STORED_OFFLINE);
+                } catch (IOException e) {
+                    logger.warn("转存离线消息失败, key: {}, count: {}, {}", deliveryKey, batch.size(), e.toString());
+                    MessageRetryManager.completeDelivery(batch, DeliveryStatus.EXPIRED);
+                }
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        spillInFlight = false;
+                        saveSpilled(deliveryKey);
+                        finishSpillIfDrained();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 队列排空并且转存的消息都保存好了, 退出转存模式, 把转存的消息按离线消息发出去
+     */
+    private void finishSpillIfDrained() {
+        if (!spilling || closed || !queue.isEmpty() || spillInFlight || !pendingSpill.isEmpty() || !channel.isWritable()) {
+            return;
+        }
+        spilling = false;
+        Session session = SessionRegistry.sessionOf(channel);
+        if (session != null) {
+            pushServer.messageRetryManager.replayOfflineMessages(session);
+        }
+    }
+
+    //=========== 关闭 =======
+
+    private void onClose() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    onClose();
+                }
+            });
+            return;
+        }
+        closed = true;
+        // 排队中的业务消息还在重发管理器里, 不用另外保存; 这里只释放内存
+        for (Entry entry = queue.pollFirst(); entry != null; entry = queue.pollFirst()) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        queuedBytes -= entry.size;
+        metrics.release(entry.size);
+        ReferenceCountUtil.release(entry.payload);
+    }
+
+    private static boolean isBusinessMessage(Message message) {
+        return message != null && message.getMessageType() == 1004;
+    }
+
+    /**
+     * 估算占用的内存: 编码好的 ByteBuf 按实际字节数, Message 按字符串字段的长度估算
+     */
+    static int estimateSize(Object payload) {
+        if (payload instanceof ByteBuf) {
+            return ((ByteBuf) payload).readableBytes();
+        }
+        if (payload instanceof Message) {
+            Message message = (Message) payload;
+            return MESSAGE_OVERHEAD + 2 * (length(message.getMessageId()) + length(message.getContent())
+                    + length(message.getFrom()) + length(message.getTo()) + length(message.getTopic()));
+        }
+        return MESSAGE_OVERHEAD;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * 排队中的一条消息
+     */
+    private static final class Entry {
+        final Object payload;
+        final int size;
+
+        Entry(Object payload, int size) {
+            this.payload = payload;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.fan.push.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Description: 全部连接的出站排队统计, 由所有 OutboundQueue 共享
+ *
+ * queuedBytes 同时也是全局内存上限的计数器
+ * @Author: fan
+ * @Date: 2020-12-24 09:40
+ * @Modify:
+ */
+public class OutboundQueueMetrics {
+
+    // 当前全部连接排队中的消息条数和估算字节数
+    private final AtomicLong queuedMessages = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    // 单个连接出现过的最大排队条数
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    // 累计因为队列满了被丢弃/转存离线/断开连接的次数
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong spilledMessages = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    /**
+     * 尝试占用全局额度
+     *
+     * @param bytes
+     * @param globalMaxBytes
+     * @return 超过上限则返回 false, 不占用
+     */
+    boolean tryReserve(long bytes, long globalMaxBytes) {
+        for (; ; ) {
+            long current = queuedBytes.get();
+            if (current + bytes > globalMaxBytes) {
+                return false;
+            }
+            if (queuedBytes.compareAndSet(current, current + bytes)) {
+                queuedMessages.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    void release(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        queuedMessages.decrementAndGet();
+    }
+
+    void recordDepth(int depth) {
+        for (; ; ) {
+            int current = maxDepth.get();
+            if (depth <= current || maxDepth.compareAndSet(current, depth)) {
+                return;
+            }
+        }
+    }
+
+    void onDropped() {
+        droppedMessages.incrementAndGet();
+    }
+
+    void onSpilled() {
+        spilledMessages.incrementAndGet();
+    }
+
+    void onDisconnect() {
+        disconnects.incrementAndGet();
+    }
+
+    //=========== getters =======
+
+    public long getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public long getSpilledMessages() {
+        return spilledMessages.get();
+    }
+
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueueMetrics{" +
+                "queuedMessages=" + queuedMessages +
+                ", queuedBytes=" + queuedBytes +
+                ", maxDepth=" + maxDepth +
+                ", droppedMessages=" + droppedMessages +
+                ", spilledMessages=" + spilledMessages +
+                ", disconnects=" + disconnects +
+                '}';
+    }
+}
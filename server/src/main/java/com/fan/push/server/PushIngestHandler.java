@@ -0,0 +1,353 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 推送接入: 业务系统通过 HTTP 批量提交推送, 代替原来每个连接一个线程读标准输入(ConsoleInputRunnable)
+ *
+ * POST /push, 请求体是 JSON 数组, 每一项是一条推送:
+ * 1, {"to": "userA", "content": "...", "messageId": "可选"}
+ * 2, {"userIds": ["userA", "userB"], "content": "..."}, 同样的内容发给多个用户, 每个用户一条消息
+ * 不带 messageId 的由这里生成(前缀 + 递增序号, 不用 UUID.randomUUID, 它要走 SecureRandom).
+ * 一个请求里同一个接收者同一个 messageId 出现多次的, 只算一条(重发管理器里同一个 messageId 本来就只有一条)
+ * 一个请求里的消息一起交给 PushServer.sendMsgAsync(List): 每个用户只刷新一次, 不在线的用户一次写离线消息
+ *
+ * 默认不等结果, 交给 PushServer 之后马上返回 202 {"accepted": N}.
+ * 带 ?wait=true 的话, 全部消息都有了结果(参考 DeliveryStatus)再返回 200 {"accepted": N, "delivered": .., "storedOffline": .., "forwarded": .., "expired": ..}.
+ * 等待不占线程, 最后一个结果完成时写响应; 等待期间这个连接暂停读, 流水线(pipelining)发来的后续请求的响应不会跑到前面去.
+ * 最多等 waitTimeoutMillis(-Dfanpush.ingestWaitTimeoutMillis), 到时间还没有结果的, 返回 202 和目前的计数, 加上还没有结果的条数 "pending", 恢复读
+ *
+ * 跑在 PushServer 的 bossGroup / workerGroup 上, 不额外起线程. 请求体用 Gson 的 JsonReader 流式解析, 不建 JSON 树
+ * @Author: fan
+ * @Date: 2021-01-09 10:00
+ * @Modify: 2021-01-09 重复的 messageId 去重, 等待超时
+ *          2021-01-09 不接受含有 # 的 userId
+ */
+@ChannelHandler.Sharable
+public class PushIngestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    public static final String PATH = "/push";
+
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final PushServer pushServer;
+
+    // ?wait=true 最多等多久
+    private final long waitTimeoutMillis;
+
+    // 生成 messageId 的前缀, 每个实例不同: 服务器重启之后不会和之前的离线消息重复
+    private final String messageIdPrefix = "ingest-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    public PushIngestHandler(PushServer pushServer) {
+        this(pushServer, ServerOptions.DEFAULT_INGEST_WAIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * constructor
+     *
+     * @param pushServer
+     * @param waitTimeoutMillis ?wait=true 最多等多久
+     */
+    public PushIngestHandler(PushServer pushServer, long waitTimeoutMillis) {
+        if (waitTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("PushIngestHandler constructor , waitTimeoutMillis must be positive");
+        }
+        this.pushServer = pushServer;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * 在 host:port 上开始接收推送
+     *
+     * @param pushServer
+     * @param bossGroup
+     * @param workerGroup
+     * @param channelClass    和 PushServer 用的一样(epoll 或者 nio)
+     * @param host
+     * @param port            0 表示随便分配一个
+     * @param maxRequestBytes 请求体的最大字节数, 超过的返回 413
+     * @param waitTimeoutMillis ?wait=true 最多等多久
+     * @return 监听的 channel, 关闭它就停止
+     * @throws InterruptedException
+     */
+    public static Channel bind(PushServer pushServer, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                               Class<? extends ServerChannel> channelClass, String host, int port,
+                               final int maxRequestBytes, long waitTimeoutMillis) throws InterruptedException {
+        final PushIngestHandler handler = new PushIngestHandler(pushServer, waitTimeoutMillis);
+        ChannelFuture future = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(channelClass)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast("httpServerCodec", new HttpServerCodec());
+                        ch.pipeline().addLast("httpObjectAggregator", new HttpObjectAggregator(maxRequestBytes));
+                        ch.pipeline().addLast("pushIngestHandler", handler);
+                    }
+                })
+                .bind(host, port).sync();
+        logger.info("推送接入启动, http://{}{}", future.channel().localAddress(), PATH);
+        return future.channel();
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        final boolean keepAlive = HttpUtil.isKeepAlive(request);
+        QueryStringDecoder query = new QueryStringDecoder(request.uri());
+        if (!PATH.equals(query.path())) {
+            reject(ctx, keepAlive, HttpResponseStatus.NOT_FOUND, "try POST " + PATH);
+            return;
+        }
+        if (!HttpMethod.POST.equals(request.method())) {
+            reject(ctx, keepAlive, HttpResponseStatus.METHOD_NOT_ALLOWED, "only POST is supported");
+            return;
+        }
+
+        List<Message> messages;
+        try {
+            messages = parse(request.content());
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            // JsonReader 格式错误抛 IOException(MalformedJsonException), 类型不对抛 IllegalStateException
+            reject(ctx, keepAlive, HttpResponseStatus.BAD_REQUEST, String.valueOf(e.getMessage()));
+            return;
+        }
+
+        List<Future<DeliveryStatus>> futures = pushServer.sendMsgAsync(messages);
+        pushServer.getMetrics().onIngested(messages.size());
+
+        List<String> wait = query.parameters().get("wait");
+        if (wait == null || !Boolean.parseBoolean(wait.get(0)) || futures.isEmpty()) {
+            respond(ctx, keepAlive, HttpResponseStatus.ACCEPTED, "{\"accepted\":" + messages.size() + "}");
+            return;
+        }
+
+        // 等全部结果: 先暂停读, 最后一个结果完成时(可能在别的线程)或者超时的时候写响应, 再恢复读. 两个谁先到谁写, 只写一次
+        ctx.channel().config().setAutoRead(false);
+        final int accepted = messages.size();
+        final AtomicIntegerArray counts = new AtomicIntegerArray(DeliveryStatus.values().length);
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final AtomicBoolean responded = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (responded.compareAndSet(false, true)) {
+                    pushServer.getMetrics().onIngestWaitTimeout();
+                    respondCounts(ctx, keepAlive, HttpResponseStatus.ACCEPTED, accepted, counts, remaining.get());
+                }
+            }
+        }, waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        GenericFutureListener<Future<DeliveryStatus>> listener = new GenericFutureListener<Future<DeliveryStatus>>() {
+            @Override
+            public void operationComplete(Future<DeliveryStatus> future) throws Exception {
+                counts.incrementAndGet(future.getNow().ordinal());
+                if (remaining.decrementAndGet() == 0 && responded.compareAndSet(false, true)) {
+                    timeout.cancel(false);
+                    respondCounts(ctx, keepAlive, HttpResponseStatus.OK, accepted, counts, 0);
+                }
+            }
+        };
+        for (Future<DeliveryStatus> future : futures) {
+            future.addListener(listener);
+        }
+    }
+
+    /**
+     * 等待的结果: 各种结果的条数, 超时的时候再加上还没有结果的条数
+     */
+    private static void respondCounts(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status,
+                                      int accepted, AtomicIntegerArray counts, int pending) {
+        StringBuilder body = new StringBuilder();
+        body.append("{\"accepted\":").append(accepted)
+                .append(",\"delivered\":").append(counts.get(DeliveryStatus.DELIVERED.ordinal()))
+                .append(",\"storedOffline\":").append(counts.get(DeliveryStatus.STORED_OFFLINE.ordinal()))
+                .append(",\"forwarded\":").append(counts.get(DeliveryStatus.FORWARDED.ordinal()))
+                .append(",\"expired\":").append(counts.get(DeliveryStatus.EXPIRED.ordinal()));
+        if (pending > 0) {
+            body.append(",\"pending\":").append(pending);
+        }
+        respond(ctx, keepAlive, status, body.append('}'));
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    /**
+     * 解析请求体, 每个接收者一条 1004 消息
+     */
+    private List<Message> parse(ByteBuf content) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        // 带了 messageId 的推送: 接收者 + messageId, 用来去重. 大多数请求不带 messageId, 用到时才创建
+        Set<String> explicitIds = null;
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteBufInputStream(content), CharsetUtil.UTF_8));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                explicitIds = readPush(reader, messages, explicitIds);
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
+        return messages;
+    }
+
+    /**
+     * 读一项推送, 每个接收者一条消息加到 messages 里
+     *
+     * @return explicitIds, 第一次遇到带 messageId 的推送时创建
+     */
+    private Set<String> readPush(JsonReader reader, List<Message> messages, Set<String> explicitIds) throws IOException {
+        String to = null;
+        List<String> userIds = null;
+        String content = null;
+        String messageId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("to".equals(name)) {
+                to = reader.nextString();
+            } else if ("userIds".equals(name)) {
+                userIds = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    userIds.add(reader.nextString());
+                }
+                reader.endArray();
+            } else if ("content".equals(name)) {
+                content = reader.nextString();
+            } else if ("messageId".equals(name)) {
+                messageId = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (to == null && (userIds == null || userIds.isEmpty())) {
+            throw new IllegalArgumentException("push without to or userIds");
+        }
+        if (messageId != null && explicitIds == null) {
+            explicitIds = new HashSet<>();
+        }
+        if (to != null) {
+            addMessage(messages, explicitIds, to, content, messageId);
+        }
+        if (userIds != null) {
+            for (String userId : userIds) {
+                addMessage(messages, explicitIds, userId, content, messageId);
+            }
+        }
+        return explicitIds;
+    }
+
+    /**
+     * 同一个接收者同一个 messageId 已经有了的话跳过: 重发管理器里它们会合成一条, 只会有一个结果
+     */
+    private void addMessage(List<Message> messages, Set<String> explicitIds, String userId, String content, String messageId) {
+        if (messageId != null && !explicitIds.add(userId + '\u0000' + messageId)) {
+            return;
+        }
+        messages.add(newMessage(userId, content, messageId));
+    }
+
+    private Message newMessage(String userId, String content, String messageId) {
+        if (userId.isEmpty()) {
+            throw new IllegalArgumentException("empty userId");
+        }
+        if (!Session.isValidUserId(userId)) {
+            throw new IllegalArgumentException("userId can not contain '" + Session.KEY_SEPARATOR + "': " + userId);
+        }
+        // 不用 Message(int, String, String): 它生成 UUID
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId != null ? messageId : messageIdPrefix + nextMessageId.incrementAndGet());
+        message.setFrom("server");
+        message.setTo(userId);
+        message.setContent(content);
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+
+    private void reject(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status, String error) {
+        pushServer.getMetrics().onIngestRejected();
+        StringBuilder body = new StringBuilder("{\"error\":\"");
+        for (int i = 0; i < error.length(); i++) {
+            char c = error.charAt(i);
+            if (c == '"' || c == '\\') {
+                body.append('\\').append(c);
+            } else if (c >= ' ') {
+                body.append(c);
+            }
+        }
+        respond(ctx, keepAlive, status, body.append("\"}"));
+    }
+
+    private static void respond(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status, CharSequence body) {
+        ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), body);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.warn("推送接入请求异常: {}", cause.toString());
+        ctx.close();
+    }
+}
@@ -0,0 +1,661 @@
+package com.fan.push.server;
+
+import com.fan.push.cluster.ClusterNode;
+import com.fan.push.cluster.ClusterNodeControl;
+import com.fan.push.codec.EncodedMessage;
+import com.fan.push.codec.MessageDecoder;
+import com.fan.push.codec.MessageEncoder;
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+import com.fan.push.metrics.MetricsHttpHandler;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.internal.StringUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+
+/**
+ * @Description: 服务器启动类
+ *
+ * 配置了 nodeId(-Dfanpush.nodeId)就是集群模式, 不在本机的用户的消息转发到用户所在的节点, 参考 ClusterNode
+ * 指标(ServerMetrics)注册到 JMX, 配置了 metricsPort(-Dfanpush.metricsPort)的话同时在这个端口上提供 HTTP 的 /metrics
+ * 需要知道推送结果的调用者用 sendMsgAsync, 参考 DeliveryStatus
+ * 配置了 ingestPort(-Dfanpush.ingestPort)的话, 业务系统可以通过这个端口上的 HTTP POST /push 批量提交推送, 参考 PushIngestHandler
+ * @Author: fan
+ * @Date: 2020-9-19 11:19
+ * @Modify: 2021-01-04 集群模式
+ *          2021-01-06 指标
+ *          2021-01-08 start() / stop(), 可以在别的程序里启动和关闭
+ *          2021-01-09 sendMsgAsync, 推送接入
+ *          2021-01-09 腾空操作注册到 JMX
+ *          2021-01-09 sendMsg 检查 userId
+ */
+public class PushServer {
+
+    public static void main(String[] args) {
+        PushServer pushServer = new PushServer(ServerOptions.fromSystemProperties());
+        pushServer.bind();
+    }
+
+    // 服务端配置: 端口, 传输方式, 线程数, socket 参数
+    private final ServerOptions options;
+
+    public PushServer() {
+        this(new ServerOptions());
+    }
+
+    public PushServer(ServerOptions options) {
+        if (options == null) {
+            throw new IllegalArgumentException("PushServer constructor , options can not be null");
+        }
+        this.options = options;
+        this.metrics = new ServerMetrics(this);
+        this.messageRetryManager = new MessageRetryManager(this);
+    }
+
+    public ServerOptions getOptions() {
+        return options;
+    }
+
+    // 消息重发管理器, 要用到 options, 在构造方法中创建
+    public MessageRetryManager messageRetryManager;
+
+    // 主题订阅关系
+    public TopicRegistry topicRegistry = new TopicRegistry();
+
+    // 这个节点上的在线会话
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
+
+    public SessionRegistry getSessionRegistry() {
+        return sessionRegistry;
+    }
+
+    // 集群模式下的节点, 单机模式为 null
+    private volatile ClusterNode clusterNode;
+
+    public ClusterNode getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * 加入集群, 要在开始接受客户端连接之前调用, 参考 ClusterNode.start()
+     *
+     * @param clusterNode 可以为 null(单机模式)
+     */
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    // 全部连接的出站队列统计
+    private final OutboundQueueMetrics outboundQueueMetrics = new OutboundQueueMetrics();
+
+    public OutboundQueueMetrics getOutboundQueueMetrics() {
+        return outboundQueueMetrics;
+    }
+
+    // 连接, 推送, 回执等指标, 要用到 sessionRegistry 和 outboundQueueMetrics, 在构造方法中创建
+    private final ServerMetrics metrics;
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 发送(推送)消息给 userId
+     *
+     * @param userId            客户端userId
+     * @param message           消息
+     * @param addToRetryManager 是否要加入到重发管理器中进行管理
+     */
+    public void sendMsg(String userId, Message message, boolean addToRetryManager) {
+        sendMsg(userId, message, addToRetryManager, true);
+    }
+
+    /**
+     * 发送(推送)消息给 userId 的全部在线设备
+     *
+     * 连续发送多条消息的时候(比如重发, 离线消息), 传 flush=false 只写不刷, 最后调用一次 flush(userId),
+     * 这样 N 条消息只需要一次刷新(系统调用), 而不是 N 次
+     *
+     * 只有一个设备在线时(大多数情况), 直接写 Message, 写出时分配 seq, 客户端按 seq 累积回执;
+     * 多个设备在线时, 消息只序列化一次(每种协议版本一次), 每个设备写的是同一块内存的 retainedDuplicate, 参考 broadcast.
+     * 编码好的字节里没有 seq, 客户端按 messageId 回执. 每个设备在重发管理器里记的是自己的一份拷贝, 重发时各自分配 seq
+     *
+     * 集群模式下, userId 还有设备连在别的节点上的话, 同时转发过去, 由那个节点负责重发和离线消息
+     *
+     * 本机和别的节点一个设备都不在线的话, 消息记在 userId 下面, 下一个(在本机)上线的设备会作为离线消息收到
+     *
+     * userId 为空或者含有 Session.KEY_SEPARATOR 的话抛出 IllegalArgumentException, 参考 Session.deliveryKey
+     *
+     * @param userId            客户端userId
+     * @param message           消息
+     * @param addToRetryManager 是否要加入到重发管理器中进行管理
+     * @param flush             是否立即刷新
+     */
+    public void sendMsg(String userId, Message message, boolean addToRetryManager, boolean flush) {
+        if (!Session.isValidUserId(userId)) {
+            throw new IllegalArgumentException("sendMsg invalid userId: " + userId);
+        }
+        ClusterNode node = clusterNode;
+        boolean forwarded = node != null && node.forward(userId, message);
+        if (!deliverLocally(userId, message, addToRetryManager, flush) && !forwarded && addToRetryManager) {
+            messageRetryManager.add(userId, message);
+        }
+    }
+
+    /**
+     * 发送(推送)消息给 userId, 返回这条消息的结果, 参考 DeliveryStatus:
+     * 1, 本机有设备在线: 和 sendMsg 一样发出去并加入重发管理器, 客户端回执时完成成 DELIVERED;
+     *    一直没有回执, 设备下线或者重发次数用完, 存成离线消息之后完成成 STORED_OFFLINE
+     * 2, 本机一个设备都不在线, 转发到了集群的别的节点: FORWARDED
+     * 3, 哪里都不在线: 不再放在重发管理器里等设备上线, 直接存成 userId 下的离线消息, 写入之后完成成 STORED_OFFLINE
+     * 离线消息写入失败, 或者服务器停止时还没有结果的: EXPIRED
+     *
+     * 结果在完成它的线程上(收回执的 IO 线程, 写离线消息的线程池)通知监听器, 不另开线程, 参考 DeliveryPromise.
+     * 多个设备在线时, 以第一个结果为准
+     *
+     * @param userId  客户端userId
+     * @param message 消息, messageType 需要是 1004
+     * @return
+     */
+    public Future<DeliveryStatus> sendMsgAsync(String userId, Message message) {
+        return sendMsgAsync(userId, message, true);
+    }
+
+    /**
+     * 批量发送, 每条消息发给它的 to. 全部写完之后每个用户只刷新一次, 参考 sendMsg(..., flush);
+     * 哪里都不在线的用户, 这一批里发给他的消息一次写入离线消息
+     *
+     * @param messages 消息, messageType 需要是 1004, to 是接收者的 userId
+     * @return 和 messages 一一对应的结果
+     */
+    public List<Future<DeliveryStatus>> sendMsgAsync(List<Message> messages) {
+        List<Future<DeliveryStatus>> futures = new ArrayList<>(messages.size());
+        Set<String> userIds = new HashSet<>();
+        // 哪里都不在线的用户的消息, 每个用户攒成一批再写离线消息
+        Map<String, List<Message>> offline = new HashMap<>();
+        try {
+            for (Message message : messages) {
+                String userId = message == null ? null : message.getTo();
+                futures.add(sendMsgAsync(userId, message, false, offline));
+                userIds.add(userId);
+            }
+        } finally {
+            // 中间有不合法的消息的话, 前面已经写了的也要刷出去, 存下来
+            for (String userId : userIds) {
+                flush(userId);
+            }
+            for (Map.Entry<String, List<Message>> entry : offline.entrySet()) {
+                messageRetryManager.storeOffline(entry.getKey(), entry.getValue());
+            }
+        }
+        return futures;
+    }
+
+    private Future<DeliveryStatus> sendMsgAsync(String userId, Message message, boolean flush) {
+        return sendMsgAsync(userId, message, flush, null);
+    }
+
+    /**
+     * @param offline 不为 null 的话, 哪里都不在线的用户的消息先放在这里, 由调用者一起存; 为 null 则马上存
+     */
+    private Future<DeliveryStatus> sendMsgAsync(String userId, Message message, boolean flush, Map<String, List<Message>> offline) {
+        if (!Session.isValidUserId(userId)) {
+            throw new IllegalArgumentException("sendMsgAsync invalid userId: " + userId);
+        }
+        if (message == null || message.getMessageType() != 1004) {
+            throw new IllegalArgumentException("sendMsgAsync message must be a 1004 message");
+        }
+        DeliveryPromise promise = new DeliveryPromise();
+        message.setDeliveryPromise(promise);
+
+        ClusterNode node = clusterNode;
+        boolean forwarded = node != null && node.forward(userId, message);
+        if (!deliverLocally(userId, message, true, flush)) {
+            if (forwarded) {
+                promise.trySuccess(DeliveryStatus.FORWARDED);
+            } else if (offline == null) {
+                messageRetryManager.storeOffline(userId, Collections.singletonList(message));
+            } else {
+                List<Message> userMessages = offline.get(userId);
+                if (userMessages == null) {
+                    userMessages = new ArrayList<>();
+                    offline.put(userId, userMessages);
+                }
+                userMessages.add(message);
+            }
+        }
+        return promise;
+    }
+
+    /**
+     * 只发给本机在线的设备, 不转发. 参考 sendMsg
+     *
+     * @param userId            客户端userId
+     * @param message           消息
+     * @param addToRetryManager 是否要加入到重发管理器中进行管理
+     * @param flush             是否立即刷新
+     * @return 本机一个设备都不在线返回 false, 这时什么都不做
+     */
+    public boolean deliverLocally(String userId, Message message, boolean addToRetryManager, boolean flush) {
+
+        Session session = sessionRegistry.getIfOnline(userId);
+        if (session == null) {
+            return false;
+        }
+
+        if (session.nextDevice() == null) {
+            if (addToRetryManager) {
+                messageRetryManager.add(userId, session.getDeviceId(), message);
+            }
+            // 直接写 Message, 由 MessageEncoder 按协商好的协议版本编码
+            // 经过这个连接的出站队列, channel 不可写时排队, 参考 OutboundQueue
+            OutboundQueue.write(session.getChannel(), message, message, flush);
+            metrics.onPushSent(1);
+            return true;
+        }
+
+        int devices = 0;
+        EncodedMessage encodedMessage = new EncodedMessage(message, PooledByteBufAllocator.DEFAULT);
+        try {
+            for (; session != null; session = session.nextDevice()) {
+                devices++;
+                Message deviceMessage = message;
+                if (addToRetryManager) {
+                    // seq 记在 Message 上, 每个设备一份; sendMsgAsync 的结果是共用的
+                    deviceMessage = message.copy();
+                    deviceMessage.setDeliveryPromise(message.getDeliveryPromise());
+                    messageRetryManager.add(userId, session.getDeviceId(), deviceMessage);
+                }
+                Channel channel = session.getChannel();
+                OutboundQueue.write(channel, encodedMessage.payloadFor(channel), deviceMessage, flush);
+            }
+        } finally {
+            encodedMessage.release();
+        }
+        metrics.onPushSent(devices);
+        return true;
+    }
+
+    /**
+     * 把之前 sendMsg(..., flush=false) 写入的消息一次性刷新出去
+     *
+     * @param userId
+     */
+    public void flush(String userId) {
+        for (Session session = sessionRegistry.getIfOnline(userId); session != null; session = session.nextDevice()) {
+            OutboundQueue.flush(session.getChannel());
+        }
+    }
+
+    /**
+     * 群发消息给多个用户
+     *
+     * 消息只序列化一次(每种协议版本一次), 写给每个用户的是同一块内存的 retainedDuplicate
+     * 每个用户的每个设备在重发管理器里都有自己的记录, 但是共用同一个 Message 对象(TO_ALL 的消息不分配 seq, 不会被改动)
+     * 消息的 to 会被设置成 Message.TO_ALL, 因为同一份字节要发给所有人
+     *
+     * @param message 消息, messageType 需要是 1004
+     * @param userIds 接收者
+     * @return 实际写出的(至少有一个设备在线的)用户数
+     */
+    public int broadcast(Message message, Iterable<String> userIds) {
+        if (message == null) {
+            throw new IllegalArgumentException("broadcast message can not be null");
+        }
+        message.setTo(Message.TO_ALL);
+
+        int written = 0;
+        int devices = 0;
+        EncodedMessage encodedMessage = new EncodedMessage(message, PooledByteBufAllocator.DEFAULT);
+        try {
+            for (String userId : userIds) {
+                if (StringUtil.isNullOrEmpty(userId)) {
+                    continue;
+                }
+                Session session = sessionRegistry.getIfOnline(userId);
+                if (session == null) {
+                    messageRetryManager.add(userId, message);
+                    continue;
+                }
+                for (; session != null; session = session.nextDevice()) {
+                    messageRetryManager.add(userId, session.getDeviceId(), message);
+                    Channel channel = session.getChannel();
+                    OutboundQueue.write(channel, encodedMessage.payloadFor(channel), message, true);
+                    devices++;
+                }
+                written++;
+            }
+        } finally {
+            encodedMessage.release();
+            metrics.onPushSent(devices);
+        }
+        return written;
+    }
+
+    /**
+     * 群发消息给当前全部在线的用户(的每个设备)
+     *
+     * @param message
+     * @return 实际写出的连接数
+     */
+    public int broadcastToAllOnline(Message message) {
+        if (message == null) {
+            throw new IllegalArgumentException("broadcast message can not be null");
+        }
+        message.setTo(Message.TO_ALL);
+
+        // 直接遍历 SessionRegistry 的会话, 不拷贝, 会话里就有 channel, 不用再按 userId 查一次
+        int written = 0;
+        EncodedMessage encodedMessage = new EncodedMessage(message, PooledByteBufAllocator.DEFAULT);
+        try {
+            for (Session session : sessionRegistry.sessions()) {
+                messageRetryManager.add(session.getUserId(), session.getDeviceId(), message);
+                Channel channel = session.getChannel();
+                OutboundQueue.write(channel, encodedMessage.payloadFor(channel), message, true);
+                written++;
+            }
+        } finally {
+            encodedMessage.release();
+            metrics.onPushSent(written);
+        }
+        return written;
+    }
+
+    /**
+     * 向一个主题发布消息, 发给这个主题当前全部的订阅者
+     * 直接遍历订阅者集合的视图, 不拷贝; 消息只序列化一次, 参考 broadcast
+     *
+     * @param topic
+     * @param message 消息, messageType 需要是 1004
+     * @return 实际写出的用户数
+     */
+    public int publish(String topic, Message message) {
+        if (StringUtil.isNullOrEmpty(topic)) {
+            throw new IllegalArgumentException("publish topic can not be null");
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("publish message can not be null");
+        }
+        message.setTopic(topic);
+        return broadcast(message, topicRegistry.subscribers(topic));
+    }
+
+    /**
+     * 将消息从 重发管理器中移除
+     *
+     * @param deliveryKey 收到消息的设备, 参考 Session.getDeliveryKey(), 没有设备标识时就是 userId
+     * @param message
+     */
+    public void removeMsgFromRetryManager(String deliveryKey, Message message) {
+        if (StringUtil.isNullOrEmpty(deliveryKey)) {
+            throw new IllegalArgumentException("removeMsgFromRetryManager deliveryKey can not be null");
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("removeMsgFromRetryManager message can not be null");
+        }
+        messageRetryManager.remove(deliveryKey, message);
+    }
+
+    /**
+     * 是否使用 epoll
+     * AUTO 时看 native 库能不能加载(只有 Linux 可以); 指定 EPOLL 但是不可用时, 打印原因并回退到 NIO
+     */
+    private boolean useEpoll() {
+        ServerOptions.Transport transport = options.getTransport();
+        if (transport == ServerOptions.Transport.NIO) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        if (transport == ServerOptions.Transport.EPOLL) {
+            logger.info("epoll 不可用, 回退到 NIO: " + Epoll.unavailabilityCause());
+        }
+        return false;
+    }
+
+    // start() 创建, stop() 释放; bind 的时候 main 线程在 closeFuture 上等
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private final List<Channel> serverChannels = new ArrayList<>();
+    // start() 里创建的集群节点(-Dfanpush.nodeId), 外面通过 setClusterNode 设置的不归这里管
+    private ClusterNode startedClusterNode;
+    private Channel metricsChannel;
+    private Channel ingestChannel;
+    private ObjectName metricsMBeanName;
+    private ObjectName clusterMBeanName;
+
+    /**
+     * 服务器初始化, 绑定端口, 并开始监听, 直到服务端的 Channel 关闭
+     */
+    private void bind() {
+        try {
+            start();
+
+            // 对关闭通道进行监听
+            for (Channel channel : new ArrayList<>(serverChannels)) {
+                channel.closeFuture().sync();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * 绑定端口, 开始接受连接, 绑定成功就返回, 不等待关闭. 和 stop() 配对使用, 比如压测工具在同一个进程里启动服务端
+     *
+     * @throws Exception 绑定失败, 已经创建的资源都释放了
+     */
+    public synchronized void start() throws Exception {
+        if (bossGroup != null) {
+            throw new IllegalStateException("PushServer already started");
+        }
+
+        boolean epoll = useEpoll();
+
+        // 只有 epoll 支持 SO_REUSEPORT, 才能在同一个端口上绑定多个 ServerChannel
+        int acceptorCount = epoll ? Math.max(1, options.getAcceptorCount()) : 1;
+        // 每个 ServerChannel 注册到 bossGroup 中的一个线程上, 线程数不少于 acceptor 个数, 才能真正并行 accept
+        int bossThreads = Math.max(acceptorCount, options.getBossThreads());
+
+        Class<? extends ServerChannel> serverChannelClass;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(bossThreads);
+            workerGroup = new EpollEventLoopGroup(options.getWorkerThreads());
+            serverChannelClass = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(bossThreads);
+            workerGroup = new NioEventLoopGroup(options.getWorkerThreads());
+            serverChannelClass = NioServerSocketChannel.class;
+        }
+
+        try {
+            if (options.getNodeId() != null) {
+                startedClusterNode = new ClusterNode(this, ClusterNode.newRouteTable(options.getRouteTableClass()));
+                startedClusterNode.start();
+                setClusterNode(startedClusterNode);
+            }
+
+            ServerBootstrap serverBootstrap = new ServerBootstrap();
+
+            // 服务器端相关配置
+            serverBootstrap.group(bossGroup, workerGroup)
+                    .channel(serverChannelClass)// 指定 bossGroup 使用 EpollServerSocketChannel 或 NioServerSocketChannel 来处理连接请求
+                    .option(ChannelOption.SO_BACKLOG, options.getBacklog())
+                    .option(ChannelOption.SO_REUSEADDR, options.isReuseAddress())
+                    .childOption(ChannelOption.TCP_NODELAY, options.isTcpNoDelay())
+                    .childOption(ChannelOption.SO_KEEPALIVE, options.isKeepAlive())
+                    // 超过高水位线 Channel.isWritable() 变成 false, 低于低水位线再变回 true
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(options.getWriteBufferLowWaterMark(), options.getWriteBufferHighWaterMark()))
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)// MessageEncoder 从池化的直接内存中分配出站 ByteBuf
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        protected void initChannel(SocketChannel ch) throws Exception {
+
+                            // 出站队列, 服务端推送的消息在 channel 不可写时在这里排队
+                            OutboundQueue.install(ch, PushServer.this);
+
+                            // 刷新合并: 在一次读循环里, 或者在 EventLoop 的一轮任务里的多次 flush, 合并成一次(最多256次合并一次)
+                            // 第二个参数 true: 不在读循环中的 flush(比如业务线程推送)也会合并到 EventLoop 的下一轮再真正刷新
+                            ch.pipeline().addLast("flushConsolidationHandler", new FlushConsolidationHandler(256, true));
+
+                            // 超时处理器, 当 readerIdleSeconds(默认23秒)内未收到数据, 则触发pipeline 中的 Handler 的userEventTriggered() 方法
+                            ch.pipeline().addLast("idleStateHandler", new IdleStateHandler(options.getReaderIdleSeconds(), 0, 0, TimeUnit.SECONDS));
+                            ch.pipeline().addLast("heartBeatServerHandler", new HeartBeatServerHandler(PushServer.this));
+
+                            // LengthFieldPrepender 是个 MessageToMessageEncoder<ByteBuf>, 编码器, 出站处理器
+                            // 输入类型是ByteBuf, 输出类型也是ByteBuf
+                            ch.pipeline().addLast("lengthFieldEncoder", new LengthFieldPrepender(2));
+
+                            // LengthFieldBasedFrameDecoder:基于帧长度的解码器, 解码器, 入站处理器
+                            // 输入类型是ByteBuf, 输出类型也是ByteBuf
+                            ch.pipeline().addLast("lengthFieldDecoder", new LengthFieldBasedFrameDecoder(65535, 0, 2, 0, 2));
+
+                            // Message 的编解码, JSON 和二进制两种协议都支持, 参考 ProtocolVersion
+                            // MessageDecoder: 输入类型是ByteBuf(一个完整的帧), 输出类型是Message
+                            // MessageEncoder: 输入类型是Message, 输出类型是ByteBuf
+                            ch.pipeline().addLast("messageDecoder", new MessageDecoder());
+                            ch.pipeline().addLast("messageEncoder", new MessageEncoder());
+
+                            // 给写出去的单发业务消息分配序号, 客户端按序号累积回执
+                            ch.pipeline().addLast("messageSequenceHandler", new MessageSequenceHandler(messageRetryManager));
+
+                            ch.pipeline().addLast("serverHandler", new PushServerHandler(PushServer.this));
+                        }
+                    });
+
+            if (options.getReceiveBufferSize() > 0) {
+                serverBootstrap.childOption(ChannelOption.SO_RCVBUF, options.getReceiveBufferSize());
+            }
+            if (options.getSendBufferSize() > 0) {
+                serverBootstrap.childOption(ChannelOption.SO_SNDBUF, options.getSendBufferSize());
+            }
+            if (acceptorCount > 1) {
+                // 多个 ServerChannel 绑定同一个端口, 由内核把新连接分散到各个 acceptor 上
+                serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+
+            // 绑定端口并且同步处理
+            // 这里启动了服务器
+            for (int i = 0; i < acceptorCount; i++) {
+                serverChannels.add(serverBootstrap.bind(options.getPort()).sync().channel());
+            }
+            logger.info("PushServer 启动, port:" + options.getPort() + " transport:" + (epoll ? "epoll" : "nio") + " acceptors:" + acceptorCount);
+
+            // 指标: JMX 默认注册(-Dfanpush.jmxEnabled=false 关闭); HTTP 跑在同样的 bossGroup / workerGroup 上, 不额外起线程
+            if (options.isJmxEnabled()) {
+                metricsMBeanName = MetricsMBean.register(metrics.getRegistry(), "com.fan.push:type=Metrics,port=" + options.getPort());
+                // 腾空操作也放在 JMX 上, 参考 ClusterNodeControl
+                if (startedClusterNode != null) {
+                    clusterMBeanName = ClusterNodeControl.register(startedClusterNode, "com.fan.push:type=Cluster,port=" + options.getPort());
+                }
+            }
+            if (options.getMetricsPort() >= 0) {
+                metricsChannel = MetricsHttpHandler.bind(metrics.getRegistry(), bossGroup, workerGroup, serverChannelClass,
+                        options.getMetricsHost(), options.getMetricsPort());
+            }
+
+            // 推送接入, 同样跑在 bossGroup / workerGroup 上
+            if (options.getIngestPort() >= 0) {
+                ingestChannel = PushIngestHandler.bind(this, bossGroup, workerGroup, serverChannelClass,
+                        options.getIngestHost(), options.getIngestPort(), options.getIngestMaxRequestBytes(),
+                        options.getIngestWaitTimeoutMillis());
+            }
+        } catch (Exception e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * 服务端实际监听的地址, 端口配置成 0 的时候用来拿到分配的端口
+     *
+     * @return 没有启动返回 null
+     */
+    public synchronized InetSocketAddress localAddress() {
+        return serverChannels.isEmpty() ? null : (InetSocketAddress) serverChannels.get(0).localAddress();
+    }
+
+    /**
+     * 推送接入实际监听的地址, 参考 PushIngestHandler
+     *
+     * @return 没有启动或者没有开启推送接入返回 null
+     */
+    public synchronized InetSocketAddress ingestAddress() {
+        return ingestChannel == null ? null : (InetSocketAddress) ingestChannel.localAddress();
+    }
+
+    /**
+     * 关闭服务端的 Channel 和线程, 释放 start() 创建的资源, 可以重复调用
+     */
+    public synchronized void stop() {
+        for (Channel channel : serverChannels) {
+            channel.close();
+        }
+        serverChannels.clear();
+        if (ingestChannel != null) {
+            ingestChannel.close();
+            ingestChannel = null;
+        }
+        if (metricsChannel != null) {
+            metricsChannel.close();
+            metricsChannel = null;
+        }
+        if (metricsMBeanName != null) {
+            MetricsMBean.unregister(metricsMBeanName);
+            metricsMBeanName = null;
+        }
+        if (clusterMBeanName != null) {
+            ClusterNodeControl.unregister(clusterMBeanName);
+            clusterMBeanName = null;
+        }
+        if (startedClusterNode != null) {
+            setClusterNode(null);
+            startedClusterNode.stop();
+            startedClusterNode = null;
+        }
+        if (bossGroup != null) {
+            // 等 worker 线程退出: 关闭时客户端连接的 channelInactive 还要把在途消息交给重发管理器存离线, 之后才能关掉重发管理器
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully().syncUninterruptibly();
+            bossGroup = null;
+            workerGroup = null;
+            messageRetryManager.shutdown();
+        }
+    }
+}
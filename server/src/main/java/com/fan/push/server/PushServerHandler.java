@@ -1,38 +1,37 @@
 package com.fan.push.server;
 
-import com.fan.push.client.InputScannerRunnable;
+import com.fan.push.cluster.ClusterNode;
+import com.fan.push.codec.ProtocolVersion;
 import com.fan.push.message.Message;
-import com.fan.push.util.GsonUtil;
 import com.fan.push.util.StackTraceUtil;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.net.InetSocketAddress;
+import java.util.Collections;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.DecoderException;
-import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.Signal;
 
-import static com.fan.push.client.PushClient.MY_CLIENT_USER_ID;
 import static com.fan.push.util.LoggerUtil.logger;
 
 /**
  * @Description: 服务器消息处理器
  * @Author: fan
  * @Date: 2020-9-19 11:19
- * @Modify:
+ * @Modify: 2021-01-05 集群模式下握手重定向
+ *          2021-01-06 连接数, 握手, 回执的指标
+ *          2021-01-07 握手的 userId 从 ServerOptions 读取, 不再依赖 client 包
+ *          2021-01-08 可以关掉每个连接读标准输入的线程
+ *          2021-01-09 去掉每个连接读标准输入的线程
+ *          2021-01-09 不接受含有 # 的 userId / deviceId
  */
 public class PushServerHandler extends ChannelInboundHandlerAdapter {
 
-    // 用于统计, 当前有多少客户端连接了
-    private static final AtomicInteger channelCounter = new AtomicInteger(0);
-
     // 持有一个PushServer的引用, 方便后续发送消息等相关操作
     private PushServer pushServer;
 
@@ -53,12 +52,12 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        int count = channelCounter.incrementAndGet();
+        // 用于统计, 当前有多少客户端连接了, 参考 ServerMetrics
+        pushServer.getMetrics().onConnect();
 
-        logger.info("Connects with {} as the {}th channel.", ctx.channel(), count);
+        logger.info("Connects with {} as the {}th channel.", ctx.channel(), pushServer.getMetrics().getConnections());
 
-        // 开启一个线程, 用于从标准输入读取数据(作为业务数据)并发送到客户端
-        new Thread(new InputScannerRunnable(ctx, true, pushServer)).start();
+        // 不再每个连接开一个线程读标准输入, 推送从推送接入端口进来, 参考 PushIngestHandler
 
         super.channelActive(ctx);
     }
@@ -77,15 +76,20 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
         // 2, 然后把这个用户设置成离线状态
         // 3, 最后把这个连接关掉
 
-        int count = channelCounter.getAndDecrement();
-
-        logger.warn("Disconnects with {} as the {}th channel.", ctx.channel(), count);
+        logger.warn("Disconnects with {} as the {}th channel.", ctx.channel(), pushServer.getMetrics().getConnections());
+        pushServer.getMetrics().onDisconnect();
 
-        // 根据channel 拿到 客户端的userId, 然后把
-        String userId = ChannelHolder.getInstance().getUserIdByChannel(ctx.channel());
-        pushServer.messageRetryManager.onUserOffline(userId);
+        // 根据channel 拿到 客户端的会话, 只处理这一个设备, 用户的其他设备不受影响
+        // 同一个设备已经在新连接上重新登录了的话返回 null: 在途消息已经归新连接, 不能当成离线消息存起来
+        Session session = pushServer.getSessionRegistry().offline(ctx.channel());
+        if (session != null) {
+            pushServer.messageRetryManager.onUserOffline(session.getDeliveryKey());
 
-        ChannelHolder.getInstance().offline(ctx.channel());
+            // 订阅关系跟着用户走, 最后一个设备也下线了才清掉; 客户端重新握手后会自己再订阅
+            if (!pushServer.getSessionRegistry().isOnline(session.getUserId())) {
+                pushServer.topicRegistry.unsubscribeAll(session.getUserId());
+            }
+        }
         ctx.close();
     }
 
@@ -93,20 +97,11 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         Channel ch = ctx.channel();
 
-        if (msg instanceof ByteBuf) {
-            ByteBuf byteBuf = (ByteBuf) msg;
+        // MessageDecoder 已经把帧解码成 Message 了
+        if (msg instanceof Message) {
+            Message message = (Message) msg;
 
-            String messageStr = byteBuf.toString(CharsetUtil.UTF_8);
-
-            // 需要定好编码规则, 应该统一使用UTF-8的编码
-            logger.info("收到客户端的消息:" + messageStr); // Magic Socket Debugger 用UTF-8编码
-
-
-            Message message = GsonUtil.getInstance().fromJson(messageStr, Message.class);
-
-            if (message == null) {
-                return;
-            }
+            logger.info("收到客户端的消息: {}", message);
 
             // 先判断一下消息是不是给自己的?
             if (!"server".equals(message.getTo())) {
@@ -117,27 +112,46 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
             if (1001 == message.getMessageType()) {// 握手消息
 
 
-                if (message.getFrom().equals(MY_CLIENT_USER_ID)) {
+                if (isAcceptedUser(message.getFrom()) && Session.isValidDeviceId(message.getDeviceId())) {
+
+                    // 集群模式下, 这个用户应该在别的节点上(一致性哈希), 让客户端直接去连那个节点, 不进入本节点的会话表
+                    // 已经被重定向过一次的(握手带 status=2)不再重定向: 节点之间的哈希环短时间不一致时, 不会来回跳
+                    ClusterNode clusterNode = pushServer.getClusterNode();
+                    InetSocketAddress redirect = clusterNode == null || message.getStatus() == 2 ? null : clusterNode.redirectFor(message.getFrom());
+                    if (redirect != null) {
+                        pushServer.getMetrics().onRedirect();
+                        ctx.channel().writeAndFlush(ClusterNode.redirectMessage(message.getFrom(), redirect));
+                        return;
+                    }
 
                     // 握手成功
-                    // 先把channel 加入Map 进行管理
+                    // 先把channel 加入Map 进行管理, 带了 deviceId 的话, 和这个用户的其他设备同时在线
                     // 回复一个握手成功
 
-                    ChannelHolder.getInstance().online(ctx.channel(), message.getFrom());
+                    Session session = pushServer.getSessionRegistry().online(ctx.channel(), message.getFrom(), message.getDeviceId());
+                    pushServer.getMetrics().onHandshake();
 
-                    Message handshakeSuccessMessage = new Message(1001, "server", MY_CLIENT_USER_ID);
-                    handshakeSuccessMessage.setStatus(1);
-                    ctx.channel().writeAndFlush(Unpooled.wrappedBuffer(GsonUtil.getInstance().toJson(handshakeSuccessMessage).getBytes(CharsetUtil.UTF_8)));
+                    // 协商协议版本, 放在握手成功的响应中告诉客户端
+                    int protocolVersion = ProtocolVersion.negotiate(message.getProtocolVersion());
 
-                    // 刚刚握手成功, 把之前所有的离线消息发送
-                    pushServer.messageRetryManager.onUserOnline(message.getFrom());
+                    Message handshakeSuccessMessage = new Message(1001, "server", message.getFrom());
+                    handshakeSuccessMessage.setStatus(1);
+                    handshakeSuccessMessage.setProtocolVersion(protocolVersion);
+                    // 握手响应本身还是用 JSON 发送(当前在 EventLoop 中, writeAndFlush 会立即编码)
+                    ctx.channel().writeAndFlush(handshakeSuccessMessage);
+                    // 之后的消息都使用协商好的版本
+                    ProtocolVersion.set(ctx.channel(), protocolVersion);
+
+                    // 刚刚握手成功, 把这个设备之前所有的离线消息发送
+                    pushServer.messageRetryManager.onUserOnline(session);
                 } else {
                     // 握手失败, 先将Channel 移出管理
-                    ChannelHolder.getInstance().offline(ctx.channel());
+                    pushServer.getSessionRegistry().offline(ctx.channel());
+                    pushServer.getMetrics().onHandshakeFailed();
                     // 发送一条握手失败的消息给客户端, 客户端就可以直接关闭自己的连接了
-                    Message handshakeFailMessage = new Message(1001, "server", MY_CLIENT_USER_ID);
+                    Message handshakeFailMessage = new Message(1001, "server", message.getFrom());
                     handshakeFailMessage.setStatus(-1);
-                    ctx.channel().writeAndFlush(Unpooled.wrappedBuffer(GsonUtil.getInstance().toJson(handshakeFailMessage).getBytes(CharsetUtil.UTF_8)));
+                    ctx.channel().writeAndFlush(handshakeFailMessage);
                     // 服务端也关掉与客户端的连接
                     // ctx.close();
                     // 感觉这里调用 ctx.close() 会有问题吧.
@@ -149,15 +163,43 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
             } else if (1002 == message.getMessageType()) { // ping 消息
                 Message pongMessage = Message.obtainPongMessage();
                 pongMessage.setTo(message.getFrom());
-                ctx.channel().writeAndFlush(Unpooled.wrappedBuffer(GsonUtil.getInstance().toJson(pongMessage).getBytes(CharsetUtil.UTF_8)));
+                ctx.channel().writeAndFlush(pongMessage);
             } else if (1003 == message.getMessageType()) {
                 // 服务端不会收到pong消息
             } else if (1004 == message.getMessageType()) {
                 if (message.getStatus() == 1) { // 客户端正常收到消息, 发来回执
-                    if (pushServer != null) {
-                        pushServer.removeMsgFromRetryManager(message.getFrom(), message);
+                    // 回执只对发回执的这个设备有效, seq 也是这个连接上的
+                    Session session = SessionRegistry.sessionOf(ch);
+                    if (pushServer != null && session != null) {
+                        // 合并的回执: seq <= ackSeq 的都收到了, 再加上 sack 区间和 ackIds, 一次处理完
+                        int acked = 0;
+                        if (message.getAckSeq() != 0 || message.getSack() != null || message.getAckIds() != null) {
+                            acked += pushServer.messageRetryManager.acknowledge(session.getDeliveryKey(), message.getAckSeq(), message.getSack(), message.getAckIds());
+                        }
+                        // 老客户端一条消息一个回执, 按 messageId. 和合并的回执走同一个方法, 回执延迟也记上
+                        if (message.getMessageId() != null) {
+                            acked += pushServer.messageRetryManager.acknowledge(session.getDeliveryKey(), 0, null, Collections.singletonList(message.getMessageId()));
+                        }
+                        pushServer.getMetrics().onAck(acked);
                     }
                 }
+            } else if (1005 == message.getMessageType() || 1006 == message.getMessageType()) { // 订阅/退订主题
+                // 只处理已经握手成功的连接, 并且以握手时的 userId 为准
+                String userId = pushServer.getSessionRegistry().getUserIdByChannel(ch);
+                if (userId == null || userId.isEmpty() || message.getTopic() == null) {
+                    return;
+                }
+
+                if (1005 == message.getMessageType()) {
+                    pushServer.topicRegistry.subscribe(message.getTopic(), userId);
+                } else {
+                    pushServer.topicRegistry.unsubscribe(message.getTopic(), userId);
+                }
+
+                Message replyMessage = new Message(message.getMessageType(), "server", userId);
+                replyMessage.setTopic(message.getTopic());
+                replyMessage.setStatus(1);
+                ch.writeAndFlush(replyMessage);
             }
         } else {
             logger.warn("Unexpected message type received: {}, channel: {}.", msg.getClass(), ch);
@@ -165,6 +207,25 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * 握手认证: 配置了 handshakeUserId 就只接受这一个用户, 否则接受任何非空的 userId.
+     * 含有 Session.KEY_SEPARATOR 的 userId 不接受, 参考 Session.deliveryKey
+     *
+     * @param userId 握手消息的 from
+     * @return
+     */
+    private boolean isAcceptedUser(String userId) {
+        if (!Session.isValidUserId(userId)) {
+            return false;
+        }
+        String accepted = pushServer.getOptions().getHandshakeUserId();
+        return accepted == null || accepted.isEmpty() || accepted.equals(userId);
+    }
+
+    /**
+     * 不再用 setAutoRead 来限流: 写不出去的时候还要继续读这个客户端的回执.
+     * 不可写期间服务端要发的消息在 OutboundQueue 中排队, 变回可写时写出去
+     */
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel ch = ctx.channel();
@@ -178,8 +239,6 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
                 logger.warn("{} is not writable, high water mask: {}, the number of flushed entries that are not written yet: {}.",
                         ch, config.getWriteBufferHighWaterMark(), ch.unsafe().outboundBuffer().size());
             }
-
-            config.setAutoRead(false);
         } else {
             // 曾经高于高水位线的OutboundBuffer现在已经低于WRITE_BUFFER_LOW_WATER_MARK了
             if (logger.isWarnEnabled()) {
@@ -187,8 +246,13 @@ public class PushServerHandler extends ChannelInboundHandlerAdapter {
                         ch, config.getWriteBufferLowWaterMark(), ch.unsafe().outboundBuffer().size());
             }
 
-            config.setAutoRead(true);
+            // 先写排队的消息
+            OutboundQueue.drain(ch);
+
+            // 离线消息回放因为不可写暂停了的话, 接着发
+            OfflineMessageReplayer.resume(ch);
         }
+        ctx.fireChannelWritabilityChanged();
     }
 
     /**
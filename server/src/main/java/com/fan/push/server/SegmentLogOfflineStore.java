@@ -0,0 +1,710 @@
+package com.fan.push.server;
+
+import com.fan.push.codec.BinaryMessageCodec;
+import com.fan.push.codec.ProtocolVersion;
+import com.fan.push.message.Message;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.StringUtil;
+
+import static com.fan.push.util.LoggerUtil.logger;
+
+/**
+ * @Description: 基于本地磁盘只追加日志的离线消息存储
+ *
+ * 原来是用一个全局的 ArrayList 模拟数据库: 保存时 contains/indexOf 逐个比较, 是 O(n²) 的; 读取时不管 userId, 把所有人的离线消息都给了第一个上线的用户.
+ *
+ * 这里的做法:
+ *
+ * 1, 磁盘上是一组段文件(00000000000000000001.log, 00000000000000000002.log ...), 只追加写, 当前段超过 segmentSize 就换下一个段
+ * 2, 每条记录: [4字节 body 长度][4字节 body 的 CRC32][body], body 是 [1字节类型][2字节 userId 长度][userId][内容]
+ *      PUT     内容是 BinaryMessageCodec 按 v2 编码的消息(不带 seq, 序号是写给某个连接时才分配的)
+ *      CONSUME 内容是8字节的地址, 表示这个用户地址 <= 它的 PUT 都已经被取走了
+ * 3, 内存中的索引: userId -> 这个用户的 PUT 记录地址(long: 段号 << 32 | 段内偏移), 按写入顺序排列. 每条消息只占8字节, 消息内容不在内存里
+ *    保存是追加一个地址, 取出是从头部摘下地址再按地址读盘, 都只和这个用户自己的消息数有关
+ * 4, 批量写(组提交): 多个线程同时 save 时, 第一个拿到写锁的线程把所有人攒下的记录一次 write(+ fsync), 其他线程等它写完直接返回
+ * 5, 崩溃恢复: 启动时顺序扫描全部段重建索引. 最后一个段末尾写了一半或者校验失败的记录会被截掉
+ * 6, 空间回收: 一个段里的 PUT 全部被取走后, 如果它是最老的段, 就直接删除文件
+ *    (只从最老的段开始删, 保证 CONSUME 记录指向的 PUT 要么还在, 要么已经跟着更老的段一起删掉了)
+ *    一直不上线的用户会让他的消息所在的段一直保留, 需要的话再加过期清理
+ *
+ * 同一个 messageId 重复保存时, 在同一次 poll 里只返回一次. 如果两条重复的记录被拆到了两次 poll 里, 客户端会再收到一次, 由客户端按 messageId 去重
+ * @Author: fan
+ * @Date: 2020-12-22 14:10
+ * @Modify:
+ */
+public class SegmentLogOfflineStore implements OfflineMessageStore {
+
+    // 默认的段大小
+    public static final long DEFAULT_SEGMENT_SIZE = 128L * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_LENGTH = 8;
+
+    // 读盘时每次至少读这么多
+    private static final int READ_CHUNK_SIZE = 4096;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_CONSUME = 2;
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    // 每批写完是否 fsync. 不 fsync 时进程崩溃不丢数据(已经在操作系统的页缓存里了), 机器掉电可能丢最后一点
+    private final boolean fsync;
+
+    // 段号 -> 段, 按段号排序, 第一个是最老的段
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // 当前写入的段, 只有持有 writeLock 的线程修改
+    private volatile Segment activeSegment;
+
+    // userId -> 这个用户的 PUT 记录地址
+    private final ConcurrentHashMap<String, UserIndex> index = new ConcurrentHashMap<>();
+
+    // 保护 pendingBatch 和 appendedSequence
+    private final Object appendLock = new Object();
+    // 同一时刻只有一个线程在写文件
+    private final Object writeLock = new Object();
+
+    private Batch pendingBatch = new Batch();
+    private long appendedSequence;
+    // 已经写到文件的最大序号, 只在持有 writeLock 时访问
+    private long writtenSequence;
+
+    // 写文件出错后, 存储不再可用
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    public SegmentLogOfflineStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    public SegmentLogOfflineStore(File directory, long segmentSize, boolean fsync) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("SegmentLogOfflineStore constructor , directory can not be null");
+        }
+        if (segmentSize <= HEADER_LENGTH || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("SegmentLogOfflineStore constructor , invalid segmentSize:" + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create directory:" + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        recover();
+    }
+
+    @Override
+    public void save(String userId, List<Message> messageList) throws IOException {
+        if (StringUtil.isNullOrEmpty(userId) || messageList == null || messageList.isEmpty()) {
+            return;
+        }
+
+        // 编码放在锁外面
+        byte[] userIdBytes = userIdBytes(userId);
+        ByteBuf records = Unpooled.buffer(messageList.size() * 128);
+        int[] recordOffsets = new int[messageList.size()];
+        try {
+            for (int i = 0; i < messageList.size(); i++) {
+                recordOffsets[i] = records.writerIndex();
+                writePutRecord(records, userIdBytes, messageList.get(i));
+            }
+            append(userId, records, recordOffsets);
+        } finally {
+            records.release();
+        }
+    }
+
+    @Override
+    public List<Message> poll(String userId, int maxCount) throws IOException {
+        checkUsable();
+        if (StringUtil.isNullOrEmpty(userId) || maxCount <= 0) {
+            return Collections.emptyList();
+        }
+        UserIndex userIndex = index.get(userId);
+        if (userIndex == null) {
+            return Collections.emptyList();
+        }
+
+        long[] addresses;
+        synchronized (userIndex) {
+            addresses = userIndex.takeFirst(maxCount);
+            if (userIndex.isEmpty()) {
+                userIndex.removed = true;
+                index.remove(userId, userIndex);
+            }
+        }
+        if (addresses.length == 0) {
+            return Collections.emptyList();
+        }
+
+        // 按 messageId 去重: 位置取第一次出现的, 内容取最后一次出现的
+        List<Message> messageList = readMessages(addresses);
+        LinkedHashMap<String, Message> messageMap = new LinkedHashMap<>();
+        for (int i = 0; i < addresses.length; i++) {
+            Message message = messageList.get(i);
+            String key = message.getMessageId() != null ? message.getMessageId() : "#" + addresses[i];
+            messageMap.put(key, message);
+        }
+
+        // 记录已经取到哪里了, 重启后不会再取出来
+        ByteBuf record = Unpooled.buffer(32);
+        try {
+            writeConsumeRecord(record, userIdBytes(userId), addresses[addresses.length - 1]);
+            append(null, record, null);
+        } finally {
+            record.release();
+        }
+
+        for (long address : addresses) {
+            Segment segment = segments.get(segmentId(address));
+            if (segment != null) {
+                segment.live.decrementAndGet();
+            }
+        }
+        deleteConsumedSegments();
+
+        return new ArrayList<>(messageMap.values());
+    }
+
+    @Override
+    public int count(String userId) {
+        if (StringUtil.isNullOrEmpty(userId)) {
+            return 0;
+        }
+        UserIndex userIndex = index.get(userId);
+        if (userIndex == null) {
+            return 0;
+        }
+        synchronized (userIndex) {
+            return userIndex.size();
+        }
+    }
+
+    /**
+     * 当前的段文件个数
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    //=========== 写 =======
+
+    /**
+     * 把编码好的记录加入待写批次, 然后等它被写到文件里
+     *
+     * @param userId        PUT 记录所属的用户, CONSUME 记录传 null
+     * @param records       编码好的记录
+     * @param recordOffsets 每条 PUT 记录在 records 里的偏移, CONSUME 记录传 null
+     * @throws IOException
+     */
+    private void append(String userId, ByteBuf records, int[] recordOffsets) throws IOException {
+        long ticket;
+        synchronized (appendLock) {
+            checkUsable();
+            int base = pendingBatch.buffer.writerIndex();
+            pendingBatch.buffer.writeBytes(records, records.readerIndex(), records.readableBytes());
+            if (recordOffsets != null) {
+                for (int recordOffset : recordOffsets) {
+                    pendingBatch.add(userId, base + recordOffset);
+                }
+            }
+            ticket = ++appendedSequence;
+        }
+
+        synchronized (writeLock) {
+            // 等锁的这段时间里, 别的线程可能已经把我们的记录一起写掉了
+            if (writtenSequence < ticket) {
+                Batch batch;
+                long sequence;
+                synchronized (appendLock) {
+                    batch = pendingBatch;
+                    pendingBatch = new Batch();
+                    sequence = appendedSequence;
+                }
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    batch.buffer.release();
+                    writtenSequence = sequence;
+                }
+            }
+        }
+        checkUsable();
+    }
+
+    /**
+     * 只在持有 writeLock 时调用
+     */
+    private void writeBatch(Batch batch) throws IOException {
+        int length = batch.buffer.readableBytes();
+        if (length == 0) {
+            return;
+        }
+        Segment segment = activeSegment;
+        if (segment.size > 0 && segment.size + length > segmentSize) {
+            segment = rollSegment();
+        }
+
+        long position = segment.size;
+        ByteBuffer buffer = batch.buffer.nioBuffer();
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, position + buffer.position());
+        }
+        if (fsync) {
+            segment.channel.force(false);
+        }
+        segment.size = position + length;
+
+        // 写成功之后才更新索引, poll 只会看到已经在文件里的记录
+        for (int i = 0; i < batch.count; i++) {
+            addToIndex(batch.userIds[i], address(segment.id, position + batch.offsets[i]));
+            segment.live.incrementAndGet();
+        }
+    }
+
+    private Segment rollSegment() throws IOException {
+        Segment segment = openSegment(activeSegment.id + 1);
+        segments.put(segment.id, segment);
+        activeSegment = segment;
+        return segment;
+    }
+
+    private void addToIndex(String userId, long address) {
+        for (; ; ) {
+            UserIndex userIndex = index.get(userId);
+            if (userIndex == null) {
+                UserIndex newIndex = new UserIndex();
+                userIndex = index.putIfAbsent(userId, newIndex);
+                if (userIndex == null) {
+                    userIndex = newIndex;
+                }
+            }
+            synchronized (userIndex) {
+                // poll 把空的索引移除了, 重新放一个
+                if (!userIndex.removed) {
+                    userIndex.add(address);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 从最老的段开始, 删除 PUT 已经全部被取走的段(当前写入的段除外)
+     */
+    private void deleteConsumedSegments() {
+        Map.Entry<Integer, Segment> oldest = segments.firstEntry();
+        if (oldest == null || oldest.getValue() == activeSegment || oldest.getValue().live.get() > 0) {
+            // 大部分情况下走这里, 不用去抢写锁
+            return;
+        }
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            Iterator<Segment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (segment == activeSegment || segment.live.get() > 0) {
+                    return;
+                }
+                iterator.remove();
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (!segment.file.delete()) {
+                    logger.warn("删除离线消息段失败:" + segment.file);
+                }
+            }
+        }
+    }
+
+    //=========== 读 =======
+
+    /**
+     * 按地址读出消息. 同一个用户一次保存的消息在文件里是连续的, 所以每次读一块(至少 READ_CHUNK_SIZE),
+     * 后面的地址如果落在这一块里就不用再读盘了
+     */
+    private List<Message> readMessages(long[] addresses) throws IOException {
+        List<Message> messageList = new ArrayList<>(addresses.length);
+        int chunkSegmentId = -1;
+        long chunkPosition = 0;
+        ByteBuffer chunk = ByteBuffer.allocate(0);
+
+        for (long address : addresses) {
+            int segmentId = segmentId(address);
+            long position = segmentOffset(address);
+            Segment segment = segments.get(segmentId);
+            if (segment == null) {
+                throw new IOException("segment not found, address:" + Long.toHexString(address));
+            }
+
+            int bodyLength = -1;
+            if (segmentId == chunkSegmentId && position >= chunkPosition && position + HEADER_LENGTH <= chunkPosition + chunk.limit()) {
+                bodyLength = chunk.getInt((int) (position - chunkPosition));
+            }
+            if (bodyLength < 0 || position + HEADER_LENGTH + bodyLength > chunkPosition + chunk.limit()) {
+                // 不在当前块里, 重新读一块
+                chunk = ByteBuffer.allocate(READ_CHUNK_SIZE);
+                chunk.limit((int) Math.min(READ_CHUNK_SIZE, segment.size - position));
+                readFully(segment.channel, chunk, position);
+                chunkSegmentId = segmentId;
+                chunkPosition = position;
+                bodyLength = chunk.getInt(0);
+                if (HEADER_LENGTH + bodyLength > chunk.limit()) {
+                    // 一条记录比一块还大
+                    ByteBuffer bigger = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+                    readFully(segment.channel, bigger, position);
+                    chunk = bigger;
+                }
+            }
+
+            int recordOffset = (int) (position - chunkPosition);
+            int checksum = chunk.getInt(recordOffset + 4);
+            int bodyOffset = chunk.arrayOffset() + recordOffset + HEADER_LENGTH;
+            byte[] bytes = chunk.array();
+            if (bodyLength < 3 || checksum(bytes, bodyOffset, bodyLength) != checksum || bytes[bodyOffset] != TYPE_PUT) {
+                throw new IOException("corrupted record, address:" + Long.toHexString(address));
+            }
+
+            int userIdLength = ((bytes[bodyOffset + 1] & 0xFF) << 8) | (bytes[bodyOffset + 2] & 0xFF);
+            int messageOffset = bodyOffset + 3 + userIdLength;
+            messageList.add(BinaryMessageCodec.decode(Unpooled.wrappedBuffer(bytes, messageOffset, bodyOffset + bodyLength - messageOffset), ProtocolVersion.BINARY));
+        }
+        return messageList;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("unexpected end of segment at " + position);
+            }
+        }
+    }
+
+    //=========== 恢复 =======
+
+    /**
+     * 顺序扫描全部段, 重建索引
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, openSegment(id));
+                } catch (NumberFormatException e) {
+                    logger.warn("忽略无法识别的文件:" + file);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            Segment segment = openSegment(1);
+            segments.put(segment.id, segment);
+        }
+
+        for (Segment segment : segments.values()) {
+            long validLength = replaySegment(segment);
+            long fileLength = segment.channel.size();
+            if (validLength < fileLength) {
+                if (segment.id == segments.lastKey()) {
+                    // 最后一个段末尾没写完的记录, 截掉, 后面从这里接着写
+                    logger.warn("截断离线消息段 " + segment.file + " 从 " + fileLength + " 到 " + validLength);
+                    segment.channel.truncate(validLength);
+                } else {
+                    logger.warn("离线消息段 " + segment.file + " 在 " + validLength + " 处损坏, 后面的记录被忽略");
+                }
+            }
+            segment.size = validLength;
+        }
+
+        activeSegment = segments.lastEntry().getValue();
+        deleteConsumedSegments();
+    }
+
+    /**
+     * 重放一个段
+     *
+     * @return 有效数据的长度
+     */
+    private long replaySegment(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 20));
+        long position = 0;
+        byte[] body = new byte[256];
+        try {
+            for (; ; ) {
+                int bodyLength;
+                int checksum;
+                try {
+                    bodyLength = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return position;
+                }
+                if (bodyLength < 3 || position + HEADER_LENGTH + bodyLength > segment.channel.size()) {
+                    return position;
+                }
+                if (body.length < bodyLength) {
+                    body = new byte[Math.max(bodyLength, body.length * 2)];
+                }
+                in.readFully(body, 0, bodyLength);
+                if (checksum(body, 0, bodyLength) != checksum) {
+                    return position;
+                }
+
+                int userIdLength = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+                String userId = new String(body, 3, userIdLength, CharsetUtil.UTF_8);
+                if (body[0] == TYPE_PUT) {
+                    addToIndex(userId, address(segment.id, position));
+                    segment.live.incrementAndGet();
+                } else if (body[0] == TYPE_CONSUME) {
+                    long upTo = ByteBuffer.wrap(body, 3 + userIdLength, 8).getLong();
+                    replayConsume(userId, upTo);
+                }
+                position += HEADER_LENGTH + bodyLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void replayConsume(String userId, long upTo) {
+        UserIndex userIndex = index.get(userId);
+        if (userIndex == null) {
+            return;
+        }
+        long[] consumed = userIndex.removeUpTo(upTo);
+        for (long address : consumed) {
+            Segment segment = segments.get(segmentId(address));
+            if (segment != null) {
+                segment.live.decrementAndGet();
+            }
+        }
+        if (userIndex.isEmpty()) {
+            index.remove(userId);
+        }
+    }
+
+    //=========== 记录编码 =======
+
+    private static void writePutRecord(ByteBuf out, byte[] userIdBytes, Message message) {
+        int start = beginRecord(out, TYPE_PUT, userIdBytes);
+        BinaryMessageCodec.encode(message, out, ProtocolVersion.BINARY);
+        endRecord(out, start);
+    }
+
+    private static void writeConsumeRecord(ByteBuf out, byte[] userIdBytes, long upTo) {
+        int start = beginRecord(out, TYPE_CONSUME, userIdBytes);
+        out.writeLong(upTo);
+        endRecord(out, start);
+    }
+
+    private static int beginRecord(ByteBuf out, byte type, byte[] userIdBytes) {
+        int start = out.writerIndex();
+        out.writeInt(0);// body 长度, endRecord 时回填
+        out.writeInt(0);// CRC32, endRecord 时回填
+        out.writeByte(type);
+        out.writeShort(userIdBytes.length);
+        out.writeBytes(userIdBytes);
+        return start;
+    }
+
+    private static void endRecord(ByteBuf out, int start) {
+        int bodyLength = out.writerIndex() - start - HEADER_LENGTH;
+        out.setInt(start, bodyLength);
+        out.setInt(start + 4, checksum(out.array(), out.arrayOffset() + start + HEADER_LENGTH, bodyLength));
+    }
+
+    private static byte[] userIdBytes(String userId) {
+        byte[] bytes = userId.getBytes(CharsetUtil.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("userId too long");
+        }
+        return bytes;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    //=========== 地址 =======
+
+    private static long address(int segmentId, long offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int segmentId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static long segmentOffset(long address) {
+        return address & 0xFFFFFFFFL;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        return new Segment(id, file, channel);
+    }
+
+    private void checkUsable() throws IOException {
+        if (closed) {
+            throw new IOException("offline message store is closed");
+        }
+        if (failure != null) {
+            throw new IOException("offline message store is broken", failure);
+        }
+    }
+
+    /**
+     * 一个段文件
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        // 已写入的长度, 只在持有 writeLock 或者恢复时修改
+        volatile long size;
+        // 还没有被取走的 PUT 记录数
+        final AtomicInteger live = new AtomicInteger();
+
+        Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * 一个用户的 PUT 记录地址, 按写入顺序. 用 this 做锁
+     */
+    private static final class UserIndex {
+        long[] addresses = new long[2];
+        int head;
+        int tail;
+        // 已经从 index 中移除, 不能再往里加
+        boolean removed;
+
+        void add(long address) {
+            if (tail == addresses.length) {
+                int size = size();
+                if (head > 0 && size < addresses.length / 2) {
+                    System.arraycopy(addresses, head, addresses, 0, size);
+                } else {
+                    long[] newAddresses = new long[addresses.length * 2];
+                    System.arraycopy(addresses, head, newAddresses, 0, size);
+                    addresses = newAddresses;
+                }
+                head = 0;
+                tail = size;
+            }
+            addresses[tail++] = address;
+        }
+
+        long[] takeFirst(int maxCount) {
+            int n = Math.min(maxCount, size());
+            long[] taken = new long[n];
+            System.arraycopy(addresses, head, taken, 0, n);
+            head += n;
+            if (head == tail) {
+                head = 0;
+                tail = 0;
+            }
+            return taken;
+        }
+
+        long[] removeUpTo(long upTo) {
+            int end = head;
+            while (end < tail && addresses[end] <= upTo) {
+                end++;
+            }
+            return takeFirst(end - head);
+        }
+
+        int size() {
+            return tail - head;
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+    }
+
+    /**
+     * 一批待写的记录
+     */
+    private static final class Batch {
+        final ByteBuf buffer = Unpooled.buffer(4096);
+        // 每条 PUT 记录的用户和在 buffer 中的偏移
+        String[] userIds = new String[16];
+        int[] offsets = new int[16];
+        int count;
+
+        void add(String userId, int offset) {
+            if (count == userIds.length) {
+                String[] newUserIds = new String[count * 2];
+                int[] newOffsets = new int[count * 2];
+                System.arraycopy(userIds, 0, newUserIds, 0, count);
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                userIds = newUserIds;
+                offsets = newOffsets;
+            }
+            userIds[count] = userId;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+import com.fan.push.metrics.Gauge;
+import com.fan.push.metrics.Histogram;
+import com.fan.push.metrics.MetricsRegistry;
+import com.fan.push.metrics.StripedCounter;
+
+/**
+ * @Description: 一个 PushServer 的指标: 连接, 握手, 推送, 重发(按第几次), 回执和回执延迟, 离线消息, 出站队列, 推送接入
+ *
+ * 热路径(推送, 回执)上每条消息只有几次 StripedCounter 的无竞争 CAS, 参考 MetricsBenchmark.
+ * 回执延迟是抽样的(sampleAckLatency): 每条消息两次 System.nanoTime 加一次直方图记录, 在虚拟机上要一百多纳秒, 比全部计数加起来还贵;
+ * 十六分之一抽样, 10万条/秒时每秒还有六千多个样本, 分位数足够准.
+ * 全部注册在 registry 上, 由 PushServer 通过 HTTP(-Dfanpush.metricsPort) 和 JMX 导出
+ * @Author: fan
+ * @Date: 2021-01-06 10:00
+ * @Modify: 2021-01-09 推送接入的请求数和消息数
+ *          2021-01-09 提交到轮询器线程上处理的回执
+ *          2021-01-09 推送接入等待超时的请求数
+ */
+public class ServerMetrics {
+
+    // 回执延迟的抽样: messageId 的哈希值低 4 位全是0的消息, 十六分之一
+    private static final int ACK_LATENCY_SAMPLE_MASK = 15;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    // 当前打开的连接数(不管握手没有)
+    private final StripedCounter connections = registry.counter("fanpush_connections_opened_total", "Client connections accepted");
+    private final StripedCounter closedConnections = registry.counter("fanpush_connections_closed_total", "Client connections closed");
+
+    private final StripedCounter handshakes = registry.counter("fanpush_handshakes_total{result=\"success\"}", "Client handshakes by result");
+    private final StripedCounter failedHandshakes = registry.counter("fanpush_handshakes_total{result=\"failure\"}", null);
+    private final StripedCounter redirectedHandshakes = registry.counter("fanpush_handshakes_total{result=\"redirect\"}", null);
+
+    // 第一次写给一个设备的业务消息, 不包括重发和离线消息
+    private final StripedCounter pushesSent = registry.counter("fanpush_pushes_sent_total", "Business messages written to a device for the first time");
+
+    // retries[i]: 第 i+1 次重发的消息条数
+    private final StripedCounter[] retries = new StripedCounter[MessageLooper.MAX_RETRY_COUNT + 1];
+    private final StripedCounter giveUps = registry.counter("fanpush_retry_give_ups_total", "Devices disconnected after the last retry went unacknowledged");
+
+    private final StripedCounter ackFrames = registry.counter("fanpush_ack_frames_total", "Receipt frames received from clients");
+    private final StripedCounter ackedMessages = registry.counter("fanpush_acked_messages_total", "In-flight messages acknowledged by clients");
+    // 从加入重发管理器到收到回执, 微秒, 包括重发的时间. 抽样的, 参考 sampleAckLatency
+    private final Histogram ackLatency = registry.histogram("fanpush_ack_latency_us", "Microseconds from first send to receipt");
+
+    private final StripedCounter offlineSaved = registry.counter("fanpush_offline_saved_total", "Messages written to the offline store");
+    private final StripedCounter offlineLoaded = registry.counter("fanpush_offline_loaded_total", "Messages read from the offline store for replay");
+
+    // 推送接入(PushIngestHandler): 请求数按结果分, 消息数是接受了的请求里交给 sendMsgAsync 的条数
+    private final StripedCounter ingestRequests = registry.counter("fanpush_ingest_requests_total{result=\"accepted\"}", "Push ingestion requests by result");
+    private final StripedCounter rejectedIngestRequests = registry.counter("fanpush_ingest_requests_total{result=\"rejected\"}", null);
+    private final StripedCounter ingestedMessages = registry.counter("fanpush_ingested_messages_total", "Messages submitted through push ingestion");
+    // ?wait=true 等到超时还有没结果的消息, 返回了部分计数的请求数
+    private final StripedCounter ingestWaitTimeouts = registry.counter("fanpush_ingest_wait_timeouts_total", "Push ingestion requests answered with partial results after the wait timeout");
+
+    /**
+     * constructor
+     *
+     * @param pushServer 会话数和出站队列的 Gauge 在导出时从它读
+     */
+    public ServerMetrics(final PushServer pushServer) {
+        for (int i = 0; i < retries.length; i++) {
+            retries[i] = registry.counter("fanpush_retries_total{attempt=\"" + (i + 1) + "\"}",
+                    i == 0 ? "Messages resent, by retry attempt" : null);
+        }
+        registry.gauge("fanpush_connections", "Client connections currently open", new Gauge() {
+            @Override
+            public long value() {
+                return getConnections();
+            }
+        });
+        registry.gauge("fanpush_sessions", "Handshaken device sessions on this node", new Gauge() {
+            @Override
+            public long value() {
+                return pushServer.getSessionRegistry().size();
+            }
+        });
+
+        final OutboundQueueMetrics outbound = pushServer.getOutboundQueueMetrics();
+        registry.gauge("fanpush_outbound_queued_messages", "Messages waiting in outbound queues of unwritable channels", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getQueuedMessages();
+            }
+        });
+        registry.gauge("fanpush_outbound_queued_bytes", "Estimated bytes waiting in outbound queues", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getQueuedBytes();
+            }
+        });
+        registry.gauge("fanpush_outbound_max_depth", "Largest outbound queue depth seen on one channel", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getMaxDepth();
+            }
+        });
+        registry.counter("fanpush_outbound_dropped_total", "Messages dropped because an outbound queue was full", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getDroppedMessages();
+            }
+        });
+        registry.counter("fanpush_outbound_spilled_total", "Messages moved from a full outbound queue to the offline store", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getSpilledMessages();
+            }
+        });
+        registry.counter("fanpush_outbound_disconnects_total", "Channels closed because their outbound queue was full", new Gauge() {
+            @Override
+            public long value() {
+                return outbound.getDisconnects();
+            }
+        });
+    }
+
+    /**
+     * 这条消息要不要记回执延迟. 用 messageId 的哈希值, 和延迟无关; String 的哈希值是缓存的, 重发管理器按 messageId 建索引时已经算过
+     *
+     * @param message
+     * @return
+     */
+    public static boolean sampleAckLatency(Message message) {
+        return message.getMessageId() != null && (message.getMessageId().hashCode() & ACK_LATENCY_SAMPLE_MASK) == 0;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    void onConnect() {
+        connections.increment();
+    }
+
+    void onDisconnect() {
+        closedConnections.increment();
+    }
+
+    void onHandshake() {
+        handshakes.increment();
+    }
+
+    void onHandshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    void onRedirect() {
+        redirectedHandshakes.increment();
+    }
+
+    void onPushSent(int count) {
+        pushesSent.add(count);
+    }
+
+    /**
+     * @param attempt 第几次重发, 从1开始
+     * @param count   重发的条数
+     */
+    void onRetry(int attempt, int count) {
+        retries[Math.min(attempt, retries.length) - 1].add(count);
+    }
+
+    void onGiveUp() {
+        giveUps.increment();
+    }
+
+    void onAck(int acked) {
+        ackFrames.increment();
+        ackedMessages.add(acked);
+    }
+
+    /**
+     * 回执提交到了轮询器的线程上处理(设备刚换了连接, 在途消息还没搬完), 确认的条数这时候才知道, 参考 MessageRetryManager.acknowledge
+     */
+    void onDeferredAck(int acked) {
+        ackedMessages.add(acked);
+    }
+
+    void onOfflineSaved(int count) {
+        offlineSaved.add(count);
+    }
+
+    void onOfflineLoaded(int count) {
+        offlineLoaded.add(count);
+    }
+
+    void onIngested(int messages) {
+        ingestRequests.increment();
+        ingestedMessages.add(messages);
+    }
+
+    void onIngestRejected() {
+        rejectedIngestRequests.increment();
+    }
+
+    void onIngestWaitTimeout() {
+        ingestWaitTimeouts.increment();
+    }
+
+    //=========== getters =======
+
+    public long getConnections() {
+        return connections.sum() - closedConnections.sum();
+    }
+
+    public Histogram getAckLatency() {
+        return ackLatency;
+    }
+
+    public long getPushesSent() {
+        return pushesSent.sum();
+    }
+
+    public long getAckedMessages() {
+        return ackedMessages.sum();
+    }
+
+    public long getRetries(int attempt) {
+        return retries[attempt - 1].sum();
+    }
+
+    /**
+     * 全部重发的条数, 不分第几次
+     */
+    public long getRetries() {
+        long sum = 0;
+        for (StripedCounter counter : retries) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+
+    public long getGiveUps() {
+        return giveUps.sum();
+    }
+
+    public long getIngestedMessages() {
+        return ingestedMessages.sum();
+    }
+
+    public long getIngestWaitTimeouts() {
+        return ingestWaitTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        registry.writeText(out);
+        return out.toString();
+    }
+}
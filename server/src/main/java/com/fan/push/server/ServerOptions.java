@@ -0,0 +1,480 @@
+package com.fan.push.server;
+
+/**
+ * @Description: 服务端配置
+ *
+ * 原来 PushServer.bind() 中写死了 NioEventLoopGroup, 默认的线程数, 10010 端口, 也没有设置任何 socket 参数.
+ * 现在都放在这里, 可以按机器调整. 比如单机 50万+ 空闲长连接时:
+ * 1, Linux 上用 EPOLL, 开 SO_REUSEPORT, 多个 acceptor 线程同时 accept
+ * 2, 调小 SO_RCVBUF/SO_SNDBUF 和写缓冲水位线, 降低每个连接占用的内存
+ *
+ * 也可以通过系统属性配置, 参考 fromSystemProperties(), 比如 -Dfanpush.port=10010 -Dfanpush.transport=EPOLL
+ * @Author: fan
+ * @Date: 2020-12-21 10:30
+ * @Modify:
+ */
+public class ServerOptions {
+
+    /**
+     * 传输方式
+     */
+    public enum Transport {
+        // Linux 上并且 native 库可用就用 EPOLL, 否则用 NIO
+        AUTO,
+        // Linux native epoll, 支持 SO_REUSEPORT
+        EPOLL,
+        // JDK NIO
+        NIO
+    }
+
+    private static final String PROPERTY_PREFIX = "fanpush.";
+
+    // 推送接入 ?wait=true 默认最多等多久
+    public static final long DEFAULT_INGEST_WAIT_TIMEOUT_MILLIS = 30000;
+
+    // 监听端口
+    private int port = 10010;
+
+    private Transport transport = Transport.AUTO;
+
+    // acceptor 个数. 只有 EPOLL 才能大于1: 用 SO_REUSEPORT 在同一个端口上绑定多个 ServerChannel, 由内核分配新连接
+    private int acceptorCount = 1;
+
+    // boss 线程数(负责 accept). EPOLL 多 acceptor 时至少是 acceptorCount, 每个 ServerChannel 一个线程
+    private int bossThreads = 1;
+
+    // worker 线程数, 0 表示使用 Netty 的默认值(CPU核数*2)
+    private int workerThreads = 0;
+
+    // SO_BACKLOG, 全连接队列长度, 大量客户端同时重连时要足够大
+    private int backlog = 4096;
+
+    private boolean reuseAddress = true;
+
+    // 子连接参数
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive = true;
+    // 0 表示使用系统默认值
+    private int receiveBufferSize = 0;
+    private int sendBufferSize = 0;
+
+    // 出站缓冲的水位线, 超过高水位线 Channel 变成不可写
+    private int writeBufferLowWaterMark = 32 * 1024;
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    // 读超时(秒), 这段时间内没有收到客户端的任何数据(包括心跳)就认为客户端掉线了
+    private int readerIdleSeconds = 23;
+
+    // 离线消息存储的目录, 参考 SegmentLogOfflineStore
+    private String offlineStoreDir = "offline-store";
+
+    // 离线消息每批写完是否 fsync
+    private boolean offlineStoreFsync = true;
+
+    // 用户上线时, 离线消息每次读取并发送的条数, 参考 OfflineMessageReplayer
+    private int offlineReplayPageSize = 256;
+
+    // 每个连接的出站队列上限(条数 / 估算字节数), 以及全部连接加起来的字节数上限, 参考 OutboundQueue
+    private int outboundQueueMaxMessages = 1024;
+    private long outboundQueueMaxBytes = 1024 * 1024;
+    private long outboundQueueGlobalMaxBytes = 256L * 1024 * 1024;
+
+    // 出站队列满了之后的处理方式
+    private OutboundQueue.OverflowPolicy outboundOverflowPolicy = OutboundQueue.OverflowPolicy.SPILL_TO_OFFLINE;
+
+    // 集群模式: 这个节点的标识, null 表示单机模式, 参考 ClusterNode
+    private String nodeId;
+
+    // 节点之间转发消息的地址和端口, 端口为0表示随机分配; clusterHost 要是别的节点能连上的地址
+    private String clusterHost = "127.0.0.1";
+    private int clusterPort = 10020;
+
+    // 节点之间转发用的线程数
+    private int clusterThreads = 2;
+
+    // 路由表的实现类, 需要有无参的构造方法. LocalRouteTable 只在一个进程内共享, 多台机器要换成共享存储的实现
+    private String routeTableClass = "com.fan.push.cluster.LocalRouteTable";
+
+    // 告诉客户端(重定向)的本节点地址, null 表示用 clusterHost, 端口是 port
+    private String clientHost;
+
+    // 一致性哈希环上每个节点的虚拟节点数
+    private int virtualNodes = 160;
+
+    // HTTP 的 /metrics 端口, 小于0不开启, 0 表示随便分配一个
+    private int metricsPort = -1;
+
+    // /metrics 绑定的地址, 默认只有本机能访问, 给 Prometheus 抓取时改成 0.0.0.0
+    private String metricsHost = "127.0.0.1";
+
+    // 是否把指标注册到 JMX
+    private boolean jmxEnabled = true;
+
+    // 握手时只接受这个 userId(演示用的认证, 和客户端的 PushClient.MY_CLIENT_USER_ID 一致), 空串或者 null 表示接受任何非空的 userId
+    private String handshakeUserId = "fanshanhong";
+
+    // 推送接入的 HTTP 端口(POST /push, 参考 PushIngestHandler), 小于0不开启, 0 表示随便分配一个
+    private int ingestPort = -1;
+
+    // 推送接入绑定的地址, 默认只有本机能访问
+    private String ingestHost = "127.0.0.1";
+
+    // 一个推送接入请求的请求体最大字节数, 超过的返回 413
+    private int ingestMaxRequestBytes = 8 * 1024 * 1024;
+
+    // 推送接入 ?wait=true 最多等多久(毫秒), 到时间返回目前的结果
+    private long ingestWaitTimeoutMillis = DEFAULT_INGEST_WAIT_TIMEOUT_MILLIS;
+
+    /**
+     * 从系统属性读取配置, 没有配置的项使用默认值
+     * 属性名是 fanpush. 加上字段名, 比如 -Dfanpush.workerThreads=16
+     *
+     * @return
+     */
+    public static ServerOptions fromSystemProperties() {
+        ServerOptions options = new ServerOptions();
+        options.port = intProperty("port", options.port);
+        options.transport = Transport.valueOf(System.getProperty(PROPERTY_PREFIX + "transport", options.transport.name()).toUpperCase());
+        options.acceptorCount = intProperty("acceptorCount", options.acceptorCount);
+        options.bossThreads = intProperty("bossThreads", options.bossThreads);
+        options.workerThreads = intProperty("workerThreads", options.workerThreads);
+        options.backlog = intProperty("backlog", options.backlog);
+        options.reuseAddress = booleanProperty("reuseAddress", options.reuseAddress);
+        options.tcpNoDelay = booleanProperty("tcpNoDelay", options.tcpNoDelay);
+        options.keepAlive = booleanProperty("keepAlive", options.keepAlive);
+        options.receiveBufferSize = intProperty("receiveBufferSize", options.receiveBufferSize);
+        options.sendBufferSize = intProperty("sendBufferSize", options.sendBufferSize);
+        options.writeBufferLowWaterMark = intProperty("writeBufferLowWaterMark", options.writeBufferLowWaterMark);
+        options.writeBufferHighWaterMark = intProperty("writeBufferHighWaterMark", options.writeBufferHighWaterMark);
+        options.readerIdleSeconds = intProperty("readerIdleSeconds", options.readerIdleSeconds);
+        options.offlineStoreDir = System.getProperty(PROPERTY_PREFIX + "offlineStoreDir", options.offlineStoreDir);
+        options.offlineStoreFsync = booleanProperty("offlineStoreFsync", options.offlineStoreFsync);
+        options.offlineReplayPageSize = intProperty("offlineReplayPageSize", options.offlineReplayPageSize);
+        options.outboundQueueMaxMessages = intProperty("outboundQueueMaxMessages", options.outboundQueueMaxMessages);
+        options.outboundQueueMaxBytes = longProperty("outboundQueueMaxBytes", options.outboundQueueMaxBytes);
+        options.outboundQueueGlobalMaxBytes = longProperty("outboundQueueGlobalMaxBytes", options.outboundQueueGlobalMaxBytes);
+        options.outboundOverflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                System.getProperty(PROPERTY_PREFIX + "outboundOverflowPolicy", options.outboundOverflowPolicy.name()).toUpperCase());
+        options.nodeId = System.getProperty(PROPERTY_PREFIX + "nodeId", options.nodeId);
+        options.clusterHost = System.getProperty(PROPERTY_PREFIX + "clusterHost", options.clusterHost);
+        options.clusterPort = intProperty("clusterPort", options.clusterPort);
+        options.clusterThreads = intProperty("clusterThreads", options.clusterThreads);
+        options.routeTableClass = System.getProperty(PROPERTY_PREFIX + "routeTableClass", options.routeTableClass);
+        options.clientHost = System.getProperty(PROPERTY_PREFIX + "clientHost", options.clientHost);
+        options.virtualNodes = intProperty("virtualNodes", options.virtualNodes);
+        options.metricsPort = intProperty("metricsPort", options.metricsPort);
+        options.metricsHost = System.getProperty(PROPERTY_PREFIX + "metricsHost", options.metricsHost);
+        options.jmxEnabled = booleanProperty("jmxEnabled", options.jmxEnabled);
+        options.handshakeUserId = System.getProperty(PROPERTY_PREFIX + "handshakeUserId", options.handshakeUserId);
+        options.ingestPort = intProperty("ingestPort", options.ingestPort);
+        options.ingestHost = System.getProperty(PROPERTY_PREFIX + "ingestHost", options.ingestHost);
+        options.ingestMaxRequestBytes = intProperty("ingestMaxRequestBytes", options.ingestMaxRequestBytes);
+        options.ingestWaitTimeoutMillis = longProperty("ingestWaitTimeoutMillis", options.ingestWaitTimeoutMillis);
+        return options;
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long longProperty(String name, long defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    //=========== getters and setters =======
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int getReaderIdleSeconds() {
+        return readerIdleSeconds;
+    }
+
+    public void setReaderIdleSeconds(int readerIdleSeconds) {
+        this.readerIdleSeconds = readerIdleSeconds;
+    }
+
+    public String getOfflineStoreDir() {
+        return offlineStoreDir;
+    }
+
+    public void setOfflineStoreDir(String offlineStoreDir) {
+        this.offlineStoreDir = offlineStoreDir;
+    }
+
+    public boolean isOfflineStoreFsync() {
+        return offlineStoreFsync;
+    }
+
+    public void setOfflineStoreFsync(boolean offlineStoreFsync) {
+        this.offlineStoreFsync = offlineStoreFsync;
+    }
+
+    public int getOfflineReplayPageSize() {
+        return offlineReplayPageSize;
+    }
+
+    public void setOfflineReplayPageSize(int offlineReplayPageSize) {
+        this.offlineReplayPageSize = offlineReplayPageSize;
+    }
+
+    public int getOutboundQueueMaxMessages() {
+        return outboundQueueMaxMessages;
+    }
+
+    public void setOutboundQueueMaxMessages(int outboundQueueMaxMessages) {
+        this.outboundQueueMaxMessages = outboundQueueMaxMessages;
+    }
+
+    public long getOutboundQueueMaxBytes() {
+        return outboundQueueMaxBytes;
+    }
+
+    public void setOutboundQueueMaxBytes(long outboundQueueMaxBytes) {
+        this.outboundQueueMaxBytes = outboundQueueMaxBytes;
+    }
+
+    public long getOutboundQueueGlobalMaxBytes() {
+        return outboundQueueGlobalMaxBytes;
+    }
+
+    public void setOutboundQueueGlobalMaxBytes(long outboundQueueGlobalMaxBytes) {
+        this.outboundQueueGlobalMaxBytes = outboundQueueGlobalMaxBytes;
+    }
+
+    public OutboundQueue.OverflowPolicy getOutboundOverflowPolicy() {
+        return outboundOverflowPolicy;
+    }
+
+    public void setOutboundOverflowPolicy(OutboundQueue.OverflowPolicy outboundOverflowPolicy) {
+        this.outboundOverflowPolicy = outboundOverflowPolicy;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getClusterHost() {
+        return clusterHost;
+    }
+
+    public void setClusterHost(String clusterHost) {
+        this.clusterHost = clusterHost;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    public int getClusterThreads() {
+        return clusterThreads;
+    }
+
+    public void setClusterThreads(int clusterThreads) {
+        this.clusterThreads = clusterThreads;
+    }
+
+    public String getRouteTableClass() {
+        return routeTableClass;
+    }
+
+    public void setRouteTableClass(String routeTableClass) {
+        this.routeTableClass = routeTableClass;
+    }
+
+    public String getClientHost() {
+        return clientHost;
+    }
+
+    public void setClientHost(String clientHost) {
+        this.clientHost = clientHost;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public String getMetricsHost() {
+        return metricsHost;
+    }
+
+    public void setMetricsHost(String metricsHost) {
+        this.metricsHost = metricsHost;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public String getHandshakeUserId() {
+        return handshakeUserId;
+    }
+
+    public void setHandshakeUserId(String handshakeUserId) {
+        this.handshakeUserId = handshakeUserId;
+    }
+
+    public int getIngestPort() {
+        return ingestPort;
+    }
+
+    public void setIngestPort(int ingestPort) {
+        this.ingestPort = ingestPort;
+    }
+
+    public String getIngestHost() {
+        return ingestHost;
+    }
+
+    public void setIngestHost(String ingestHost) {
+        this.ingestHost = ingestHost;
+    }
+
+    public int getIngestMaxRequestBytes() {
+        return ingestMaxRequestBytes;
+    }
+
+    public void setIngestMaxRequestBytes(int ingestMaxRequestBytes) {
+        this.ingestMaxRequestBytes = ingestMaxRequestBytes;
+    }
+
+    public long getIngestWaitTimeoutMillis() {
+        return ingestWaitTimeoutMillis;
+    }
+
+    public void setIngestWaitTimeoutMillis(long ingestWaitTimeoutMillis) {
+        this.ingestWaitTimeoutMillis = ingestWaitTimeoutMillis;
+    }
+}
@@ -0,0 +1,149 @@
+package com.fan.push.server;
+
+import io.netty.channel.Channel;
+
+/**
+ * @Description: 一个在线的会话(一个握手成功的连接, 也就是用户的一个设备)
+ *
+ * 由 SessionRegistry 管理, 同时挂在 channel 的 SessionRegistry.SESSION_KEY 属性上, 两个方向的查找都只要一次.
+ * 连接的状态(channel, 上线时间, 消息序号, 设备)都在这一个对象里, 不再在 channel 上另外挂 "user" 属性.
+ *
+ * 同一个 userId 的多个设备(手机, 平板, 电脑)各是一个 Session, 用 nextDevice 串成一个链表, 链表头放在 SessionRegistry 的表里.
+ * 每个设备的投递状态(在途消息, 回执, 离线消息)都按 deliveryKey 分开, 一个设备慢不会让别的设备重发
+ *
+ * userId/channel/deviceId/loginTime 创建之后不变; lastSeq 只在 channel 的 EventLoop 中访问(参考 MessageSequenceHandler);
+ * nextDevice 只在 SessionRegistry 的锁里修改
+ * @Author: fan
+ * @Date: 2020-12-30 10:00
+ * @Modify: 2020-12-31 一个 userId 多个设备
+ *          2021-01-09 userId / deviceId 不能含有 deliveryKey 的分隔符
+ *          2021-01-09 deliveryKey 用到时再拼, 不再每个会话存一份
+ */
+public final class Session {
+
+    // deliveryKey 中 userId 和 deviceId 之间的分隔符
+    public static final char KEY_SEPARATOR = '#';
+
+    private final String userId;
+
+    private final Channel channel;
+
+    // 设备标识, 客户端没带的时候为 null
+    private final String deviceId;
+
+    // 上线(握手成功)的时间, 毫秒
+    private final long loginTime;
+
+    // 这个连接上最后分配的消息序号
+    private long lastSeq;
+
+    // 同一个 userId 的下一个设备, 读不加锁
+    volatile Session nextDevice;
+
+    /**
+     * constructor
+     *
+     * @param userId
+     * @param deviceId  可以为 null
+     * @param channel
+     * @param loginTime 上线的时间, 毫秒
+     */
+    public Session(String userId, String deviceId, Channel channel, long loginTime) {
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.channel = channel;
+        this.loginTime = loginTime;
+    }
+
+    /**
+     * 一个设备的投递状态的 key: 没有设备标识的就是 userId 本身(和原来一样), 否则是 userId#deviceId
+     *
+     * userId 和 deviceId 里都不能有 KEY_SEPARATOR: 否则用户 "alice#phone" 和 alice 的 phone 设备是同一个 key,
+     * 共用一个轮询器, 回执和离线消息. 握手, 推送接入, sendMsg 都先检查, 这里再兜底
+     *
+     * @param userId
+     * @param deviceId 可以为 null
+     * @return
+     * @throws IllegalArgumentException userId 为空, 或者 userId / deviceId 含有 KEY_SEPARATOR
+     */
+    public static String deliveryKey(String userId, String deviceId) {
+        if (!isValidUserId(userId) || !isValidDeviceId(deviceId)) {
+            throw new IllegalArgumentException("invalid userId / deviceId: " + userId + ", " + deviceId);
+        }
+        return deviceId == null ? userId : userId + KEY_SEPARATOR + deviceId;
+    }
+
+    /**
+     * @param userId
+     * @return 不为空, 并且不含 KEY_SEPARATOR
+     */
+    public static boolean isValidUserId(String userId) {
+        return userId != null && !userId.isEmpty() && userId.indexOf(KEY_SEPARATOR) < 0;
+    }
+
+    /**
+     * @param deviceId
+     * @return 为 null(没有设备标识), 或者不含 KEY_SEPARATOR
+     */
+    public static boolean isValidDeviceId(String deviceId) {
+        return deviceId == null || deviceId.indexOf(KEY_SEPARATOR) < 0;
+    }
+
+    /**
+     * 分配下一个消息序号, 在 channel 的 EventLoop 中调用
+     *
+     * @return
+     */
+    public long nextSeq() {
+        return ++lastSeq;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public long getLoginTime() {
+        return loginTime;
+    }
+
+    /**
+     * 这个设备的投递状态在重发管理器和离线消息存储中的 key, 参考 deliveryKey(userId, deviceId).
+     * 没有设备标识的(大多数)就是 userId, 不分配; 有设备标识的每次拼一个, 只在回执, 转存离线消息时用到
+     *
+     * @return
+     */
+    public String getDeliveryKey() {
+        return deviceId == null ? userId : userId + KEY_SEPARATOR + deviceId;
+    }
+
+    /**
+     * 同一个 userId 在线的下一个设备
+     *
+     * @return 没有则返回 null
+     */
+    public Session nextDevice() {
+        return nextDevice;
+    }
+
+    @Override
+    public String toString() {
+        return "Session{" +
+                "userId='" + userId + '\'' +
+                (deviceId != null ? ", deviceId='" + deviceId + '\'' : "") +
+                ", channel=" + channel +
+                ", loginTime=" + loginTime +
+                '}';
+    }
+}
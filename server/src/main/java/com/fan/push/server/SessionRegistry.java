@@ -0,0 +1,373 @@
+package com.fan.push.server;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * @Description: 全部在线会话的容器, 替代 ChannelHolder
+ *
+ * ChannelHolder 的问题:
+ * 1, 每次按 channel 查 userId 都要 AttributeKey.valueOf("user"), 这是一次全局常量池的查找
+ * 2, isOnline() 是 containsKey + get 两次查找, sendMsg 里 getChannelByUserId 又查一次
+ * 3, 旧连接的 offline 会把同一个 userId 的新连接也移除掉
+ *
+ * 这里:
+ * 1, 静态的 SESSION_KEY, channel 上直接挂 Session 对象, 按 channel 找会话不用查表
+ * 2, getIfOnline 一次查找直接返回 Session(里面有 channel), 不在线返回 null
+ * 3, 还是 ConcurrentHashMap<String, Session>, 读不加锁. 写(上线/下线)要维护多设备的链表和 Listener 的顺序,
+ *    按 userId 的哈希分成 lockCount 把锁, 不同 userId 的上下线基本不会抢同一把锁
+ * 4, offline 只移除这个 channel 自己的会话, 同一个 userId 在别的连接上重新登录了不受影响
+ * 5, 一个 userId 可以有多个设备同时在线: 表里放的是这个 userId 第一个设备的 Session, 其他设备用 Session.nextDevice 串起来.
+ *    握手时 deviceId 相同(包括都没带)的新连接替换旧连接, 不同的追加到链表尾. 读链表同样不加锁
+ * 6, 一个 userId 第一个设备上线, 最后一个设备下线时通知 Listener(集群模式下用来更新路由表, 参考 ClusterNode)
+ * 每个 PushServer 一个(不再是全局单例), 同一个进程里可以跑多个节点, 参考 PushServer.getSessionRegistry()
+ *
+ * 代价: 每个会话是 ConcurrentHashMap 的一个 Node 加一个 Session(上线时间, 序号, 设备), 比 ChannelHolder 只放 channel 大一倍多;
+ * 上线要多创建一个 Session, 比 ChannelHolder 慢. 查找只要一次, 比 ChannelHolder 快; 下线差不多.
+ * 试过开放寻址的表(槽位里直接放 Session, 省掉 Node): 内存还是比 ChannelHolder 大, 上线/下线比 ConcurrentHashMap 更慢, 所以不用.
+ * 数字参考 SessionRegistryBenchmark. 内存是 500 万个会话共用一个 channel 时量的(不含 userId 字串和 channel): ChannelHolder 每个会话约 38 字节, 这里约 87 字节
+ * @Author: fan
+ * @Date: 2020-12-30 10:00
+ * @Modify: 2020-12-31 一个 userId 多个设备
+ *          2021-01-04 每个 PushServer 一个, 用户上下线的 Listener
+ *          2021-01-09 offline 被新连接替换掉的会话返回 null
+ *          2021-01-09 改回 ConcurrentHashMap, 写按 userId 分锁, 会话带上线时间
+ */
+public class SessionRegistry {
+
+    // 挂在 channel 上的会话
+    public static final AttributeKey<Session> SESSION_KEY = AttributeKey.valueOf("session");
+
+    // 默认的写锁数, 必须是2的幂
+    public static final int DEFAULT_LOCK_COUNT = 64;
+
+    // userId <==> 这个 userId 第一个设备的会话
+    private final ConcurrentHashMap<String, Session> sessions;
+
+    // 写锁, 按 userId 的哈希选一把; 同时记着这把锁下面的会话数
+    private final Stripe[] stripes;
+
+    // 用户上下线的监听器, 可以为 null
+    private volatile Listener listener;
+
+    /**
+     * constructor, 默认的锁数
+     */
+    public SessionRegistry() {
+        this(DEFAULT_LOCK_COUNT, 16);
+    }
+
+    /**
+     * constructor
+     *
+     * @param lockCount       写锁数, 2的幂
+     * @param initialCapacity 初始能放多少个 userId
+     */
+    SessionRegistry(int lockCount, int initialCapacity) {
+        if (lockCount <= 0 || Integer.bitCount(lockCount) != 1) {
+            throw new IllegalArgumentException("SessionRegistry constructor , lockCount must be a power of two");
+        }
+        this.sessions = new ConcurrentHashMap<>(initialCapacity);
+        this.stripes = new Stripe[lockCount];
+        for (int i = 0; i < lockCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * 上线, 握手成功后调用. 同一个 userId 已经有不带 deviceId 的会话的话, 会被替换掉
+     *
+     * @param channel
+     * @param userId
+     * @return 新的会话
+     */
+    public Session online(Channel channel, String userId) {
+        return online(channel, userId, null);
+    }
+
+    /**
+     * 上线, 握手成功后调用. 同一个 userId 同一个 deviceId 已经有会话的话, 会被替换掉; 其他设备的会话不受影响
+     *
+     * @param channel
+     * @param userId
+     * @param deviceId 可以为 null
+     * @return 新的会话
+     * @throws IllegalArgumentException userId 为空, 或者 userId / deviceId 含有 Session.KEY_SEPARATOR
+     */
+    public Session online(Channel channel, String userId, String deviceId) {
+        if (!Session.isValidUserId(userId) || !Session.isValidDeviceId(deviceId)) {
+            throw new IllegalArgumentException("online invalid userId / deviceId: " + userId + ", " + deviceId);
+        }
+        Session session = new Session(userId, deviceId, channel, System.currentTimeMillis());
+        channel.attr(SESSION_KEY).set(session);
+        Stripe stripe = stripeFor(userId);
+        synchronized (stripe) {
+            // 大多数是这个 userId 的第一个设备, 一次查找就放进去了
+            Session head = sessions.putIfAbsent(userId, session);
+            if (head == null) {
+                stripe.size++;
+                Listener l = listener;
+                if (l != null) {
+                    l.userOnline(userId);
+                }
+            } else {
+                putDevice(stripe, head, session);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * 这个 userId 已经有设备在线了: 同一个设备原地替换, 否则追加到链表尾
+     * 先把新会话的 nextDevice 设置好再挂上去, 不加锁读的线程看到的总是一个完整的链表
+     */
+    private void putDevice(Stripe stripe, Session head, Session session) {
+        Session prev = null;
+        for (Session current = head; current != null; prev = current, current = current.nextDevice) {
+            if (sameDevice(current.getDeviceId(), session.getDeviceId())) {
+                // 同一个设备重新登录
+                session.nextDevice = current.nextDevice;
+                if (prev == null) {
+                    sessions.put(session.getUserId(), session);
+                } else {
+                    prev.nextDevice = session;
+                }
+                return;
+            }
+        }
+        prev.nextDevice = session;
+        stripe.size++;
+    }
+
+    /**
+     * 下线, 只移除这个 channel 自己的会话
+     *
+     * @param channel
+     * @return 被移除的会话. 这个 channel 没有上线过, 或者它的会话已经被同一个设备的新连接替换掉了, 返回 null:
+     * 这时候在途消息等按设备的状态已经归新连接了, 调用方不能再去清理
+     */
+    public Session offline(Channel channel) {
+        Session session = channel.attr(SESSION_KEY).getAndSet(null);
+        if (session == null) {
+            return null;
+        }
+        String userId = session.getUserId();
+        Stripe stripe = stripeFor(userId);
+        synchronized (stripe) {
+            Session prev = null;
+            for (Session current = sessions.get(userId); current != null; prev = current, current = current.nextDevice) {
+                if (current != session) {
+                    continue;
+                }
+                // 被摘掉的会话的 nextDevice 不动, 正在遍历到它的读线程还能接着往下走
+                Session next = session.nextDevice;
+                stripe.size--;
+                if (prev != null) {
+                    prev.nextDevice = next;
+                } else if (next != null) {
+                    sessions.put(userId, next);
+                } else {
+                    // 最后一个设备也下线了
+                    sessions.remove(userId);
+                    Listener l = listener;
+                    if (l != null) {
+                        l.userOffline(userId);
+                    }
+                }
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一次查找, 在线则返回会话. 用户有多个设备在线时返回的是第一个, 其他的用 Session.nextDevice() 遍历
+     *
+     * @param userId
+     * @return 不在线返回 null
+     */
+    public Session getIfOnline(String userId) {
+        return userId == null ? null : sessions.get(userId);
+    }
+
+    /**
+     * 一次查找, 返回这个用户这个设备的会话
+     *
+     * @param userId
+     * @param deviceId 可以为 null
+     * @return 不在线返回 null
+     */
+    public Session getIfOnline(String userId, String deviceId) {
+        for (Session session = getIfOnline(userId); session != null; session = session.nextDevice) {
+            if (sameDevice(session.getDeviceId(), deviceId)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一次查找, 在线则返回连接. 用户有多个设备在线时返回的是第一个
+     *
+     * @param userId
+     * @return 不在线返回 null
+     */
+    public Channel getChannelIfOnline(String userId) {
+        Session session = getIfOnline(userId);
+        return session == null ? null : session.getChannel();
+    }
+
+    /**
+     * 一次查找, 返回这个用户这个设备的连接
+     *
+     * @param userId
+     * @param deviceId 可以为 null
+     * @return 不在线返回 null
+     */
+    public Channel getChannelIfOnline(String userId, String deviceId) {
+        Session session = getIfOnline(userId, deviceId);
+        return session == null ? null : session.getChannel();
+    }
+
+    public boolean isOnline(String userId) {
+        return getIfOnline(userId) != null;
+    }
+
+    /**
+     * channel 上的会话, 不查表
+     *
+     * @param channel
+     * @return 没有握手成功返回 null
+     */
+    public static Session sessionOf(Channel channel) {
+        return channel.attr(SESSION_KEY).get();
+    }
+
+    /**
+     * channel 对应的 userId, 不查表
+     *
+     * @param channel
+     * @return 没有握手成功返回 null
+     */
+    public String getUserIdByChannel(Channel channel) {
+        Session session = channel.attr(SESSION_KEY).get();
+        return session == null ? null : session.getUserId();
+    }
+
+    /**
+     * 在线会话数, 一个设备算一个
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /**
+     * 遍历全部在线会话(每个设备都会遍历到), 不拷贝. 遍历期间的上下线可能看得到也可能看不到
+     *
+     * @return
+     */
+    public Iterable<Session> sessions() {
+        return new Iterable<Session>() {
+            @Override
+            public Iterator<Session> iterator() {
+                return new SessionIterator();
+            }
+        };
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * 设置用户上下线的监听器, 要在开始接受连接之前设置, 之前已经在线的用户不会补发通知
+     *
+     * @param listener 可以为 null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private Stripe stripeFor(String userId) {
+        int h = userId.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private static boolean sameDevice(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 用户上下线的监听器
+     *
+     * 在 userId 的写锁里回调, 同一个 userId 的 userOnline/userOffline 一定按发生的顺序到达, 不会乱序;
+     * 同时也意味着回调必须很快而且不能阻塞(比如要写远程存储的话, 交给别的线程异步去做)
+     */
+    public interface Listener {
+
+        /**
+         * 这个 userId 的第一个设备上线了
+         */
+        void userOnline(String userId);
+
+        /**
+         * 这个 userId 的最后一个设备下线了
+         */
+        void userOffline(String userId);
+    }
+
+    /**
+     * 一把写锁, 以及这把锁下面在线的会话数(每个设备算一个)
+     */
+    private static final class Stripe {
+
+        // 只在持有 this 锁时修改
+        volatile int size;
+    }
+
+    /**
+     * 遍历表里的每个 userId, 再走完它的设备链表
+     */
+    private final class SessionIterator implements Iterator<Session> {
+
+        private final Iterator<Session> heads = sessions.values().iterator();
+
+        private Session next;
+
+        SessionIterator() {
+            next = heads.hasNext() ? heads.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Session next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Session session = next;
+            next = session.nextDevice;
+            if (next == null && heads.hasNext()) {
+                next = heads.next();
+            }
+            return session;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.fan.push.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.util.internal.StringUtil;
+
+/**
+ * @Description: 主题(群组)订阅关系
+ *
+ * topic(String) <==> 订阅者 userId 的集合
+ *
+ * 1, 按 topic 的 hash 分成多个分片, 每个分片一个 ConcurrentHashMap, 不同主题的订阅/退订互不影响
+ * 2, 订阅者集合是基于 ConcurrentHashMap 的 Set, 同一个主题的并发订阅/退订也只锁很小的范围
+ * 3, 发布时直接遍历订阅者集合的视图(弱一致), 不拷贝, 100万订阅者的主题也不会每次发布都复制一遍
+ *
+ * 订阅关系是跟着连接走的: 用户下线时 unsubscribeAll, 客户端重新握手成功后自己再订阅一遍
+ * @Author: fan
+ * @Date: 2020-12-17 15:02
+ * @Modify: 2021-01-09 分片数组用 newShards 创建, 不再是原始类型
+ */
+public class TopicRegistry {
+
+    // 分片数, 2的幂
+    private static final int SHARD_COUNT = 32;
+
+    private final ConcurrentHashMap<String, Set<String>>[] shards;
+
+    // userId <==> 他订阅的全部 topic, 用于下线时退订
+    private final ConcurrentHashMap<String, Set<String>> userTopics = new ConcurrentHashMap<>();
+
+    public TopicRegistry() {
+        shards = newShards(SHARD_COUNT);
+    }
+
+    /**
+     * 订阅
+     *
+     * @param topic
+     * @param userId
+     */
+    public void subscribe(String topic, String userId) {
+        if (StringUtil.isNullOrEmpty(topic) || StringUtil.isNullOrEmpty(userId)) {
+            return;
+        }
+
+        ConcurrentHashMap<String, Set<String>> shard = shardFor(topic);
+        for (; ; ) {
+            Set<String> subscribers = shard.get(topic);
+            if (subscribers == null) {
+                Set<String> newSubscribers = newConcurrentSet();
+                subscribers = shard.putIfAbsent(topic, newSubscribers);
+                if (subscribers == null) {
+                    subscribers = newSubscribers;
+                }
+            }
+            subscribers.add(userId);
+
+            // 退订的时候, 集合空了会被移除. 如果刚好移除的是我们加进去的这个集合, 就重来一次
+            if (shard.get(topic) == subscribers) {
+                break;
+            }
+        }
+
+        Set<String> topics = userTopics.get(userId);
+        if (topics == null) {
+            Set<String> newTopics = newConcurrentSet();
+            topics = userTopics.putIfAbsent(userId, newTopics);
+            if (topics == null) {
+                topics = newTopics;
+            }
+        }
+        topics.add(topic);
+    }
+
+    /**
+     * 退订
+     *
+     * @param topic
+     * @param userId
+     */
+    public void unsubscribe(String topic, String userId) {
+        if (StringUtil.isNullOrEmpty(topic) || StringUtil.isNullOrEmpty(userId)) {
+            return;
+        }
+
+        removeSubscriber(topic, userId);
+
+        Set<String> topics = userTopics.get(userId);
+        if (topics != null) {
+            topics.remove(topic);
+        }
+    }
+
+    /**
+     * 退订这个用户的全部主题, 一般用于用户下线
+     *
+     * @param userId
+     */
+    public void unsubscribeAll(String userId) {
+        if (StringUtil.isNullOrEmpty(userId)) {
+            return;
+        }
+
+        Set<String> topics = userTopics.remove(userId);
+        if (topics == null) {
+            return;
+        }
+        for (String topic : topics) {
+            removeSubscriber(topic, userId);
+        }
+    }
+
+    /**
+     * 一个主题的全部订阅者
+     * 返回的是内部集合的只读视图, 没有拷贝, 遍历期间的订阅/退订可能看得到也可能看不到
+     *
+     * @param topic
+     * @return
+     */
+    public Set<String> subscribers(String topic) {
+        if (StringUtil.isNullOrEmpty(topic)) {
+            return Collections.emptySet();
+        }
+        Set<String> subscribers = shardFor(topic).get(topic);
+        if (subscribers == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(subscribers);
+    }
+
+    public int subscriberCount(String topic) {
+        return subscribers(topic).size();
+    }
+
+    private void removeSubscriber(String topic, String userId) {
+        ConcurrentHashMap<String, Set<String>> shard = shardFor(topic);
+        Set<String> subscribers = shard.get(topic);
+        if (subscribers == null) {
+            return;
+        }
+        subscribers.remove(userId);
+        if (subscribers.isEmpty()) {
+            // 只有还是同一个集合的时候才移除, 并发订阅的一方会发现集合被换掉了, 自己重试
+            shard.remove(topic, subscribers);
+        }
+    }
+
+    private ConcurrentHashMap<String, Set<String>> shardFor(String topic) {
+        int h = topic.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * 泛型数组不能直接 new, 只能 new 原始类型再转换. 数组只在这个类里用, 不会放进别的类型的元素, 转换是安全的
+     */
+    private static ConcurrentHashMap<String, Set<String>>[] newShards(int count) {
+        @SuppressWarnings("unchecked")
+        ConcurrentHashMap<String, Set<String>>[] shards = (ConcurrentHashMap<String, Set<String>>[]) new ConcurrentHashMap<?, ?>[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+        return shards;
+    }
+
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+}
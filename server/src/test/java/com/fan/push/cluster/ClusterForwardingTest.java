@@ -0,0 +1,226 @@
+package com.fan.push.cluster;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.MessageSequenceHandler;
+import com.fan.push.server.OutboundQueue;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.SegmentLogOfflineStore;
+import com.fan.push.server.ServerOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同一个进程里的三个节点(a, b, c)共用一个 LocalRouteTable, 节点之间走真正的 TCP 转发连接.
+ * 用户连在 b 和 c 上(EmbeddedChannel), 从 a 推送, 检查路由, 转发, 以及测量端到端的转发延迟和吞吐量
+ */
+public class ClusterForwardingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LocalRouteTable routeTable = new LocalRouteTable();
+
+    private final List<PushServer> servers = new ArrayList<>();
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    private PushServer a;
+    private PushServer b;
+    private PushServer c;
+
+    @Before
+    public void setUp() throws Exception {
+        a = startNode("a");
+        b = startNode("b");
+        c = startNode("c");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        for (PushServer server : servers) {
+            server.getClusterNode().stop();
+            server.messageRetryManager.shutdown();
+        }
+    }
+
+    @Test
+    public void routeTableFollowsSessions() {
+        EmbeddedChannel onB = online(b, "u1", "phone", new Recorder(1));
+        assertArrayEquals(new String[]{"b"}, routeTable.nodesOf("u1"));
+
+        // 同一个用户的另一个设备连在 c 上
+        EmbeddedChannel onC = online(c, "u1", "tablet", new Recorder(1));
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(routeTable.nodesOf("u1")));
+
+        // b 上的最后一个设备下线
+        b.getSessionRegistry().offline(onB);
+        assertArrayEquals(new String[]{"c"}, routeTable.nodesOf("u1"));
+        c.getSessionRegistry().offline(onC);
+        assertEquals(0, routeTable.nodesOf("u1").length);
+    }
+
+    @Test
+    public void forwardsToTheNodeTheUserIsOn() throws Exception {
+        Recorder recorder = new Recorder(1);
+        online(b, "u1", null, recorder);
+
+        a.sendMsg("u1", push(0), true);
+
+        assertTrue(recorder.await(1, 5));
+        // a 不管重发, 由 b 负责
+        assertNull(a.messageRetryManager.getInFlightMessages("u1"));
+        // 在 b 的连接上分配了 seq
+        List<Message> inFlight = b.messageRetryManager.snapshotInFlight("u1");
+        assertEquals("m0", inFlight.get(0).getMessageId());
+        assertEquals(1, inFlight.get(0).getSeq());
+    }
+
+    @Test
+    public void keepsMessageLocallyWhenUserIsNowhere() {
+        a.sendMsg("nobody", push(0), true);
+        // 不在线的用户的轮询器在 offlineExecutors 上, 要在那个线程上读
+        assertEquals("m0", a.messageRetryManager.snapshotInFlight("nobody").get(0).getMessageId());
+    }
+
+    @Test
+    public void forwardingLatencyAndThroughput() throws Exception {
+        int users = 1000;
+        int rounds = 2000;
+        int messages = 20000;
+        Recorder recorder = new Recorder(rounds + messages);
+        for (int i = 0; i < users; i++) {
+            // 一半用户在 b, 一半在 c; 每个节点只有一条入站转发连接, 写 EmbeddedChannel 的都是同一个线程
+            online(i % 2 == 0 ? b : c, "user-" + i, null, recorder);
+        }
+
+        // 延迟: 一条一条地发, 收到了再发下一条, 没有排队. 前面的一半算预热(建立 a -> b, a -> c 的连接, JIT)
+        for (int i = 0; i < rounds; i++) {
+            a.sendMsg("user-" + (i % users), push(i), true);
+            assertTrue(recorder.await(1, 5));
+        }
+        long[] latencies = Arrays.copyOfRange(recorder.latencies(), rounds / 2, rounds);
+        Arrays.sort(latencies);
+        int n = latencies.length;
+        System.out.println(String.format("cluster forwarding latency: p50 %.1f us, p99 %.1f us, max %.1f us",
+                latencies[n / 2] / 1e3, latencies[n * 99 / 100] / 1e3, latencies[n - 1] / 1e3));
+
+        // 吞吐量: 一次全部发出去, 等全部到达
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            a.sendMsg("user-" + (i % users), push(rounds + i), true);
+        }
+        assertTrue("only " + (recorder.received() - rounds) + " of " + messages + " arrived", recorder.await(messages, 30));
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("cluster forwarding throughput: %d messages in %.1f ms, %.0f msg/s",
+                messages, elapsed / 1e6, messages * 1e9 / elapsed));
+
+        // a 上不留重发记录, 都在 b 和 c 上
+        assertNull(a.messageRetryManager.getInFlightMessages("user-0"));
+        assertEquals((rounds + messages) / users, b.messageRetryManager.snapshotInFlight("user-0").size());
+    }
+
+    private PushServer startNode(String nodeId) throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setNodeId(nodeId);
+        options.setClusterPort(0);
+        options.setClusterThreads(1);
+        PushServer server = new PushServer(options);
+        File dir = folder.newFolder(nodeId);
+        server.messageRetryManager.setOfflineMessageStore(
+                new SegmentLogOfflineStore(dir, SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false));
+        ClusterNode node = new ClusterNode(server, routeTable);
+        node.start();
+        server.setClusterNode(node);
+        servers.add(server);
+        return server;
+    }
+
+    private EmbeddedChannel online(PushServer server, String userId, String deviceId, Recorder recorder) {
+        EmbeddedChannel channel = new EmbeddedChannel(recorder, new MessageSequenceHandler(server.messageRetryManager));
+        OutboundQueue.install(channel, server);
+        server.getSessionRegistry().online(channel, userId, deviceId);
+        channels.add(channel);
+        return channel;
+    }
+
+    private static Message push(int i) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId("m" + i);
+        message.setFrom("server");
+        // 发送时间放在 content 里, 收到时算端到端延迟
+        message.setContent(Long.toString(System.nanoTime()));
+        return message;
+    }
+
+    /**
+     * 记录写到用户连接上的消息和延迟, 不往下写
+     */
+    private static final class Recorder extends ChannelOutboundHandlerAdapter {
+
+        private final long[] latencies;
+        private final Semaphore arrived = new Semaphore(0);
+        private int received;
+
+        Recorder(int expected) {
+            this.latencies = new long[expected];
+        }
+
+        @Override
+        public boolean isSharable() {
+            return true;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof Message) {
+                long latency = System.nanoTime() - Long.parseLong(((Message) msg).getContent());
+                synchronized (this) {
+                    if (received < latencies.length) {
+                        latencies[received++] = latency;
+                    }
+                }
+                arrived.release();
+            }
+            promise.setSuccess();
+        }
+
+        /**
+         * 等再收到 count 条
+         */
+        boolean await(int count, int seconds) throws InterruptedException {
+            return arrived.tryAcquire(count, seconds, TimeUnit.SECONDS);
+        }
+
+        synchronized int received() {
+            return received;
+        }
+
+        synchronized long[] latencies() {
+            return latencies.clone();
+        }
+    }
+}
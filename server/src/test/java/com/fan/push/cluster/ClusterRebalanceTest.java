@@ -0,0 +1,234 @@
+package com.fan.push.cluster;
+
+import com.fan.push.message.Message;
+import com.fan.push.server.MessageSequenceHandler;
+import com.fan.push.server.OutboundQueue;
+import com.fan.push.server.PushServer;
+import com.fan.push.server.PushServerHandler;
+import com.fan.push.server.SegmentLogOfflineStore;
+import com.fan.push.server.Session;
+import com.fan.push.server.ServerOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 两个节点(a, b)共用一个 LocalRouteTable: 握手重定向, 按速率腾空, 迁移时在途消息转给新节点
+ */
+public class ClusterRebalanceTest {
+
+    // ServerOptions 默认的 handshakeUserId, 握手只接受这个用户
+    private static final String USER_ID = "fanshanhong";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LocalRouteTable routeTable = new LocalRouteTable();
+
+    private final List<PushServer> servers = new ArrayList<>();
+
+    private PushServer a;
+    private PushServer b;
+
+    @Before
+    public void setUp() throws Exception {
+        a = startNode("a", 9001);
+        b = startNode("b", 9002);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PushServer server : servers) {
+            server.getClusterNode().stop();
+            server.messageRetryManager.shutdown();
+        }
+    }
+
+    @Test
+    public void handshakeIsRedirectedToTheOwner() {
+        String owner = a.getClusterNode().getRing().nodeFor(USER_ID);
+        PushServer other = "a".equals(owner) ? b : a;
+
+        EmbeddedChannel channel = handshakeChannel(other);
+        channel.writeInbound(handshake(0));
+        Message response = channel.readOutbound();
+        assertEquals(1001, response.getMessageType());
+        assertEquals(2, response.getStatus());
+        assertEquals("127.0.0.1:" + ("a".equals(owner) ? 9001 : 9002), response.getContent());
+        assertFalse(other.getSessionRegistry().isOnline(USER_ID));
+
+        // 被重定向过来的握手不再重定向
+        EmbeddedChannel redirected = handshakeChannel(other);
+        redirected.writeInbound(handshake(2));
+        response = redirected.readOutbound();
+        assertEquals(1, response.getStatus());
+        assertTrue(other.getSessionRegistry().isOnline(USER_ID));
+
+        channel.finishAndReleaseAll();
+        redirected.finishAndReleaseAll();
+    }
+
+    @Test
+    public void drainMigratesAtTheConfiguredRate() throws Exception {
+        int users = 100;
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(new MessageSequenceHandler(a.messageRetryManager));
+            OutboundQueue.install(channel, a);
+            a.getSessionRegistry().online(channel, "user-" + i, null);
+            channels.add(channel);
+        }
+        // user-0 还有一条没确认的消息
+        a.sendMsg("user-0", push("m0"), true);
+        assertNotNull(channels.get(0).readOutbound());
+        assertEquals("m0", a.messageRetryManager.snapshotInFlight("user-0").get(0).getMessageId());
+
+        // 离开哈希环, 新的握手都去 b
+        routeTable.setDraining("a", true);
+        a.getClusterNode().refreshRing();
+        assertEquals("b", a.getClusterNode().getRing().nodeFor("user-0"));
+
+        List<Session> sessions = new ArrayList<>();
+        for (Session session : a.getSessionRegistry().sessions()) {
+            sessions.add(session);
+        }
+        // 每秒 20%: 每 100ms 迁走 2 个
+        ConnectionDrainer drainer = new ConnectionDrainer(a.getClusterNode(), sessions, 20);
+        assertEquals(2, drainer.getPerTick());
+        drainer.run();
+        assertEquals(2, drainer.getMigrated());
+        assertEquals(users - 2, a.getSessionRegistry().size());
+
+        int ticks = 1;
+        while (!drainer.isDone()) {
+            drainer.run();
+            ticks++;
+        }
+        assertEquals(users / 2, ticks);
+        assertEquals(users, drainer.getMigrated());
+        assertEquals(0, a.getSessionRegistry().size());
+
+        // 每个连接都收到了指向 b 的重定向, 然后被关闭
+        for (EmbeddedChannel channel : channels) {
+            Message redirect = channel.readOutbound();
+            assertEquals(2, redirect.getStatus());
+            assertEquals("127.0.0.1:9002", redirect.getContent());
+            assertFalse(channel.isOpen());
+        }
+
+        // 在途消息不留在 a, 转给 b, 用户在 b 上线后收到
+        assertNull(a.messageRetryManager.getInFlightMessages("user-0"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (b.messageRetryManager.getInFlightMessages("user-0") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("m0", b.messageRetryManager.snapshotInFlight("user-0").get(0).getMessageId());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void lastNodeCanNotDrain() {
+        b.getClusterNode().stop();
+        servers.remove(b);
+        b.messageRetryManager.shutdown();
+        a.getClusterNode().drain(10);
+    }
+
+    @Test
+    public void drainAndCancelThroughJmx() throws Exception {
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(new MessageSequenceHandler(a.messageRetryManager));
+            OutboundQueue.install(channel, a);
+            a.getSessionRegistry().online(channel, "user-" + i, null);
+            channels.add(channel);
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = ClusterNodeControl.register(a.getClusterNode(), "com.fan.push:type=Cluster,port=9001");
+        try {
+            assertEquals("a", server.getAttribute(name, "NodeId"));
+            assertEquals(false, server.getAttribute(name, "Draining"));
+
+            // 参数不对: 异常原样带回给 JMX 客户端
+            try {
+                server.invoke(name, "drain", new Object[]{0d}, new String[]{"double"});
+                fail();
+            } catch (RuntimeMBeanException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+
+            // 每秒 5%: 每 100ms 迁走 1 个, 20 个要 2 秒, 下面的断言不会赶上腾空结束
+            server.invoke(name, "drain", new Object[]{5d}, new String[]{"double"});
+            assertEquals(true, server.getAttribute(name, "Draining"));
+            assertEquals(20, server.getAttribute(name, "DrainTotal"));
+            assertNotNull(a.getClusterNode().getDrainer());
+            assertEquals("b", a.getClusterNode().getRing().nodeFor("user-0"));
+
+            server.invoke(name, "cancelDrain", new Object[0], new String[0]);
+            assertEquals(false, server.getAttribute(name, "Draining"));
+            assertNull(a.getClusterNode().getDrainer());
+            assertTrue(a.getClusterNode().getRing().contains("a"));
+        } finally {
+            ClusterNodeControl.unregister(name);
+            for (EmbeddedChannel channel : channels) {
+                channel.finishAndReleaseAll();
+            }
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    private PushServer startNode(String nodeId, int port) throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setNodeId(nodeId);
+        options.setPort(port);
+        options.setClusterPort(0);
+        options.setClusterThreads(1);
+        PushServer server = new PushServer(options);
+        server.messageRetryManager.setOfflineMessageStore(
+                new SegmentLogOfflineStore(folder.newFolder(nodeId), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false));
+        ClusterNode node = new ClusterNode(server, routeTable);
+        node.start();
+        server.setClusterNode(node);
+        servers.add(server);
+        return server;
+    }
+
+    private static EmbeddedChannel handshakeChannel(PushServer server) {
+        return new EmbeddedChannel(new PushServerHandler(server));
+    }
+
+    private static Message handshake(int status) {
+        Message message = new Message(1001, USER_ID, "server");
+        message.setStatus(status);
+        return message;
+    }
+
+    private static Message push(String messageId) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setFrom("server");
+        message.setContent("hello");
+        return message;
+    }
+}
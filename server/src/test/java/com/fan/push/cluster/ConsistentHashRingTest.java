@@ -0,0 +1,69 @@
+package com.fan.push.cluster;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ConsistentHashRing 的测试: 均匀, 节点变化时只移动 1/N, 与节点顺序无关
+ */
+public class ConsistentHashRingTest {
+
+    private static final int USERS = 100000;
+
+    @Test
+    public void spreadsUsersEvenly() {
+        ConsistentHashRing ring = ConsistentHashRing.of(new String[]{"a", "b", "c", "d"}, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            String node = ring.nodeFor("user-" + i);
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+        assertEquals(4, counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            double deviation = Math.abs(entry.getValue() - USERS / 4.0) / (USERS / 4.0);
+            assertTrue(entry + " deviation " + deviation, deviation < 0.15);
+        }
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsUsers() {
+        ConsistentHashRing before = ConsistentHashRing.of(new String[]{"a", "b", "c", "d"}, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        ConsistentHashRing after = ConsistentHashRing.of(new String[]{"a", "b", "c"}, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String userId = "user-" + i;
+            String from = before.nodeFor(userId);
+            String to = after.nodeFor(userId);
+            if (!from.equals(to)) {
+                // 只有 d 上的用户换节点
+                assertEquals("d", from);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > USERS / 4 * 0.85 && moved < USERS / 4 * 1.15);
+    }
+
+    @Test
+    public void independentOfNodeOrder() {
+        ConsistentHashRing ring1 = ConsistentHashRing.of(new String[]{"a", "b", "c"}, 16);
+        ConsistentHashRing ring2 = ConsistentHashRing.of(new String[]{"c", "a", "b"}, 16);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring1.nodeFor("user-" + i), ring2.nodeFor("user-" + i));
+        }
+        assertTrue(ring1.contains("b"));
+    }
+
+    @Test
+    public void emptyRing() {
+        ConsistentHashRing ring = ConsistentHashRing.of(new String[0], 16);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.nodeFor("u1"));
+    }
+}
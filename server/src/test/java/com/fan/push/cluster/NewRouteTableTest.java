@@ -0,0 +1,58 @@
+package com.fan.push.cluster;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ClusterNode.newRouteTable 的测试: 按类名创建, 各种失败都是 IllegalArgumentException
+ */
+public class NewRouteTableTest {
+
+    @Test
+    public void createsByClassName() {
+        assertTrue(ClusterNode.newRouteTable(LocalRouteTable.class.getName()) instanceof LocalRouteTable);
+    }
+
+    @Test
+    public void unknownClass() {
+        assertCause("com.fan.push.cluster.NoSuchRouteTable", ClassNotFoundException.class);
+    }
+
+    @Test
+    public void notARouteTable() {
+        assertCause(String.class.getName(), ClassCastException.class);
+    }
+
+    @Test
+    public void noDefaultConstructor() {
+        assertCause(NeedsArgument.class.getName(), NoSuchMethodException.class);
+    }
+
+    @Test
+    public void constructorThrows() {
+        assertCause(Failing.class.getName(), IllegalStateException.class);
+    }
+
+    private static void assertCause(String className, Class<? extends Throwable> cause) {
+        try {
+            ClusterNode.newRouteTable(className);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(cause, e.getCause().getClass());
+        }
+    }
+
+    public static class NeedsArgument extends LocalRouteTable {
+        public NeedsArgument(String argument) {
+        }
+    }
+
+    public static class Failing extends LocalRouteTable {
+        public Failing() {
+            throw new IllegalStateException("no route table today");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BinaryMessageCodecTest {
+
+    private static Message roundTrip(Message message) {
+        ByteBuf buf = Unpooled.buffer();
+        BinaryMessageCodec.encode(message, buf);
+        Message decoded = BinaryMessageCodec.decode(buf);
+        assertFalse(buf.isReadable());
+        buf.release();
+        return decoded;
+    }
+
+    private static void assertSameFields(Message expected, Message actual) {
+        assertEquals(expected.getMessageType(), actual.getMessageType());
+        assertEquals(expected.getMessageId(), actual.getMessageId());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    }
+
+    @Test
+    public void pushRoundTrip() {
+        Message push = new Message(1004, "server", "fanshanhong");
+        push.setContent("A 刚刚点了一个菜");
+        assertSameFields(push, roundTrip(push));
+    }
+
+    @Test
+    public void optionalFieldsRoundTrip() {
+        Message message = new Message();
+        message.setMessageType(2048);
+        message.setMessageId("NOT-A-UUID");
+        message.setStatus(-1);
+        Message decoded = roundTrip(message);
+        assertSameFields(message, decoded);
+        assertNull(decoded.getTo());
+        assertNull(decoded.getContent());
+    }
+
+    @Test
+    public void decoderAcceptsJsonAndBinaryFrames() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(), new MessageEncoder());
+
+        Message ping = new Message(1002, "fanshanhong", "server");
+        // 没有协商之前按 JSON 编码
+        channel.writeOutbound(ping);
+        ByteBuf json = channel.readOutbound();
+        assertEquals('{', json.getByte(0));
+
+        ProtocolVersion.set(channel, ProtocolVersion.BINARY);
+        channel.writeOutbound(ping);
+        ByteBuf binary = channel.readOutbound();
+
+        channel.writeInbound(json, binary);
+        assertSameFields(ping, (Message) channel.readInbound());
+        assertSameFields(ping, (Message) channel.readInbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void sequenceFieldsRoundTripInV3() {
+        Message ack = new Message(1004, "fanshanhong", "server");
+        ack.setStatus(1);
+        ack.setTopic("news");
+        ack.setSeq(300);
+        ack.setAckSeq(1L << 40);
+        ack.setSack(new long[]{5, 9, 12, 12});
+        List<String> ackIds = Arrays.asList(UUID.randomUUID().toString(), "NOT-A-UUID", "server");
+        ack.setAckIds(ackIds);
+
+        ByteBuf buf = Unpooled.buffer();
+        BinaryMessageCodec.encode(ack, buf, ProtocolVersion.BINARY_SEQ);
+        Message decoded = BinaryMessageCodec.decode(buf, ProtocolVersion.BINARY_SEQ);
+        assertFalse(buf.isReadable());
+        buf.release();
+
+        assertSameFields(ack, decoded);
+        assertEquals("news", decoded.getTopic());
+        assertEquals(300, decoded.getSeq());
+        assertEquals(1L << 40, decoded.getAckSeq());
+        assertArrayEquals(new long[]{5, 9, 12, 12}, decoded.getSack());
+        assertEquals(ackIds, decoded.getAckIds());
+    }
+
+    @Test
+    public void v2DropsSequenceFields() {
+        Message push = new Message(1004, "server", "fanshanhong");
+        push.setTopic("news");
+        push.setSeq(7);
+
+        ByteBuf buf = Unpooled.buffer();
+        BinaryMessageCodec.encode(push, buf, ProtocolVersion.BINARY);
+        Message decoded = BinaryMessageCodec.decode(buf, ProtocolVersion.BINARY);
+        assertFalse(buf.isReadable());
+        buf.release();
+
+        assertSameFields(push, decoded);
+        assertEquals("news", decoded.getTopic());
+        assertEquals(0, decoded.getSeq());
+        assertNull(decoded.getSack());
+    }
+
+    @Test
+    public void negotiateFallsBackToJsonForOldClients() {
+        assertEquals(ProtocolVersion.JSON, ProtocolVersion.negotiate(0));
+        assertEquals(ProtocolVersion.BINARY, ProtocolVersion.negotiate(ProtocolVersion.BINARY));
+        assertEquals(ProtocolVersion.CURRENT, ProtocolVersion.negotiate(99));
+    }
+}
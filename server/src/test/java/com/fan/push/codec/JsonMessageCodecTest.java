@@ -0,0 +1,47 @@
+package com.fan.push.codec;
+
+import com.fan.push.message.Message;
+import com.fan.push.util.GsonUtil;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class JsonMessageCodecTest {
+
+    @Test
+    public void streamingEncodeMatchesGson() throws Exception {
+        Message push = new Message(1004, "server", "fanshanhong");
+        push.setContent("A 刚刚点了一个菜 🍜 <b>\"quoted\"</b>");
+
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        new JsonMessageCodec().encode(push, buf);
+
+        Message parsed = GsonUtil.getInstance().fromJson(buf.toString(CharsetUtil.UTF_8), Message.class);
+        assertEquals(push.getMessageId(), parsed.getMessageId());
+        assertEquals(push.getContent(), parsed.getContent());
+        assertEquals(push.getTimestamp(), parsed.getTimestamp());
+        buf.release();
+    }
+
+    @Test
+    public void streamingDecodeReadsGsonOutput() throws Exception {
+        Message push = new Message(1004, "server", "fanshanhong");
+        push.setContent("🍜🍜 离线消息");
+
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        buf.writeBytes(GsonUtil.getInstance().toJson(push).getBytes(CharsetUtil.UTF_8));
+
+        Message decoded = new JsonMessageCodec().decode(buf);
+        assertFalse(buf.isReadable());
+        assertEquals(push.getMessageId(), decoded.getMessageId());
+        assertEquals(push.getContent(), decoded.getContent());
+        assertEquals(push.getTo(), decoded.getTo());
+        buf.release();
+    }
+}
@@ -0,0 +1,72 @@
+package com.fan.push.loadtest;
+
+import com.fan.push.server.ServerOptions;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 小规模跑一次压测工具: 全部连接握手成功, 推送全部送达并且回执, 报告里有延迟和内存. 推送直接调用 sendMsg, 或者经过推送接入
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void connectsPushesAndCollectsAcks() throws Exception {
+        LoadReport report = new LoadGenerator(serverOptions(), options()).run();
+        System.out.println(report);
+
+        assertEquals(200, report.getHandshakes());
+        assertEquals(0, report.getFailedConnections());
+        assertTrue(report.getConnectRate() > 0);
+        assertTrue(report.getHeapBytesPerConnection() > 0);
+
+        assertEquals(2000, report.getPushesRequested());
+        assertEquals(report.getPushesRequested(), report.getPushesSent());
+        assertEquals(report.getPushesSent(), report.getPushesReceived());
+        assertEquals(report.getPushesReceived(), report.getAcksSent());
+        assertEquals(report.getPushesSent(), report.getAckedMessages());
+        assertEquals(0, report.getRetries());
+        assertEquals(0, report.getDisconnects());
+        assertEquals(report.getPushesReceived(), report.getDeliveryLatency().getCount());
+        assertTrue(report.getAckLatency().getCount() > 0);
+    }
+
+    @Test
+    public void pushesThroughIngestion() throws Exception {
+        LoadTestOptions options = options();
+        options.setIngestBatchSize(100);
+
+        LoadReport report = new LoadGenerator(serverOptions(), options).run();
+        System.out.println(report);
+
+        assertEquals(200, report.getHandshakes());
+        assertEquals(2000, report.getPushesRequested());
+        assertEquals(report.getIngestRequests(), report.getIngestResponses());
+        assertEquals(0, report.getIngestFailures());
+        assertEquals(report.getPushesRequested(), report.getIngestedMessages());
+        assertEquals(report.getIngestedMessages(), report.getPushesReceived());
+        assertEquals(report.getPushesReceived(), report.getAckedMessages());
+        assertEquals(0, report.getRetries());
+    }
+
+    private static ServerOptions serverOptions() {
+        ServerOptions serverOptions = new ServerOptions();
+        serverOptions.setPort(0);
+        serverOptions.setWorkerThreads(1);
+        serverOptions.setJmxEnabled(false);
+        return serverOptions;
+    }
+
+    private static LoadTestOptions options() {
+        LoadTestOptions options = new LoadTestOptions();
+        options.setConnections(200);
+        options.setClientThreads(1);
+        options.setConnectRate(0);
+        options.setPushRate(2000);
+        options.setDurationSeconds(1);
+        options.setDrainSeconds(1);
+        return options;
+    }
+}
@@ -0,0 +1,79 @@
+package com.fan.push.metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 真正的 HTTP 请求 /metrics
+ */
+public class MetricsHttpHandlerTest {
+
+    private EventLoopGroup group;
+    private Channel serverChannel;
+    private MetricsRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(1);
+        registry = new MetricsRegistry();
+        registry.counter("test_pushes_total", "Pushes").add(42);
+        serverChannel = MetricsHttpHandler.bind(registry, group, group, NioServerSocketChannel.class, "127.0.0.1", 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverChannel.close().sync();
+        group.shutdownGracefully().sync();
+    }
+
+    @Test
+    public void servesMetrics() throws Exception {
+        HttpURLConnection connection = open(MetricsHttpHandler.PATH);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain"));
+        String body = read(connection.getInputStream());
+        assertTrue(body, body.contains("test_pushes_total 42\n"));
+
+        // 每次请求都是当前值
+        registry.counter("test_pushes_total", null).increment();
+        assertTrue(read(open(MetricsHttpHandler.PATH + "?x=1").getInputStream()).contains("test_pushes_total 43\n"));
+    }
+
+    @Test
+    public void unknownPath() throws Exception {
+        assertEquals(404, open("/other").getResponseCode());
+    }
+
+    private HttpURLConnection open(String path) throws Exception {
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
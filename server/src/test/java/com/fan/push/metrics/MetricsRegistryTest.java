@@ -0,0 +1,107 @@
+package com.fan.push.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StripedCounter, Histogram 和 MetricsRegistry 的测试: 并发计数, 分位数误差, 文本格式
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void counterSumsAcrossThreads() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(-1);
+        assertEquals(399999, counter.sum());
+    }
+
+    @Test
+    public void bucketsBoundTheRelativeError() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long upper = Histogram.upperBoundOf(Histogram.bucketOf(value));
+            assertTrue(value + " -> " + upper, upper >= value);
+            assertTrue(value + " -> " + upper, upper - value <= value / 16);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000L * 10001 / 2, snapshot.getSum());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000, snapshot.percentile(0.5), 5000 / 16);
+        assertEquals(9900, snapshot.percentile(0.99), 9900 / 16);
+        assertEquals(10000, snapshot.percentile(1));
+        assertEquals(0, new Histogram().snapshot().percentile(0.5));
+    }
+
+    @Test
+    public void textFormat() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_requests_total{result=\"ok\"}", "Requests by result").add(3);
+        registry.counter("test_requests_total{result=\"error\"}", null).increment();
+        registry.gauge("test_depth", "Current depth", new Gauge() {
+            @Override
+            public long value() {
+                return 7;
+            }
+        });
+        registry.histogram("test_latency_us", "Latency").record(10);
+
+        StringBuilder out = new StringBuilder();
+        registry.writeText(out);
+        assertEquals("# HELP test_depth Current depth\n"
+                + "# TYPE test_depth gauge\n"
+                + "test_depth 7\n"
+                + "# HELP test_latency_us Latency\n"
+                + "# TYPE test_latency_us summary\n"
+                + "test_latency_us{quantile=\"0.5\"} 10\n"
+                + "test_latency_us{quantile=\"0.9\"} 10\n"
+                + "test_latency_us{quantile=\"0.99\"} 10\n"
+                + "test_latency_us{quantile=\"0.999\"} 10\n"
+                + "test_latency_us_sum 10\n"
+                + "test_latency_us_count 1\n"
+                + "# HELP test_requests_total Requests by result\n"
+                + "# TYPE test_requests_total counter\n"
+                + "test_requests_total{result=\"error\"} 1\n"
+                + "test_requests_total{result=\"ok\"} 3\n", out.toString());
+
+        // 同名的计数器返回同一个
+        assertEquals(3, registry.counter("test_requests_total{result=\"ok\"}", null).sum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameTakenByAnotherType() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_x", null);
+        registry.histogram("test_x", null);
+    }
+}
@@ -0,0 +1,117 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 序号和累积回执: 写出时分配 seq, 回执 ackSeq/sack 一次移除一整段
+ */
+public class InFlightMessagesTest {
+
+    private static final String USER_ID = "seq-user";
+
+    private final PushServer pushServer = new PushServer();
+
+    @After
+    public void tearDown() {
+        pushServer.messageRetryManager.removeUser(USER_ID);
+    }
+
+    @Test
+    public void sequenceAssignedOnWriteAndCumulativeAckRemovesPrefix() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        Session session = pushServer.getSessionRegistry().online(channel, USER_ID);
+
+        Message[] messages = new Message[10];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = push("m" + i);
+            pushServer.messageRetryManager.add(USER_ID, messages[i]);
+            channel.writeOutbound(messages[i]);
+        }
+        // 群发的消息没有序号
+        Message broadcast = push("all");
+        broadcast.setTo(Message.TO_ALL);
+        pushServer.messageRetryManager.add(USER_ID, broadcast);
+        channel.writeOutbound(broadcast);
+
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(i + 1, messages[i].getSeq());
+        }
+        assertEquals(0, broadcast.getSeq());
+        assertEquals(10, session.getLastSeq());
+
+        // seq <= 6 都收到了, 另外收到了 8
+        assertEquals(7, pushServer.messageRetryManager.acknowledge(USER_ID, 6, new long[]{8, 8}, null));
+
+        InFlightMessages inFlightMessages = inFlightMessages();
+        assertEquals(4, inFlightMessages.size());
+        assertTrue(inFlightMessages.contains("m6"));
+        assertFalse(inFlightMessages.contains("m7"));
+        assertTrue(inFlightMessages.contains("m8"));
+        assertTrue(inFlightMessages.contains("all"));
+
+        // 重发的时候序号不变
+        channel.writeOutbound(messages[6]);
+        assertEquals(7, messages[6].getSeq());
+
+        // 旧序号的累积回执不会重复移除, 群发的按 ackIds 移除
+        assertEquals(3, pushServer.messageRetryManager.acknowledge(USER_ID, 10, null, null));
+        assertEquals(1, inFlightMessages.size());
+        assertEquals(0, pushServer.messageRetryManager.acknowledge(USER_ID, 10, null, null));
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID, 0, null, Collections.singletonList("all")));
+        assertTrue(inFlightMessages.isEmpty());
+
+        pushServer.getSessionRegistry().offline(channel);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void resetSequencesForNewChannel() {
+        Message message = push("m0");
+        EmbeddedChannel oldChannel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        pushServer.getSessionRegistry().online(oldChannel, USER_ID);
+        // 在线之后再加: 轮询器绑定在连接的 EventLoop 上, 下面的操作都直接执行
+        pushServer.messageRetryManager.add(USER_ID, message);
+        oldChannel.writeOutbound(message);
+        assertEquals(1, message.getSeq());
+        pushServer.getSessionRegistry().offline(oldChannel);
+
+        inFlightMessages().resetSequences();
+        assertEquals(0, message.getSeq());
+        // 旧连接的序号已经作废了
+        assertEquals(0, pushServer.messageRetryManager.acknowledge(USER_ID, 1, null, null));
+
+        // 在新连接上重新分配
+        EmbeddedChannel newChannel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        pushServer.getSessionRegistry().online(newChannel, USER_ID);
+        newChannel.writeOutbound(push("other"));
+        newChannel.writeOutbound(message);
+        assertEquals(2, message.getSeq());
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID, 2, null, null));
+        pushServer.getSessionRegistry().offline(newChannel);
+    }
+
+    private InFlightMessages inFlightMessages() {
+        return pushServer.messageRetryManager.getInFlightMessages(USER_ID);
+    }
+
+    private static Message push(String messageId) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setFrom("server");
+        message.setTo(USER_ID);
+        message.setContent("content " + messageId);
+        return message;
+    }
+}
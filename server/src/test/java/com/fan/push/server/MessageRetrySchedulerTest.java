@@ -0,0 +1,41 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证: 不管有多少个用户在等待回执, 重发相关的线程数都不会增长
+ */
+public class MessageRetrySchedulerTest {
+
+    @Test
+    public void threadCountStaysFlat() {
+        PushServer pushServer = new PushServer();
+        MessageRetryManager manager = pushServer.messageRetryManager;
+        int shardCount = manager.getRetryScheduler().getShardCount();
+
+        int before = Thread.activeCount();
+
+        manager.add("user-0", new Message(1004, "server", "user-0"));
+        int withOneUser = Thread.activeCount();
+
+        for (int i = 1; i < 100000; i++) {
+            String userId = "user-" + i;
+            manager.add(userId, new Message(1004, "server", userId));
+        }
+        int withManyUsers = Thread.activeCount();
+
+        for (int i = 0; i < 100000; i++) {
+            manager.removeUser("user-" + i);
+        }
+        manager.shutdown();
+
+        // 时间轮的线程, 加上不在线的用户的轮询器用的固定几个线程(offlineExecutors)
+        int limit = shardCount + MessageRetryManager.OFFLINE_RETRY_THREADS;
+        assertTrue("threads: before=" + before + " one=" + withOneUser, withOneUser - before <= limit);
+        assertTrue("threads: one=" + withOneUser + " many=" + withManyUsers, withManyUsers - before <= limit);
+    }
+}
@@ -0,0 +1,37 @@
+package com.fan.push.server;
+
+import com.fan.push.metrics.MetricsRegistry;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 指标注册到 JMX 之后的属性
+ */
+public class MetricsMBeanTest {
+
+    @Test
+    public void jmxAttributes() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_requests_total{result=\"ok\"}", null).add(5);
+        registry.histogram("test_latency_us", null).record(100);
+
+        ObjectName name = MetricsMBean.register(registry, "com.fan.push:type=Metrics,name=MetricsMBeanTest");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(5L, server.getAttribute(name, "test_requests_total_result_ok"));
+            assertEquals(1L, server.getAttribute(name, "test_latency_us_count"));
+            assertEquals(100L, server.getAttribute(name, "test_latency_us_p99"));
+            // 计数器一个, 直方图展开成 count, sum, max 和四个分位数
+            assertEquals(8, server.getMBeanInfo(name).getAttributes().length);
+        } finally {
+            MetricsMBean.unregister(name);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 一个用户多个设备: sendMsg 扇出到每个设备, 在途消息, 回执和离线消息按设备分开
+ */
+public class MultiDeviceDeliveryTest {
+
+    private static final String USER_ID = "multi-device-user";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private SegmentLogOfflineStore store;
+    private EmbeddedChannel phone;
+    private EmbeddedChannel tablet;
+
+    @Before
+    public void setUp() throws Exception {
+        pushServer = new PushServer();
+        store = new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        pushServer.messageRetryManager.setOfflineMessageStore(store);
+        phone = newChannel("phone");
+        tablet = newChannel("tablet");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pushServer.getSessionRegistry().offline(phone);
+        pushServer.getSessionRegistry().offline(tablet);
+        pushServer.messageRetryManager.removeUser(USER_ID + "#phone");
+        pushServer.messageRetryManager.removeUser(USER_ID + "#tablet");
+        phone.finishAndReleaseAll();
+        tablet.finishAndReleaseAll();
+        store.close();
+    }
+
+    @Test
+    public void fanOutSerializesOnceAndTracksEachDevice() {
+        Message message = push("m1");
+        pushServer.sendMsg(USER_ID, message, true);
+
+        // 两个设备收到的是同一份编码好的字节, 没有 seq
+        ByteBuf phoneFrame = phone.readOutbound();
+        ByteBuf tabletFrame = tablet.readOutbound();
+        assertEquals(phoneFrame, tabletFrame);
+        phoneFrame.release();
+        tabletFrame.release();
+
+        // 每个设备在重发管理器里有自己的一份
+        InFlightMessages phoneInFlight = pushServer.messageRetryManager.getInFlightMessages(USER_ID + "#phone");
+        InFlightMessages tabletInFlight = pushServer.messageRetryManager.getInFlightMessages(USER_ID + "#tablet");
+        assertTrue(phoneInFlight.contains("m1"));
+        assertTrue(tabletInFlight.contains("m1"));
+        assertNotSame(phoneInFlight.first(), tabletInFlight.first());
+
+        // 手机的回执不影响平板
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID + "#phone", 0, null, Collections.singletonList("m1")));
+        assertTrue(phoneInFlight.isEmpty());
+        assertTrue(tabletInFlight.contains("m1"));
+
+        // 重发给平板时, 平板自己的那份在平板的连接上分配 seq
+        Message tabletCopy = tabletInFlight.first();
+        tablet.writeOutbound(tabletCopy);
+        assertEquals(1, tabletCopy.getSeq());
+        assertEquals(0, message.getSeq());
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID + "#tablet", 1, null, null));
+    }
+
+    @Test
+    public void singleDeviceStillWritesMessageWithSeq() {
+        pushServer.getSessionRegistry().offline(tablet);
+
+        Message message = push("m1");
+        pushServer.sendMsg(USER_ID, message, true);
+
+        assertEquals(message, phone.readOutbound());
+        assertNull(tablet.readOutbound());
+        assertEquals(1, message.getSeq());
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID + "#phone", 1, null, null));
+    }
+
+    @Test
+    public void offlineMessagesAreStoredPerDevice() throws Exception {
+        pushServer.sendMsg(USER_ID, push("m1"), true);
+        pushServer.sendMsg(USER_ID, push("m2"), true);
+        phone.releaseOutbound();
+        tablet.releaseOutbound();
+
+        // 手机都收到了, 平板断线
+        pushServer.messageRetryManager.acknowledge(USER_ID + "#phone", 0, null, Arrays.asList("m1", "m2"));
+        Session session = pushServer.getSessionRegistry().offline(tablet);
+        pushServer.messageRetryManager.onUserOffline(session.getDeliveryKey());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.count(USER_ID + "#tablet") < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, store.count(USER_ID + "#tablet"));
+        assertEquals(0, store.count(USER_ID + "#phone"));
+        assertEquals(0, store.count(USER_ID));
+        // 手机还在线, 不受影响
+        assertTrue(pushServer.getSessionRegistry().isOnline(USER_ID));
+    }
+
+    @Test
+    public void staleCloseAfterReconnectKeepsNewConnectionsInFlight() throws Exception {
+        phone.pipeline().addLast(new PushServerHandler(pushServer));
+        pushServer.sendMsg(USER_ID, push("m1"), true);
+        phone.releaseOutbound();
+        tablet.releaseOutbound();
+
+        // 手机换了一个连接重新登录, 旧连接的断开晚到了
+        EmbeddedChannel newPhone = newChannel("phone");
+        try {
+            pushServer.messageRetryManager.onUserOnline(SessionRegistry.sessionOf(newPhone));
+            phone.close();
+
+            assertSame(newPhone, pushServer.getSessionRegistry().getChannelIfOnline(USER_ID, "phone"));
+            InFlightMessages inFlight = pushServer.messageRetryManager.getInFlightMessages(USER_ID + "#phone");
+            assertNotNull(inFlight);
+            assertTrue(inFlight.contains("m1"));
+            assertEquals(0, store.count(USER_ID + "#phone"));
+        } finally {
+            pushServer.getSessionRegistry().offline(newPhone);
+            newPhone.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void userIdWithSeparatorCanNotTakeOverADevice() throws Exception {
+        pushServer.getOptions().setHandshakeUserId("");
+        pushServer.sendMsg(USER_ID, push("m1"), true);
+        phone.releaseOutbound();
+        tablet.releaseOutbound();
+
+        // 用户 "multi-device-user#phone" 不带 deviceId 握手: deliveryKey 和 multi-device-user 的手机一样, 不接受
+        String impostor = USER_ID + "#phone";
+        EmbeddedChannel channel = new EmbeddedChannel(new PushServerHandler(pushServer));
+        try {
+            Message handshake = new Message(1001, impostor, "server");
+            channel.writeInbound(handshake);
+            Message reply = channel.readOutbound();
+            assertEquals(-1, reply.getStatus());
+            assertNull(SessionRegistry.sessionOf(channel));
+            assertNull(pushServer.getSessionRegistry().getIfOnline(impostor));
+
+            // deviceId 里有分隔符也不接受
+            handshake = new Message(1001, "other-user", "server");
+            handshake.setDeviceId("x#y");
+            channel.writeInbound(handshake);
+            reply = channel.readOutbound();
+            assertEquals(-1, reply.getStatus());
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+
+        // 发给这个 userId 的消息也不会进手机的轮询器和离线消息
+        try {
+            pushServer.sendMsg(impostor, push("m2"), true);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pushServer.sendMsgAsync(impostor, push("m3"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        InFlightMessages inFlight = pushServer.messageRetryManager.getInFlightMessages(USER_ID + "#phone");
+        assertEquals(1, inFlight.size());
+        assertTrue(inFlight.contains("m1"));
+        assertEquals(0, store.count(USER_ID + "#phone"));
+        assertNull(phone.readOutbound());
+    }
+
+    private EmbeddedChannel newChannel(String deviceId) {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        OutboundQueue.install(channel, pushServer);
+        pushServer.getSessionRegistry().online(channel, USER_ID, deviceId);
+        return channel;
+    }
+
+    private static Message push(String messageId) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setFrom("server");
+        message.setTo(USER_ID);
+        message.setContent("content " + messageId);
+        return message;
+    }
+}
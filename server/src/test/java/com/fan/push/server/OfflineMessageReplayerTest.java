@@ -0,0 +1,152 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OfflineMessageReplayer 的测试: 分页发送, 不可写时暂停, 变回可写后继续
+ */
+public class OfflineMessageReplayerTest {
+
+    private static final String USER_ID = "replay-user";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private SegmentLogOfflineStore store;
+    private ExecutorService executor;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        pushServer = new PushServer();
+        store = new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        pushServer.messageRetryManager.setOfflineMessageStore(store);
+        executor = Executors.newSingleThreadExecutor();
+        channel = new EmbeddedChannel();
+        pushServer.getSessionRegistry().online(channel, USER_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pushServer.getSessionRegistry().offline(channel);
+        pushServer.messageRetryManager.removeUser(USER_ID);
+        channel.finishAndReleaseAll();
+        executor.shutdownNow();
+        store.close();
+    }
+
+    @Test
+    public void replaysAllPagesInOrder() throws Exception {
+        saveMessages(1000);
+
+        OfflineMessageReplayer replayer = new OfflineMessageReplayer(pushServer.messageRetryManager, USER_ID, null, channel, executor, 64);
+        replayer.start();
+        waitUntilFinished(replayer);
+
+        assertEquals(1000, replayer.getReplayedCount());
+        assertEquals(0, store.count(USER_ID));
+        List<Message> written = drainOutbound();
+        assertEquals(1000, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals("m" + i, written.get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void pausesWhileNotWritable() throws Exception {
+        saveMessages(1000);
+
+        // 模拟出站缓冲超过了高水位线
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+
+        OfflineMessageReplayer replayer = new OfflineMessageReplayer(pushServer.messageRetryManager, USER_ID, null, channel, executor, 64);
+        replayer.start();
+
+        // 第一页发出去之后就停下了
+        waitUntil(replayer, 64);
+        Thread.sleep(100);
+        channel.runPendingTasks();
+        assertEquals(64, replayer.getReplayedCount());
+        assertFalse(replayer.isFinished());
+        assertEquals(1000 - 64, store.count(USER_ID));
+
+        // 变回可写, PushServerHandler.channelWritabilityChanged 里会调用 resume
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        OfflineMessageReplayer.resume(channel);
+        waitUntilFinished(replayer);
+
+        assertEquals(1000, replayer.getReplayedCount());
+        assertEquals(1000, drainOutbound().size());
+    }
+
+    @Test
+    public void savesPageBackWhenChannelIsClosed() throws Exception {
+        saveMessages(10);
+        channel.close();
+
+        OfflineMessageReplayer replayer = new OfflineMessageReplayer(pushServer.messageRetryManager, USER_ID, null, channel, executor, 64);
+        replayer.start();
+        waitUntilFinished(replayer);
+
+        assertEquals(0, replayer.getReplayedCount());
+        assertEquals(10, store.count(USER_ID));
+    }
+
+    private void saveMessages(int count) throws Exception {
+        List<Message> messageList = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message();
+            message.setMessageType(1004);
+            message.setMessageId("m" + i);
+            message.setFrom("server");
+            message.setTo(USER_ID);
+            message.setContent("offline " + i);
+            messageList.add(message);
+        }
+        store.save(USER_ID, messageList);
+    }
+
+    private List<Message> drainOutbound() {
+        List<Message> messageList = new ArrayList<>();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            messageList.add((Message) msg);
+        }
+        return messageList;
+    }
+
+    private void waitUntil(OfflineMessageReplayer replayer, int replayedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replayer.getReplayedCount() < replayedCount && System.currentTimeMillis() < deadline) {
+            channel.runPendingTasks();
+            Thread.sleep(1);
+        }
+        assertTrue("timeout", replayer.getReplayedCount() >= replayedCount);
+    }
+
+    private void waitUntilFinished(OfflineMessageReplayer replayer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!replayer.isFinished() && System.currentTimeMillis() < deadline) {
+            channel.runPendingTasks();
+            Thread.sleep(1);
+        }
+        assertTrue("timeout", replayer.isFinished());
+    }
+}
@@ -0,0 +1,182 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OutboundQueue 的测试: 不可写时排队, 变回可写后按顺序写出, 三种溢出策略
+ */
+public class OutboundQueueTest {
+
+    private static final String USER_ID = "queue-user";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private SegmentLogOfflineStore store;
+    private EmbeddedChannel channel;
+
+    private void setUp(OutboundQueue.OverflowPolicy policy, int maxMessages) throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setOutboundQueueMaxMessages(maxMessages);
+        options.setOutboundOverflowPolicy(policy);
+        pushServer = new PushServer(options);
+        store = new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        pushServer.messageRetryManager.setOfflineMessageStore(store);
+
+        channel = new EmbeddedChannel();
+        OutboundQueue.install(channel, pushServer);
+        pushServer.getSessionRegistry().online(channel, USER_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pushServer.getSessionRegistry().offline(channel);
+        pushServer.messageRetryManager.removeUser(USER_ID);
+        channel.finishAndReleaseAll();
+        store.close();
+    }
+
+    @Test
+    public void writesDirectlyWhenWritable() throws Exception {
+        setUp(OutboundQueue.OverflowPolicy.DROP_OLDEST, 3);
+
+        send(5);
+
+        assertEquals(0, OutboundQueue.of(channel).size());
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), drainOutbound());
+    }
+
+    @Test
+    public void queuesWhileNotWritableAndDrainsInOrder() throws Exception {
+        setUp(OutboundQueue.OverflowPolicy.DROP_OLDEST, 100);
+        setWritable(false);
+
+        send(5);
+        assertEquals(5, OutboundQueue.of(channel).size());
+        assertEquals(5, pushServer.getOutboundQueueMetrics().getQueuedMessages());
+        assertTrue(drainOutbound().isEmpty());
+
+        setWritable(true);
+        OutboundQueue.drain(channel);
+
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), drainOutbound());
+        assertEquals(0, pushServer.getOutboundQueueMetrics().getQueuedMessages());
+        assertEquals(0, pushServer.getOutboundQueueMetrics().getQueuedBytes());
+        assertEquals(5, pushServer.getOutboundQueueMetrics().getMaxDepth());
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() throws Exception {
+        setUp(OutboundQueue.OverflowPolicy.DROP_OLDEST, 3);
+        setWritable(false);
+
+        send(5);
+
+        assertEquals(2, pushServer.getOutboundQueueMetrics().getDroppedMessages());
+        setWritable(true);
+        OutboundQueue.drain(channel);
+        assertEquals(Arrays.asList("m2", "m3", "m4"), drainOutbound());
+    }
+
+    @Test
+    public void disconnectClosesChannel() throws Exception {
+        setUp(OutboundQueue.OverflowPolicy.DISCONNECT, 3);
+        setWritable(false);
+
+        send(4);
+        channel.runPendingTasks();
+
+        assertFalse(channel.isActive());
+        assertEquals(1, pushServer.getOutboundQueueMetrics().getDisconnects());
+        // 关闭后排队的内存都还回去了
+        assertEquals(0, pushServer.getOutboundQueueMetrics().getQueuedBytes());
+    }
+
+    @Test
+    public void spillsToOfflineStoreAndReplaysAfterDrain() throws Exception {
+        setUp(OutboundQueue.OverflowPolicy.SPILL_TO_OFFLINE, 3);
+        setWritable(false);
+
+        send(10);
+
+        // 3条在排队, 7条转存
+        assertEquals(3, OutboundQueue.of(channel).size());
+        assertEquals(7, pushServer.getOutboundQueueMetrics().getSpilledMessages());
+        waitUntil(new Condition() {
+            @Override
+            public boolean done() {
+                return store.count(USER_ID) == 7;
+            }
+        });
+
+        setWritable(true);
+        OutboundQueue.drain(channel);
+
+        final List<String> written = new ArrayList<>();
+        waitUntil(new Condition() {
+            @Override
+            public boolean done() {
+                written.addAll(drainOutbound());
+                return written.size() == 10;
+            }
+        });
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4", "m5", "m6", "m7", "m8", "m9"), written);
+        assertEquals(0, store.count(USER_ID));
+    }
+
+    private void send(int count) {
+        for (int i = 0; i < count; i++) {
+            Message message = new Message();
+            message.setMessageType(1004);
+            message.setMessageId("m" + i);
+            message.setFrom("server");
+            message.setTo(USER_ID);
+            message.setContent("content " + i);
+            pushServer.sendMsg(USER_ID, message, true);
+        }
+    }
+
+    private void setWritable(boolean writable) {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+    }
+
+    private List<String> drainOutbound() {
+        List<String> ids = new ArrayList<>();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            ids.add(((Message) msg).getMessageId());
+        }
+        return ids;
+    }
+
+    private interface Condition {
+        boolean done();
+    }
+
+    private void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            channel.runPendingTasks();
+            if (condition.done()) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        assertTrue("timeout", condition.done());
+    }
+}
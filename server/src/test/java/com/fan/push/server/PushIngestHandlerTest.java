@@ -0,0 +1,181 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 推送接入: 批量的推送交给 PushServer, 可以等全部结果再返回
+ */
+public class PushIngestHandlerTest {
+
+    private static final String USER_ID = "ingest-user";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private SegmentLogOfflineStore store;
+    private EmbeddedChannel device;
+    private EmbeddedChannel http;
+
+    @Before
+    public void setUp() throws Exception {
+        pushServer = new PushServer();
+        store = new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        pushServer.messageRetryManager.setOfflineMessageStore(store);
+        device = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        OutboundQueue.install(device, pushServer);
+        pushServer.getSessionRegistry().online(device, USER_ID);
+        http = new EmbeddedChannel(new PushIngestHandler(pushServer));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pushServer.getSessionRegistry().offline(device);
+        pushServer.messageRetryManager.removeUser(USER_ID);
+        device.finishAndReleaseAll();
+        http.finishAndReleaseAll();
+        pushServer.messageRetryManager.shutdown();
+    }
+
+    @Test
+    public void acceptsBatchWithoutWaiting() throws Exception {
+        http.writeInbound(post("/push", "[{\"to\":\"" + USER_ID + "\",\"content\":\"a\",\"messageId\":\"m1\"},"
+                + "{\"userIds\":[\"" + USER_ID + "\",\"nobody\"],\"content\":\"b\"}]"));
+
+        assertResponse(HttpResponseStatus.ACCEPTED, "{\"accepted\":3}");
+        assertEquals(3, pushServer.getMetrics().getIngestedMessages());
+
+        Message first = device.readOutbound();
+        assertEquals("m1", first.getMessageId());
+        assertEquals("a", first.getContent());
+        Message second = device.readOutbound();
+        assertEquals("b", second.getContent());
+        assertNull(device.readOutbound());
+        assertEquals(2, pushServer.messageRetryManager.getInFlightMessages(USER_ID).size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.count("nobody") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, store.count("nobody"));
+    }
+
+    @Test
+    public void waitRespondsWhenAllAcked() {
+        http.writeInbound(post("/push?wait=true", "[{\"to\":\"" + USER_ID + "\",\"content\":\"a\"},{\"to\":\"" + USER_ID + "\",\"content\":\"b\"}]"));
+        device.releaseOutbound();
+
+        // 还没有结果, 暂停读后面的请求
+        assertNull(http.readOutbound());
+        assertFalse(http.config().isAutoRead());
+
+        pushServer.messageRetryManager.acknowledge(USER_ID, 2, null, null);
+        assertResponse(HttpResponseStatus.OK, "{\"accepted\":2,\"delivered\":2,\"storedOffline\":0,\"forwarded\":0,\"expired\":0}");
+        assertTrue(http.config().isAutoRead());
+    }
+
+    @Test
+    public void repeatedMessageIdForSameUserIsSentOnce() {
+        http.writeInbound(post("/push?wait=true", "[{\"userIds\":[\"" + USER_ID + "\",\"" + USER_ID + "\"],\"content\":\"a\",\"messageId\":\"x\"},"
+                + "{\"to\":\"" + USER_ID + "\",\"content\":\"a\",\"messageId\":\"x\"}]"));
+        assertEquals(1, pushServer.getMetrics().getIngestedMessages());
+        Message message = device.readOutbound();
+        assertEquals("x", message.getMessageId());
+        assertNull(device.readOutbound());
+
+        pushServer.messageRetryManager.acknowledge(USER_ID, 0, null, Collections.singletonList("x"));
+        assertResponse(HttpResponseStatus.OK, "{\"accepted\":1,\"delivered\":1,\"storedOffline\":0,\"forwarded\":0,\"expired\":0}");
+        assertTrue(http.config().isAutoRead());
+    }
+
+    @Test
+    public void waitTimesOutWithPartialCounts() throws Exception {
+        EmbeddedChannel timed = new EmbeddedChannel(new PushIngestHandler(pushServer, 50));
+        try {
+            timed.writeInbound(post("/push?wait=true", "[{\"to\":\"" + USER_ID + "\",\"content\":\"a\"},{\"to\":\"" + USER_ID + "\",\"content\":\"b\"}]"));
+            device.releaseOutbound();
+            pushServer.messageRetryManager.acknowledge(USER_ID, 1, null, null);
+            assertNull(timed.readOutbound());
+            assertFalse(timed.config().isAutoRead());
+
+            Thread.sleep(100);
+            timed.runScheduledPendingTasks();
+            FullHttpResponse response = timed.readOutbound();
+            try {
+                assertEquals(HttpResponseStatus.ACCEPTED, response.status());
+                assertEquals("{\"accepted\":2,\"delivered\":1,\"storedOffline\":0,\"forwarded\":0,\"expired\":0,\"pending\":1}",
+                        response.content().toString(CharsetUtil.UTF_8));
+            } finally {
+                response.release();
+            }
+            assertTrue(timed.config().isAutoRead());
+            assertEquals(1, pushServer.getMetrics().getIngestWaitTimeouts());
+
+            // 之后的结果不会再写一次响应
+            pushServer.messageRetryManager.acknowledge(USER_ID, 2, null, null);
+            assertNull(timed.readOutbound());
+        } finally {
+            timed.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+        http.writeInbound(post("/push", "[{\"content\":\"no receiver\"}]"));
+        assertResponse(HttpResponseStatus.BAD_REQUEST, "{\"error\":\"push without to or userIds\"}");
+
+        http.writeInbound(post("/push", "[{\"to\":"));
+        assertEquals(HttpResponseStatus.BAD_REQUEST, readResponse().status());
+
+        // 会和 ingest-user 的 phone 设备是同一个 deliveryKey
+        http.writeInbound(post("/push", "[{\"to\":\"" + USER_ID + "#phone\",\"content\":\"a\"}]"));
+        assertResponse(HttpResponseStatus.BAD_REQUEST, "{\"error\":\"userId can not contain '#': " + USER_ID + "#phone\"}");
+
+        http.writeInbound(post("/other", "[]"));
+        assertEquals(HttpResponseStatus.NOT_FOUND, readResponse().status());
+        assertNull(device.readOutbound());
+    }
+
+    private static FullHttpRequest post(String uri, String body) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri, Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+    }
+
+    private FullHttpResponse readResponse() {
+        FullHttpResponse response = http.readOutbound();
+        response.release();
+        return response;
+    }
+
+    private void assertResponse(HttpResponseStatus status, String body) {
+        FullHttpResponse response = http.readOutbound();
+        try {
+            assertEquals(status, response.status());
+            assertEquals(body, response.content().toString(CharsetUtil.UTF_8));
+        } finally {
+            response.release();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SegmentLogOfflineStore 的测试: 按用户隔离, 重复保存的更新, 重启后恢复, 末尾损坏的截断, 段回收
+ */
+public class SegmentLogOfflineStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pollReturnsOnlyThatUsersMessagesInOrder() throws Exception {
+        SegmentLogOfflineStore store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, false);
+
+        store.save("alice", Arrays.asList(message("a1"), message("a2")));
+        store.save("bob", Arrays.asList(message("b1")));
+        store.save("alice", Arrays.asList(message("a3")));
+
+        assertEquals(3, store.count("alice"));
+        assertEquals(Arrays.asList("a1", "a2", "a3"), ids(store.poll("alice", 10)));
+        assertEquals(0, store.count("alice"));
+        assertTrue(store.poll("alice", 10).isEmpty());
+
+        assertEquals(Arrays.asList("b1"), ids(store.poll("bob", 10)));
+        store.close();
+    }
+
+    @Test
+    public void pollInPagesAndUpdateKeepsFirstPosition() throws Exception {
+        SegmentLogOfflineStore store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, false);
+
+        Message updated = message("m1");
+        updated.setContent("updated");
+        store.save("alice", Arrays.asList(message("m1"), message("m2")));
+        store.save("alice", Arrays.asList(updated, message("m3")));
+
+        List<Message> firstPage = store.poll("alice", 3);
+        assertEquals(Arrays.asList("m1", "m2"), ids(firstPage));
+        assertEquals("updated", firstPage.get(0).getContent());
+
+        assertEquals(Arrays.asList("m3"), ids(store.poll("alice", 3)));
+        store.close();
+    }
+
+    @Test
+    public void recoversIndexAfterReopen() throws Exception {
+        SegmentLogOfflineStore store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, true);
+        store.save("alice", Arrays.asList(message("a1"), message("a2"), message("a3")));
+        store.save("bob", Arrays.asList(message("b1")));
+        assertEquals(Arrays.asList("a1"), ids(store.poll("alice", 1)));
+        store.close();
+
+        store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, true);
+        assertEquals(2, store.count("alice"));
+        assertEquals(Arrays.asList("a2", "a3"), ids(store.poll("alice", 10)));
+        assertEquals(Arrays.asList("b1"), ids(store.poll("bob", 10)));
+        store.close();
+    }
+
+    @Test
+    public void truncatesTornTailOnRecovery() throws Exception {
+        SegmentLogOfflineStore store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, false);
+        store.save("alice", Arrays.asList(message("a1")));
+        store.save("alice", Arrays.asList(message("a2")));
+        store.close();
+
+        // 模拟最后一条记录只写了一半就崩溃了
+        File segment = folder.getRoot().listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+
+        store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, false);
+        assertEquals(1, store.count("alice"));
+
+        // 截断之后接着写, 新记录可以正常读出来
+        store.save("alice", Arrays.asList(message("a3")));
+        store.close();
+        store = new SegmentLogOfflineStore(folder.getRoot(), 1024 * 1024, false);
+        assertEquals(Arrays.asList("a1", "a3"), ids(store.poll("alice", 10)));
+        store.close();
+    }
+
+    @Test
+    public void deletesFullyConsumedSegments() throws Exception {
+        // 段很小, 每次 save 都会换一个新段
+        SegmentLogOfflineStore store = new SegmentLogOfflineStore(folder.getRoot(), 64, false);
+        for (int i = 0; i < 5; i++) {
+            store.save("user" + i, Arrays.asList(message("m" + i)));
+        }
+        assertEquals(5, store.getSegmentCount());
+
+        // CONSUME 记录也写进一个新段; user1 的段不是最老的段, 先不删
+        store.poll("user1", 10);
+        assertEquals(6, store.getSegmentCount());
+
+        // 这条 CONSUME 记录和上一条在同一个段里; 最老的 user0 和 user1 的两个段被删掉
+        store.poll("user0", 10);
+        assertEquals(4, store.getSegmentCount());
+
+        store.close();
+        store = new SegmentLogOfflineStore(folder.getRoot(), 64, false);
+        assertEquals(0, store.count("user0"));
+        assertEquals(0, store.count("user1"));
+        assertEquals(Arrays.asList("m2"), ids(store.poll("user2", 10)));
+        store.close();
+    }
+
+    private static Message message(String messageId) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setContent("content of " + messageId);
+        message.setFrom("server");
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+
+    private static List<String> ids(List<Message> messageList) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messageList) {
+            ids.add(message.getMessageId());
+        }
+        return ids;
+    }
+}
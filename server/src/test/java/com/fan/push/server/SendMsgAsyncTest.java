@@ -0,0 +1,161 @@
+package com.fan.push.server;
+
+import com.fan.push.message.DeliveryStatus;
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * sendMsgAsync 的结果: 回执时 DELIVERED, 存成离线消息时 STORED_OFFLINE, 存不下来时 EXPIRED
+ */
+public class SendMsgAsyncTest {
+
+    private static final String USER_ID = "async-user";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private SegmentLogOfflineStore store;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        pushServer = new PushServer();
+        store = new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false);
+        pushServer.messageRetryManager.setOfflineMessageStore(store);
+        channel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        OutboundQueue.install(channel, pushServer);
+        pushServer.getSessionRegistry().online(channel, USER_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pushServer.getSessionRegistry().offline(channel);
+        pushServer.messageRetryManager.removeUser(USER_ID);
+        channel.finishAndReleaseAll();
+        store.close();
+    }
+
+    @Test
+    public void cumulativeAckCompletesBatch() {
+        List<Future<DeliveryStatus>> futures = pushServer.sendMsgAsync(Arrays.asList(push("m1"), push("m2"), push("m3")));
+        assertEquals(3, futures.size());
+        channel.releaseOutbound();
+        for (Future<DeliveryStatus> future : futures) {
+            assertFalse(future.isDone());
+        }
+
+        // seq <= 2 收到了
+        assertEquals(2, pushServer.messageRetryManager.acknowledge(USER_ID, 2, null, null));
+        assertEquals(DeliveryStatus.DELIVERED, futures.get(0).getNow());
+        assertEquals(DeliveryStatus.DELIVERED, futures.get(1).getNow());
+        assertFalse(futures.get(2).isDone());
+
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID, 0, null, Arrays.asList("m3")));
+        assertEquals(DeliveryStatus.DELIVERED, futures.get(2).getNow());
+    }
+
+    @Test
+    public void duplicateMessageIdCompletesBothFutures() {
+        Future<DeliveryStatus> first = pushServer.sendMsgAsync(USER_ID, push("m1"));
+        Future<DeliveryStatus> second = pushServer.sendMsgAsync(USER_ID, push("m1"));
+        channel.releaseOutbound();
+        assertEquals(1, pushServer.messageRetryManager.getInFlightMessages(USER_ID).size());
+
+        assertEquals(1, pushServer.messageRetryManager.acknowledge(USER_ID, 0, null, Arrays.asList("m1")));
+        assertEquals(DeliveryStatus.DELIVERED, second.getNow());
+        assertEquals(DeliveryStatus.DELIVERED, first.getNow());
+    }
+
+    @Test
+    public void duplicateMessageIdExpiresBothOnShutdown() {
+        Future<DeliveryStatus> first = pushServer.sendMsgAsync(USER_ID, push("m1"));
+        Future<DeliveryStatus> second = pushServer.sendMsgAsync(USER_ID, push("m1"));
+        channel.releaseOutbound();
+
+        pushServer.messageRetryManager.shutdown();
+        assertEquals(DeliveryStatus.EXPIRED, second.getNow());
+        assertEquals(DeliveryStatus.EXPIRED, first.getNow());
+    }
+
+    @Test
+    public void storedOfflineWhenDeviceGoesAway() throws Exception {
+        Future<DeliveryStatus> future = pushServer.sendMsgAsync(USER_ID, push("m1"));
+        channel.releaseOutbound();
+
+        Session session = pushServer.getSessionRegistry().offline(channel);
+        pushServer.messageRetryManager.onUserOffline(session.getDeliveryKey());
+
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertEquals(DeliveryStatus.STORED_OFFLINE, future.getNow());
+        assertEquals(1, store.count(USER_ID));
+    }
+
+    @Test
+    public void offlineUserIsStoredDirectly() throws Exception {
+        Future<DeliveryStatus> future = pushServer.sendMsgAsync("nobody", push("m1"));
+
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertEquals(DeliveryStatus.STORED_OFFLINE, future.getNow());
+        assertEquals(1, store.count("nobody"));
+        // 没有放进重发管理器
+        assertNull(pushServer.messageRetryManager.getInFlightMessages("nobody"));
+    }
+
+    @Test
+    public void expiredWhenOfflineStoreFails() throws Exception {
+        pushServer.messageRetryManager.setOfflineMessageStore(new OfflineMessageStore() {
+            @Override
+            public void save(String userId, List<Message> messages) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public List<Message> poll(String userId, int max) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public int count(String userId) {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        Future<DeliveryStatus> future = pushServer.sendMsgAsync("nobody", push("m1"));
+
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertEquals(DeliveryStatus.EXPIRED, future.getNow());
+    }
+
+    private static Message push(String messageId) {
+        Message message = new Message();
+        message.setMessageType(1004);
+        message.setMessageId(messageId);
+        message.setFrom("server");
+        message.setTo(USER_ID);
+        message.setContent("content " + messageId);
+        return message;
+    }
+}
@@ -0,0 +1,93 @@
+package com.fan.push.server;
+
+import com.fan.push.message.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 握手, 推送, 回执经过 PushServerHandler 之后, ServerMetrics 里的计数和回执延迟
+ */
+public class ServerMetricsTest {
+
+    // ServerOptions 默认的 handshakeUserId, 握手只接受这个用户
+    private static final String USER_ID = "fanshanhong";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PushServer pushServer;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        pushServer = new PushServer();
+        pushServer.messageRetryManager.setOfflineMessageStore(
+                new SegmentLogOfflineStore(folder.getRoot(), SegmentLogOfflineStore.DEFAULT_SEGMENT_SIZE, false));
+        channel = new EmbeddedChannel(new MessageSequenceHandler(pushServer.messageRetryManager));
+        OutboundQueue.install(channel, pushServer);
+        channel.pipeline().addLast(new PushServerHandler(pushServer));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        pushServer.messageRetryManager.shutdown();
+    }
+
+    @Test
+    public void countsHandshakePushAndAck() {
+        ServerMetrics metrics = pushServer.getMetrics();
+
+        channel.writeInbound(new Message(1001, USER_ID, "server"));
+        assertEquals(1, ((Message) channel.readOutbound()).getStatus());
+
+        int messages = 64;
+        int sampled = 0;
+        for (int i = 0; i < messages; i++) {
+            Message message = push("m" + i);
+            if (ServerMetrics.sampleAckLatency(message)) {
+                sampled++;
+            }
+            pushServer.sendMsg(USER_ID, message, true);
+            assertEquals(i + 1, ((Message) channel.readOutbound()).getSeq());
+        }
+        assertEquals(messages, metrics.getPushesSent());
+        assertTrue(sampled > 0);
+
+        // 一个合并的回执确认全部, 抽样的消息记了回执延迟
+        Message ack = new Message(1004, USER_ID, "server");
+        ack.setMessageId(null);
+        ack.setStatus(1);
+        ack.setAckSeq(messages);
+        channel.writeInbound(ack);
+        assertEquals(messages, metrics.getAckedMessages());
+        assertEquals(sampled, metrics.getAckLatency().snapshot().getCount());
+
+        StringBuilder text = new StringBuilder();
+        metrics.getRegistry().writeText(text);
+        String out = text.toString();
+        assertTrue(out, out.contains("fanpush_handshakes_total{result=\"success\"} 1\n"));
+        assertTrue(out, out.contains("fanpush_sessions 1\n"));
+        assertTrue(out, out.contains("fanpush_pushes_sent_total 64\n"));
+        assertTrue(out, out.contains("fanpush_ack_frames_total 1\n"));
+        assertTrue(out, out.contains("fanpush_ack_latency_us_count " + sampled + "\n"));
+        assertTrue(out, out.contains("fanpush_retries_total{attempt=\"6\"} 0\n"));
+        assertTrue(out, out.contains("fanpush_outbound_queued_messages 0\n"));
+    }
+
+    private static Message push(String messageId) {
+        Message message = new Message(1004, "server", USER_ID);
+        message.setMessageId(messageId);
+        message.setContent("hello");
+        return message;
+    }
+}
@@ -0,0 +1,173 @@
+package com.fan.push.server;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SessionRegistry 的测试: 上下线, 重新登录, 多设备, 上线时间, 扩容, 遍历
+ */
+public class SessionRegistryTest {
+
+    @Test
+    public void onlineAndOffline() {
+        SessionRegistry registry = new SessionRegistry(4, 4);
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        long before = System.currentTimeMillis();
+        Session session = registry.online(channel, "u1", "phone");
+        assertTrue(session.getLoginTime() >= before && session.getLoginTime() <= System.currentTimeMillis());
+        assertSame(session, registry.getIfOnline("u1"));
+        assertSame(channel, registry.getChannelIfOnline("u1"));
+        assertSame(session, SessionRegistry.sessionOf(channel));
+        assertEquals("u1", registry.getUserIdByChannel(channel));
+        assertEquals("phone", session.getDeviceId());
+        assertEquals(1, registry.size());
+
+        assertSame(session, registry.offline(channel));
+        assertNull(registry.getIfOnline("u1"));
+        assertNull(registry.getUserIdByChannel(channel));
+        assertNull(registry.offline(channel));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void oldChannelOfflineDoesNotRemoveNewLogin() {
+        SessionRegistry registry = new SessionRegistry(4, 4);
+        EmbeddedChannel oldChannel = new EmbeddedChannel();
+        EmbeddedChannel newChannel = new EmbeddedChannel();
+
+        registry.online(oldChannel, "u1");
+        Session newSession = registry.online(newChannel, "u1");
+        assertEquals(1, registry.size());
+
+        // 旧连接的下线处理晚到了, 它的会话已经被替换掉了
+        assertNull(registry.offline(oldChannel));
+        assertSame(newSession, registry.getIfOnline("u1"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void multipleDevicesOfOneUser() {
+        SessionRegistry registry = new SessionRegistry(4, 4);
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel tablet = new EmbeddedChannel();
+        EmbeddedChannel desktop = new EmbeddedChannel();
+
+        registry.online(phone, "u1", "phone");
+        Session tabletSession = registry.online(tablet, "u1", "tablet");
+        registry.online(desktop, "u1", "desktop");
+        assertEquals(3, registry.size());
+        assertSame(tabletSession, registry.getIfOnline("u1", "tablet"));
+        assertEquals("u1#tablet", tabletSession.getDeliveryKey());
+        assertNull(registry.getIfOnline("u1", null));
+
+        Set<String> devices = new HashSet<>();
+        for (Session session = registry.getIfOnline("u1"); session != null; session = session.nextDevice()) {
+            devices.add(session.getDeviceId());
+        }
+        assertEquals(3, devices.size());
+
+        // 同一个设备重新登录, 替换掉旧的, 其他设备不变
+        EmbeddedChannel newPhone = new EmbeddedChannel();
+        Session newPhoneSession = registry.online(newPhone, "u1", "phone");
+        assertEquals(3, registry.size());
+        assertSame(newPhoneSession, registry.getIfOnline("u1", "phone"));
+        assertNull(registry.offline(new EmbeddedChannel()));
+        // 旧连接的会话已经被替换掉了
+        assertNull(registry.offline(phone));
+        assertSame(newPhone, registry.getChannelIfOnline("u1", "phone"));
+
+        // 一个设备下线, 其他设备还在线
+        registry.offline(tablet);
+        assertEquals(2, registry.size());
+        assertNull(registry.getIfOnline("u1", "tablet"));
+        assertSame(desktop, registry.getChannelIfOnline("u1", "desktop"));
+
+        int count = 0;
+        for (Session session : registry.sessions()) {
+            assertEquals("u1", session.getUserId());
+            count++;
+        }
+        assertEquals(2, count);
+
+        registry.offline(newPhone);
+        registry.offline(desktop);
+        assertFalse(registry.isOnline("u1"));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void growsAndReusesTombstones() {
+        SessionRegistry registry = new SessionRegistry(2, 4);
+        int count = 20000;
+        EmbeddedChannel[] channels = new EmbeddedChannel[count];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < count; i++) {
+                channels[i] = new EmbeddedChannel();
+                registry.online(channels[i], "user-" + i);
+            }
+            assertEquals(count, registry.size());
+            for (int i = 0; i < count; i++) {
+                assertSame(channels[i], registry.getChannelIfOnline("user-" + i));
+            }
+            Set<String> seen = new HashSet<>();
+            for (Session session : registry.sessions()) {
+                assertTrue(seen.add(session.getUserId()));
+            }
+            assertEquals(count, seen.size());
+
+            // 下线一半
+            for (int i = 0; i < count; i += 2) {
+                registry.offline(channels[i]);
+            }
+            assertEquals(count / 2, registry.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i % 2 == 1, registry.isOnline("user-" + i));
+            }
+            for (int i = 1; i < count; i += 2) {
+                registry.offline(channels[i]);
+            }
+            assertEquals(0, registry.size());
+            assertFalse(registry.sessions().iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void randomOnlineOfflineMatchesMap() {
+        // 一把锁, 小的初始容量: 上下线交替, 中间会扩容, 和 HashMap 的结果对比
+        SessionRegistry registry = new SessionRegistry(1, 4);
+        Map<String, EmbeddedChannel> online = new HashMap<>();
+        Random random = new Random(7);
+        for (int step = 0; step < 50000; step++) {
+            String userId = "user-" + random.nextInt(300);
+            EmbeddedChannel channel = online.remove(userId);
+            if (channel != null) {
+                assertNotNull(registry.offline(channel));
+            } else {
+                channel = new EmbeddedChannel();
+                registry.online(channel, userId);
+                online.put(userId, channel);
+            }
+            if (step % 1000 == 0) {
+                assertEquals(online.size(), registry.size());
+                for (int i = 0; i < 300; i++) {
+                    assertSame(online.get("user-" + i), registry.getChannelIfOnline("user-" + i));
+                }
+            }
+        }
+    }
+}
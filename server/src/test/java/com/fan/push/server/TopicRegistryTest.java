@@ -0,0 +1,57 @@
+package com.fan.push.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopicRegistryTest {
+
+    @Test
+    public void subscribeAndUnsubscribe() {
+        TopicRegistry registry = new TopicRegistry();
+        registry.subscribe("table-8", "A");
+        registry.subscribe("table-8", "B");
+        registry.subscribe("table-9", "A");
+
+        assertEquals(2, registry.subscriberCount("table-8"));
+
+        registry.unsubscribe("table-8", "B");
+        assertEquals(1, registry.subscriberCount("table-8"));
+        assertTrue(registry.subscribers("table-8").contains("A"));
+
+        // 下线: 退订 A 的全部主题
+        registry.unsubscribeAll("A");
+        assertEquals(0, registry.subscriberCount("table-8"));
+        assertEquals(0, registry.subscriberCount("table-9"));
+    }
+
+    @Test
+    public void concurrentChurnOnOneTopicKeepsLastSubscriptions() throws Exception {
+        final TopicRegistry registry = new TopicRegistry();
+        final int threads = 8;
+        final int perThread = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final String userId = "user-" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        registry.subscribe("hot", userId);
+                        registry.unsubscribe("hot", userId);
+                    }
+                    // 最后一次是订阅
+                    registry.subscribe("hot", userId);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads, registry.subscriberCount("hot"));
+    }
+}